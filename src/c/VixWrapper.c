@@ -28,18 +28,15 @@
    fixed callbackProc implementation defined in this file (defaultCallback), which delegates
    control to the appropriate Java VixEventProc, passing in the appropriate client data object.
 
-   To do this, it needs to allocate memory on the heap to keep track of the java class
-   to call when the callback is invoked; this memory must be released manually, through
-   a mechanism that doesn't actually exist yet. (i.e. memory will be leaked until the
-   program terminates). Something to fix, no doubt.
-
-   Perhaps the VixWrapper could keep a map of jobHandles->CombinedClientData pointers;
-   as a jobHandle is reclaimed/released, the memory allocated to these pointers could
-   be freed (via weak references?). This assumes jobHandles are not reused by the VIX API
-   across calling threads or the virtual machines being called, of course.
+   To do this, it needs to allocate memory to keep track of the java class to call
+   when the callback is invoked. This memory is kept in a registry keyed by job handle
+   (see "CALLBACK CLIENT DATA REGISTRY" below); the global references it holds are
+   deleted once the job completes, and the memory itself is returned to a pool once
+   the job handle has also been released.
 
    Early free'ing of client data memory would result in a callback invoking arbitrary
-   instructions in the VM, which would almost certainly crash the thing.
+   instructions in the VM, which would almost certainly crash the thing, so the memory
+   is never reused before the VIX_EVENTTYPE_JOB_COMPLETED event has been delivered.
 
  *
  * @author knoxg
@@ -55,11 +52,62 @@
 #include "vix.h"
 #include "jni.h"
 
+#include <stdarg.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#ifdef _WIN32
+#include <windows.h>
+#if defined(_MSC_VER) && _MSC_VER < 1900
+#define vsnprintf _vsnprintf
+#endif
+#else
+#include <sys/time.h>
+#include <pthread.h>
+#include <sched.h>
+#endif
+
 #define LOGGER_NAME "net.sf.jvix.VixWrapper"
 #define VIX_E_JNI_TOO_MANY_PROPERTIES                30001
 #define VIX_E_JNI_CANNOT_RETURN_UNKNOWN_PROPERTYTYPE 30002
+
+/* maximum number of properties that can be retrieved in a single varargs call; larger
+ * requests are split into several calls (see getProperties()) */
+#define MAX_VARARGS_PROPERTIES 6
+
+/* number of properties that can be retrieved without allocating memory */
+#define STACK_PROPERTIES 16
+
+/* the varargs property functions which can be invoked by getProperties() */
+#define PROPERTY_GETTER_JOB_WAIT            1
+#define PROPERTY_GETTER_GET_PROPERTIES      2
+#define PROPERTY_GETTER_GET_NTH_PROPERTIES  3
 #define null NULL
 
+/* native logging modes; these must match the JVIX_LOG_* constants in VixWrapper.java */
+#define JVIX_LOG_NONE   0
+#define JVIX_LOG_DEBUG  1
+#define JVIX_LOG_TRACE  2
+
+/* size of the trace ring buffer; must be a power of two */
+#define TRACE_RING_SIZE         1024
+#define TRACE_MAX_ARGS          4
+#define TRACE_TEXT_LENGTH       64
+#define TRACE_MESSAGE_LENGTH    256
+
+/* maximum length of a message logged in JVIX_LOG_DEBUG mode */
+#define DEBUG_MESSAGE_LENGTH    1024
+
+/** Log a debug message. The format string uses a subset of printf conversions
+ * (%d, %x, %lld, %s and %%; see formatTraceMessage()), and must be a string literal,
+ * since in trace mode only the pointer to it is recorded.
+ *
+ * <p>The arguments are not evaluated at all when native logging is disabled.
+ */
+#define logDebug(env, ...) \
+    do { if (nativeLogMode != JVIX_LOG_NONE) { logDebugMessage(env, __VA_ARGS__); } } while (0)
+
 /******************************************************************************************
  ** TYPE DEFINITIONS
  **/
@@ -78,71 +126,644 @@ typedef union {
   Blob      blobValue;
 } PropertyResult;
 
+/** Working storage for a request for a number of properties. Small requests
+ * use the arrays embedded in this structure; larger ones allocate memory
+ * (see initPropertyRequest()).
+ */
+typedef struct {
+    int             size;
+    VixPropertyID   *propIds;
+    VixPropertyType *propTypes;
+    PropertyResult  *props;
+    jint            *types;    /* propTypes, as passed back to java */
+    jlong           *values;   /* primitive property values, as passed back to java */
+    void            *allocated;
+
+    VixPropertyID   stackPropIds[STACK_PROPERTIES];
+    VixPropertyType stackPropTypes[STACK_PROPERTIES];
+    PropertyResult  stackProps[STACK_PROPERTIES];
+    jint            stackTypes[STACK_PROPERTIES];
+    jlong           stackValues[STACK_PROPERTIES];
+} PropertyRequest;
+
+/** The number of jobs created with a VixEventProc on a host, or on one of its VMs, which
+ *  have not yet completed; see Jvix_GetPendingJobCount
+ */
+typedef struct {
+    VixHandle    hostHandle;  /* VIX_INVALID_HANDLE for jobs whose host is not known */
+    volatile int count;
+} PendingJobCount;
+
+/** The host that a handle belongs to; see recordHandleHost() */
+typedef struct {
+    VixHandle handle;
+    VixHandle hostHandle;
+} HandleHost;
+
 /** I'm going to use the clientData object to contain a reference to a combined structure
  *  that contains both an object implementing the net.sf.jvix.VixEventProc interface
  *  and the original clientData passed to the VIX API
  */
-typedef struct {
+typedef struct CombinedClientData {
     JavaVM  *javaVM;
     /* JNIEnv  *env;       handle to JVM environment. not sure if this needs to be tied to the calling thread.  */
     jobject eventProc;  /* event procedure to invoke in java */
     jobject clientData; /* original client data reference passed in from java (will be passed to eventProc as a parameter) */
+    VixHandle jobHandle;  /* job handle this structure is registered against */
+    PendingJobCount *pendingJobs;  /* the count of pending jobs on the host this job was created on */
+    int     slotId;       /* index of this structure in the pool; see lookupClientData() */
+    int     refCount;     /* see the CALLBACK CLIENT DATA REGISTRY section */
+    struct CombinedClientData *next;  /* next structure in the same registry bucket, or in the free list */
 } CombinedClientData;
 
+/* number of CombinedClientData structures allocated at a time */
+#define CLIENT_DATA_SLAB_SIZE   64
+
+/* number of buckets in the client data registry; must be a power of two */
+#define CLIENT_DATA_BUCKETS     256
+
+/* number of hosts whose pending jobs can be counted separately; jobs on any further hosts
+ * are counted against every host */
+#define PENDING_JOB_HOSTS       64
+
+/* number of handles whose host can be recorded; must be a power of two */
+#define HANDLE_HOST_CACHE_SIZE  1024
+
+/** A block of CombinedClientData structures */
+typedef struct {
+    CombinedClientData entries[CLIENT_DATA_SLAB_SIZE];
+} ClientDataSlab;
+
 
 
 /******************************************************************************************
- ** UTILITY FUNCTIONS
+ ** CACHED CLASS, METHOD AND FIELD IDS
+ **
+ ** These are resolved once in JNI_OnLoad, rather than on every call into or out of
+ ** the JVM. Class references are held as global references so that the method and
+ ** field IDs derived from them remain valid; they are released again in JNI_OnUnload.
  **/
 
-/** Log the text supplied using the log4j logger for
- * 'net.sf.jvix.VixWrapper' at debug level
- */
-void logDebug(JNIEnv *env, char *text) {
+static JavaVM    *cachedJavaVM = NULL;
 
-    // used to prevent logger messages filling up System.out
-    static int loggerError = 0;
+static jclass    vixHandleClass = NULL;
+static jfieldID  vixHandleValueFieldId = NULL;
 
-	  // just going to dump these to stdout for the time being...
-	  // printf("%s\n", text);
-	
-	
-    jclass loggerClass = (*env)->FindClass(env, "org/apache/log4j/Logger");
-    if (loggerClass == 0) {
-        if (loggerError == 0) {
-            printf("Could not retrieve org.apache.log4j.Logger class -- logging disabled");
-            loggerError = 1;
-        }
+static jclass    vixHandleTableClass = NULL;
+static jmethodID vixHandleTableGetMethodId = NULL;
+static jmethodID vixHandleTableAcquireMethodId = NULL;
+static jmethodID vixHandleTableReleaseMethodId = NULL;
+
+static jclass    vixBlobClass = NULL;
+static jmethodID vixBlobConstructorId = NULL;
+
+static jclass    vixExceptionClass = NULL;
+static jmethodID vixExceptionConstructorId = NULL;
+
+static jclass    nullPointerExceptionClass = NULL;
+static jmethodID nullPointerExceptionConstructorId = NULL;
+
+static jclass    integerClass = NULL;
+static jmethodID integerConstructorId = NULL;
+static jmethodID integerIntValueMethodId = NULL;
+
+static jclass    booleanClass = NULL;
+static jmethodID booleanConstructorId = NULL;
+
+static jclass    longClass = NULL;
+static jmethodID longConstructorId = NULL;
+
+static jclass    arrayListClass = NULL;
+static jmethodID arrayListConstructorId = NULL;
+static jmethodID arrayListAddMethodId = NULL;
+
+static jclass    listClass = NULL;
+static jmethodID listSizeMethodId = NULL;
+static jmethodID listGetMethodId = NULL;
+
+static jclass    propertyResultBufferClass = NULL;
+static jfieldID  propertyResultBufferIdsFieldId = NULL;
+static jfieldID  propertyResultBufferSizeFieldId = NULL;
+static jfieldID  propertyResultBufferTypesFieldId = NULL;
+static jfieldID  propertyResultBufferValuesFieldId = NULL;
+static jfieldID  propertyResultBufferObjectsFieldId = NULL;
+static jfieldID  propertyResultBufferRawStringsFieldId = NULL;
+
+static jclass    propertyTableClass = NULL;
+static jmethodID propertyTableConstructorId = NULL;
+
+static jclass    vixEventProcClass = NULL;
+static jmethodID vixEventProcCallbackMethodId = NULL;
+
+static jclass    objectClass = NULL;
+static jclass    stringClass = NULL;
+static jclass    byteArrayClass = NULL;
+
+/* the log4j logger is optional; if it can't be found, logging is disabled */
+static jclass    loggerClass = NULL;
+static jobject   loggerObject = NULL;
+static jmethodID loggerDebugMethodId = NULL;
+
+/* defined in the CALLBACK CLIENT DATA REGISTRY and CALLBACK THREADS sections */
+static void initClientDataRegistry(void);
+static void destroyClientDataRegistry(void);
+static void recordPropertyHosts(VixHandle handle, PropertyRequest *request);
+static int initCallbackThreads(void);
+static void destroyCallbackThreads(void);
+
+/* defined in the JOB COMPLETION section */
+static void initJobCompletion(void);
+static void destroyJobCompletion(void);
+static void signalPendingJob(void);
+
+/** Find a class and return a global reference to it
+ *
+ * @param env pointer to the JNI environment
+ * @param className the JNI name of the class (e.g. "java/lang/Integer")
+ *
+ * @returns a global reference to the class, or NULL if it could not be found
+ *   (in which case a NoClassDefFoundError will be pending)
+ */
+static jclass findGlobalClass(JNIEnv *env, const char *className) {
+    jclass localClass = (*env)->FindClass(env, className);
+    jclass globalClass;
+    if (localClass == NULL) {
+        printf("Could not find class %s\n", className);
+        return NULL;
+    }
+    globalClass = (jclass) (*env)->NewGlobalRef(env, localClass);
+    (*env)->DeleteLocalRef(env, localClass);
+    return globalClass;
+}
+
+/** Resolve the log4j logger used by logDebug(). Failure here is not fatal; it
+ * just means that native debug output is discarded.
+ *
+ * @param env pointer to the JNI environment
+ */
+static void initLogger(JNIEnv *env) {
+    jmethodID getLoggerMethodId;
+    jstring loggerName;
+    jobject localLogger;
+
+    loggerClass = findGlobalClass(env, "org/apache/log4j/Logger");
+    if (loggerClass == NULL) {
+        (*env)->ExceptionClear(env);
+        printf("Could not retrieve org.apache.log4j.Logger class -- logging disabled\n");
+        return;
+    }
+    getLoggerMethodId = (*env)->GetStaticMethodID(env, loggerClass, "getLogger", "(Ljava/lang/String;)Lorg/apache/log4j/Logger;");
+    loggerDebugMethodId = (*env)->GetMethodID(env, loggerClass, "debug", "(Ljava/lang/Object;)V");
+    if (getLoggerMethodId == NULL || loggerDebugMethodId == NULL) {
+        (*env)->ExceptionClear(env);
+        printf("Could not retrieve methods of org.apache.log4j.Logger -- logging disabled\n");
+        loggerDebugMethodId = NULL;
+        return;
+    }
+    loggerName = (*env)->NewStringUTF(env, (const char *) LOGGER_NAME);
+    localLogger = (*env)->CallStaticObjectMethod(env, loggerClass, getLoggerMethodId, loggerName);
+    (*env)->DeleteLocalRef(env, loggerName);
+    if ((*env)->ExceptionCheck(env) || localLogger == NULL) {
+        (*env)->ExceptionClear(env);
+        printf("Could not retrieve logger for '%s' -- logging disabled\n", LOGGER_NAME);
         return;
     }
+    loggerObject = (*env)->NewGlobalRef(env, localLogger);
+    (*env)->DeleteLocalRef(env, localLogger);
+}
+
+/** Called by the JVM when this library is loaded (i.e. from the static initialiser
+ * of net.sf.jvix.VixWrapper). Resolves all class, method and field IDs used by the
+ * rest of this file.
+ *
+ * @param vm the JavaVM which has loaded this library
+ * @param reserved unused
+ *
+ * @returns the JNI version required by this library, or JNI_ERR if any of
+ *   the required classes or members could not be found
+ */
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_4) != JNI_OK) {
+        return JNI_ERR;
+    }
+    cachedJavaVM = vm;
+
+    if ((vixHandleClass = findGlobalClass(env, "net/sf/jvix/VixHandle")) == NULL) { return JNI_ERR; }
+    if ((vixHandleTableClass = findGlobalClass(env, "net/sf/jvix/VixHandleTable")) == NULL) { return JNI_ERR; }
+    if ((vixBlobClass = findGlobalClass(env, "net/sf/jvix/VixBlob")) == NULL) { return JNI_ERR; }
+    if ((vixExceptionClass = findGlobalClass(env, "net/sf/jvix/VixException")) == NULL) { return JNI_ERR; }
+    if ((nullPointerExceptionClass = findGlobalClass(env, "java/lang/NullPointerException")) == NULL) { return JNI_ERR; }
+    if ((integerClass = findGlobalClass(env, "java/lang/Integer")) == NULL) { return JNI_ERR; }
+    if ((booleanClass = findGlobalClass(env, "java/lang/Boolean")) == NULL) { return JNI_ERR; }
+    if ((longClass = findGlobalClass(env, "java/lang/Long")) == NULL) { return JNI_ERR; }
+    if ((arrayListClass = findGlobalClass(env, "java/util/ArrayList")) == NULL) { return JNI_ERR; }
+    if ((listClass = findGlobalClass(env, "java/util/List")) == NULL) { return JNI_ERR; }
+    if ((propertyResultBufferClass = findGlobalClass(env, "net/sf/jvix/PropertyResultBuffer")) == NULL) { return JNI_ERR; }
+    if ((propertyTableClass = findGlobalClass(env, "net/sf/jvix/PropertyTable")) == NULL) { return JNI_ERR; }
+    if ((vixEventProcClass = findGlobalClass(env, "net/sf/jvix/VixEventProc")) == NULL) { return JNI_ERR; }
+    if ((objectClass = findGlobalClass(env, "java/lang/Object")) == NULL) { return JNI_ERR; }
+    if ((stringClass = findGlobalClass(env, "java/lang/String")) == NULL) { return JNI_ERR; }
+    if ((byteArrayClass = findGlobalClass(env, "[B")) == NULL) { return JNI_ERR; }
+
+    vixHandleValueFieldId = (*env)->GetFieldID(env, vixHandleClass, "value", "I");
+    vixHandleTableGetMethodId = (*env)->GetStaticMethodID(env, vixHandleTableClass, "get", "(I)Lnet/sf/jvix/VixHandle;");
+    vixHandleTableAcquireMethodId = (*env)->GetStaticMethodID(env, vixHandleTableClass, "acquire", "(I)Lnet/sf/jvix/VixHandle;");
+    vixHandleTableReleaseMethodId = (*env)->GetStaticMethodID(env, vixHandleTableClass, "release", "(I)V");
+    vixBlobConstructorId = (*env)->GetMethodID(env, vixBlobClass, "<init>", "(Ljava/nio/ByteBuffer;J)V");
+    vixExceptionConstructorId = (*env)->GetMethodID(env, vixExceptionClass, "<init>", "(I)V");
+    nullPointerExceptionConstructorId = (*env)->GetMethodID(env, nullPointerExceptionClass, "<init>", "(Ljava/lang/String;)V");
+    integerConstructorId = (*env)->GetMethodID(env, integerClass, "<init>", "(I)V");
+    integerIntValueMethodId = (*env)->GetMethodID(env, integerClass, "intValue", "()I");
+    booleanConstructorId = (*env)->GetMethodID(env, booleanClass, "<init>", "(Z)V");
+    longConstructorId = (*env)->GetMethodID(env, longClass, "<init>", "(J)V");
+    arrayListConstructorId = (*env)->GetMethodID(env, arrayListClass, "<init>", "()V");
+    arrayListAddMethodId = (*env)->GetMethodID(env, arrayListClass, "add", "(Ljava/lang/Object;)Z");
+    listSizeMethodId = (*env)->GetMethodID(env, listClass, "size", "()I");
+    listGetMethodId = (*env)->GetMethodID(env, listClass, "get", "(I)Ljava/lang/Object;");
+    propertyResultBufferIdsFieldId = (*env)->GetFieldID(env, propertyResultBufferClass, "propertyIds", "[I");
+    propertyResultBufferSizeFieldId = (*env)->GetFieldID(env, propertyResultBufferClass, "size", "I");
+    propertyResultBufferTypesFieldId = (*env)->GetFieldID(env, propertyResultBufferClass, "propertyTypes", "[I");
+    propertyResultBufferValuesFieldId = (*env)->GetFieldID(env, propertyResultBufferClass, "values", "[J");
+    propertyResultBufferObjectsFieldId = (*env)->GetFieldID(env, propertyResultBufferClass, "objects", "[Ljava/lang/Object;");
+    propertyResultBufferRawStringsFieldId = (*env)->GetFieldID(env, propertyResultBufferClass, "rawStrings", "Z");
+    propertyTableConstructorId = (*env)->GetMethodID(env, propertyTableClass, "<init>", "([I[I[Ljava/lang/Object;I)V");
+    vixEventProcCallbackMethodId = (*env)->GetMethodID(env, vixEventProcClass, "callback",
+      "(Lnet/sf/jvix/VixHandle;ILnet/sf/jvix/VixHandle;Ljava/lang/Object;)V");
+    if (vixHandleValueFieldId == NULL ||
+        vixHandleTableGetMethodId == NULL || vixHandleTableAcquireMethodId == NULL ||
+        vixHandleTableReleaseMethodId == NULL ||
+        vixBlobConstructorId == NULL ||
+        vixExceptionConstructorId == NULL || nullPointerExceptionConstructorId == NULL ||
+        integerConstructorId == NULL || integerIntValueMethodId == NULL ||
+        booleanConstructorId == NULL || longConstructorId == NULL ||
+        arrayListConstructorId == NULL || arrayListAddMethodId == NULL ||
+        listSizeMethodId == NULL || listGetMethodId == NULL ||
+        propertyResultBufferIdsFieldId == NULL || propertyResultBufferSizeFieldId == NULL ||
+        propertyResultBufferTypesFieldId == NULL || propertyResultBufferValuesFieldId == NULL ||
+        propertyResultBufferObjectsFieldId == NULL || propertyResultBufferRawStringsFieldId == NULL ||
+        propertyTableConstructorId == NULL ||
+        vixEventProcCallbackMethodId == NULL)
+    {
+        printf("Could not resolve all methods and fields required by jvix\n");
+        return JNI_ERR;
+    }
+
+    initLogger(env);
+    initClientDataRegistry();
+    initJobCompletion();
+    if (initCallbackThreads() != 0) {
+        printf("Could not allocate thread-local storage for jvix callbacks\n");
+        return JNI_ERR;
+    }
+    return JNI_VERSION_1_4;
+}
 
-    jmethodID getLoggerMethodId = (*env)->GetStaticMethodID(env, loggerClass, "getLogger", "(Ljava/lang/String;)Lorg/apache/log4j/Logger;");
-    if (getLoggerMethodId == 0) {
-        printf("Could not retrieve getLogger() method of org.apache.log4j.Logger");
+/** Called by the JVM when the classloader that loaded this library is garbage
+ * collected. Releases the global references created in JNI_OnLoad.
+ *
+ * @param vm the JavaVM which loaded this library
+ * @param reserved unused
+ */
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_4) != JNI_OK) {
         return;
     }
-    jstring loggerName = (*env)->NewStringUTF(env, (const char *) LOGGER_NAME);
-    jobject loggerObject = (*env)->CallStaticObjectMethod(env, loggerClass, getLoggerMethodId, loggerName);
-    if (loggerObject == null) {
-        if (loggerError == 0) {
-            printf("Could not retrieve logger for '%s'", LOGGER_NAME);
-            loggerError = 1;
+    if (loggerObject != NULL) { (*env)->DeleteGlobalRef(env, loggerObject); loggerObject = NULL; }
+    if (loggerClass != NULL) { (*env)->DeleteGlobalRef(env, loggerClass); loggerClass = NULL; }
+    if (byteArrayClass != NULL) { (*env)->DeleteGlobalRef(env, byteArrayClass); byteArrayClass = NULL; }
+    if (stringClass != NULL) { (*env)->DeleteGlobalRef(env, stringClass); stringClass = NULL; }
+    if (objectClass != NULL) { (*env)->DeleteGlobalRef(env, objectClass); objectClass = NULL; }
+    if (vixEventProcClass != NULL) { (*env)->DeleteGlobalRef(env, vixEventProcClass); vixEventProcClass = NULL; }
+    if (propertyTableClass != NULL) { (*env)->DeleteGlobalRef(env, propertyTableClass); propertyTableClass = NULL; }
+    if (propertyResultBufferClass != NULL) { (*env)->DeleteGlobalRef(env, propertyResultBufferClass); propertyResultBufferClass = NULL; }
+    if (listClass != NULL) { (*env)->DeleteGlobalRef(env, listClass); listClass = NULL; }
+    if (arrayListClass != NULL) { (*env)->DeleteGlobalRef(env, arrayListClass); arrayListClass = NULL; }
+    if (longClass != NULL) { (*env)->DeleteGlobalRef(env, longClass); longClass = NULL; }
+    if (booleanClass != NULL) { (*env)->DeleteGlobalRef(env, booleanClass); booleanClass = NULL; }
+    if (integerClass != NULL) { (*env)->DeleteGlobalRef(env, integerClass); integerClass = NULL; }
+    if (nullPointerExceptionClass != NULL) { (*env)->DeleteGlobalRef(env, nullPointerExceptionClass); nullPointerExceptionClass = NULL; }
+    if (vixExceptionClass != NULL) { (*env)->DeleteGlobalRef(env, vixExceptionClass); vixExceptionClass = NULL; }
+    if (vixBlobClass != NULL) { (*env)->DeleteGlobalRef(env, vixBlobClass); vixBlobClass = NULL; }
+    if (vixHandleTableClass != NULL) { (*env)->DeleteGlobalRef(env, vixHandleTableClass); vixHandleTableClass = NULL; }
+    if (vixHandleClass != NULL) { (*env)->DeleteGlobalRef(env, vixHandleClass); vixHandleClass = NULL; }
+    destroyCallbackThreads();
+    destroyJobCompletion();
+    destroyClientDataRegistry();
+    cachedJavaVM = NULL;
+}
+
+
+/******************************************************************************************
+ ** ATOMIC OPERATIONS
+ **
+ ** gcc 3 doesn't provide the __sync builtins, so the Win32 build uses the Interlocked
+ ** functions instead. Both of these act as full memory barriers. atomicGet() is used to
+ ** read a value published by atomicSet() on another thread, before reading the data it
+ ** guards.
+ **/
+
+#ifdef _WIN32
+#define atomicCompareAndSet(ptr, oldValue, newValue) \
+    (InterlockedCompareExchange((LONG volatile *) (ptr), (LONG) (newValue), (LONG) (oldValue)) == (LONG) (oldValue))
+#define atomicSet(ptr, value)  InterlockedExchange((LONG volatile *) (ptr), (LONG) (value))
+#define atomicGet(ptr)         InterlockedCompareExchange((LONG volatile *) (ptr), 0, 0)
+#define atomicIncrement(ptr)   InterlockedIncrement((LONG volatile *) (ptr))
+#define atomicDecrement(ptr)   InterlockedDecrement((LONG volatile *) (ptr))
+#define yieldThread()          Sleep(0)
+#else
+#define atomicCompareAndSet(ptr, oldValue, newValue) __sync_bool_compare_and_swap((ptr), (oldValue), (newValue))
+#define atomicSet(ptr, value)  do { __sync_synchronize(); *(ptr) = (value); __sync_synchronize(); } while (0)
+#define atomicGet(ptr)         __sync_val_compare_and_swap((ptr), 0, 0)
+#define atomicIncrement(ptr)   __sync_add_and_fetch((ptr), 1)
+#define atomicDecrement(ptr)   __sync_sub_and_fetch((ptr), 1)
+#define yieldThread()          sched_yield()
+#endif
+
+/* mutexes, for the few structures which aren't lock-free */
+#ifdef _WIN32
+typedef CRITICAL_SECTION jvixMutex;
+#define initMutex(mutex)     InitializeCriticalSection(mutex)
+#define destroyMutex(mutex)  DeleteCriticalSection(mutex)
+#define lockMutex(mutex)     EnterCriticalSection(mutex)
+#define unlockMutex(mutex)   LeaveCriticalSection(mutex)
+#else
+typedef pthread_mutex_t jvixMutex;
+#define initMutex(mutex)     pthread_mutex_init((mutex), NULL)
+#define destroyMutex(mutex)  pthread_mutex_destroy(mutex)
+#define lockMutex(mutex)     pthread_mutex_lock(mutex)
+#define unlockMutex(mutex)   pthread_mutex_unlock(mutex)
+#endif
+
+/* condition variables, used with the mutexes above; waitCondition() returns after at most
+ * timeoutMillis milliseconds, whether or not the condition was signalled, and may return
+ * early without being signalled, so callers must check their condition again.
+ * signalAllCondition() must be called with the mutex held.
+ *
+ * CONDITION_VARIABLE requires Vista and isn't in the gcc 3 (-mno-cygwin) headers, so
+ * on Win32 a condition is a semaphore which is released once for each thread waiting
+ * on it. A waiter which times out just as the condition is signalled may leave a
+ * count on the semaphore, which causes a later waiter to wake early. */
+#ifdef _WIN32
+typedef struct {
+    HANDLE semaphore;
+    int    waiters;    /* number of threads waiting; protected by the mutex */
+} jvixCondition;
+#define initCondition(cond)      initWin32Condition(cond)
+#define destroyCondition(cond)   CloseHandle((cond)->semaphore)
+#define signalAllCondition(cond) signalAllWin32Condition(cond)
+#define waitCondition(cond, mutex, timeoutMillis)  waitWin32Condition((cond), (mutex), (timeoutMillis))
+
+static void initWin32Condition(jvixCondition *cond) {
+    cond->semaphore = CreateSemaphore(NULL, 0, 0x7FFFFFFF, NULL);
+    cond->waiters = 0;
+}
+
+static void signalAllWin32Condition(jvixCondition *cond) {
+    if (cond->waiters > 0) {
+        ReleaseSemaphore(cond->semaphore, (LONG) cond->waiters, NULL);
+        cond->waiters = 0;
+    }
+}
+
+static DWORD waitWin32Condition(jvixCondition *cond, CRITICAL_SECTION *mutex, jlong timeoutMillis) {
+    DWORD result;
+    cond->waiters++;
+    LeaveCriticalSection(mutex);
+    result = WaitForSingleObject(cond->semaphore, (DWORD) timeoutMillis);
+    EnterCriticalSection(mutex);
+    /* if the condition was signalled after the timeout, this thread has already been
+     * removed from the count */
+    if (result != WAIT_OBJECT_0 && cond->waiters > 0) {
+        cond->waiters--;
+    }
+    return result;
+}
+#else
+typedef pthread_cond_t jvixCondition;
+#define initCondition(cond)      pthread_cond_init((cond), NULL)
+#define destroyCondition(cond)   pthread_cond_destroy(cond)
+#define signalAllCondition(cond) pthread_cond_broadcast(cond)
+#define waitCondition(cond, mutex, timeoutMillis)  waitPosixCondition((cond), (mutex), (timeoutMillis))
+
+static int waitPosixCondition(pthread_cond_t *cond, pthread_mutex_t *mutex, jlong timeoutMillis) {
+    struct timeval now;
+    struct timespec deadline;
+    gettimeofday(&now, NULL);
+    deadline.tv_sec = now.tv_sec + (time_t) (timeoutMillis / 1000);
+    deadline.tv_nsec = (now.tv_usec + (long) (timeoutMillis % 1000) * 1000) * 1000;
+    if (deadline.tv_nsec >= 1000000000) {
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000;
+    }
+    return pthread_cond_timedwait(cond, mutex, &deadline);
+}
+#endif
+
+/** Returns the current time, in milliseconds since the epoch
+ */
+static jlong currentTimeMillis(void) {
+#ifdef _WIN32
+    FILETIME ft;
+    ULARGE_INTEGER t;
+    GetSystemTimeAsFileTime(&ft);
+    t.LowPart = ft.dwLowDateTime;
+    t.HighPart = ft.dwHighDateTime;
+    /* FILETIME is in 100ns intervals since 1601-01-01 */
+    return (jlong) ((t.QuadPart - 116444736000000000LL) / 10000);
+#else
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return ((jlong) tv.tv_sec) * 1000 + (tv.tv_usec / 1000);
+#endif
+}
+
+
+/******************************************************************************************
+ ** DEBUG LOGGING AND TRACING
+ **
+ ** Logging is controlled by nativeLogMode, which is set from Java via
+ ** VixWrapper.setNativeLogMode(). When it is JVIX_LOG_NONE, the logDebug() macro
+ ** costs a single comparison. In JVIX_LOG_DEBUG mode, messages are formatted with
+ ** vsnprintf and passed synchronously to log4j. In JVIX_LOG_TRACE mode, the format string pointer and
+ ** raw arguments are written into a fixed-size record in a lock-free ring buffer, which
+ ** is drained and formatted by a Java thread (see Jvix_DrainTrace).
+ **
+ ** The ring supports multiple producers (JNI calls and VIX callback threads) and a
+ ** single consumer. A producer claims a slot by advancing traceHead with a
+ ** compare-and-set, fills it in, then publishes it by setting its sequence number;
+ ** the consumer only reads slots whose sequence number shows they have been published.
+ ** If the ring is full, the record is discarded and traceDropCount is incremented.
+ **/
+
+typedef struct {
+    volatile unsigned int sequence;   /* claim ticket + 1 once this record has been written */
+    jlong       timestamp;
+    const char  *format;
+    int64       args[TRACE_MAX_ARGS];
+    char        text[TRACE_TEXT_LENGTH];  /* copies of %s arguments, NUL separated */
+} TraceRecord;
+
+static volatile int nativeLogMode = JVIX_LOG_NONE;
+
+static TraceRecord traceRing[TRACE_RING_SIZE];
+static volatile unsigned int traceHead = 0;
+static volatile unsigned int traceTail = 0;
+static volatile unsigned int traceDropCount = 0;
+
+/** Copies the arguments for the format string supplied into a trace record.
+ * Integer arguments are widened to int64; string arguments are copied into the
+ * record's text buffer (and truncated if necessary), with the args entry holding
+ * the offset into that buffer.
+ *
+ * @param record the trace record to populate
+ * @param format the printf-style format string
+ * @param ap the arguments for the format string
+ */
+static void captureTraceArgs(TraceRecord *record, const char *format, va_list ap) {
+    const char *f;
+    int argIndex = 0;
+    int textPos = 0;
+    for (f = format; *f != 0 && argIndex < TRACE_MAX_ARGS; f++) {
+        int isLong = 0;
+        if (*f != '%') { continue; }
+        f++;
+        if (*f == '%') { continue; }
+        while (*f == 'l') { isLong = 1; f++; }
+        if (*f == 's') {
+            const char *str = va_arg(ap, const char *);
+            if (str == NULL) { str = "(null)"; }
+            /* once the text buffer is full, later strings refer to its final (NUL) character */
+            record->args[argIndex++] = (textPos < TRACE_TEXT_LENGTH ? textPos : TRACE_TEXT_LENGTH - 1);
+            while (*str != 0 && textPos < TRACE_TEXT_LENGTH - 1) {
+                record->text[textPos++] = *str++;
+            }
+            if (textPos < TRACE_TEXT_LENGTH) { record->text[textPos++] = 0; }
+        } else if (isLong) {
+            record->args[argIndex++] = va_arg(ap, int64);
+        } else {
+            record->args[argIndex++] = va_arg(ap, int);
+        }
+        if (*f == 0) { break; }
+    }
+    record->text[TRACE_TEXT_LENGTH - 1] = 0;
+}
+
+/** Appends a decimal or hexadecimal representation of an int64 to a buffer
+ *
+ * @returns the new position within the buffer
+ */
+static int appendNumber(char *buffer, int pos, int length, int64 value, int radix) {
+    char digits[24];
+    int n = 0;
+    uint64 v = (value < 0 && radix == 10) ? (uint64) -value : (uint64) value;
+    if (radix == 16 && value < 0) { v = (uint64) (unsigned int) value; }
+    do {
+        int d = (int) (v % radix);
+        digits[n++] = (char) (d < 10 ? '0' + d : 'a' + d - 10);
+        v = v / radix;
+    } while (v != 0 && n < 24);
+    if (value < 0 && radix == 10 && pos < length - 1) { buffer[pos++] = '-'; }
+    while (n > 0 && pos < length - 1) { buffer[pos++] = digits[--n]; }
+    return pos;
+}
+
+/** Formats a trace record into a buffer. Only the %d, %x, %ld, %lld, %s and %%
+ * conversions are supported (flags and widths are ignored); since the formatting is
+ * done here rather than by the C runtime, int64 values are formatted correctly on
+ * all platforms.
+ *
+ * @param record the record to format
+ * @param buffer the buffer to write into
+ * @param length the size of buffer
+ */
+static void formatTraceMessage(TraceRecord *record, char *buffer, int length) {
+    const char *f;
+    int pos = 0;
+    int argIndex = 0;
+    for (f = record->format; *f != 0 && pos < length - 1; f++) {
+        if (*f != '%') {
+            if (*f != '\n') { buffer[pos++] = *f; }
+            continue;
         }
-        return;
+        f++;
+        if (*f == '%') { buffer[pos++] = '%'; continue; }
+        while (*f == 'l') { f++; }
+        if (argIndex >= TRACE_MAX_ARGS) {
+            buffer[pos++] = '?';
+        } else if (*f == 's') {
+            const char *str = record->text + (int) record->args[argIndex++];
+            while (*str != 0 && pos < length - 1) { buffer[pos++] = *str++; }
+        } else {
+            pos = appendNumber(buffer, pos, length, record->args[argIndex++], (*f == 'x' ? 16 : 10));
+        }
+        if (*f == 0) { break; }
     }
+    buffer[pos] = 0;
+}
 
-    jmethodID debugMethodId = (*env)->GetMethodID(env, loggerClass, "debug", "(Ljava/lang/Object;)V");
-    if (debugMethodId == 0) {
-        if (loggerError == 0) {
-            printf("Could not retrieve debug() method of org.apache.log4j.Logger");
-            loggerError = 1;
+/** Writes a record into the trace ring. Never blocks; if the ring is full, the
+ * record is dropped.
+ *
+ * @param format the printf-style format string (must be a string literal)
+ * @param ap the arguments for the format string
+ */
+static void writeTraceRecord(const char *format, va_list ap) {
+    unsigned int ticket;
+    TraceRecord *record;
+    do {
+        ticket = traceHead;
+        if (ticket - traceTail >= TRACE_RING_SIZE) {
+            atomicIncrement(&traceDropCount);
+            return;
         }
-        return;
+    } while (!atomicCompareAndSet(&traceHead, ticket, ticket + 1));
+
+    record = &traceRing[ticket & (TRACE_RING_SIZE - 1)];
+    record->timestamp = currentTimeMillis();
+    record->format = format;
+    captureTraceArgs(record, format, ap);
+    atomicSet(&record->sequence, ticket + 1);
+}
+
+/** Log a message using the log4j logger for 'net.sf.jvix.VixWrapper' at debug
+ * level, or record it in the trace ring, depending on the current native log mode.
+ * Call this via the logDebug() macro, which skips the call entirely if
+ * logging is disabled.
+ *
+ * @param env a pointer to the JNI environment
+ * @param format the printf-style format string (see formatTraceMessage())
+ */
+void logDebugMessage(JNIEnv *env, const char *format, ...) {
+    va_list ap;
+    va_start(ap, format);
+    if (nativeLogMode == JVIX_LOG_TRACE) {
+        writeTraceRecord(format, ap);
+    } else if (nativeLogMode == JVIX_LOG_DEBUG && loggerObject != NULL && !(*env)->ExceptionCheck(env)) {
+        /* (if an exception is pending, it must reach the caller unchanged, and no upcall can be made) */
+        char text[DEBUG_MESSAGE_LENGTH];
+        jstring loggerText;
+        vsnprintf(text, DEBUG_MESSAGE_LENGTH, format, ap);
+        text[DEBUG_MESSAGE_LENGTH - 1] = 0;  /* _vsnprintf doesn't terminate truncated messages */
+        loggerText = (*env)->NewStringUTF(env, (const char *) text);
+        if (loggerText != NULL) {
+            (*env)->CallVoidMethod(env, loggerObject, loggerDebugMethodId, loggerText);
+        }
+        if ((*env)->ExceptionCheck(env)) {
+            /* a failure to log shouldn't cause the VIX call being logged to fail */
+            (*env)->ExceptionClear(env);
+        }
+        (*env)->DeleteLocalRef(env, loggerText);
     }
-    jstring loggerText = (*env)->NewStringUTF(env, (const char *) text);
-    (*env)->CallVoidMethod(env, loggerObject, debugMethodId, loggerText);
+    va_end(ap);
 }
 
+
+/******************************************************************************************
+ ** UTILITY FUNCTIONS
+ **/
+
 /** Converts a net.sf.jvix.VixHandle object into a
  *  VixHandle object
  *
@@ -153,31 +774,65 @@ void logDebug(JNIEnv *env, char *text) {
  *
  */
 VixHandle unwrapVixHandle(JNIEnv *env, jobject handle) {
-    jclass vixHandleClass = (*env)->GetObjectClass(env, handle);
-    jfieldID valueFieldId = (*env)->GetFieldID(env, vixHandleClass , "value" , "I");
-    jint value = (*env)->GetIntField(env, handle, valueFieldId);
+    jint value;
+    if (handle == NULL) {
+        return VIX_INVALID_HANDLE;
+    }
+    value = (*env)->GetIntField(env, handle, vixHandleValueFieldId);
     return (VixHandle) value;
 }
 
-/** Create a new net.sf.jvix.VixHandle object representing a
- *  VixHandle object
+/** Returns a net.sf.jvix.VixHandle object representing a VixHandle which is
+ *  being passed to Java without a new reference (e.g. the handles passed to
+ *  a callback). If the handle is already known to VixHandleTable, the existing
+ *  object is returned.
  *
  * @param env a pointer to the JNI environment
  * @param handle the handle to wrap
  *
- * @returns a net.sf.jvix.VixHandle object
+ * @returns a net.sf.jvix.VixHandle object, or NULL if an exception has been thrown
  */
 jobject wrapVixHandle(JNIEnv *env, VixHandle handle) {
+    jobject result = (*env)->CallStaticObjectMethod(env, vixHandleTableClass, vixHandleTableGetMethodId, (jint) handle);
+    return ((*env)->ExceptionCheck(env) ? NULL : result);
+}
 
-    char dbgBuffer[40];
-    snprintf(dbgBuffer, 40, "Creating new vix handle with value %d", handle);
-    logDebug(env, dbgBuffer);
+/** Returns the net.sf.jvix.VixHandle object representing a VixHandle which
+ *  the VIX API has returned a new reference to, registering that reference
+ *  with VixHandleTable. The same object is returned each time a handle is
+ *  acquired, until all references to it have been released.
+ *
+ * @param env a pointer to the JNI environment
+ * @param handle the handle to wrap
+ *
+ * @returns a net.sf.jvix.VixHandle object, or NULL if an exception has been thrown
+ */
+jobject acquireVixHandle(JNIEnv *env, VixHandle handle) {
+    logDebug(env, "Acquiring vix handle with value %d", handle);
+    jobject result = (*env)->CallStaticObjectMethod(env, vixHandleTableClass, vixHandleTableAcquireMethodId, (jint) handle);
+    return ((*env)->ExceptionCheck(env) ? NULL : result);
+}
 
-	/* printf("Creating new vix handle with value %d\n", handle);  */
-    jclass vixHandleClass = (*env)->FindClass(env, "net/sf/jvix/VixHandle");
-    jmethodID constructorId = (*env)->GetMethodID(env, vixHandleClass, "<init>" , "(I)V");
-    jobject newHandle = (*env)->NewObject(env, vixHandleClass, constructorId, (jint) handle);
-    return newHandle;
+/** Releases a reference which was registered with VixHandleTable by acquireVixHandle(),
+ *  and the VIX reference it represents, after the java object wrapping it could not
+ *  be returned. May be called while an exception is pending; that exception is
+ *  still pending when this function returns.
+ *
+ * @param env a pointer to the JNI environment
+ * @param handle the handle to release
+ */
+static void releaseVixHandle(JNIEnv *env, VixHandle handle) {
+    jthrowable pending = (*env)->ExceptionOccurred(env);
+    if (pending != NULL) {
+        (*env)->ExceptionClear(env);
+    }
+    (*env)->CallStaticVoidMethod(env, vixHandleTableClass, vixHandleTableReleaseMethodId, (jint) handle);
+    if (pending != NULL) {
+        (*env)->ExceptionClear(env);
+        (*env)->Throw(env, pending);
+        (*env)->DeleteLocalRef(env, pending);
+    }
+    Vix_ReleaseHandle(handle);
 }
 
 /** Create and throw a new VixException
@@ -187,10 +842,12 @@ jobject wrapVixHandle(JNIEnv *env, VixHandle handle) {
  */
 void throwVixException(JNIEnv *env, int errorCode)
 {
-  jclass vixExceptionClass = (*env)->FindClass(env, "net/sf/jvix/VixException");
-  jmethodID constructorMethodId = (*env)->GetMethodID(env, vixExceptionClass, "<init>" , "(I)V");
-  jobject newException = (*env)->NewObject(env, vixExceptionClass, constructorMethodId, (jint) errorCode);
-  (*env)->Throw(env, (jthrowable) newException);
+  jobject newException = (*env)->NewObject(env, vixExceptionClass, vixExceptionConstructorId, (jint) errorCode);
+  if (newException != NULL) {
+    (*env)->Throw(env, (jthrowable) newException);
+    (*env)->DeleteLocalRef(env, newException);
+  }
+  /* otherwise, the exception thrown by NewObject (e.g. an OutOfMemoryError) is left pending */
 }
 
 /** Create and throw a NullPointerException
@@ -200,11 +857,33 @@ void throwVixException(JNIEnv *env, int errorCode)
  */
 void throwNullPointerException(JNIEnv *env, char *text)
 {
-  jclass vixExceptionClass = (*env)->FindClass(env, "java/lang/NullPointerException");
-  jmethodID constructorMethodId = (*env)->GetMethodID(env, vixExceptionClass, "<init>" , "(Ljava/lang/String;)V");
   jstring exceptionText = (*env)->NewStringUTF(env, (const char *) text);
-  jobject newException = (*env)->NewObject(env, vixExceptionClass, constructorMethodId, exceptionText);
-  (*env)->Throw(env, (jthrowable) newException);
+  jobject newException;
+  if (exceptionText == NULL) {
+    return;
+  }
+  newException = (*env)->NewObject(env, nullPointerExceptionClass, nullPointerExceptionConstructorId, exceptionText);
+  (*env)->DeleteLocalRef(env, exceptionText);
+  if (newException != NULL) {
+    (*env)->Throw(env, (jthrowable) newException);
+    (*env)->DeleteLocalRef(env, newException);
+  }
+}
+
+
+/** Throw an ArrayIndexOutOfBoundsException, when a count passed from java exceeds the
+ * length of an array
+ *
+ * @param env JNI environment
+ * @param text the exception message
+ */
+void throwArrayIndexOutOfBoundsException(JNIEnv *env, char *text)
+{
+  jclass exceptionClass = (*env)->FindClass(env, "java/lang/ArrayIndexOutOfBoundsException");
+  if (exceptionClass != NULL) {
+    (*env)->ThrowNew(env, exceptionClass, text);
+    (*env)->DeleteLocalRef(env, exceptionClass);
+  }
 }
 
 
@@ -216,24 +895,31 @@ void throwNullPointerException(JNIEnv *env, char *text)
  * @param list a List of Integers
  * @param index the index of the value to return
  *
- * @param the index'th item in the list
+ * @param the index'th item in the list, or 0 if an exception has been thrown
  */
 int getListItem(JNIEnv *env, jobject list, int index) {
+    jobject listItemObject;
+    jint listItem;
 
-    char dbgBuffer[40];
-    snprintf(dbgBuffer, 40, "Returning %d'th item from list", index);
-    logDebug(env, dbgBuffer);
-
-	/* printf("Returning %d'th item from list\n", index); */
-    jclass listClass = (*env)->GetObjectClass(env, list);
-    jmethodID getMethodId = (*env)->GetMethodID(env, listClass, "get" , "(I)Ljava/lang/Object;");	
-    jobject listItemObject = (*env)->CallObjectMethod(env, list, getMethodId, (jint) index);
-
-		// @TODO rather import to check these types here
-    jclass integerClass = (*env)->GetObjectClass(env, listItemObject);
-    jmethodID intValueMethodId = (*env)->GetMethodID(env, integerClass, "intValue" , "()I");	
-    jint listItem = (*env)->CallIntMethod(env, listItemObject, intValueMethodId);
-
+    logDebug(env, "Returning %d'th item from list", index);
+    listItemObject = (*env)->CallObjectMethod(env, list, listGetMethodId, (jint) index);
+    if ((*env)->ExceptionCheck(env)) {
+        return 0;
+    }
+    if (listItemObject == NULL) {
+        throwNullPointerException(env, "null property ID in list");
+        return 0;
+    }
+    if (!(*env)->IsInstanceOf(env, listItemObject, integerClass)) {
+        (*env)->DeleteLocalRef(env, listItemObject);
+        throwVixException(env, VIX_E_INVALID_ARG);
+        return 0;
+    }
+    listItem = (*env)->CallIntMethod(env, listItemObject, integerIntValueMethodId);
+    if ((*env)->ExceptionCheck(env)) {
+        listItem = 0;
+    }
+    (*env)->DeleteLocalRef(env, listItemObject);
     return listItem;
 }
 
@@ -243,9 +929,7 @@ int getListItem(JNIEnv *env, jobject list, int index) {
  * @param intValue integer to wrap
  */
 jobject createInteger(JNIEnv *env, int intValue) {
-    jclass integerClass = (*env)->FindClass(env, "java/lang/Integer");
-    jmethodID constructorId = (*env)->GetMethodID(env, integerClass, "<init>" , "(I)V");
-    jobject newInteger = (*env)->NewObject(env, integerClass, constructorId, (jint) intValue);
+    jobject newInteger = (*env)->NewObject(env, integerClass, integerConstructorId, (jint) intValue);
     return newInteger;
 } 
 
@@ -255,9 +939,7 @@ jobject createInteger(JNIEnv *env, int intValue) {
  * @param boolValue boolean to wrap
  */
 jobject createBoolean(JNIEnv *env, Bool boolValue) {
-    jclass booleanClass = (*env)->FindClass(env, "java/lang/Boolean");
-    jmethodID constructorId = (*env)->GetMethodID(env, booleanClass, "<init>" , "(Z)V");
-    jobject newBoolean = (*env)->NewObject(env, booleanClass, constructorId, (jboolean) boolValue);
+    jobject newBoolean = (*env)->NewObject(env, booleanClass, booleanConstructorId, (jboolean) boolValue);
     return newBoolean;
 } 
 
@@ -267,173 +949,1634 @@ jobject createBoolean(JNIEnv *env, Bool boolValue) {
  * @param longValue int64 value to wrap
  */
 jobject createLong(JNIEnv *env, int64 longValue) {
-    jclass longClass = (*env)->FindClass(env, "java/lang/Long");
-    jmethodID constructorId = (*env)->GetMethodID(env, longClass, "<init>" , "(J)V");
-    jobject newLong = (*env)->NewObject(env, longClass, constructorId, (jlong) longValue);
+    jobject newLong = (*env)->NewObject(env, longClass, longConstructorId, (jlong) longValue);
     return newLong;
 } 
 
-/** Create a Java byte array object (for property list blob values)
+/** Create a net.sf.jvix.VixBlob object (for blob property values). The blob
+ * data is not copied; the VixBlob wraps the VIX-allocated memory in a direct
+ * ByteBuffer (which it does not expose), and takes ownership of it (it is released
+ * with Vix_FreeBuffer when the VixBlob is freed). If the VixBlob cannot be created, the memory is released
+ * immediately.
  *
  * @param env pointer to the JNI environment
- * @param BlobValue bloc value to wrap
+ * @param blobValue blob value to wrap
+ *
+ * @returns a VixBlob object, or NULL if an exception has been thrown
  */
 jobject createBlob(JNIEnv *env, Blob blobValue) {
-    jbyteArray newByteArray = (*env)->NewByteArray(env, blobValue.size);
-    // not sure if we need to perform a GetByteArrayRegion before running this...
-    (*env)->SetByteArrayRegion(env, newByteArray, 0, blobValue.size, blobValue.value);
-} 
+    jobject buffer = NULL;
+    jobject newBlob = NULL;
+    if (blobValue.value != NULL && blobValue.size > 0) {
+        buffer = (*env)->NewDirectByteBuffer(env, blobValue.value, (jlong) blobValue.size);
+        if (buffer == NULL) {
+            if (!(*env)->ExceptionCheck(env)) {
+                throwVixException(env, VIX_E_NOT_SUPPORTED);  /* JVM does not support direct buffers */
+            }
+            Vix_FreeBuffer(blobValue.value);
+            return NULL;
+        }
+    }
+    newBlob = (*env)->NewObject(env, vixBlobClass, vixBlobConstructorId, buffer, (jlong) (size_t) blobValue.value);
+    if (newBlob == NULL && blobValue.value != NULL) {
+        Vix_FreeBuffer(blobValue.value);
+    }
+    if (buffer != NULL) { (*env)->DeleteLocalRef(env, buffer); }
+    return newBlob;
+}
+
+
+/** Create the java representation of a VIX string property; either a String, or
+ * (if rawStrings is set) a byte array containing the UTF-8 bytes returned by the
+ * VIX API. The byte array is a straight copy of the VIX string, so large values
+ * are not parsed in native code.
+ *
+ * @param env pointer to the JNI environment
+ * @param value the VIX string value
+ * @param rawStrings if true, return a byte array rather than a String
+ *
+ * @returns a String or byte[] object, or NULL if an exception has been thrown
+ */
+static jobject createStringValue(JNIEnv *env, char *value, jboolean rawStrings) {
+    jsize length;
+    jbyteArray bytes;
+    if (!rawStrings) {
+        return (*env)->NewStringUTF(env, value);
+    }
+    length = (value == NULL ? 0 : (jsize) strlen(value));
+    bytes = (*env)->NewByteArray(env, length);
+    if (bytes != NULL && length > 0) {
+        (*env)->SetByteArrayRegion(env, bytes, 0, length, (jbyte *) value);
+    }
+    return bytes;
+}
 
+/** Adds a value to a java List, and deletes the local reference to it, so that
+ * building a list uses a constant number of local references however long it is.
+ *
+ * @param env pointer to the JNI environment
+ * @param list the List to add to
+ * @param value the value to add; if NULL, an exception is assumed to have been
+ *   thrown while creating it
+ *
+ * @returns 0 if successful, or -1 if an exception has been thrown
+ */
+static int addListValue(JNIEnv *env, jobject list, jobject value) {
+    if (value == NULL) {
+        return -1;
+    }
+    int result;
+    (*env)->CallBooleanMethod(env, list, arrayListAddMethodId, value);
+    result = ((*env)->ExceptionCheck(env) ? -1 : 0);
+    (*env)->DeleteLocalRef(env, value);
+    return result;
+}
 
 /** Create a List containing property values. Memory for VIX Strings are released
- * as part of this process.
+ * as part of this process, including any strings which have not been added to the
+ * list if an exception is thrown.
  *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param size the number of properties
  * @param propTypes an array of property types
  * @param props an array of properties
+ *
+ * @returns a List of property values, or NULL if an exception has been thrown
  */
 jobject createPropertyList(JNIEnv *env, char *apiCall, int size, VixPropertyType *propTypes, PropertyResult *props)
 {
-	int i;
-	char dbgBuffer[100];
-
-    // should really do more error checking here
-    jclass arrayListClass = (*env)->FindClass(env, "java/util/ArrayList");
-    if (arrayListClass==NULL) { printf("Could not find class java/util/ArrayList\n"); }
-    jmethodID constructorMethodId = (*env)->GetMethodID(env, arrayListClass, "<init>" , "()V");
-    if (constructorMethodId==NULL) { printf("Could not find constructor for class java/util/ArrayList\n"); }
-    jmethodID addMethodId = (*env)->GetMethodID(env, arrayListClass, "add" , "(Ljava/lang/Object;)Z");
-    if (addMethodId==NULL) { printf("Could not find add method for class java/util/ArrayList\n"); }
-    jobject resultList = (*env)->NewObject(env, arrayListClass, constructorMethodId);
-    if (resultList==NULL) { printf("Could not create class java/util/ArrayList\n"); }
-
-	for (i = 0; i < size; i++) {
-		switch (propTypes[i]) {
-			case VIX_PROPERTYTYPE_ANY:
-				snprintf(dbgBuffer, 100, "%s cannot return VIX_PROPERTYTYPE_ANY type (property #%d); returning null", apiCall, i);
-	            throwVixException(env, VIX_E_JNI_CANNOT_RETURN_UNKNOWN_PROPERTYTYPE);
-                return NULL;
+    int i;
+    int result = 0;
+    jobject value;
+    jobject resultList = (*env)->NewObject(env, arrayListClass, arrayListConstructorId);
+    if (resultList == NULL) {
+        i = 0;
+        goto error;
+    }
 
-			case VIX_PROPERTYTYPE_INTEGER:
-				snprintf(dbgBuffer, 100, "%s: Returning integer property %d", apiCall, props[i].intValue);
-			    logDebug(env, dbgBuffer);
-				(*env)->CallBooleanMethod(env, resultList, addMethodId, createInteger(env, props[i].intValue));
-				break;
-			
-			case VIX_PROPERTYTYPE_STRING:
-				snprintf(dbgBuffer, 100, "%s: Returning string property '%s'", apiCall, props[i].stringValue);
-			    logDebug(env, dbgBuffer);
-				(*env)->CallBooleanMethod(env, resultList, addMethodId, (*env)->NewStringUTF(env, props[i].stringValue));
-				Vix_FreeBuffer(props[i].stringValue); 
-				break;
-				
-			case VIX_PROPERTYTYPE_BOOL:
-				snprintf(dbgBuffer, 100, "%s: Returning boolean property %d (%s)", apiCall, props[i].boolValue, (props[i].boolValue==0 ? "false" : "true"));
-			    logDebug(env, dbgBuffer);
-				(*env)->CallBooleanMethod(env, resultList, addMethodId, createBoolean(env, props[i].boolValue));
-				break;
-			
-			case VIX_PROPERTYTYPE_HANDLE:
-				snprintf(dbgBuffer, 100, "%s: Returning handle property %d", apiCall, props[i].handleValue);
-			    logDebug(env, dbgBuffer);
-				(*env)->CallBooleanMethod(env, resultList, addMethodId, wrapVixHandle(env, props[i].handleValue));
-				break;
-
-			case VIX_PROPERTYTYPE_INT64:
-			    // @TODO this printf mask is probably wrong
-				snprintf(dbgBuffer, 100, "%s: Returning int64 property %ld", apiCall, props[i].int64Value);
-			    logDebug(env, dbgBuffer);
-				(*env)->CallBooleanMethod(env, resultList, addMethodId, createLong(env, props[i].int64Value));
-				break;
-
-			case VIX_PROPERTYTYPE_BLOB:
-				snprintf(dbgBuffer, 100, "%s: Returning blob property", apiCall);
-			    logDebug(env, dbgBuffer);
-				(*env)->CallBooleanMethod(env, resultList, addMethodId, createBlob(env, props[i].blobValue));
-				// TODO: release memory
-				break;
-		}
-	}
-	return resultList;
-	
+    for (i = 0; i < size && result == 0; i++) {
+        switch (propTypes[i]) {
+            case VIX_PROPERTYTYPE_INTEGER:
+                logDebug(env, "%s: Returning integer property %d", apiCall, props[i].intValue);
+                result = addListValue(env, resultList, createInteger(env, props[i].intValue));
+                break;
+
+            case VIX_PROPERTYTYPE_STRING:
+                logDebug(env, "%s: Returning string property '%s'", apiCall, props[i].stringValue);
+                value = (*env)->NewStringUTF(env, props[i].stringValue);
+                Vix_FreeBuffer(props[i].stringValue);
+                props[i].stringValue = NULL;
+                result = addListValue(env, resultList, value);
+                break;
+
+            case VIX_PROPERTYTYPE_BOOL:
+                logDebug(env, "%s: Returning boolean property %d (%s)", apiCall, props[i].boolValue, (props[i].boolValue==0 ? "false" : "true"));
+                result = addListValue(env, resultList, createBoolean(env, props[i].boolValue));
+                break;
+
+            case VIX_PROPERTYTYPE_HANDLE:
+                logDebug(env, "%s: Returning handle property %d", apiCall, props[i].handleValue);
+                result = addListValue(env, resultList, acquireVixHandle(env, props[i].handleValue));
+                break;
+
+            case VIX_PROPERTYTYPE_INT64:
+                logDebug(env, "%s: Returning int64 property %lld", apiCall, props[i].int64Value);
+                result = addListValue(env, resultList, createLong(env, props[i].int64Value));
+                break;
+
+            case VIX_PROPERTYTYPE_BLOB:
+                logDebug(env, "%s: Returning blob property", apiCall);
+                result = addListValue(env, resultList, createBlob(env, props[i].blobValue));
+                break;
+
+            default:
+                logDebug(env, "%s cannot return VIX_PROPERTYTYPE_ANY type (property #%d); returning null", apiCall, i);
+                throwVixException(env, VIX_E_JNI_CANNOT_RETURN_UNKNOWN_PROPERTYTYPE);
+                result = -1;
+                break;
+        }
+    }
+    if (result == 0) {
+        return resultList;
+    }
+    (*env)->DeleteLocalRef(env, resultList);
+
+error:
+    /* release the VIX memory for any values which weren't converted */
+    for (; i < size; i++) {
+        if (propTypes[i] == VIX_PROPERTYTYPE_STRING && props[i].stringValue != NULL) {
+            Vix_FreeBuffer(props[i].stringValue);
+        } else if (propTypes[i] == VIX_PROPERTYTYPE_BLOB && props[i].blobValue.value != NULL) {
+            Vix_FreeBuffer(props[i].blobValue.value);
+        } else if (propTypes[i] == VIX_PROPERTYTYPE_HANDLE) {
+            Vix_ReleaseHandle(props[i].handleValue);
+        }
+    }
+    return NULL;
 }
 
-/** Default callback implementation that simply defers processing to the java callback
- * defined in the CombinedClientData structure
+/** Initialises a PropertyRequest structure to hold the number of properties
+ * supplied, allocating memory if required.
  *
- * @param jobHandle handle supplied by VIX API
- * @param eventType one of VIX_EVENTTYPE_JOB_COMPLETED, VIX_EVENTTYPE_JOB_PROGRESS,
- *    VIX_EVENTTYPE_FIND_ITEM or VIX_EVENTTYPE_HOST_INITIALIZED
- * @param moreEventInfo an optional additional handle supplied by the VIX API (use depends on initial
- *    function invoked)
- * @param clientData a pointer to a CombinedClientData structure which contains both the
- *    original clientData object and a java implementation of the event handler
+ * @param env pointer to the JNI environment
+ * @param request the structure to initialise
+ * @param size the number of properties to be retrieved
+ *
+ * @returns 0 if successful, or -1 if memory could not be allocated (in which case
+ *   a VixException has been thrown)
  */
-void defaultCallback(VixHandle jobHandle, VixEventType eventType, VixHandle moreEventInfo, void *clientData)
-{
-    CombinedClientData *ccd = (CombinedClientData*) clientData;
-    JavaVM *javaVM = ccd->javaVM;
-    // JNIEnv *env = ccd->env; // probably not valid any more
-    JNIEnv *env;    
-    
-    /* printf("Invoking callback handler [calling env=%d]\n", env); */
-    (*javaVM)->AttachCurrentThread(javaVM, (void**) &env, null);
-    
-    jint result = (*javaVM)->GetEnv(javaVM, (void**) &env, JNI_VERSION_1_2);
-    logDebug(env, "invoking callback handler...");
-    // @TODO we should verify that the class here is what we expect
-    jclass vixEventProcClass = (*env)->GetObjectClass(env, ccd->eventProc);
-    jmethodID callbackMethodId = (*env)->GetMethodID(env, vixEventProcClass , "callback" , "(Lnet/sf/jvix/VixHandle;ILnet/sf/jvix/VixHandle;Ljava/lang/Object;)V");
-  	(*env)->CallVoidMethod(env, ccd->eventProc, callbackMethodId, wrapVixHandle(env, jobHandle), (jint) eventType, wrapVixHandle(env, moreEventInfo), ccd->clientData);
-    /* printf("Detaching from thread\n"); */
-    (*javaVM)->DetachCurrentThread(ccd->javaVM);
+static int initPropertyRequest(JNIEnv *env, PropertyRequest *request, int size) {
+    request->size = size;
+    request->allocated = NULL;
+    if (size <= STACK_PROPERTIES) {
+        request->propIds = request->stackPropIds;
+        request->propTypes = request->stackPropTypes;
+        request->props = request->stackProps;
+        request->types = request->stackTypes;
+        request->values = request->stackValues;
+    } else {
+        /* allocated as a single block; PropertyResult and jlong are the most strictly aligned types so go first */
+        char *block = (char *) malloc(size * (sizeof(PropertyResult) + sizeof(jlong) +
+          sizeof(VixPropertyID) + sizeof(VixPropertyType) + sizeof(jint)));
+        if (block == NULL) {
+            throwVixException(env, VIX_E_OUT_OF_MEMORY);
+            return -1;
+        }
+        request->allocated = block;
+        request->props = (PropertyResult *) block;       block += size * sizeof(PropertyResult);
+        request->values = (jlong *) block;               block += size * sizeof(jlong);
+        request->propIds = (VixPropertyID *) block;      block += size * sizeof(VixPropertyID);
+        request->propTypes = (VixPropertyType *) block;  block += size * sizeof(VixPropertyType);
+        request->types = (jint *) block;
+    }
+    return 0;
 }
 
-/** Returns a pointer to a CombinedClientData object which can be used as an argument to
- *  VIX API calls generated by this wrapper. The memory for this structure is allocated by this
- * procedure; this memory is currently never reclaimed
- *
- * @TODO fix this by having another JNI entry point to release it when we know the operation
- *   is complete
+/** Releases any memory allocated by initPropertyRequest()
  *
- * @param callbackProc a net.sf.jvix.VixEventProc object which will implement the callback handler
- * @param clientData  an arbitrary object supplied by the user which will be handed to the event procedure handler
+ * @param request the structure to release
  */
-CombinedClientData *getCombinedClientData(JNIEnv *env, jobject callbackProc, jobject clientData) {
-	if (callbackProc==null) {
-	    return null;
-	}	
-    CombinedClientData *ccd = malloc(sizeof(CombinedClientData));
-    if (ccd==null) {
-        // @TODO throw outofmemoryexception
-        return null;
+static void freePropertyRequest(PropertyRequest *request) {
+    if (request->allocated != NULL) {
+        free(request->allocated);
+        request->allocated = NULL;
     }
-    if (callbackProc!=null) { callbackProc = (*env)->NewGlobalRef(env, callbackProc); }
-    if (clientData!=null) { clientData = (*env)->NewGlobalRef(env, clientData); }
-    (*env)->GetJavaVM(env, &(ccd->javaVM));
-    ccd->eventProc = callbackProc;
-    ccd->clientData = clientData;
-    /* ccd->env = env; */
-    return ccd;
 }
 
+/** Reads the property IDs from a List of Integers.
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param propertyIds a List of Integer property IDs
+ * @param request the request structure to initialise with these property IDs
+ *
+ * @returns 0 if successful, or -1 if an exception has been thrown
+ */
+static int readPropertyIdList(JNIEnv *env, char *apiCall, jobject propertyIds, PropertyRequest *request) {
+    int i;
+    jint size;
+    if (propertyIds == NULL) {
+        throwNullPointerException(env, "null propertyIds");
+        return -1;
+    }
+    size = (*env)->CallIntMethod(env, propertyIds, listSizeMethodId);
+    if ((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+    logDebug(env, "size of list passed to %s: %d", apiCall, size);
+    if (initPropertyRequest(env, request, size) < 0) {
+        return -1;
+    }
+    for (i = 0; i < size; i++) {
+        request->propIds[i] = getListItem(env, propertyIds, i);
+        if ((*env)->ExceptionCheck(env)) {
+            freePropertyRequest(request);
+            return -1;
+        }
+    }
+    return 0;
+}
 
+/** Reads the property IDs from a net.sf.jvix.PropertyResultBuffer object.
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param buffer a PropertyResultBuffer, or NULL
+ * @param request the request structure to initialise with these property IDs
+ *
+ * @returns 0 if successful, or -1 if an exception has been thrown
+ */
+static int readPropertyIdBuffer(JNIEnv *env, char *apiCall, jobject buffer, PropertyRequest *request) {
+    jint size = 0;
+    jintArray idsArray;
+    if (buffer != NULL) {
+        size = (*env)->GetIntField(env, buffer, propertyResultBufferSizeFieldId);
+    }
+    logDebug(env, "size of buffer passed to %s: %d", apiCall, size);
+    if (initPropertyRequest(env, request, size) < 0) {
+        return -1;
+    }
+    if (size > 0) {
+        idsArray = (jintArray) (*env)->GetObjectField(env, buffer, propertyResultBufferIdsFieldId);
+        (*env)->GetIntArrayRegion(env, idsArray, 0, size, (jint *) request->propIds);
+        (*env)->DeleteLocalRef(env, idsArray);
+    }
+    return 0;
+}
 
-/******************************************************************************************
- ** JNI FUNCTIONS
- **/
+/** Determines the types of the properties in a request.
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param handle the handle the properties will be retrieved from
+ * @param request the properties to be retrieved; the propTypes array is populated
+ *   by this function
+ *
+ * @returns VIX_OK, or the error code if the type of any property could not be determined
+ */
+static VixError getPropertyTypes(JNIEnv *env, char *apiCall, VixHandle handle, PropertyRequest *request) {
+    int i;
+    VixError error;
+    for (i = 0; i < request->size; i++) {
+        error = Vix_GetPropertyType(handle, request->propIds[i], &request->propTypes[i]);
+        if (error != VIX_OK) {
+            logDebug(env, "%s has thrown exception determining propertyType for propId %d", apiCall, request->propIds[i]);
+            return error;
+        }
+        if (request->propTypes[i] == VIX_PROPERTYTYPE_BLOB) {
+            /* blob properties are returned through two pointers rather than one,
+             * which the varargs calls in getPropertyChunk() don't allow for; these
+             * are retrieved using getBlobProperty() instead */
+            logDebug(env, "%s cannot return VIX_PROPERTYTYPE_BLOB type (propId %d)", apiCall, request->propIds[i]);
+            return VIX_E_JNI_CANNOT_RETURN_UNKNOWN_PROPERTYTYPE;
+        }
+    }
+    return VIX_OK;
+}
 
-/*
- * Class:     net_sf_jvix_VixWrapper
- * Method:    VixHost_Connect
- * Signature: (IILjava/lang/String;ILjava/lang/String;Ljava/lang/String;ILnet/sf/jvix/VixHandle;Lnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+/** Releases the VIX memory held by any string properties retrieved by a request
+ *
+ * @param request the request
+ * @param size the number of properties (from the start of the request) to release
  */
-JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixHost_1Connect
-  (JNIEnv *env, jclass clazz, jint apiVersion, jint hostType, jstring hostName,
-   jint hostPort, jstring userName, jstring password, jint options,
+static void freePropertyStrings(PropertyRequest *request, int size) {
+    int i;
+    for (i = 0; i < size; i++) {
+        if (request->propTypes[i] == VIX_PROPERTYTYPE_STRING && request->props[i].stringValue != NULL) {
+            Vix_FreeBuffer(request->props[i].stringValue);
+            request->props[i].stringValue = NULL;
+        }
+    }
+}
+
+/* invokes the varargs function selected by 'getter' in getPropertyChunk() */
+#define CALL_PROPERTY_GETTER(...) \
+    (getter == PROPERTY_GETTER_JOB_WAIT ? VixJob_Wait(handle, __VA_ARGS__) : \
+     getter == PROPERTY_GETTER_GET_PROPERTIES ? Vix_GetProperties(handle, __VA_ARGS__) : \
+     VixJob_GetNthProperties(handle, index, __VA_ARGS__))
+
+/** Retrieves up to MAX_VARARGS_PROPERTIES properties using one of the VIX varargs
+ * property functions.
+ *
+ * <p>Since these are varargs functions, a separate call needs to be coded for each
+ * number of properties supported. Would have been nice if we'd been supplied a
+ * vprintf()-style version.
+ *
+ * @param getter one of the PROPERTY_GETTER_* constants, which selects whether
+ *   VixJob_Wait, Vix_GetProperties or VixJob_GetNthProperties is called
+ * @param handle the handle to retrieve the properties from
+ * @param index the index passed to VixJob_GetNthProperties (ignored by the other getters)
+ * @param size the number of properties to retrieve (no more than MAX_VARARGS_PROPERTIES)
+ * @param propIds the property IDs
+ * @param props array to receive the property values
+ *
+ * @returns the error code returned by the VIX function
+ */
+static VixError getPropertyChunk(int getter, VixHandle handle, int index, int size, VixPropertyID *propIds, PropertyResult *props) {
+    VixError error = VIX_E_JNI_TOO_MANY_PROPERTIES;
+    switch (size) {
+        case 0:
+            error = CALL_PROPERTY_GETTER(VIX_PROPERTY_NONE);
+            break;
+
+        case 1:
+            error = CALL_PROPERTY_GETTER(propIds[0], &props[0],
+              VIX_PROPERTY_NONE);
+            break;
+
+        case 2:
+            error = CALL_PROPERTY_GETTER(propIds[0], &props[0],
+              propIds[1], &props[1],
+              VIX_PROPERTY_NONE);
+            break;
+
+        case 3:
+            error = CALL_PROPERTY_GETTER(propIds[0], &props[0],
+              propIds[1], &props[1],
+              propIds[2], &props[2],
+              VIX_PROPERTY_NONE);
+            break;
+
+        case 4:
+            error = CALL_PROPERTY_GETTER(propIds[0], &props[0],
+              propIds[1], &props[1],
+              propIds[2], &props[2],
+              propIds[3], &props[3],
+              VIX_PROPERTY_NONE);
+            break;
+
+        case 5:
+            error = CALL_PROPERTY_GETTER(propIds[0], &props[0],
+              propIds[1], &props[1],
+              propIds[2], &props[2],
+              propIds[3], &props[3],
+              propIds[4], &props[4],
+              VIX_PROPERTY_NONE);
+            break;
+
+        case 6:
+            error = CALL_PROPERTY_GETTER(propIds[0], &props[0],
+              propIds[1], &props[1],
+              propIds[2], &props[2],
+              propIds[3], &props[3],
+              propIds[4], &props[4],
+              propIds[5], &props[5],
+              VIX_PROPERTY_NONE);
+            break;
+    }
+    return error;
+}
+
+/** Retrieves any number of properties using one of the VIX varargs property functions.
+ *
+ * <p>The request is split into chunks of MAX_VARARGS_PROPERTIES properties. For
+ * VixJob_Wait, the first chunk is retrieved by the wait call itself; since the job is
+ * complete by then, the remainder are retrieved from the job handle using
+ * Vix_GetProperties. If any chunk fails, the strings retrieved by earlier chunks are
+ * released.
+ *
+ * @param getter one of the PROPERTY_GETTER_* constants, which selects whether
+ *   VixJob_Wait, Vix_GetProperties or VixJob_GetNthProperties is called
+ * @param handle the handle to retrieve the properties from
+ * @param index the index passed to VixJob_GetNthProperties (ignored by the other getters)
+ * @param request the properties to retrieve; the props array is populated by this function
+ *
+ * @returns the first error code returned by the VIX functions, or VIX_OK
+ */
+static VixError getProperties(int getter, VixHandle handle, int index, PropertyRequest *request) {
+    VixError error;
+    int offset = 0;
+    do {
+        int chunkSize = request->size - offset;
+        if (chunkSize > MAX_VARARGS_PROPERTIES) {
+            chunkSize = MAX_VARARGS_PROPERTIES;
+        }
+        error = getPropertyChunk(getter, handle, index, chunkSize,
+          request->propIds + offset, request->props + offset);
+        if (error != VIX_OK) {
+            freePropertyStrings(request, offset);
+            return error;
+        }
+        if (getter == PROPERTY_GETTER_JOB_WAIT) {
+            getter = PROPERTY_GETTER_GET_PROPERTIES;
+        }
+        offset += chunkSize;
+    } while (offset < request->size);
+    return VIX_OK;
+}
+
+/** Releases the VIX strings and handles in a property request which have not been
+ * converted to java objects, after a conversion has failed.
+ *
+ * @param request the properties which have been retrieved
+ * @param start the index of the first property to release
+ */
+static void releasePropertyValues(PropertyRequest *request, int start) {
+    int i;
+    for (i = start; i < request->size; i++) {
+        if (request->propTypes[i] == VIX_PROPERTYTYPE_STRING) {
+            Vix_FreeBuffer(request->props[i].stringValue);
+        } else if (request->propTypes[i] == VIX_PROPERTYTYPE_HANDLE) {
+            Vix_ReleaseHandle(request->props[i].handleValue);
+        }
+    }
+}
+
+/** Copies property values into a net.sf.jvix.PropertyResultBuffer object. Primitive
+ * values are copied into the buffer's values array; strings are converted to
+ * java Strings and the VIX memory for them is released.
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param buffer the PropertyResultBuffer to populate
+ * @param request the properties which have been retrieved
+ */
+static void fillPropertyResultBuffer(JNIEnv *env, char *apiCall, jobject buffer, PropertyRequest *request) {
+    int i;
+    int size = request->size;
+    PropertyResult *props = request->props;
+    jintArray typesArray;
+    jlongArray valuesArray;
+    jobjectArray objectsArray;
+    jboolean rawStrings;
+    jobject stringValue;
+    jobject handleValue;
+
+    if (buffer == NULL || size == 0) {
+        return;
+    }
+    objectsArray = (jobjectArray) (*env)->GetObjectField(env, buffer, propertyResultBufferObjectsFieldId);
+    rawStrings = (*env)->GetBooleanField(env, buffer, propertyResultBufferRawStringsFieldId);
+    for (i = 0; i < size; i++) {
+        if ((*env)->ExceptionCheck(env)) {
+            /* the previous element couldn't be stored; release what remains */
+            releasePropertyValues(request, i);
+            (*env)->DeleteLocalRef(env, objectsArray);
+            return;
+        }
+        request->types[i] = (jint) request->propTypes[i];
+        request->values[i] = 0;
+        switch (request->propTypes[i]) {
+            case VIX_PROPERTYTYPE_INTEGER:
+                request->values[i] = (jlong) props[i].intValue;
+                break;
+
+            case VIX_PROPERTYTYPE_BOOL:
+                request->values[i] = (props[i].boolValue ? 1 : 0);
+                break;
+
+            case VIX_PROPERTYTYPE_HANDLE:
+                request->values[i] = (jlong) props[i].handleValue;
+                handleValue = acquireVixHandle(env, props[i].handleValue);
+                if (handleValue == NULL) {
+                    /* the reference was not registered, so is released here along with the rest */
+                    Vix_ReleaseHandle(props[i].handleValue);
+                    releasePropertyValues(request, i + 1);
+                    (*env)->DeleteLocalRef(env, objectsArray);
+                    return;
+                }
+                (*env)->SetObjectArrayElement(env, objectsArray, i, handleValue);
+                (*env)->DeleteLocalRef(env, handleValue);
+                continue;
+
+            case VIX_PROPERTYTYPE_INT64:
+                request->values[i] = (jlong) props[i].int64Value;
+                break;
+
+            case VIX_PROPERTYTYPE_STRING:
+                logDebug(env, "%s: Returning string property '%s'", apiCall, props[i].stringValue);
+                stringValue = createStringValue(env, props[i].stringValue, rawStrings);
+                Vix_FreeBuffer(props[i].stringValue);
+                if (stringValue == NULL) {
+                    releasePropertyValues(request, i + 1);
+                    (*env)->DeleteLocalRef(env, objectsArray);
+                    return;
+                }
+                (*env)->SetObjectArrayElement(env, objectsArray, i, stringValue);
+                (*env)->DeleteLocalRef(env, stringValue);
+                continue;
+        }
+        (*env)->SetObjectArrayElement(env, objectsArray, i, NULL);
+    }
+    if ((*env)->ExceptionCheck(env)) {
+        /* the last element couldn't be stored */
+        (*env)->DeleteLocalRef(env, objectsArray);
+        return;
+    }
+    typesArray = (jintArray) (*env)->GetObjectField(env, buffer, propertyResultBufferTypesFieldId);
+    valuesArray = (jlongArray) (*env)->GetObjectField(env, buffer, propertyResultBufferValuesFieldId);
+    (*env)->SetIntArrayRegion(env, typesArray, 0, size, request->types);
+    (*env)->SetLongArrayRegion(env, valuesArray, 0, size, request->values);
+    (*env)->DeleteLocalRef(env, typesArray);
+    (*env)->DeleteLocalRef(env, valuesArray);
+    (*env)->DeleteLocalRef(env, objectsArray);
+}
+
+/** Retrieves the types and values of the properties in a request, throwing a
+ * VixException if this fails.
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param getter one of the PROPERTY_GETTER_* constants
+ * @param handle the handle to retrieve properties from
+ * @param index the index passed to VixJob_GetNthProperties
+ * @param request the properties to retrieve
+ *
+ * @returns 0 if successful, or -1 if an exception has been thrown
+ */
+static int fetchPropertyRequest(JNIEnv *env, char *apiCall, int getter, VixHandle handle, int index, PropertyRequest *request) {
+    VixError error = getPropertyTypes(env, apiCall, handle, request);
+    if (error == VIX_OK) {
+        error = getProperties(getter, handle, index, request);
+        logDebug(env, "%s invoked returnCode=%lld", apiCall, (int64) error);
+    }
+    if (error == VIX_OK && getter != PROPERTY_GETTER_GET_NTH_PROPERTIES) {
+        recordPropertyHosts(handle, request);
+    }
+    if (error != VIX_OK) {
+        logDebug(env, "%s has thrown an exception", apiCall);
+        throwVixException(env, error);
+        return -1;
+    }
+    return 0;
+}
+
+/** Common implementation of the List-based VixJob_Wait, Vix_GetProperties and
+ * VixJob_GetNthProperties JNI functions
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param getter one of the PROPERTY_GETTER_* constants
+ * @param handle the handle to retrieve properties from
+ * @param index the index passed to VixJob_GetNthProperties
+ * @param propertyIds a List of Integer property IDs
+ *
+ * @returns a List of property values, or NULL if an exception has been thrown
+ */
+static jobject getPropertyList(JNIEnv *env, char *apiCall, int getter, VixHandle handle, int index, jobject propertyIds) {
+    PropertyRequest request;
+    jobject resultList = NULL;
+    if (readPropertyIdList(env, apiCall, propertyIds, &request) < 0) {
+        return NULL;
+    }
+    if (fetchPropertyRequest(env, apiCall, getter, handle, index, &request) == 0) {
+        resultList = createPropertyList(env, apiCall, request.size, request.propTypes, request.props);
+        if (resultList == NULL) {
+            logDebug(env, "%s has thrown an exception", apiCall);
+        } else {
+            logDebug(env, "%s end", apiCall);
+        }
+    }
+    freePropertyRequest(&request);
+    return resultList;
+}
+
+/** Common implementation of the PropertyResultBuffer-based VixJob_Wait, Vix_GetProperties
+ * and VixJob_GetNthProperties JNI functions
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param getter one of the PROPERTY_GETTER_* constants
+ * @param handle the handle to retrieve properties from
+ * @param index the index passed to VixJob_GetNthProperties
+ * @param buffer the PropertyResultBuffer containing the property IDs to retrieve, which
+ *   will receive the property values. May be NULL if no properties are required.
+ */
+static void getPropertyBuffer(JNIEnv *env, char *apiCall, int getter, VixHandle handle, int index, jobject buffer) {
+    PropertyRequest request;
+    if (readPropertyIdBuffer(env, apiCall, buffer, &request) < 0) {
+        return;
+    }
+    if (fetchPropertyRequest(env, apiCall, getter, handle, index, &request) == 0) {
+        fillPropertyResultBuffer(env, apiCall, buffer, &request);
+        logDebug(env, "%s end", apiCall);
+    }
+    freePropertyRequest(&request);
+}
+
+/** Implementation of the VixJob_GetAllNthProperties JNI function. Retrieves the
+ * requested properties for every result of a job, and returns them in a
+ * net.sf.jvix.PropertyTable object.
+ *
+ * <p>Primitive values are accumulated in native memory and copied into a java
+ * array once per column; strings are placed directly into a String (or byte[]) array
+ * per column.
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param handle the job handle to retrieve properties from
+ * @param propertyIdsArray the property IDs to retrieve
+ * @param rawStrings if true, string properties are returned as UTF-8 byte arrays
+ *
+ * @returns a PropertyTable object, or NULL if an exception has been thrown
+ */
+static jobject getPropertyTable(JNIEnv *env, char *apiCall, VixHandle handle, jintArray propertyIdsArray, jboolean rawStrings) {
+    PropertyRequest request;
+    VixError error = VIX_OK;
+    int size, rowCount, row, col;
+    int filledRows = 0;              /* number of results copied into the columns */
+    int filledColumns = 0;           /* number of columns copied from the next result */
+    jobject *stringColumns = NULL;   /* local references to each String[] column */
+    char **primitiveColumns = NULL;  /* native storage for each int[] or long[] column */
+    char *columnBlock = NULL;
+    size_t columnOffset;
+    jobjectArray columns;
+    jintArray typesArray;
+    jobject result = NULL;
+    jobject stringValue;
+    jobject handleValue;
+    jarray primitiveArray;
+
+    if (propertyIdsArray == NULL) {
+        throwNullPointerException(env, "null propertyIds");
+        return NULL;
+    }
+    size = (*env)->GetArrayLength(env, propertyIdsArray);
+    if (initPropertyRequest(env, &request, size) < 0) {
+        return NULL;
+    }
+    (*env)->GetIntArrayRegion(env, propertyIdsArray, 0, size, (jint *) request.propIds);
+    rowCount = (size == 0 ? 0 : VixJob_GetNumProperties(handle, request.propIds[0]));
+    if (rowCount < 0) {
+        rowCount = 0;
+    }
+    logDebug(env, "%s retrieving %d properties for %d results", apiCall, size, rowCount);
+
+    /* types can only be determined if there is at least one result */
+    if (rowCount > 0) {
+        error = getPropertyTypes(env, apiCall, handle, &request);
+    } else {
+        for (col = 0; col < size; col++) {
+            request.propTypes[col] = VIX_PROPERTYTYPE_ANY;
+        }
+    }
+
+    if (error == VIX_OK && size > 0) {
+        stringColumns = (jobject *) calloc(size, sizeof(jobject));
+        primitiveColumns = (char **) calloc(size, sizeof(char *));
+        if (stringColumns == NULL || primitiveColumns == NULL) {
+            error = VIX_E_OUT_OF_MEMORY;
+        }
+    }
+    if (error == VIX_OK && rowCount > 0) {
+        /* each primitive column is stored as jlongs, so that no alignment is required */
+        columnBlock = (char *) malloc((size_t) size * rowCount * sizeof(jlong));
+        if (columnBlock == NULL) {
+            error = VIX_E_OUT_OF_MEMORY;
+        } else if ((*env)->EnsureLocalCapacity(env, size + 8) < 0) {
+            (*env)->ExceptionClear(env);
+            error = VIX_E_OUT_OF_MEMORY;
+        }
+    }
+    if (error == VIX_OK && rowCount > 0) {
+        columnOffset = 0;
+        for (col = 0; col < size; col++) {
+            if (request.propTypes[col] == VIX_PROPERTYTYPE_STRING) {
+                stringColumns[col] = (*env)->NewObjectArray(env, rowCount, (rawStrings ? byteArrayClass : stringClass), NULL);
+                if (stringColumns[col] == NULL) { goto cleanup; }
+            } else {
+                primitiveColumns[col] = columnBlock + columnOffset;
+                columnOffset += rowCount * sizeof(jlong);
+            }
+        }
+
+        for (row = 0; row < rowCount; row++) {
+            error = getProperties(PROPERTY_GETTER_GET_NTH_PROPERTIES, handle, row, &request);
+            if (error != VIX_OK) {
+                logDebug(env, "%s failed on result %d", apiCall, row);
+                break;
+            }
+            for (col = 0; col < size; col++) {
+                switch (request.propTypes[col]) {
+                    case VIX_PROPERTYTYPE_INTEGER:
+                        ((jint *) primitiveColumns[col])[row] = (jint) request.props[col].intValue;
+                        break;
+
+                    case VIX_PROPERTYTYPE_BOOL:
+                        ((jint *) primitiveColumns[col])[row] = (request.props[col].boolValue ? 1 : 0);
+                        break;
+
+                    case VIX_PROPERTYTYPE_HANDLE:
+                        ((jint *) primitiveColumns[col])[row] = (jint) request.props[col].handleValue;
+                        /* register the reference, so that PropertyTable.getHandle() returns the same object */
+                        handleValue = acquireVixHandle(env, request.props[col].handleValue);
+                        if (handleValue == NULL) {
+                            Vix_ReleaseHandle(request.props[col].handleValue);
+                            releasePropertyValues(&request, col + 1);
+                            goto cleanup;
+                        }
+                        (*env)->DeleteLocalRef(env, handleValue);
+                        break;
+
+                    case VIX_PROPERTYTYPE_INT64:
+                        ((jlong *) primitiveColumns[col])[row] = (jlong) request.props[col].int64Value;
+                        break;
+
+                    case VIX_PROPERTYTYPE_STRING:
+                        stringValue = createStringValue(env, request.props[col].stringValue, rawStrings);
+                        Vix_FreeBuffer(request.props[col].stringValue);
+                        request.props[col].stringValue = NULL;
+                        if (stringValue == NULL) {
+                            releasePropertyValues(&request, col + 1);
+                            goto cleanup;
+                        }
+                        (*env)->SetObjectArrayElement(env, stringColumns[col], row, stringValue);
+                        (*env)->DeleteLocalRef(env, stringValue);
+                        break;
+                }
+                filledColumns = col + 1;
+            }
+            filledRows = row + 1;
+            filledColumns = 0;
+        }
+    }
+    if (error != VIX_OK) {
+        logDebug(env, "%s has thrown an exception", apiCall);
+        throwVixException(env, error);
+        goto cleanup;
+    }
+
+    columns = (*env)->NewObjectArray(env, size, objectClass, NULL);
+    typesArray = (*env)->NewIntArray(env, size);
+    if (columns == NULL || typesArray == NULL) { goto cleanup; }
+    for (col = 0; col < size; col++) {
+        request.types[col] = (jint) request.propTypes[col];
+        if (stringColumns[col] != NULL) {
+            (*env)->SetObjectArrayElement(env, columns, col, stringColumns[col]);
+        } else if (primitiveColumns[col] != NULL) {
+            if (request.propTypes[col] == VIX_PROPERTYTYPE_INT64) {
+                primitiveArray = (*env)->NewLongArray(env, rowCount);
+                if (primitiveArray == NULL) { goto cleanup; }
+                (*env)->SetLongArrayRegion(env, (jlongArray) primitiveArray, 0, rowCount, (jlong *) primitiveColumns[col]);
+            } else {
+                primitiveArray = (*env)->NewIntArray(env, rowCount);
+                if (primitiveArray == NULL) { goto cleanup; }
+                (*env)->SetIntArrayRegion(env, (jintArray) primitiveArray, 0, rowCount, (jint *) primitiveColumns[col]);
+            }
+            (*env)->SetObjectArrayElement(env, columns, col, primitiveArray);
+            (*env)->DeleteLocalRef(env, primitiveArray);
+        }
+    }
+    (*env)->SetIntArrayRegion(env, typesArray, 0, size, request.types);
+    result = (*env)->NewObject(env, propertyTableClass, propertyTableConstructorId,
+      propertyIdsArray, typesArray, columns, (jint) rowCount);
+    logDebug(env, "%s end", apiCall);
+
+cleanup:
+    if (result == NULL && primitiveColumns != NULL) {
+        /* no PropertyTable holds the handles which have been copied, so release them here */
+        for (col = 0; col < size; col++) {
+            if (request.propTypes[col] != VIX_PROPERTYTYPE_HANDLE) { continue; }
+            for (row = 0; row < filledRows + (col < filledColumns ? 1 : 0); row++) {
+                releaseVixHandle(env, (VixHandle) ((jint *) primitiveColumns[col])[row]);
+            }
+        }
+    }
+    if (stringColumns != NULL) {
+        for (col = 0; col < size; col++) {
+            if (stringColumns[col] != NULL) { (*env)->DeleteLocalRef(env, stringColumns[col]); }
+        }
+        free(stringColumns);
+    }
+    if (primitiveColumns != NULL) { free(primitiveColumns); }
+    if (columnBlock != NULL) { free(columnBlock); }
+    freePropertyRequest(&request);
+    return result;
+}
+
+/******************************************************************************************
+ ** CALLBACK CLIENT DATA REGISTRY
+ **
+ ** Every VIX call made with a VixEventProc needs a CombinedClientData structure, which
+ ** holds global references to the java event procedure and client data objects.
+ ** These structures are allocated from a pool of fixed-size slabs, and once the
+ ** VIX call has returned, are recorded in a hash table keyed by the job handle.
+ **
+ ** Each structure has two references to it: one which is dropped when the
+ ** VIX_EVENTTYPE_JOB_COMPLETED event has been delivered to defaultCallback(), and
+ ** one which is dropped when the job handle is released through Vix_ReleaseHandle().
+ ** The global references are deleted as soon as the job completes, since VIX will not
+ ** invoke the callback again after that; the structure is returned to the pool once both
+ ** references have been dropped. Releasing the job handle early therefore never frees
+ ** memory that a later callback would use.
+ **/
+
+static jvixMutex clientDataMutex;
+static ClientDataSlab **clientDataSlabs = NULL;  /* all slabs allocated, indexed by slotId / CLIENT_DATA_SLAB_SIZE */
+static int clientDataSlabCount = 0;
+static int clientDataSlabCapacity = 0;
+static CombinedClientData *clientDataFreeList = NULL;
+static CombinedClientData *clientDataBuckets[CLIENT_DATA_BUCKETS];
+
+/* number of CombinedClientData structures currently allocated from the pool */
+static int clientDataLiveCount = 0;
+
+/* number of jobs created with a VixEventProc which have not yet completed, for each host.
+ * The first entry counts the jobs whose host is not known; the others are reassigned to
+ * another host once their count reaches zero. See Jvix_GetPendingJobCount */
+static PendingJobCount pendingJobCounts[PENDING_JOB_HOSTS];
+
+/* the host of each VM handle, and of each job that returns one, where known. An entry is
+ * overwritten when another handle hashes to the same slot, after which jobs created on
+ * that handle are counted as if their host were not known. */
+static HandleHost handleHosts[HANDLE_HOST_CACHE_SIZE];
+
+/** Initialises the registry; called from JNI_OnLoad */
+static void initClientDataRegistry(void) {
+    initMutex(&clientDataMutex);
+}
+
+/** Releases the memory used by the registry; called from JNI_OnUnload */
+static void destroyClientDataRegistry(void) {
+    int i;
+    for (i = 0; i < clientDataSlabCount; i++) {
+        free(clientDataSlabs[i]);
+    }
+    free(clientDataSlabs);
+    clientDataSlabs = NULL;
+    clientDataSlabCount = 0;
+    clientDataSlabCapacity = 0;
+    clientDataFreeList = NULL;
+    memset(clientDataBuckets, 0, sizeof(clientDataBuckets));
+    destroyMutex(&clientDataMutex);
+}
+
+/** Removes a CombinedClientData structure from the pool, allocating another slab if
+ * the pool is empty. Must be called with clientDataMutex held.
+ *
+ * @returns a CombinedClientData structure, or NULL if memory could not be allocated
+ */
+static CombinedClientData *allocateClientData(void) {
+    CombinedClientData *ccd;
+    ClientDataSlab *slab;
+    ClientDataSlab **newSlabs;
+    int i;
+    if (clientDataFreeList == NULL) {
+        if (clientDataSlabCount == clientDataSlabCapacity) {
+            newSlabs = (ClientDataSlab **) realloc(clientDataSlabs,
+              (clientDataSlabCapacity + 16) * sizeof(ClientDataSlab *));
+            if (newSlabs == NULL) {
+                return NULL;
+            }
+            clientDataSlabs = newSlabs;
+            clientDataSlabCapacity += 16;
+        }
+        slab = (ClientDataSlab *) malloc(sizeof(ClientDataSlab));
+        if (slab == NULL) {
+            return NULL;
+        }
+        for (i = CLIENT_DATA_SLAB_SIZE - 1; i >= 0; i--) {
+            slab->entries[i].slotId = clientDataSlabCount * CLIENT_DATA_SLAB_SIZE + i;
+            slab->entries[i].next = clientDataFreeList;
+            clientDataFreeList = &slab->entries[i];
+        }
+        clientDataSlabs[clientDataSlabCount++] = slab;
+    }
+    ccd = clientDataFreeList;
+    clientDataFreeList = ccd->next;
+    ccd->next = NULL;
+    clientDataLiveCount++;
+    return ccd;
+}
+
+/** Returns the CombinedClientData structure with the supplied slot ID. Must be called
+ * with clientDataMutex held.
+ *
+ * @param slotId the slotId of the structure
+ *
+ * @returns the structure, or NULL if the slot ID is out of range
+ */
+static CombinedClientData *lookupClientData(int slotId) {
+    if (slotId < 0 || slotId >= clientDataSlabCount * CLIENT_DATA_SLAB_SIZE) {
+        return NULL;
+    }
+    return &clientDataSlabs[slotId / CLIENT_DATA_SLAB_SIZE]->entries[slotId % CLIENT_DATA_SLAB_SIZE];
+}
+
+/** Drops a reference to a CombinedClientData structure, returning it to the pool if this
+ * was the last one. Must be called with clientDataMutex held.
+ *
+ * @param ccd the structure to release
+ */
+static void releaseClientDataReference(CombinedClientData *ccd) {
+    ccd->refCount--;
+    if (ccd->refCount == 0) {
+        ccd->next = clientDataFreeList;
+        clientDataFreeList = ccd;
+        clientDataLiveCount--;
+    }
+}
+
+/** Records the host that a handle belongs to, so that jobs created on that handle are
+ * counted against that host. Must be called with clientDataMutex held.
+ *
+ * @param handle a VM handle, or the job that will return one
+ * @param hostHandle the host handle
+ */
+static void recordHandleHost(VixHandle handle, VixHandle hostHandle) {
+    HandleHost *entry = &handleHosts[handle & (HANDLE_HOST_CACHE_SIZE - 1)];
+    entry->handle = handle;
+    entry->hostHandle = hostHandle;
+}
+
+/** Returns the host that a handle belongs to. Must be called with clientDataMutex held.
+ *
+ * @param handle a handle
+ *
+ * @returns the host recorded by recordHandleHost(), or VIX_INVALID_HANDLE if not known
+ */
+static VixHandle lookupHandleHost(VixHandle handle) {
+    HandleHost *entry = &handleHosts[handle & (HANDLE_HOST_CACHE_SIZE - 1)];
+    return (handle != VIX_INVALID_HANDLE && entry->handle == handle ? entry->hostHandle : VIX_INVALID_HANDLE);
+}
+
+/** Records the host of any handles retrieved from a handle whose host is known, so that
+ * the VM handle returned by a VixVM_Open job belongs to the host the VM was opened on.
+ *
+ * @param handle the handle the properties were retrieved from
+ * @param request the properties which have been retrieved
+ */
+static void recordPropertyHosts(VixHandle handle, PropertyRequest *request) {
+    VixHandle hostHandle;
+    int i;
+    for (i = 0; i < request->size; i++) {
+        if (request->propTypes[i] == VIX_PROPERTYTYPE_HANDLE) { break; }
+    }
+    if (i == request->size) {
+        return;
+    }
+    lockMutex(&clientDataMutex);
+    hostHandle = lookupHandleHost(handle);
+    for (; hostHandle != VIX_INVALID_HANDLE && i < request->size; i++) {
+        if (request->propTypes[i] == VIX_PROPERTYTYPE_HANDLE && request->props[i].handleValue != VIX_INVALID_HANDLE) {
+            recordHandleHost(request->props[i].handleValue, hostHandle);
+        }
+    }
+    unlockMutex(&clientDataMutex);
+}
+
+/** Returns the entry counting the pending jobs of a host, assigning an unused entry to
+ * the host if it doesn't have one. Must be called with clientDataMutex held.
+ *
+ * @param hostHandle the host handle, or VIX_INVALID_HANDLE if not known
+ *
+ * @returns the entry for this host, or the first entry if the host is not known or all
+ *   entries are in use
+ */
+static PendingJobCount *allocatePendingJobCount(VixHandle hostHandle) {
+    PendingJobCount *unused = NULL;
+    int i;
+    if (hostHandle == VIX_INVALID_HANDLE) {
+        return &pendingJobCounts[0];
+    }
+    for (i = 1; i < PENDING_JOB_HOSTS; i++) {
+        if (pendingJobCounts[i].hostHandle == hostHandle) {
+            return &pendingJobCounts[i];
+        }
+        /* counts are only incremented with clientDataMutex held, so this one stays at zero */
+        if (unused == NULL && atomicGet(&pendingJobCounts[i].count) == 0) {
+            unused = &pendingJobCounts[i];
+        }
+    }
+    if (unused == NULL) {
+        return &pendingJobCounts[0];
+    }
+    unused->hostHandle = hostHandle;
+    return unused;
+}
+
+/** Returns the number of jobs created with a VixEventProc on a host which have not yet
+ * completed, including the jobs whose host is not known. May be called without
+ * clientDataMutex held, in which case the count may include the jobs of a host which
+ * has just been assigned the same entry.
+ *
+ * @param hostHandle the host handle
+ *
+ * @returns the number of pending jobs
+ */
+static int getPendingJobCount(VixHandle hostHandle) {
+    int count = atomicGet(&pendingJobCounts[0].count);
+    int i;
+    for (i = 1; i < PENDING_JOB_HOSTS; i++) {
+        if (pendingJobCounts[i].hostHandle == hostHandle) {
+            count += atomicGet(&pendingJobCounts[i].count);
+        }
+    }
+    return count;
+}
+
+/** Deletes the global references held by a CombinedClientData structure
+ *
+ * @param env pointer to the JNI environment
+ * @param ccd the structure holding the references
+ */
+static void deleteClientDataReferences(JNIEnv *env, CombinedClientData *ccd) {
+    if (ccd->eventProc != NULL) { (*env)->DeleteGlobalRef(env, ccd->eventProc); ccd->eventProc = NULL; }
+    if (ccd->clientData != NULL) { (*env)->DeleteGlobalRef(env, ccd->clientData); ccd->clientData = NULL; }
+}
+
+/** Returns a pointer to a CombinedClientData object which can be used as an argument to
+ *  VIX API calls generated by this wrapper. Once the VIX call has returned, the job handle
+ *  it returns must be passed to registerClientData().
+ *
+ * @param ownerHandle the net.sf.jvix.VixHandle of the host or VM the VIX call is made on
+ *   (may be null), which determines the host the job is counted against
+ * @param callbackProc a net.sf.jvix.VixEventProc object which will implement the callback handler
+ * @param clientData  an arbitrary object supplied by the user which will be handed to the event procedure handler
+ *
+ * @returns a CombinedClientData structure, or NULL if callbackProc is null or memory
+ *   could not be allocated. In the latter case an exception is pending, and the
+ *   caller must return without making the VIX call.
+ */
+CombinedClientData *getCombinedClientData(JNIEnv *env, jobject ownerHandle, jobject callbackProc, jobject clientData) {
+    CombinedClientData *ccd;
+    VixHandle owner;
+    int ownerIsHost;
+	if (callbackProc==null) {
+	    return null;
+	}	
+    owner = unwrapVixHandle(env, ownerHandle);
+    ownerIsHost = (owner != VIX_INVALID_HANDLE && Vix_GetHandleType(owner) == VIX_HANDLETYPE_HOST);
+    lockMutex(&clientDataMutex);
+    ccd = allocateClientData();
+    if (ccd != null) {
+        ccd->pendingJobs = allocatePendingJobCount(ownerIsHost ? owner : lookupHandleHost(owner));
+        atomicIncrement(&ccd->pendingJobs->count);
+    }
+    unlockMutex(&clientDataMutex);
+    if (ccd==null) {
+        throwVixException(env, VIX_E_OUT_OF_MEMORY);
+        return null;
+    }
+    ccd->javaVM = cachedJavaVM;
+    ccd->eventProc = (*env)->NewGlobalRef(env, callbackProc);
+    ccd->clientData = (clientData==null ? null : (*env)->NewGlobalRef(env, clientData));
+    ccd->jobHandle = VIX_INVALID_HANDLE;
+    ccd->refCount = 2;
+    if (ccd->eventProc==null || (clientData!=null && ccd->clientData==null)) {
+        atomicDecrement(&ccd->pendingJobs->count);
+        deleteClientDataReferences(env, ccd);
+        lockMutex(&clientDataMutex);
+        releaseClientDataReference(ccd);
+        releaseClientDataReference(ccd);
+        unlockMutex(&clientDataMutex);
+        if (!(*env)->ExceptionCheck(env)) {
+            throwVixException(env, VIX_E_OUT_OF_MEMORY);
+        }
+        return null;
+    }
+    signalPendingJob();
+    return ccd;
+}
+
+/** Records the job handle returned by a VIX call against the CombinedClientData structure
+ * passed to it, so that the structure can be released when the handle is released.
+ *
+ * @param env pointer to the JNI environment
+ * @param ccd the structure returned by getCombinedClientData() (may be NULL)
+ * @param jobHandle the job handle returned by the VIX API
+ */
+static void registerClientData(JNIEnv *env, CombinedClientData *ccd, VixHandle jobHandle) {
+    int bucket;
+    if (ccd == NULL) {
+        return;
+    }
+    if (jobHandle == VIX_INVALID_HANDLE) {
+        /* no job was created, so neither a callback nor a release will follow */
+        atomicDecrement(&ccd->pendingJobs->count);
+        deleteClientDataReferences(env, ccd);
+        lockMutex(&clientDataMutex);
+        releaseClientDataReference(ccd);
+        releaseClientDataReference(ccd);
+        unlockMutex(&clientDataMutex);
+        return;
+    }
+    bucket = jobHandle & (CLIENT_DATA_BUCKETS - 1);
+    lockMutex(&clientDataMutex);
+    ccd->jobHandle = jobHandle;
+    ccd->next = clientDataBuckets[bucket];
+    clientDataBuckets[bucket] = ccd;
+    unlockMutex(&clientDataMutex);
+}
+
+/** Called by defaultCallback() once the VIX_EVENTTYPE_JOB_COMPLETED event has been
+ * delivered; deletes the global references held by the structure and drops
+ * the completion reference to it.
+ *
+ * @param env pointer to the JNI environment
+ * @param ccd the structure passed to the callback
+ */
+static void completeClientData(JNIEnv *env, CombinedClientData *ccd) {
+    lockMutex(&clientDataMutex);
+    deleteClientDataReferences(env, ccd);
+    releaseClientDataReference(ccd);
+    unlockMutex(&clientDataMutex);
+}
+
+/** Called when a handle is released; if a CombinedClientData structure is registered
+ * against it, the structure is removed from the registry and the handle's
+ * reference to it is dropped.
+ *
+ * @param handle the handle being released
+ */
+static void releaseClientData(VixHandle handle) {
+    CombinedClientData **link;
+    CombinedClientData *ccd;
+    if (handle == VIX_INVALID_HANDLE) {
+        return;
+    }
+    lockMutex(&clientDataMutex);
+    link = &clientDataBuckets[handle & (CLIENT_DATA_BUCKETS - 1)];
+    while (*link != NULL) {
+        ccd = *link;
+        if (ccd->jobHandle == handle) {
+            *link = ccd->next;
+            ccd->next = NULL;
+            releaseClientDataReference(ccd);
+            break;
+        }
+        link = &ccd->next;
+    }
+    unlockMutex(&clientDataMutex);
+}
+
+/******************************************************************************************
+ ** CALLBACK THREADS
+ **
+ ** VIX invokes callbacks on its own worker threads, which need to be attached to the
+ ** JVM before they can call into java. Rather than attaching and detaching on every
+ ** event, a worker thread is attached (as a daemon thread, so that it doesn't prevent
+ ** the JVM from exiting) the first time it delivers an event, and its JNIEnv is kept
+ ** in thread-local storage. The thread is detached again when it exits: through the
+ ** destructor of a pthread key on posix systems, or from DllMain on Windows.
+ **
+ ** Threads which were already attached to the JVM (e.g. a java thread which
+ ** delivers events from within Vix_PumpEvents) are used as-is, and never detached here.
+ **/
+
+/* name given to VIX threads when they are attached to the JVM */
+#define CALLBACK_THREAD_NAME "jvix-callback"
+
+/* the thread-local pump event counter points to a counter on the stack of
+ * Jvix_PumpEvents() while a thread is pumping events, and is NULL otherwise */
+#ifdef _WIN32
+static DWORD callbackEnvTlsIndex = TLS_OUT_OF_INDEXES;
+static DWORD pumpEventCounterTlsIndex = TLS_OUT_OF_INDEXES;
+#define getCallbackThreadEnv()     ((JNIEnv *) TlsGetValue(callbackEnvTlsIndex))
+#define setCallbackThreadEnv(env)  TlsSetValue(callbackEnvTlsIndex, (LPVOID) (env))
+#define getPumpEventCounter()      ((unsigned int *) TlsGetValue(pumpEventCounterTlsIndex))
+#define setPumpEventCounter(counter)  TlsSetValue(pumpEventCounterTlsIndex, (LPVOID) (counter))
+#else
+static pthread_key_t callbackEnvKey;
+static pthread_key_t pumpEventCounterKey;
+#define getCallbackThreadEnv()     ((JNIEnv *) pthread_getspecific(callbackEnvKey))
+#define setCallbackThreadEnv(env)  pthread_setspecific(callbackEnvKey, (void *) (env))
+#define getPumpEventCounter()      ((unsigned int *) pthread_getspecific(pumpEventCounterKey))
+#define setPumpEventCounter(counter)  pthread_setspecific(pumpEventCounterKey, (void *) (counter))
+#endif
+
+/** Detaches the current thread from the JVM, if it was attached by getCallbackEnv().
+ * On posix systems this is the destructor of callbackEnvKey, and is invoked by
+ * pthreads as the thread exits.
+ *
+ * @param env the JNIEnv stored in thread-local storage for this thread
+ */
+static void detachCallbackThread(void *env) {
+    JavaVM *javaVM = cachedJavaVM;
+    if (env != NULL && javaVM != NULL) {
+        (*javaVM)->DetachCurrentThread(javaVM);
+    }
+}
+
+/** Allocates the thread-local storage used by callback threads; called from JNI_OnLoad
+ *
+ * @returns 0 if successful, or non-zero if thread-local storage could not be allocated
+ */
+static int initCallbackThreads(void) {
+#ifdef _WIN32
+    callbackEnvTlsIndex = TlsAlloc();
+    pumpEventCounterTlsIndex = TlsAlloc();
+    return (callbackEnvTlsIndex == TLS_OUT_OF_INDEXES || pumpEventCounterTlsIndex == TLS_OUT_OF_INDEXES);
+#else
+    if (pthread_key_create(&callbackEnvKey, detachCallbackThread) != 0) {
+        return 1;
+    }
+    return pthread_key_create(&pumpEventCounterKey, NULL);
+#endif
+}
+
+/** Releases the thread-local storage used by callback threads; called from JNI_OnUnload
+ */
+static void destroyCallbackThreads(void) {
+#ifdef _WIN32
+    if (callbackEnvTlsIndex != TLS_OUT_OF_INDEXES) {
+        TlsFree(callbackEnvTlsIndex);
+        callbackEnvTlsIndex = TLS_OUT_OF_INDEXES;
+    }
+    if (pumpEventCounterTlsIndex != TLS_OUT_OF_INDEXES) {
+        TlsFree(pumpEventCounterTlsIndex);
+        pumpEventCounterTlsIndex = TLS_OUT_OF_INDEXES;
+    }
+#else
+    pthread_key_delete(pumpEventCounterKey);
+    pthread_key_delete(callbackEnvKey);
+#endif
+}
+
+#ifdef _WIN32
+/** Windows DLL entry point. Detaches VIX threads that were attached by getCallbackEnv()
+ * as they exit, which on posix systems is performed by the callbackEnvKey destructor.
+ */
+BOOL WINAPI DllMain(HINSTANCE instance, DWORD reason, LPVOID reserved) {
+    if (reason == DLL_THREAD_DETACH && callbackEnvTlsIndex != TLS_OUT_OF_INDEXES) {
+        detachCallbackThread(getCallbackThreadEnv());
+    }
+    return TRUE;
+}
+#endif
+
+/** Returns the JNIEnv for the current thread, attaching it to the JVM as a daemon
+ * thread if it isn't already attached.
+ *
+ * @param javaVM the JVM to attach to
+ *
+ * @returns the JNIEnv for this thread, or NULL if the thread could not be attached
+ */
+static JNIEnv *getCallbackEnv(JavaVM *javaVM) {
+    JNIEnv *env = getCallbackThreadEnv();
+    JavaVMAttachArgs attachArgs;
+    if (env != NULL) {
+        return env;
+    }
+    if ((*javaVM)->GetEnv(javaVM, (void **) &env, JNI_VERSION_1_4) == JNI_OK) {
+        /* already attached by someone else; not ours to detach */
+        return env;
+    }
+    attachArgs.version = JNI_VERSION_1_4;
+    attachArgs.name = CALLBACK_THREAD_NAME;
+    attachArgs.group = NULL;
+    if ((*javaVM)->AttachCurrentThreadAsDaemon(javaVM, (void **) &env, &attachArgs) != JNI_OK) {
+        return NULL;
+    }
+    setCallbackThreadEnv(env);
+    return env;
+}
+
+/******************************************************************************************
+ ** JOB COMPLETION
+ **
+ ** VixJob_WaitAny() and VixJob_WaitAll() wait for any or all of a set of jobs to complete
+ ** within a single native call. The state of each job is read with VixJob_CheckCompletion;
+ ** between checks the waiting thread sleeps on a condition variable, which
+ ** defaultCallback() signals whenever a VIX_EVENTTYPE_JOB_COMPLETED event arrives, and
+ ** a counter lets the waiter tell whether any job has completed since it last looked.
+ **
+ ** Jobs created without a VixEventProc never reach defaultCallback(), so the wait is
+ ** bounded by JOB_COMPLETION_POLL_MILLIS, after which the jobs are checked again anyway.
+ **
+ ** A second condition is signalled when a job is created with a VixEventProc, so that an
+ ** idle VixEventPump can wait for work to arrive rather than polling for it (see
+ ** Jvix_WaitForPendingJob). It is only signalled while a pump is waiting on it.
+ **/
+
+/* longest time a waiting thread sleeps before checking its jobs again */
+#define JOB_COMPLETION_POLL_MILLIS  20
+
+static jvixMutex jobCompletionMutex;
+static jvixCondition jobCompletionCondition;
+
+/* incremented (with jobCompletionMutex held) each time a job completes */
+static unsigned int jobCompletionCount = 0;
+
+static jvixCondition pendingJobCondition;
+
+/* number of threads waiting on pendingJobCondition */
+static volatile int pendingJobWaiters = 0;
+
+/** Initialises the completion signals; called from JNI_OnLoad */
+static void initJobCompletion(void) {
+    initMutex(&jobCompletionMutex);
+    initCondition(&jobCompletionCondition);
+    initCondition(&pendingJobCondition);
+}
+
+/** Releases the completion signals; called from JNI_OnUnload */
+static void destroyJobCompletion(void) {
+    destroyCondition(&pendingJobCondition);
+    destroyCondition(&jobCompletionCondition);
+    destroyMutex(&jobCompletionMutex);
+}
+
+/** Wakes any threads waiting in Jvix_WaitForPendingJob(); called from
+ * getCombinedClientData() once a pending job count has been incremented
+ */
+static void signalPendingJob(void) {
+    /* pendingJobWaiters and the pending job counts are both updated atomically, so either
+     * the waiter sees the new job, or this thread sees the waiter */
+    if (pendingJobWaiters > 0) {
+        lockMutex(&jobCompletionMutex);
+        signalAllCondition(&pendingJobCondition);
+        unlockMutex(&jobCompletionMutex);
+    }
+}
+
+/** Wakes any threads waiting in waitForJobs(); called from defaultCallback() when
+ * a job completes
+ */
+static void signalJobCompletion(void) {
+    lockMutex(&jobCompletionMutex);
+    jobCompletionCount++;
+    signalAllCondition(&jobCompletionCondition);
+    unlockMutex(&jobCompletionMutex);
+}
+
+/** Checks the completion state of each job, setting a bit in the completed bitmap for
+ * each job which has completed
+ *
+ * @param jobHandles the jobs to check
+ * @param count the number of jobs
+ * @param completed a bitmap with one bit per job; bit (i % 64) of word (i / 64)
+ *   represents jobHandles[i]. Bits which are already set are not checked again.
+ * @param completedCount receives the number of bits set in the bitmap
+ *
+ * @returns VIX_OK, or the error returned by VixJob_CheckCompletion
+ */
+static VixError checkJobs(VixHandle *jobHandles, int count, jlong *completed, int *completedCount) {
+    VixError error;
+    Bool complete;
+    jlong bit;
+    int i;
+    *completedCount = 0;
+    for (i = 0; i < count; i++) {
+        bit = ((jlong) 1) << (i & 63);
+        if ((completed[i >> 6] & bit) == 0) {
+            error = VixJob_CheckCompletion(jobHandles[i], &complete);
+            if (error != VIX_OK) {
+                return error;
+            }
+            if (!complete) {
+                continue;
+            }
+            completed[i >> 6] |= bit;
+        }
+        (*completedCount)++;
+    }
+    return VIX_OK;
+}
+
+/** Waits until any or all of the supplied jobs have completed, or the timeout expires.
+ *
+ * @param jobHandles the jobs to wait for
+ * @param count the number of jobs
+ * @param completed the completion bitmap; see checkJobs()
+ * @param timeoutMillis the maximum time to wait, in milliseconds; 0 to check the
+ *   jobs without waiting, or a negative value to wait indefinitely
+ * @param waitAll non-zero to wait for all jobs, zero to wait for any one of them
+ * @param completedCount receives the number of jobs which have completed
+ *
+ * @returns VIX_OK, or the error returned by VixJob_CheckCompletion
+ */
+static VixError waitForJobs(VixHandle *jobHandles, int count, jlong *completed, jlong timeoutMillis,
+  int waitAll, int *completedCount)
+{
+    VixError error;
+    jlong deadline = (timeoutMillis > 0 ? currentTimeMillis() + timeoutMillis : 0);
+    jlong remaining;
+    unsigned int lastCount;
+
+    for (;;) {
+        /* read the counter before checking, so that a completion during the check isn't missed */
+        lockMutex(&jobCompletionMutex);
+        lastCount = jobCompletionCount;
+        unlockMutex(&jobCompletionMutex);
+
+        error = checkJobs(jobHandles, count, completed, completedCount);
+        if (error != VIX_OK) {
+            return error;
+        }
+        if (waitAll ? (*completedCount == count) : (*completedCount > 0 || count == 0)) {
+            return VIX_OK;
+        }
+        remaining = JOB_COMPLETION_POLL_MILLIS;
+        if (timeoutMillis == 0) {
+            return VIX_OK;
+        } else if (timeoutMillis > 0) {
+            remaining = deadline - currentTimeMillis();
+            if (remaining <= 0) {
+                return VIX_OK;
+            }
+            if (remaining > JOB_COMPLETION_POLL_MILLIS) {
+                remaining = JOB_COMPLETION_POLL_MILLIS;
+            }
+        }
+
+        lockMutex(&jobCompletionMutex);
+        if (jobCompletionCount == lastCount) {
+            waitCondition(&jobCompletionCondition, &jobCompletionMutex, remaining);
+        }
+        unlockMutex(&jobCompletionMutex);
+    }
+}
+
+/******************************************************************************************
+ ** EVENT QUEUE
+ **
+ ** When a net.sf.jvix.VixEventDispatcher is running, defaultCallback() doesn't invoke
+ ** the java VixEventProc itself; instead it writes a fixed-size record describing the
+ ** event into a ring buffer and returns immediately, so that slow java callbacks
+ ** don't hold up the VIX library's own threads. The ring is held in a direct
+ ** ByteBuffer supplied by the dispatcher, whose drain thread copies records out of it
+ ** with Jvix_DrainEvents and invokes the callbacks on its own threads.
+ **
+ ** As with the trace ring, producers (VIX threads) claim a record by advancing the
+ ** head counter with a compare-and-set and publish it by setting its sequence number;
+ ** the single consumer (Jvix_DrainEvents) reads the sequence number with atomicGet()
+ ** before reading the rest of the record, and advances the tail counter with
+ ** atomicSet() once the record has been read.
+ ** If the ring is full, the producer yields until the dispatcher has made space,
+ ** since events can't be discarded.
+ **
+ ** The job handle and moreEventInfo handle in each record have an additional VIX
+ ** reference added, since they must outlive the callback from VIX; the dispatcher
+ ** releases them once the java callback has returned (see Jvix_ReleaseEventHandles).
+ **/
+
+/* layout of the event queue buffer; these must match VixEventDispatcher.java */
+#define EVENT_QUEUE_HEADER_SIZE   128
+#define EVENT_QUEUE_HEAD_OFFSET   0     /* claim counter, advanced by producers */
+#define EVENT_QUEUE_WAIT_OFFSET   4     /* number of events which found the queue full */
+#define EVENT_QUEUE_TAIL_OFFSET   64    /* consumer counter, advanced by Jvix_DrainEvents */
+
+/* maximum number of records removed by a single call to Jvix_DrainEvents */
+#define EVENT_DRAIN_BATCH_SIZE    256
+
+typedef struct {
+    volatile unsigned int sequence;   /* claim ticket + 1 once this record has been written */
+    int         jobHandle;
+    int         eventType;
+    int         moreEventInfo;
+    int         slotId;               /* slotId of the CombinedClientData for this job */
+    int         reserved;
+    jlong       timestamp;            /* time this event was queued, in milliseconds */
+} EventRecord;
+
+typedef struct {
+    volatile unsigned int *head;
+    volatile unsigned int *waitCount;
+    volatile unsigned int *tail;
+    EventRecord *records;
+    unsigned int size;                /* number of records; a power of two */
+} EventQueue;
+
+static EventQueue eventQueue;
+
+/* non-zero while events are being queued rather than delivered by defaultCallback() */
+static volatile int eventQueueEnabled = 0;
+
+/* number of threads which may currently be writing to the event queue */
+static volatile int eventQueueProducers = 0;
+
+/** Writes an event into the event queue, waiting for space if necessary
+ *
+ * @param ccd the client data for the job
+ * @param jobHandle the job handle supplied by VIX
+ * @param eventType the event type supplied by VIX
+ * @param moreEventInfo the additional handle supplied by VIX
+ */
+static void enqueueEvent(CombinedClientData *ccd, VixHandle jobHandle, VixEventType eventType, VixHandle moreEventInfo) {
+    unsigned int ticket;
+    EventRecord *record;
+    int waited = 0;
+
+    if (jobHandle != VIX_INVALID_HANDLE) { Vix_AddRefHandle(jobHandle); }
+    if (moreEventInfo != VIX_INVALID_HANDLE) { Vix_AddRefHandle(moreEventInfo); }
+    for (;;) {
+        ticket = *eventQueue.head;
+        if (ticket - *eventQueue.tail >= eventQueue.size) {
+            if (!waited) {
+                atomicIncrement(eventQueue.waitCount);
+                waited = 1;
+            }
+            yieldThread();
+        } else if (atomicCompareAndSet(eventQueue.head, ticket, ticket + 1)) {
+            break;
+        }
+    }
+    record = &eventQueue.records[ticket & (eventQueue.size - 1)];
+    record->jobHandle = (int) jobHandle;
+    record->eventType = (int) eventType;
+    record->moreEventInfo = (int) moreEventInfo;
+    record->slotId = ccd->slotId;
+    record->timestamp = currentTimeMillis();
+    atomicSet(&record->sequence, ticket + 1);
+}
+
+/** Default callback implementation that simply defers processing to the java callback
+ * defined in the CombinedClientData structure
+ *
+ * @param jobHandle handle supplied by VIX API
+ * @param eventType one of VIX_EVENTTYPE_JOB_COMPLETED, VIX_EVENTTYPE_JOB_PROGRESS,
+ *    VIX_EVENTTYPE_FIND_ITEM or VIX_EVENTTYPE_HOST_INITIALIZED
+ * @param moreEventInfo an optional additional handle supplied by the VIX API (use depends on initial
+ *    function invoked)
+ * @param clientData a pointer to a CombinedClientData structure which contains both the
+ *    original clientData object and a java implementation of the event handler
+ */
+void defaultCallback(VixHandle jobHandle, VixEventType eventType, VixHandle moreEventInfo, void *clientData)
+{
+    CombinedClientData *ccd = (CombinedClientData*) clientData;
+    unsigned int *deliveredEvents;
+    JNIEnv *env;
+    jobject jobHandleObject;
+    jobject moreEventInfoObject;
+
+    deliveredEvents = getPumpEventCounter();
+    if (deliveredEvents != NULL) {
+        (*deliveredEvents)++;
+    }
+    if (eventType == VIX_EVENTTYPE_JOB_COMPLETED) {
+        atomicDecrement(&ccd->pendingJobs->count);
+        signalJobCompletion();
+    }
+
+    /* the producer count lets Jvix_SetEventQueue() wait for writes in progress to finish */
+    atomicIncrement(&eventQueueProducers);
+    if (eventQueueEnabled) {
+        enqueueEvent(ccd, jobHandle, eventType, moreEventInfo);
+        atomicDecrement(&eventQueueProducers);
+        return;
+    }
+    atomicDecrement(&eventQueueProducers);
+
+    env = getCallbackEnv(ccd->javaVM);
+    if (env == NULL) {
+        printf("Could not attach VIX callback thread to the JVM\n");
+        return;
+    }
+
+    /* threads stay attached between events, so local references must be released explicitly */
+    if ((*env)->PushLocalFrame(env, 8) == 0) {
+        logDebug(env, "invoking callback handler...");
+        jobHandleObject = wrapVixHandle(env, jobHandle);
+        moreEventInfoObject = (jobHandleObject == NULL ? NULL : wrapVixHandle(env, moreEventInfo));
+        if (moreEventInfoObject != NULL) {
+            (*env)->CallVoidMethod(env, ccd->eventProc, vixEventProcCallbackMethodId,
+              jobHandleObject, (jint) eventType, moreEventInfoObject, ccd->clientData);
+        }
+        if ((*env)->ExceptionCheck(env)) {
+            /* there's no java caller to receive this */
+            (*env)->ExceptionDescribe(env);
+            (*env)->ExceptionClear(env);
+        }
+        (*env)->PopLocalFrame(env, NULL);
+    } else {
+        (*env)->ExceptionClear(env);
+    }
+    if (eventType == VIX_EVENTTYPE_JOB_COMPLETED) {
+        /* no further events will be delivered for this job */
+        completeClientData(env, ccd);
+    }
+}
+
+/******************************************************************************************
+ ** JNI FUNCTIONS
+ **/
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixHost_Connect
+ * Signature: (IILjava/lang/String;ILjava/lang/String;Ljava/lang/String;ILnet/sf/jvix/VixHandle;Lnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixHost_1Connect
+  (JNIEnv *env, jclass clazz, jint apiVersion, jint hostType, jstring hostName,
+   jint hostPort, jstring userName, jstring password, jint options,
    jobject propertyListHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixHost_Connect begin");
-    if ((*env)->ExceptionOccurred(env)) { return; }
+    if ((*env)->ExceptionCheck(env)) { return NULL; }
+    CombinedClientData *ccd = getCombinedClientData(env, NULL, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
 
     char *hostNameChars = (char *) 0 ;
     char *userNameChars = (char *) 0 ;
@@ -444,9 +2587,7 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixHost_1Connect
     if (userName) { userNameChars = (char*) (*env)->GetStringUTFChars(env, userName, 0); }
     if (password) { passwordChars = (char*) (*env)->GetStringUTFChars(env, password, 0); }
 
-    /* this memory needs to be reclaimed at a later point, but I'm going to ignore that as well */
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-	VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+	VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixHost_Connect(
       (int) apiVersion,
       (VixServiceProvider) hostType,
@@ -463,96 +2604,352 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixHost_1Connect
     if (userName) { (*env)->ReleaseStringUTFChars(env, userName, (const char *) userNameChars); }
     if (password) { (*env)->ReleaseStringUTFChars(env, password, (const char *) passwordChars); }
 
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixHost_Connect end");
     return methodResult;
 }
 
-
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixVM_Open
+ * Signature: (Lnet/sf/jvix/VixHandle;Ljava/lang/String;Lnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1Open
+  (JNIEnv *env, jclass clazz, jobject hostHandle, jstring vmxFilePathName, jobject callbackProc, jobject clientData)
+{
+    logDebug(env, "VixVM_Open begin");
+    CombinedClientData *ccd = getCombinedClientData(env, hostHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    char *vmxFilePathNameChars = (char *) 0 ;
+
+    if (vmxFilePathName) { vmxFilePathNameChars = (char*) (*env)->GetStringUTFChars(env, vmxFilePathName, 0); } 
+    /* printf("path is %s\n", vmxFilePathNameChars); } */
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
+    VixHandle result = (VixHandle) VixVM_Open (
+      unwrapVixHandle(env, hostHandle),
+      vmxFilePathNameChars,
+      callback,
+      (void*) ccd);
+    if (vmxFilePathName) { (*env)->ReleaseStringUTFChars(env, vmxFilePathName, (const char *) vmxFilePathNameChars); }
+    /* printf("result=%d\n", result); */
+    if (result != VIX_INVALID_HANDLE) {
+        /* the VM handle returned by the job belongs to this host; see recordPropertyHosts() */
+        lockMutex(&clientDataMutex);
+        recordHandleHost(result, unwrapVixHandle(env, hostHandle));
+        unlockMutex(&clientDataMutex);
+    }
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
+    logDebug(env, "VixVM_Open end");
+    return methodResult;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixVM_PowerOff
+ * Signature: (Lnet/sf/jvix/VixHandle;ILnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1PowerOff
+  (JNIEnv *env, jclass clazz, jobject vmHandle, jint powerOffOptions, jobject callbackProc, jobject clientData)
+{
+    logDebug(env, "VixVM_PowerOff begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
+    VixHandle result = (VixHandle) VixVM_PowerOff (
+      unwrapVixHandle(env, vmHandle),
+      (VixVMPowerOpOptions) powerOffOptions,
+      callback,
+      (void*) ccd);
+
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
+    logDebug(env, "VixVM_PowerOff end");
+    return methodResult;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixVM_PowerOn
+ * Signature: (Lnet/sf/jvix/VixHandle;ILnet/sf/jvix/VixHandle;Lnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1PowerOn
+  (JNIEnv *env, jclass clazz, jobject vmHandle, jint powerOpOptions, jobject propertyListHandle, jobject callbackProc, jobject clientData)
+{
+    logDebug(env, "VixVM_PowerOn begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
+    VixHandle result = (VixHandle) VixVM_PowerOn (
+      unwrapVixHandle(env, vmHandle),
+      (VixVMPowerOpOptions) powerOpOptions,
+      unwrapVixHandle(env, propertyListHandle),
+      callback,
+      (void*) ccd);
+
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
+    logDebug(env, "VixVM_PowerOn end");
+    return methodResult;
+}
+
+/** Retrieves a single VIX_PROPERTYTYPE_BLOB property from a handle. The type of the
+ * property is checked first, since the VIX API will write a size and a pointer into
+ * the locations supplied regardless of the actual property type.
+ *
+ * @param env pointer to the JNI environment
+ * @param apiCall the name of the calling function, for debug logging
+ * @param getter PROPERTY_GETTER_GET_PROPERTIES or PROPERTY_GETTER_GET_NTH_PROPERTIES
+ * @param handle the handle to retrieve the property from
+ * @param index the index of the result (if getter is PROPERTY_GETTER_GET_NTH_PROPERTIES)
+ * @param propId the property to retrieve
+ *
+ * @returns a net.sf.jvix.VixBlob object, or NULL if an exception has been thrown
+ */
+static jobject getBlobProperty(JNIEnv *env, char *apiCall, int getter, VixHandle handle, int index, VixPropertyID propId) {
+    VixPropertyType propType;
+    Blob blobValue;
+    VixError error;
+
+    blobValue.size = 0;
+    blobValue.value = NULL;
+    error = Vix_GetPropertyType(handle, propId, &propType);
+    if (error == VIX_OK && propType != VIX_PROPERTYTYPE_BLOB) {
+        logDebug(env, "%s: propId %d has type %d, not VIX_PROPERTYTYPE_BLOB", apiCall, propId, propType);
+        error = VIX_E_TYPE_MISMATCH;
+    }
+    if (error == VIX_OK) {
+        if (getter == PROPERTY_GETTER_GET_NTH_PROPERTIES) {
+            error = VixJob_GetNthProperties(handle, index, propId, &blobValue.size, &blobValue.value, VIX_PROPERTY_NONE);
+        } else {
+            error = Vix_GetProperties(handle, propId, &blobValue.size, &blobValue.value, VIX_PROPERTY_NONE);
+        }
+    }
+    if (error != VIX_OK) {
+        logDebug(env, "%s has thrown an exception", apiCall);
+        throwVixException(env, error);
+        return NULL;
+    }
+    logDebug(env, "%s: Returning blob property of %d bytes", apiCall, blobValue.size);
+    return createBlob(env, blobValue);
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Vix_GetBlobProperty
+ * Signature: (Lnet/sf/jvix/VixHandle;I)Lnet/sf/jvix/VixBlob;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_Vix_1GetBlobProperty
+  (JNIEnv *env, jclass clazz, jobject handleObject, jint propertyId)
+{
+    logDebug(env, "Vix_GetBlobProperty begin");
+    return getBlobProperty(env, "Vix_GetBlobProperty", PROPERTY_GETTER_GET_PROPERTIES,
+      unwrapVixHandle(env, handleObject), 0, (VixPropertyID) propertyId);
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixJob_GetNthBlobProperty
+ * Signature: (Lnet/sf/jvix/VixHandle;II)Lnet/sf/jvix/VixBlob;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1GetNthBlobProperty
+  (JNIEnv *env, jclass clazz, jobject jobHandleObject, jint index, jint propertyId)
+{
+    logDebug(env, "VixJob_GetNthBlobProperty begin");
+    return getBlobProperty(env, "VixJob_GetNthBlobProperty", PROPERTY_GETTER_GET_NTH_PROPERTIES,
+      unwrapVixHandle(env, jobHandleObject), (int) index, (VixPropertyID) propertyId);
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_FreeBlob
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1FreeBlob
+  (JNIEnv *env, jclass clazz, jlong address)
+{
+    Vix_FreeBuffer((void *) (size_t) address);
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixVM_CaptureScreenImage
+ * Signature: (Lnet/sf/jvix/VixHandle;ILnet/sf/jvix/VixHandle;Lnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CaptureScreenImage
+  (JNIEnv *env, jclass clazz, jobject vmHandle, jint captureType, jobject additionalProperties, jobject callbackProc, jobject clientData)
+{
+    logDebug(env, "VixVM_CaptureScreenImage begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
+    VixHandle result = (VixHandle) VixVM_CaptureScreenImage (
+      unwrapVixHandle(env, vmHandle),
+      (int) captureType,
+      unwrapVixHandle(env, additionalProperties),
+      callback,
+      (void*) ccd);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
+    logDebug(env, "VixVM_CaptureScreenImage end");
+    return methodResult;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_ReleaseHandle
+ * Signature: (Lnet/sf/jvix/VixHandle;)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1ReleaseHandle
+  (JNIEnv *env, jclass clazz, jobject handle)
+{
+    logDebug(env, "Vix_ReleaseHandle begin");
+    VixHandle vixHandle = unwrapVixHandle(env, handle);
+    releaseClientData(vixHandle);
+    Vix_ReleaseHandle(vixHandle);
+    logDebug(env, "Vix_ReleaseHandle end");
+
+};
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_AddRefHandle
+ * Signature: (Lnet/sf/jvix/VixHandle;)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1AddRefHandle
+  (JNIEnv *env, jclass clazz, jobject handle)
+{
+    logDebug(env, "Vix_AddRefHandle begin");
+    VixHandle vixHandle = unwrapVixHandle(env, handle);
+    Vix_AddRefHandle(vixHandle);
+    logDebug(env, "Vix_AddRefHandle end");
+};
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_ReleaseHandles
+ * Signature: ([II)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1ReleaseHandles
+  (JNIEnv *env, jclass clazz, jintArray handleValues, jint count)
+{
+    jint values[STACK_PROPERTIES];
+    jint offset, chunk;
+    int i;
+
+    logDebug(env, "Vix_ReleaseHandles begin");
+    if (handleValues == NULL) {
+        throwNullPointerException(env, "null handleValues");
+        return;
+    }
+    if (count < 0 || count > (*env)->GetArrayLength(env, handleValues)) {
+        throwVixException(env, VIX_E_INVALID_ARG);
+        return;
+    }
+    /* raw handle values are copied in fixed-size chunks, so no memory is allocated */
+    for (offset = 0; offset < count; offset += chunk) {
+        chunk = (count - offset < STACK_PROPERTIES ? count - offset : STACK_PROPERTIES);
+        (*env)->GetIntArrayRegion(env, handleValues, offset, chunk, values);
+        for (i = 0; i < chunk; i++) {
+            if (values[i] != VIX_INVALID_HANDLE) {
+                releaseClientData((VixHandle) values[i]);
+                Vix_ReleaseHandle((VixHandle) values[i]);
+            }
+        }
+    }
+    logDebug(env, "Vix_ReleaseHandles end");
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Vix_PumpEvents
+ * Signature: (Lnet/sf/jvix/VixHandle;I)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Vix_1PumpEvents
+  (JNIEnv *env, jclass clazz, jobject handle, jint options)
+{
+    logDebug(env, "Vix_PumpEvents begin");
+    Vix_PumpEvents(unwrapVixHandle(env, handle), (VixPumpEventsOptions) options);
+    logDebug(env, "Vix_PumpEvents end");
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_PumpEvents
+ * Signature: (II)I
+ */
+JNIEXPORT jint JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1PumpEvents
+  (JNIEnv *env, jclass clazz, jint hostHandle, jint options)
+{
+    /* called continuously by VixEventPump, so nothing is logged or allocated here. Events
+     * are delivered on the pumping thread, so only the events this call delivers are counted. */
+    unsigned int deliveredEvents = 0;
+    unsigned int *outerCounter = getPumpEventCounter();
+    setPumpEventCounter(&deliveredEvents);
+    Vix_PumpEvents((VixHandle) hostHandle, (VixPumpEventsOptions) options);
+    setPumpEventCounter(outerCounter);
+    if (outerCounter != NULL) {
+        /* events pumped from within a callback also count towards the enclosing pump */
+        *outerCounter += deliveredEvents;
+    }
+    return (jint) deliveredEvents;
+}
+
 /*
  * Class:     net_sf_jvix_VixWrapper
- * Method:    VixVM_Open
- * Signature: (Lnet/sf/jvix/VixHandle;Ljava/lang/String;Lnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+ * Method:    Jvix_IsCallbackThread
+ * Signature: ()Z
  */
-JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1Open
-  (JNIEnv *env, jclass clazz, jobject hostHandle, jstring vmxFilePathName, jobject callbackProc, jobject clientData)
+JNIEXPORT jboolean JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1IsCallbackThread
+  (JNIEnv *env, jclass clazz)
 {
-    logDebug(env, "VixVM_Open begin");
-    char *vmxFilePathNameChars = (char *) 0 ;
-
-    if (vmxFilePathName) { vmxFilePathNameChars = (char*) (*env)->GetStringUTFChars(env, vmxFilePathName, 0); } 
-    /* printf("path is %s\n", vmxFilePathNameChars); } */
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
-    VixHandle result = (VixHandle) VixVM_Open (
-      unwrapVixHandle(env, hostHandle),
-      vmxFilePathNameChars,
-      callback,
-      (void*) ccd);
-    if (vmxFilePathName) { (*env)->ReleaseStringUTFChars(env, vmxFilePathName, (const char *) vmxFilePathNameChars); }
-    /* printf("result=%d\n", result); */
-    jobject methodResult = wrapVixHandle(env, result);
-    logDebug(env, "VixVM_Open end");
-    return methodResult;
+    /* only threads attached by getCallbackEnv() have a callback thread env */
+    return (getCallbackThreadEnv() != NULL ? JNI_TRUE : JNI_FALSE);
 }
 
 /*
  * Class:     net_sf_jvix_VixWrapper
- * Method:    VixVM_PowerOff
- * Signature: (Lnet/sf/jvix/VixHandle;ILnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+ * Method:    Jvix_WaitForPendingJob
+ * Signature: (IJ)Z
  */
-JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1PowerOff
-  (JNIEnv *env, jclass clazz, jobject vmHandle, jint powerOffOptions, jobject callbackProc, jobject clientData)
+JNIEXPORT jboolean JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1WaitForPendingJob
+  (JNIEnv *env, jclass clazz, jint hostHandle, jlong timeoutMillis)
 {
-    logDebug(env, "VixVM_PowerOff begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
-    VixHandle result = (VixHandle) VixVM_PowerOff (
-      unwrapVixHandle(env, vmHandle),
-      (VixVMPowerOpOptions) powerOffOptions,
-      callback,
-      (void*) ccd);
-
-    jobject methodResult = wrapVixHandle(env, result);
-    logDebug(env, "VixVM_PowerOff end");
-    return methodResult;
+    jboolean pending;
+    lockMutex(&jobCompletionMutex);
+    atomicIncrement(&pendingJobWaiters);
+    if (getPendingJobCount((VixHandle) hostHandle) <= 0 && timeoutMillis > 0) {
+        /* woken when a job is created on any host */
+        waitCondition(&pendingJobCondition, &jobCompletionMutex, timeoutMillis);
+    }
+    atomicDecrement(&pendingJobWaiters);
+    pending = (getPendingJobCount((VixHandle) hostHandle) > 0 ? JNI_TRUE : JNI_FALSE);
+    unlockMutex(&jobCompletionMutex);
+    return pending;
 }
 
 /*
  * Class:     net_sf_jvix_VixWrapper
- * Method:    VixVM_PowerOn
- * Signature: (Lnet/sf/jvix/VixHandle;ILnet/sf/jvix/VixHandle;Lnet/sf/jvix/VixEventProc;Ljava/lang/Object;)Lnet/sf/jvix/VixHandle;
+ * Method:    Jvix_GetPendingJobCount
+ * Signature: (I)I
  */
-JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1PowerOn
-  (JNIEnv *env, jclass clazz, jobject vmHandle, jint powerOpOptions, jobject propertyListHandle, jobject callbackProc, jobject clientData)
+JNIEXPORT jint JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1GetPendingJobCount
+  (JNIEnv *env, jclass clazz, jint hostHandle)
 {
-    logDebug(env, "VixVM_PowerOn begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
-    VixHandle result = (VixHandle) VixVM_PowerOn (
-      unwrapVixHandle(env, vmHandle),
-      (VixVMPowerOpOptions) powerOpOptions,
-      unwrapVixHandle(env, propertyListHandle),
-      callback,
-      (void*) ccd);
-
-    jobject methodResult = wrapVixHandle(env, result);
-    logDebug(env, "VixVM_PowerOn end");
-    return methodResult;
+    return (jint) getPendingJobCount((VixHandle) hostHandle);
 }
 
 /*
  * Class:     net_sf_jvix_VixWrapper
- * Method:    Vix_ReleaseHandle
- * Signature: (Lnet/sf/jvix/VixHandle;)V
+ * Method:    Vix_GetHandleType
+ * Signature: (Lnet/sf/jvix/VixHandle;)I
  */
-JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Vix_1ReleaseHandle
+JNIEXPORT jint JNICALL Java_net_sf_jvix_VixWrapper_Vix_1GetHandleType
   (JNIEnv *env, jclass clazz, jobject handle)
 {
-    logDebug(env, "Vix_ReleaseHandle begin");
-    Vix_ReleaseHandle (unwrapVixHandle(env, handle));
-    logDebug(env, "Vix_ReleaseHandle end");
-
+    return (jint) Vix_GetHandleType(unwrapVixHandle(env, handle));
 };
 
 
@@ -561,116 +2958,130 @@ JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Vix_1ReleaseHandle
  * Method:    VixJob_Wait
  * Signature: (Lnet/sf/jvix/VixHandle;Ljava/util/List;)Ljava/util/List;
  */
-JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1Wait
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1Wait__Lnet_sf_jvix_VixHandle_2Ljava_util_List_2
   (JNIEnv *env, jclass clazz, jobject jobHandleObject, jobject propertyIds)
 {
-    char dbgBuffer[100];
-    int  i;
-    VixError  error;
-    VixHandle jobHandle;
-    
     logDebug(env, "VixJob_Wait begin");
-		
-	// since this is a varargs call, I'm going to have to code up versions of these depending
-	// on the size of the list passed in to this method. Which is annoying. Would have been
-	// nice if we'd been supplied a vprintf()-style version.
-		
-	jobHandle = unwrapVixHandle(env, jobHandleObject);
-		
-    // @TODO we should verify that the class here is what we expect
-    jclass listClass = (*env)->GetObjectClass(env, propertyIds);
-    jmethodID sizeMethodId = (*env)->GetMethodID(env, listClass, "size" , "()I");
-    jint size = (*env)->CallIntMethod(env, propertyIds, sizeMethodId);
-    VixPropertyID   propIds[6];
-    VixPropertyType propTypes[6];
-    PropertyResult  props[6];
-
-    snprintf(dbgBuffer, 100, "size of list passed to VixJob_Wait: %d; jobHandle=%d", size, jobHandle);
-    logDebug(env, dbgBuffer);
-
-    if (size > 6) {
-    	  logDebug(env, "VixJob_Wait thrown exception");
-    	  throwVixException(env, VIX_E_JNI_TOO_MANY_PROPERTIES);
-        return NULL;
-    }
-    for (i = 0; i < size; i++) {
-    	propIds[i] = getListItem(env, propertyIds, i);
-    	error = Vix_GetPropertyType(jobHandle, propIds[i], &propTypes[i]);
-	    if (error!=VIX_OK) {
-			snprintf(dbgBuffer, 100, "VixJob_Wait has thrown exception determining propertyType for propId %d\n", i);	    
-    		logDebug(env, dbgBuffer);
-    	  	throwVixException(env, error);
-        	return NULL;
-        }
-    }
-    switch (size) {
-    	  case 0:
-    	  	error = VixJob_Wait(jobHandle, VIX_PROPERTY_NONE);
-    	  	break;
-    	  	
-    	  case 1:
-    	  	error = VixJob_Wait(jobHandle, propIds[0], &props[0],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 2:
-    	  	error = VixJob_Wait(jobHandle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 3:
-    	  	error = VixJob_Wait(jobHandle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 4:
-    	  	error = VixJob_Wait(jobHandle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 5:
-    	  	error = VixJob_Wait(jobHandle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  propIds[4], &props[4],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 6:
-    	  	error = VixJob_Wait(jobHandle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  propIds[4], &props[4],
-    	  	  propIds[5], &props[5],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-    }
-    snprintf(dbgBuffer, 80, "VixJob_Wait invoked returnCode=%d", (int) error);
-    logDebug(env, dbgBuffer);
+    return getPropertyList(env, "VixJob_Wait", PROPERTY_GETTER_JOB_WAIT,
+      unwrapVixHandle(env, jobHandleObject), 0, propertyIds);
+}
 
-    if (error!=VIX_OK) {
-    	logDebug(env, "VixJob_Wait has thrown an exception");
-    	throwVixException(env, error);
-        return NULL;
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixJob_Wait
+ * Signature: (Lnet/sf/jvix/VixHandle;Lnet/sf/jvix/PropertyResultBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1Wait__Lnet_sf_jvix_VixHandle_2Lnet_sf_jvix_PropertyResultBuffer_2
+  (JNIEnv *env, jclass clazz, jobject jobHandleObject, jobject buffer)
+{
+    logDebug(env, "VixJob_Wait begin");
+    getPropertyBuffer(env, "VixJob_Wait", PROPERTY_GETTER_JOB_WAIT,
+      unwrapVixHandle(env, jobHandleObject), 0, buffer);
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_WaitAndRelease
+ * Signature: (Lnet/sf/jvix/VixHandle;Lnet/sf/jvix/PropertyResultBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1WaitAndRelease
+  (JNIEnv *env, jclass clazz, jobject jobHandleObject, jobject buffer)
+{
+    VixHandle jobHandle = unwrapVixHandle(env, jobHandleObject);
+    logDebug(env, "VixJob_WaitAndRelease begin");
+    getPropertyBuffer(env, "VixJob_WaitAndRelease", PROPERTY_GETTER_JOB_WAIT, jobHandle, 0, buffer);
+    /* the handle is released even if an exception is pending */
+    releaseClientData(jobHandle);
+    Vix_ReleaseHandle(jobHandle);
+}
 
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_WaitAndReleaseTable
+ * Signature: (Lnet/sf/jvix/VixHandle;[IZ)Lnet/sf/jvix/PropertyTable;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1WaitAndReleaseTable
+  (JNIEnv *env, jclass clazz, jobject jobHandleObject, jintArray propertyIds, jboolean rawStrings)
+{
+    VixHandle jobHandle = unwrapVixHandle(env, jobHandleObject);
+    jobject result = NULL;
+    VixError error;
+    logDebug(env, "VixJob_WaitAndReleaseTable begin");
+    error = VixJob_Wait(jobHandle, VIX_PROPERTY_NONE);
+    if (error != VIX_OK) {
+        logDebug(env, "VixJob_WaitAndReleaseTable has thrown an exception");
+        throwVixException(env, error);
     } else {
-        jobject resultList = createPropertyList(env, "VixJob_Wait", size, propTypes, props);
-        // return resultList;
-        if (resultList == NULL) {
-        	logDebug(env, "VixJob_Wait has thrown an exception");
+        result = getPropertyTable(env, "VixJob_WaitAndReleaseTable", jobHandle, propertyIds, rawStrings);
+    }
+    releaseClientData(jobHandle);
+    Vix_ReleaseHandle(jobHandle);
+    return result;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_WaitJobs
+ * Signature: ([Lnet/sf/jvix/VixHandle;[JJZ)I
+ */
+JNIEXPORT jint JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1WaitJobs
+  (JNIEnv *env, jclass clazz, jobjectArray jobHandleArray, jlongArray completedArray, jlong timeoutMillis, jboolean waitAll)
+{
+    VixHandle stackHandles[STACK_PROPERTIES];
+    VixHandle *jobHandles = stackHandles;
+    jlong *completed = NULL;
+    jobject handleObject;
+    jsize count, words;
+    int completedCount = 0;
+    VixError error;
+    int i;
+
+    logDebug(env, "VixJob_WaitJobs begin");
+    if (jobHandleArray == NULL || completedArray == NULL) {
+        throwNullPointerException(env, "null jobHandles or completed array");
+        return 0;
+    }
+    count = (*env)->GetArrayLength(env, jobHandleArray);
+    words = (count + 63) / 64;
+    if ((*env)->GetArrayLength(env, completedArray) < words) {
+        throwVixException(env, VIX_E_INVALID_ARG);
+        return 0;
+    }
+    if (count > STACK_PROPERTIES) {
+        jobHandles = (VixHandle *) malloc(count * sizeof(VixHandle));
+    }
+    completed = (jlong *) malloc((words == 0 ? 1 : words) * sizeof(jlong));
+    if (jobHandles == NULL || completed == NULL) {
+        throwVixException(env, VIX_E_OUT_OF_MEMORY);
+        goto cleanup;
+    }
+    for (i = 0; i < count; i++) {
+        handleObject = (*env)->GetObjectArrayElement(env, jobHandleArray, i);
+        if ((*env)->ExceptionCheck(env)) {
+            goto cleanup;
+        } else if (handleObject == NULL) {
+            jobHandles[i] = VIX_INVALID_HANDLE;
         } else {
-        	logDebug(env, "VixJob_Wait end");
+            jobHandles[i] = unwrapVixHandle(env, handleObject);
+            (*env)->DeleteLocalRef(env, handleObject);
         }
-        return resultList;
     }
+    (*env)->GetLongArrayRegion(env, completedArray, 0, words, completed);
+
+    /* no JNI calls are made while waiting, so this thread never blocks the garbage collector */
+    error = waitForJobs(jobHandles, count, completed, timeoutMillis, waitAll, &completedCount);
+    if (error != VIX_OK) {
+        logDebug(env, "VixJob_WaitJobs has thrown an exception");
+        throwVixException(env, error);
+    } else {
+        (*env)->SetLongArrayRegion(env, completedArray, 0, words, completed);
+        logDebug(env, "VixJob_WaitJobs end");
+    }
+
+cleanup:
+    if (jobHandles != stackHandles && jobHandles != NULL) { free(jobHandles); }
+    if (completed != NULL) { free(completed); }
+    return (jint) completedCount;
 }
 
 
@@ -683,15 +3094,17 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VM_1KillProcessInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jlong pid, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_KillProcessInGuest begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_KillProcessInGuest (
       unwrapVixHandle(env, vmHandle),
       (uint64) pid,
       (int) options,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_KillProcessInGuest end");
     return methodResult;	
 }
@@ -719,7 +3132,7 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixSnapshot_1GetChild
     	  throwVixException(env, error);
         return NULL;
     } else {
-        jobject methodResult = wrapVixHandle(env, childSnapshotHandle);
+        jobject methodResult = acquireVixHandle(env, childSnapshotHandle);
         logDebug(env, "VixSnapshot_GetChild end");
 	    return methodResult;
 	}
@@ -768,7 +3181,7 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixSnapshot_1GetParent
     	throwVixException(env, error);
         return NULL;
     } else {
-        jobject methodResult = wrapVixHandle(env, parentSnapshotHandle);
+        jobject methodResult = acquireVixHandle(env, parentSnapshotHandle);
 		logDebug(env, "VixSnapshot_GetParent end");
 		return methodResult;
 	}
@@ -783,11 +3196,12 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1AddSharedFolder
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring shareName, jstring hostPathName, jint flags, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_AddSharedFolder begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *shareNameChars = 0, *hostPathNameChars = 0;
     if (shareName) { shareNameChars = (char*) (*env)->GetStringUTFChars(env, shareName, 0); }
   	if (hostPathName) { hostPathNameChars = (char*) (*env)->GetStringUTFChars(env, hostPathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_AddSharedFolder (
       unwrapVixHandle(env, vmHandle),
       shareNameChars,
@@ -797,7 +3211,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1AddSharedFolder
       (void*) ccd);
     if (shareName) { (*env)->ReleaseStringUTFChars(env, shareName, (const char *) shareNameChars); }
     if (hostPathName) { (*env)->ReleaseStringUTFChars(env, hostPathName, (const char *) hostPathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_AddSharedFolder end");
     return methodResult;	
 }
@@ -814,10 +3229,11 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CopyFileFromGuestTo
 {
 		char *guestPathNameChars = 0, *hostPathNameChars = 0;
     logDebug(env, "VixVM_CopyFileFromGuestToHost begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     if (guestPathName) { guestPathNameChars = (char*) (*env)->GetStringUTFChars(env, guestPathName, 0); }
   	if (hostPathName) { hostPathNameChars = (char*) (*env)->GetStringUTFChars(env, hostPathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_CopyFileFromGuestToHost (
       unwrapVixHandle(env, vmHandle),
       guestPathNameChars,
@@ -828,7 +3244,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CopyFileFromGuestTo
       (void*) ccd);
     if (guestPathName) { (*env)->ReleaseStringUTFChars(env, guestPathName, (const char *) guestPathNameChars); }
     if (hostPathName) { (*env)->ReleaseStringUTFChars(env, hostPathName, (const char *) hostPathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_CopyFileFromGuestToHost end");
     return methodResult;	
 }
@@ -843,12 +3260,13 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CopyFileFromHostToG
    jint options, jobject propertyListHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_CopyFileFromHostToGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *hostPathNameChars = 0, *guestPathNameChars = 0;
     if (hostPathName) { hostPathNameChars = (char*) (*env)->GetStringUTFChars(env, hostPathName, 0); }
     if (guestPathName) { guestPathNameChars = (char*) (*env)->GetStringUTFChars(env, guestPathName, 0); }
   	
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_CopyFileFromHostToGuest (
       unwrapVixHandle(env, vmHandle),
       hostPathNameChars,
@@ -860,7 +3278,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CopyFileFromHostToG
 
     if (hostPathName) { (*env)->ReleaseStringUTFChars(env, hostPathName, (const char *) hostPathNameChars); }
     if (guestPathName) { (*env)->ReleaseStringUTFChars(env, guestPathName, (const char *) guestPathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_CopyFileFromHostToGuest end");
     return methodResult;		
 }
@@ -874,12 +3293,13 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CreateSnapshot
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring name, jstring description, jint options, jobject propertyListHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_CreateSnapshot begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *nameChars = 0, *descriptionChars = 0;
     if (name) { nameChars = (char*) (*env)->GetStringUTFChars(env, name, 0); }
     if (description) { descriptionChars = (char*) (*env)->GetStringUTFChars(env, description, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
-    VixHandle result = (VixHandle) VixVM_CopyFileFromGuestToHost (
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
+    VixHandle result = (VixHandle) VixVM_CreateSnapshot (
       unwrapVixHandle(env, vmHandle),
       nameChars,
       descriptionChars,
@@ -890,7 +3310,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CreateSnapshot
 
     if (name) { (*env)->ReleaseStringUTFChars(env, name, (const char *) nameChars); }
     if (description) { (*env)->ReleaseStringUTFChars(env, description, (const char *) descriptionChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_CreateSnapshot end");
     return methodResult;		
 }
@@ -904,15 +3325,17 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1EnableSharedFolders
   (JNIEnv *env, jclass clazz, jobject vmHandle, jboolean enabled, jint option, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_EnableSharedFolders begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_EnableSharedFolders (
       unwrapVixHandle(env, vmHandle),
       (int) enabled,
       (int) option,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_EnableSharedFolders end");
     return methodResult;
 }
@@ -935,7 +3358,7 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1GetCurrentSnapshot
    	    throwVixException(env, error);
         return NULL;
     } else {
-	    jobject methodResult = wrapVixHandle(env, snapshotHandle);
+	    jobject methodResult = acquireVixHandle(env, snapshotHandle);
         logDebug(env, "VixVM_GetCurrentSnapshot end");
 	    return methodResult;		
     }
@@ -963,7 +3386,7 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1GetNamedSnapshot
     	throwVixException(env, error);
         return NULL;
     } else {
-	    jobject methodResult = wrapVixHandle(env, snapshotHandle);
+	    jobject methodResult = acquireVixHandle(env, snapshotHandle);
         logDebug(env, "VixVM_GetNamedSnapshot end");
 		return methodResult;
     }
@@ -1012,7 +3435,7 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1GetRootSnapshot
     	throwVixException(env, error);
         return NULL;
     } else {
-	    jobject methodResult = wrapVixHandle(env, snapshotHandle);
+	    jobject methodResult = acquireVixHandle(env, snapshotHandle);
         logDebug(env, "VixVM_GetRootSnapshot end");
 		return methodResult;
     }
@@ -1027,15 +3450,17 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1ListProcessesInGues
   (JNIEnv *env, jclass clazz, jobject vmHandle, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_ListProcessesInGuest begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_ListProcessesInGuest (
       unwrapVixHandle(env, vmHandle),
       (int) options,
       callback,
       (void*) ccd);
 
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_ListProcessesInGuest end");
     return methodResult;		
 }
@@ -1049,11 +3474,12 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1LoginInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring username, jstring password, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_LoginInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *usernameChars = 0, *passwordChars = 0;
     if (username) { usernameChars = (char*) (*env)->GetStringUTFChars(env, username, 0); }
   	if (password) { passwordChars = (char*) (*env)->GetStringUTFChars(env, password, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_LoginInGuest (
       unwrapVixHandle(env, vmHandle),
       usernameChars,
@@ -1063,7 +3489,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1LoginInGuest
       (void*) ccd);
     if (username) { (*env)->ReleaseStringUTFChars(env, username, (const char *) usernameChars); }
    	if (password) { (*env)->ReleaseStringUTFChars(env, password, (const char *) passwordChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
    	logDebug(env, "VixVM_LoginInGuest end");
     return methodResult;		
 }
@@ -1077,13 +3504,15 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1LogoutFromGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_LogoutFromGuest begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_LogoutFromGuest (
       unwrapVixHandle(env, vmHandle),
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_LogoutFromGuest end");
     return methodResult;		
 }
@@ -1097,10 +3526,11 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1OpenUrlInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring url, jint windowState, jobject propertyListHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_OpenUrlInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *urlChars = 0;
     if (url) { urlChars = (char*) (*env)->GetStringUTFChars(env, url, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_OpenUrlInGuest (
       unwrapVixHandle(env, vmHandle),
       urlChars,
@@ -1109,7 +3539,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1OpenUrlInGuest
       callback,
       (void*) ccd);
     if (url) { (*env)->ReleaseStringUTFChars(env, url, (const char *) urlChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_OpenUrlInGuest end");
     return methodResult;		
 }
@@ -1124,8 +3555,9 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RevertToSnapshot
   (JNIEnv *env, jclass clazz, jobject vmHandle, jobject snapshotHandle, jint options, jobject propertyListHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_RevertToSnapshot begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_RevertToSnapshot (
       unwrapVixHandle(env, vmHandle),
       unwrapVixHandle(env, snapshotHandle),
@@ -1133,7 +3565,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RevertToSnapshot
       unwrapVixHandle(env, propertyListHandle),
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_RevertToSnapshot end");
     return methodResult;		
 }
@@ -1148,12 +3581,13 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RunProgramInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring guestProgramName, jstring commandLineArgs, jint options, jobject propertyListHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_RunProgramInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *guestProgramNameChars = 0, *commandLineArgsChars = 0;
     if (guestProgramName) { guestProgramNameChars = (char*) (*env)->GetStringUTFChars(env, guestProgramName, 0); }
     if (commandLineArgs) { commandLineArgsChars = (char*) (*env)->GetStringUTFChars(env, commandLineArgs, 0); }
 
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_RunProgramInGuest (
       unwrapVixHandle(env, vmHandle),
       guestProgramNameChars,
@@ -1164,7 +3598,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RunProgramInGuest
       (void*) ccd);
     if (guestProgramName) { (*env)->ReleaseStringUTFChars(env, guestProgramName, (const char *) guestProgramNameChars); }
     if (commandLineArgs) { (*env)->ReleaseStringUTFChars(env, commandLineArgs, (const char *) commandLineArgsChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_RunProgramInGuest end");
     return methodResult;		
 }
@@ -1178,13 +3613,14 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RunScriptInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring interpreter, jstring scriptText, jint options, jobject propertyListHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_RunScriptInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *interpreterChars = 0, *scriptTextChars = 0;
     if (interpreter) { interpreterChars = (char*) (*env)->GetStringUTFChars(env, interpreter, 0); }
     if (scriptText) { scriptTextChars = (char*) (*env)->GetStringUTFChars(env, scriptText, 0); }
 
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
-    VixHandle result = (VixHandle) VixVM_RunProgramInGuest (
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
+    VixHandle result = (VixHandle) VixVM_RunScriptInGuest (
       unwrapVixHandle(env, vmHandle),
       interpreterChars,
       scriptTextChars,
@@ -1194,7 +3630,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RunScriptInGuest
       (void*) ccd);
     if (interpreter) { (*env)->ReleaseStringUTFChars(env, interpreter, (const char *) interpreterChars); }
     if (scriptText) { (*env)->ReleaseStringUTFChars(env, scriptText, (const char *) scriptTextChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_RunScriptInGuest end");
     return methodResult;		
 }
@@ -1208,14 +3645,16 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1WaitForToolsInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jint timeout, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_WaitForToolsInGuest begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_WaitForToolsInGuest (
       unwrapVixHandle(env, vmHandle),
       (int) timeout,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_WaitForToolsInGuest end");
     return methodResult;		
 }
@@ -1244,7 +3683,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixHost_1FindItems
    jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixHost_FindItems begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
+    CombinedClientData *ccd = getCombinedClientData(env, hostHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixHost_FindItems (
       unwrapVixHandle(env, hostHandle),
@@ -1253,7 +3693,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixHost_1FindItems
       (int) timeout,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixHost_FindItems end");
     return methodResult;		
 }
@@ -1267,17 +3708,19 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixHost_1RegisterVM
   (JNIEnv *env, jclass clazz, jobject hostHandle, jstring vmxFilePath, jobject callbackProc, jobject clientData) 
 {
     logDebug(env, "VixHost_RegisterVM begin");
+    CombinedClientData *ccd = getCombinedClientData(env, hostHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *vmxFilePathChars = 0;
     if (vmxFilePath) { vmxFilePathChars = (char*) (*env)->GetStringUTFChars(env, vmxFilePath, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixHost_RegisterVM (
       unwrapVixHandle(env, hostHandle),
       vmxFilePathChars, 
       callback,
       (void*) ccd);
     if (vmxFilePath) { (*env)->ReleaseStringUTFChars(env, vmxFilePath, (const char *) vmxFilePathChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixHost_RegisterVM end");
     return methodResult;		
 }
@@ -1291,17 +3734,19 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixHost_1UnregisterVM
   (JNIEnv *env, jclass clazz, jobject hostHandle, jstring vmxFilePath, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixHost_UnregisterVM begin");
+    CombinedClientData *ccd = getCombinedClientData(env, hostHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *vmxFilePathChars = 0;
     if (vmxFilePath) { vmxFilePathChars = (char*) (*env)->GetStringUTFChars(env, vmxFilePath, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixHost_UnregisterVM (
       unwrapVixHandle(env, hostHandle),
       vmxFilePathChars, 
       callback,
       (void*) ccd);
     if (vmxFilePath) { (*env)->ReleaseStringUTFChars(env, vmxFilePath, (const char *) vmxFilePathChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixHost_UnregisterVM end");
     return methodResult;		
 }
@@ -1341,10 +3786,11 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CreateDirectoryInGu
   jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_CreateDirectoryInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *pathNameChars = 0;
     if (pathName) { pathNameChars = (char*) (*env)->GetStringUTFChars(env, pathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_CreateDirectoryInGuest (
       unwrapVixHandle(env, vmHandle),
       pathNameChars, 
@@ -1352,7 +3798,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CreateDirectoryInGu
       callback,
       (void*) ccd);
     if (pathName) { (*env)->ReleaseStringUTFChars(env, pathName, (const char *) pathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_CreateDirectoryInGuest end");
     return methodResult;		
 }
@@ -1367,15 +3814,17 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1CreateTempFileInGue
    jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_CreateTempFileInGuest begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_CreateTempFileInGuest (
       unwrapVixHandle(env, vmHandle),
       (int) options, 
       unwrapVixHandle(env, propertyListHandle),
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_CreateTempFileInGuest end");
     return methodResult;		
 }
@@ -1389,14 +3838,16 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1Delete
   (JNIEnv *env, jclass clazz, jobject vmHandle, jint deleteOptions, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_Delete begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_Delete (
       unwrapVixHandle(env, vmHandle),
       (int) deleteOptions, 
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_Delete end");
     return methodResult;		
 }
@@ -1410,10 +3861,11 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1DeleteDirectoryInGu
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring pathName, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_DeleteDirectoryInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *pathNameChars = 0;
     if (pathName) { pathNameChars = (char*) (*env)->GetStringUTFChars(env, pathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_DeleteDirectoryInGuest (
       unwrapVixHandle(env, vmHandle),
       pathNameChars,
@@ -1421,7 +3873,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1DeleteDirectoryInGu
       callback,
       (void*) ccd);
     if (pathName) { (*env)->ReleaseStringUTFChars(env, pathName, (const char *) pathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_DeleteDirectoryInGuest end");
     return methodResult;		
 }  
@@ -1435,17 +3888,19 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1DeleteFileInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring guestPathName, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_DeleteFileInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *guestPathNameChars = 0;
     if (guestPathName) { guestPathNameChars = (char*) (*env)->GetStringUTFChars(env, guestPathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_DeleteFileInGuest (
       unwrapVixHandle(env, vmHandle),
       guestPathNameChars,
       callback,
       (void*) ccd);
     if (guestPathName) { (*env)->ReleaseStringUTFChars(env, guestPathName, (const char *) guestPathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_DeleteFileInGuest end");
     return methodResult;		
 }
@@ -1460,17 +3915,19 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1DirectoryExistsInGu
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring pathName, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_DirectoryExistsInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *pathNameChars = 0;
     if (pathName) { pathNameChars = (char*) (*env)->GetStringUTFChars(env, pathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_DirectoryExistsInGuest (
       unwrapVixHandle(env, vmHandle),
       pathNameChars,
       callback,
       (void*) ccd);
     if (pathName) { (*env)->ReleaseStringUTFChars(env, pathName, (const char *) pathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_DirectoryExistsInGuest end");
     return methodResult;		
 }
@@ -1484,17 +3941,19 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1FileExistsInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring guestPathName, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_FileExistsInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *guestPathNameChars = 0;
     if (guestPathName) { guestPathNameChars = (char*) (*env)->GetStringUTFChars(env, guestPathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_FileExistsInGuest (
       unwrapVixHandle(env, vmHandle),
       guestPathNameChars,
       callback,
       (void*) ccd);
     if (guestPathName) { (*env)->ReleaseStringUTFChars(env, guestPathName, (const char *) guestPathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_FileExistsInGuest end");
     return methodResult;		
 }
@@ -1508,13 +3967,15 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1GetNumSharedFolders
   (JNIEnv *env, jclass clazz, jobject vmHandle, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_GetNumSharedFolders begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_GetNumSharedFolders (
       unwrapVixHandle(env, vmHandle),
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_GetNumSharedFolders end");
     return methodResult;		
 }
@@ -1529,10 +3990,11 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1InstallTools
    jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_InstallTools begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *commandLineArgsChars = 0;
     if (commandLineArgs) { commandLineArgsChars = (char*) (*env)->GetStringUTFChars(env, commandLineArgs, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_InstallTools (
       unwrapVixHandle(env, vmHandle),
       (int) options,
@@ -1540,7 +4002,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1InstallTools
       callback,
       (void*) ccd);
     if (commandLineArgs) { (*env)->ReleaseStringUTFChars(env, commandLineArgs, (const char *) commandLineArgsChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_InstallTools end");
     return methodResult;		
 }
@@ -1554,15 +4017,17 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1KillProcessInGuest
   (JNIEnv *env, jclass clazz, jobject vmHandle, jlong pid, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_KillProcessInGuest begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_KillProcessInGuest (
       unwrapVixHandle(env, vmHandle),
       (uint64) pid,
       (int) options,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_KillProcessInGuest end");
     return methodResult;		
 }
@@ -1576,10 +4041,11 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1ListDirectoryInGues
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring pathName, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_ListDirectoryInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *pathNameChars = 0;
     if (pathName) { pathNameChars = (char*) (*env)->GetStringUTFChars(env, pathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_ListDirectoryInGuest (
       unwrapVixHandle(env, vmHandle),
       pathNameChars,
@@ -1587,7 +4053,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1ListDirectoryInGues
       callback,
       (void*) ccd);
     if (pathNameChars) { (*env)->ReleaseStringUTFChars(env, pathName, (const char *) pathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_ListDirectoryInGuest end");
     return methodResult;		
 }
@@ -1601,10 +4068,11 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RemoveSharedFolder
   (JNIEnv *env, jclass clazz, jobject vmHandle, jstring pathName, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_RemoveSharedFolder begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *pathNameChars = 0;
     if (pathName) { pathNameChars = (char*) (*env)->GetStringUTFChars(env, pathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_RemoveSharedFolder (
       unwrapVixHandle(env, vmHandle),
       pathNameChars,
@@ -1612,7 +4080,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RemoveSharedFolder
       callback,
       (void*) ccd);
     if (pathNameChars) { (*env)->ReleaseStringUTFChars(env, pathName, (const char *) pathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_RemoveSharedFolder end");
     return methodResult;		
 }
@@ -1626,15 +4095,17 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RemoveSnapshot
   (JNIEnv *env, jclass clazz, jobject vmHandle, jobject snapshotHandle, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_RemoveSnapshot begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_RemoveSnapshot (
       unwrapVixHandle(env, vmHandle),
       unwrapVixHandle(env, snapshotHandle),
       (int) options,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_RemoveSnapshot end");
     return methodResult;		
 }
@@ -1649,11 +4120,12 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RenameFileInGuest
   jobject propertyListHandle, jobject callbackProc, jobject clientData) 
 {
     logDebug(env, "VixVM_RenameFileInGuest begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *oldNameChars=0, *newNameChars=0;
     if (oldName) { oldNameChars = (char*) (*env)->GetStringUTFChars(env, oldName, 0); }
     if (newName) { newNameChars = (char*) (*env)->GetStringUTFChars(env, newName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_RenameFileInGuest (
       unwrapVixHandle(env, vmHandle),
       oldNameChars,
@@ -1664,7 +4136,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1RenameFileInGuest
       (void*) ccd);
     if (oldNameChars) { (*env)->ReleaseStringUTFChars(env, oldName, (const char *) oldNameChars); }
     if (newNameChars) { (*env)->ReleaseStringUTFChars(env, newName, (const char *) newNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_RenameFileInGuest end");
     return methodResult;		
 }
@@ -1678,14 +4151,16 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1Reset
   (JNIEnv *env, jclass clazz, jobject vmHandle, jint powerOnOptions, jobject callbackProc, jobject clientData) 
 {
     logDebug(env, "VixVM_Reset begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_Reset (
       unwrapVixHandle(env, vmHandle),
       (int) powerOnOptions,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_Reset end");
     return methodResult;		
 }
@@ -1700,11 +4175,12 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1SetSharedFolderStat
   jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_SetSharedFolderState begin");
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
     char *shareNameChars = 0, *hostPathNameChars=0;
     if (shareName) { shareNameChars = (char*) (*env)->GetStringUTFChars(env, shareName, 0); }
     if (hostPathName) { hostPathNameChars = (char*) (*env)->GetStringUTFChars(env, hostPathName, 0); }
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_SetSharedFolderState (
       unwrapVixHandle(env, vmHandle),
       shareNameChars,
@@ -1714,7 +4190,8 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1SetSharedFolderStat
       (void*) ccd);
     if (shareNameChars) { (*env)->ReleaseStringUTFChars(env, shareName, (const char *) shareNameChars); }
     if (hostPathNameChars) { (*env)->ReleaseStringUTFChars(env, hostPathName, (const char *) hostPathNameChars); }
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_SetSharedFolderState end");
     return methodResult;		
 }
@@ -1728,14 +4205,16 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1Suspend
   (JNIEnv *env, jclass clazz, jobject vmHandle, jint powerOffOptions, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_Suspend begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_Suspend (
       unwrapVixHandle(env, vmHandle),
       (int) powerOffOptions,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_Suspend end");
     return methodResult;		
 }
@@ -1749,14 +4228,16 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1UpgradeVirtualHardw
   (JNIEnv *env, jclass clazz, jobject vmHandle, jint options, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_UpgradeVirtualHardware begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_UpgradeVirtualHardware (
       unwrapVixHandle(env, vmHandle),
       (int) options,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_UpgradeVirtualHardware end");
     return methodResult;		
 }
@@ -1785,108 +4266,35 @@ JNIEXPORT jint JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1GetNumProperties
 JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1GetNthProperties__Lnet_sf_jvix_VixHandle_2ILjava_util_List_2
   (JNIEnv *env, jclass clazz, jobject jobHandleObject, jint index, jobject propertyIds)
 {
-	char dbgBuffer[100];
-	int  i;
-	VixError error;
-
-	logDebug(env, "VixJob_GetNthProperties begin");
-	VixHandle jobHandle = unwrapVixHandle(env, jobHandleObject);
-		
-    // @TODO we should verify that the class here is what we expect
-    jclass listClass = (*env)->GetObjectClass(env, propertyIds);
-    jmethodID sizeMethodId = (*env)->GetMethodID(env, listClass, "size" , "()I");
-    jint size = (*env)->CallIntMethod(env, propertyIds, sizeMethodId);
-    VixPropertyID   propIds[6];
-    VixPropertyType propTypes[6];
-    PropertyResult  props[6];
-
-    snprintf(dbgBuffer, 100, "size of list passed to VixJob_GetNthProperties: %d; jobHandle=%d", size, jobHandle);
-    logDebug(env, dbgBuffer);
-
-    if (size > 6) {
-    	  logDebug(env, "VixJob_GetNthProperties thrown exception");
-    	  throwVixException(env, VIX_E_JNI_TOO_MANY_PROPERTIES);
-        return NULL;
-    }
-    for (i = 0; i < size; i++) {
-    	propIds[i] = getListItem(env, propertyIds, i);
-    	error = Vix_GetPropertyType(jobHandle, propIds[i], &propTypes[i]);
-	    if (error!=VIX_OK) {
-			snprintf(dbgBuffer, 100, "VixJob_GetNthProperties has thrown exception determining propertyType for propId %d\n", i);	    
-    		logDebug(env, dbgBuffer);
-    	  	throwVixException(env, error);
-        	return NULL;
-        }
-    }
-    switch (size) {
-    	  case 0:
-    	    // pointless, but we'll allow it
-    	  	error = VixJob_GetNthProperties(jobHandle, index, VIX_PROPERTY_NONE);
-    	  	break;
-    	  	
-    	  case 1:
-    	  	error = VixJob_GetNthProperties(jobHandle, index, propIds[0], &props[0],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 2:
-    	  	error = VixJob_GetNthProperties(jobHandle, index, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 3:
-    	  	error = VixJob_GetNthProperties(jobHandle, index, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 4:
-    	  	error = VixJob_GetNthProperties(jobHandle, index, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 5:
-    	  	error = VixJob_GetNthProperties(jobHandle, index, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  propIds[4], &props[4],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 6:
-    	  	error = VixJob_GetNthProperties(jobHandle, index, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  propIds[4], &props[4],
-    	  	  propIds[5], &props[5],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-    }
-    snprintf(dbgBuffer, 80, "VixJob_GetNthProperties invoked returnCode=%d", (int) error);
-    logDebug(env, dbgBuffer);
+    logDebug(env, "VixJob_GetNthProperties begin");
+    return getPropertyList(env, "VixJob_GetNthProperties", PROPERTY_GETTER_GET_NTH_PROPERTIES,
+      unwrapVixHandle(env, jobHandleObject), (int) index, propertyIds);
+}
 
-    if (error!=VIX_OK) {
-    	logDebug(env, "VixJob_GetNthProperties has thrown an exception");
-    	throwVixException(env, error);
-        return NULL;
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixJob_GetNthProperties
+ * Signature: (Lnet/sf/jvix/VixHandle;ILnet/sf/jvix/PropertyResultBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1GetNthProperties__Lnet_sf_jvix_VixHandle_2ILnet_sf_jvix_PropertyResultBuffer_2
+  (JNIEnv *env, jclass clazz, jobject jobHandleObject, jint index, jobject buffer)
+{
+    logDebug(env, "VixJob_GetNthProperties begin");
+    getPropertyBuffer(env, "VixJob_GetNthProperties", PROPERTY_GETTER_GET_NTH_PROPERTIES,
+      unwrapVixHandle(env, jobHandleObject), (int) index, buffer);
+}
 
-    } else {
-        jobject resultList = createPropertyList(env, "VixJob_GetNthProperties", size, propTypes, props);
-        // return resultList;
-        if (resultList == NULL) {
-        	logDebug(env, "VixJob_GetNthProperties has thrown an exception");
-        } else {
-        	logDebug(env, "VixJob_GetNthProperties end");
-        }
-        return resultList;
-    }
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    VixJob_GetAllNthProperties
+ * Signature: (Lnet/sf/jvix/VixHandle;[IZ)Lnet/sf/jvix/PropertyTable;
+ */
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1GetAllNthProperties
+  (JNIEnv *env, jclass clazz, jobject jobHandleObject, jintArray propertyIds, jboolean rawStrings)
+{
+    logDebug(env, "VixJob_GetAllNthProperties begin");
+    return getPropertyTable(env, "VixJob_GetAllNthProperties",
+      unwrapVixHandle(env, jobHandleObject), propertyIds, rawStrings);
 }
 
 /*
@@ -1894,111 +4302,25 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixJob_1GetNthProperties__
  * Method:    Vix_GetProperties
  * Signature: (Lnet/sf/jvix/VixHandle;Ljava/util/List;)Ljava/util/List;
  */
-JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_Vix_1GetProperties
+JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_Vix_1GetProperties__Lnet_sf_jvix_VixHandle_2Ljava_util_List_2
   (JNIEnv *env, jclass clazz, jobject handleObject, jobject propertyIds)
 {
-	char dbgBuffer[100];
-	int  i;
-	VixError error;
-
-	logDebug(env, "Vix_GetProperties begin");
-	VixHandle handle = unwrapVixHandle(env, handleObject);
-		
-    // @TODO we should verify that the class here is what we expect
-    jclass listClass = (*env)->GetObjectClass(env, propertyIds);
-    jmethodID sizeMethodId = (*env)->GetMethodID(env, listClass, "size" , "()I");
-    jint size = (*env)->CallIntMethod(env, propertyIds, sizeMethodId);
-    VixPropertyID   propIds[6];
-    VixPropertyType propTypes[6];
-    PropertyResult  props[6];
-
-    snprintf(dbgBuffer, 100, "size of list passed to Vix_GetProperties: %d; handle=%d", size, handle);
-    logDebug(env, dbgBuffer);
-
-    if (size > 6) {
-    	  logDebug(env, "Vix_GetProperties has thrown an exception");
-    	  throwVixException(env, VIX_E_JNI_TOO_MANY_PROPERTIES);
-        return NULL;
-    }
-    for (i = 0; i < size; i++) {
-    	propIds[i] = getListItem(env, propertyIds, i);
-    	error = Vix_GetPropertyType(handle, propIds[i], &propTypes[i]);
-	    if (error!=VIX_OK) {
-			snprintf(dbgBuffer, 100, "Vix_GetProperties has thrown exception determining propertyType for propId %d\n", i);	    
-    		logDebug(env, dbgBuffer);
-    	  	throwVixException(env, error);
-        	return NULL;
-        }
-    }
-    switch (size) {
-    	  case 0:
-    	    // pointless, but we'll allow it
-    	  	error = Vix_GetProperties(handle, VIX_PROPERTY_NONE);
-    	  	break;
-    	  	
-    	  case 1:
-    	  	error = Vix_GetProperties(handle, propIds[0], &props[0],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 2:
-    	  	error = Vix_GetProperties(handle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 3:
-    	  	error = Vix_GetProperties(handle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 4:
-    	  	error = Vix_GetProperties(handle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 5:
-    	  	error = Vix_GetProperties(handle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  propIds[4], &props[4],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-
-    	  case 6:
-    	  	error = Vix_GetProperties(handle, propIds[0], &props[0],
-    	  	  propIds[1], &props[1],
-    	  	  propIds[2], &props[2],
-    	  	  propIds[3], &props[3],
-    	  	  propIds[4], &props[4],
-    	  	  propIds[5], &props[5],
-    	  	  VIX_PROPERTY_NONE);
-    	  	break;
-    }
-    snprintf(dbgBuffer, 80, "VixJob_GetProperties invoked returnCode=%d", (int) error);
-    logDebug(env, dbgBuffer);
-
-    if (error!=VIX_OK) {
-    	logDebug(env, "VixJob_GetProperties has thrown an exception");
-    	throwVixException(env, error);
-        return NULL;
+    logDebug(env, "Vix_GetProperties begin");
+    return getPropertyList(env, "Vix_GetProperties", PROPERTY_GETTER_GET_PROPERTIES,
+      unwrapVixHandle(env, handleObject), 0, propertyIds);
+}
 
-    } else {
-        jobject resultList = createPropertyList(env, "VixJob_GetProperties", size, propTypes, props);
-        // return resultList;
-        if (resultList == NULL) {
-        	logDebug(env, "VixJob_GetProperties has thrown an exception");
-        } else {
-        	logDebug(env, "VixJob_GetProperties end");
-        }
-        return resultList;
-    }
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Vix_GetProperties
+ * Signature: (Lnet/sf/jvix/VixHandle;Lnet/sf/jvix/PropertyResultBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Vix_1GetProperties__Lnet_sf_jvix_VixHandle_2Lnet_sf_jvix_PropertyResultBuffer_2
+  (JNIEnv *env, jclass clazz, jobject handleObject, jobject buffer)
+{
+    logDebug(env, "Vix_GetProperties begin");
+    getPropertyBuffer(env, "Vix_GetProperties", PROPERTY_GETTER_GET_PROPERTIES,
+      unwrapVixHandle(env, handleObject), 0, buffer);
 }
 
 
@@ -2011,15 +4333,265 @@ JNIEXPORT jobject JNICALL Java_net_sf_jvix_VixWrapper_VixVM_1GetSharedFolderStat
   (JNIEnv *env, jclass clazz, jobject vmHandle, jint index, jobject callbackProc, jobject clientData)
 {
     logDebug(env, "VixVM_GetSharedFolderState begin");
-    CombinedClientData *ccd = getCombinedClientData(env, callbackProc, clientData);
-    VixEventProc *callback = (ccd==NULL ? NULL : *(VixEventProc **) &defaultCallback);
+    CombinedClientData *ccd = getCombinedClientData(env, vmHandle, callbackProc, clientData);
+    if (ccd == NULL && callbackProc != NULL) { return NULL; }
+    VixEventProc *callback = (ccd==NULL ? NULL : defaultCallback);
     VixHandle result = (VixHandle) VixVM_GetSharedFolderState (
       unwrapVixHandle(env, vmHandle),
       (int) index,
       callback,
       (void*) ccd);
-    jobject methodResult = wrapVixHandle(env, result);
+    registerClientData(env, ccd, result);
+    jobject methodResult = acquireVixHandle(env, result);
     logDebug(env, "VixVM_GetSharedFolderState end");
     return methodResult;		
 }
 
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_SetLogMode
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1SetLogMode
+  (JNIEnv *env, jclass clazz, jint logMode)
+{
+    if (logMode != JVIX_LOG_TRACE && logMode != JVIX_LOG_DEBUG) {
+        logMode = JVIX_LOG_NONE;
+    }
+    nativeLogMode = (int) logMode;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_DrainTrace
+ * Signature: ([J[Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1DrainTrace
+  (JNIEnv *env, jclass clazz, jlongArray timestamps, jobjectArray messages)
+{
+    /* only a single thread may call this at a time (enforced on the Java side) */
+    char text[TRACE_MESSAGE_LENGTH];
+    jint max = (*env)->GetArrayLength(env, messages);
+    jint count = 0;
+    while (count < max) {
+        unsigned int tail = traceTail;
+        TraceRecord *record = &traceRing[tail & (TRACE_RING_SIZE - 1)];
+        jlong timestamp;
+        jstring message;
+        if (atomicGet(&record->sequence) != tail + 1) {
+            break;   /* not yet published */
+        }
+        formatTraceMessage(record, text, TRACE_MESSAGE_LENGTH);
+        timestamp = record->timestamp;
+        atomicSet(&traceTail, tail + 1);
+
+        message = (*env)->NewStringUTF(env, text);
+        if (message == NULL) { return count; }  /* OutOfMemoryError pending */
+        (*env)->SetObjectArrayElement(env, messages, count, message);
+        (*env)->DeleteLocalRef(env, message);
+        (*env)->SetLongArrayRegion(env, timestamps, count, 1, &timestamp);
+        count++;
+    }
+    return count;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_GetTraceDropCount
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1GetTraceDropCount
+  (JNIEnv *env, jclass clazz)
+{
+    return (jlong) traceDropCount;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_GetClientDataCount
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1GetClientDataCount
+  (JNIEnv *env, jclass clazz)
+{
+    jint count;
+    lockMutex(&clientDataMutex);
+    count = clientDataLiveCount;
+    unlockMutex(&clientDataMutex);
+    return count;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_SetEventQueue
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1SetEventQueue
+  (JNIEnv *env, jclass clazz, jobject buffer)
+{
+    char *address;
+    jlong capacity;
+    unsigned int size;
+
+    /* stop queueing events, and wait for any threads still writing to the old queue */
+    atomicSet(&eventQueueEnabled, 0);
+    while (eventQueueProducers != 0) {
+        yieldThread();
+    }
+    if (buffer == NULL) {
+        return;
+    }
+
+    address = (char *) (*env)->GetDirectBufferAddress(env, buffer);
+    capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    size = (unsigned int) ((capacity - EVENT_QUEUE_HEADER_SIZE) / sizeof(EventRecord));
+    if (address == NULL || capacity <= EVENT_QUEUE_HEADER_SIZE || (size & (size - 1)) != 0) {
+        throwVixException(env, VIX_E_INVALID_ARG);
+        return;
+    }
+    eventQueue.head = (volatile unsigned int *) (address + EVENT_QUEUE_HEAD_OFFSET);
+    eventQueue.waitCount = (volatile unsigned int *) (address + EVENT_QUEUE_WAIT_OFFSET);
+    eventQueue.tail = (volatile unsigned int *) (address + EVENT_QUEUE_TAIL_OFFSET);
+    eventQueue.records = (EventRecord *) (address + EVENT_QUEUE_HEADER_SIZE);
+    eventQueue.size = size;
+    logDebug(env, "event queue enabled with %d records", (int) size);
+    atomicSet(&eventQueueEnabled, 1);
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_DrainEvents
+ * Signature: (Ljava/nio/ByteBuffer;[I[I[I[I[J)I
+ */
+JNIEXPORT jint JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1DrainEvents
+  (JNIEnv *env, jclass clazz, jobject buffer, jintArray jobHandleArray, jintArray eventTypeArray,
+   jintArray moreEventInfoArray, jintArray slotIdArray, jlongArray timestampArray)
+{
+    /* only the dispatcher's drain thread calls this, so there is a single consumer */
+    jint jobHandles[EVENT_DRAIN_BATCH_SIZE];
+    jint eventTypes[EVENT_DRAIN_BATCH_SIZE];
+    jint moreEventInfos[EVENT_DRAIN_BATCH_SIZE];
+    jint slotIds[EVENT_DRAIN_BATCH_SIZE];
+    jlong timestamps[EVENT_DRAIN_BATCH_SIZE];
+    char *address = (char *) (*env)->GetDirectBufferAddress(env, buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    volatile unsigned int *tailCounter;
+    EventRecord *records;
+    EventRecord *record;
+    unsigned int size, tail;
+    jint max = EVENT_DRAIN_BATCH_SIZE;
+    jint count = 0;
+
+    if (address == NULL || capacity <= EVENT_QUEUE_HEADER_SIZE) {
+        throwNullPointerException(env, "buffer is not an event queue");
+        return 0;
+    }
+    if ((*env)->GetArrayLength(env, jobHandleArray) < max) { max = (*env)->GetArrayLength(env, jobHandleArray); }
+    if ((*env)->GetArrayLength(env, eventTypeArray) < max) { max = (*env)->GetArrayLength(env, eventTypeArray); }
+    if ((*env)->GetArrayLength(env, moreEventInfoArray) < max) { max = (*env)->GetArrayLength(env, moreEventInfoArray); }
+    if ((*env)->GetArrayLength(env, slotIdArray) < max) { max = (*env)->GetArrayLength(env, slotIdArray); }
+    if ((*env)->GetArrayLength(env, timestampArray) < max) { max = (*env)->GetArrayLength(env, timestampArray); }
+
+    /* this is the dispatcher's own buffer, which may no longer be eventQueue once it is shut down */
+    tailCounter = (volatile unsigned int *) (address + EVENT_QUEUE_TAIL_OFFSET);
+    records = (EventRecord *) (address + EVENT_QUEUE_HEADER_SIZE);
+    size = (unsigned int) ((capacity - EVENT_QUEUE_HEADER_SIZE) / sizeof(EventRecord));
+    tail = *tailCounter;
+    while (count < max) {
+        record = &records[tail & (size - 1)];
+        if (atomicGet(&record->sequence) != tail + 1) {
+            break;   /* not yet published */
+        }
+        jobHandles[count] = record->jobHandle;
+        eventTypes[count] = record->eventType;
+        moreEventInfos[count] = record->moreEventInfo;
+        slotIds[count] = record->slotId;
+        timestamps[count] = record->timestamp;
+        tail++;
+        count++;
+    }
+    if (count > 0) {
+        /* the records may be overwritten as soon as the tail has moved past them */
+        atomicSet(tailCounter, tail);
+        (*env)->SetIntArrayRegion(env, jobHandleArray, 0, count, jobHandles);
+        (*env)->SetIntArrayRegion(env, eventTypeArray, 0, count, eventTypes);
+        (*env)->SetIntArrayRegion(env, moreEventInfoArray, 0, count, moreEventInfos);
+        (*env)->SetIntArrayRegion(env, slotIdArray, 0, count, slotIds);
+        (*env)->SetLongArrayRegion(env, timestampArray, 0, count, timestamps);
+    }
+    return count;
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_ResolveEventSlots
+ * Signature: ([I[II[Ljava/lang/Object;[Ljava/lang/Object;)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1ResolveEventSlots
+  (JNIEnv *env, jclass clazz, jintArray slotIdArray, jintArray eventTypeArray, jint count,
+   jobjectArray eventProcs, jobjectArray clientDatas)
+{
+    jint *slotIds;
+    jint *eventTypes;
+    CombinedClientData *ccd;
+    int i;
+
+    if (count < 0 || count > (*env)->GetArrayLength(env, slotIdArray) ||
+      count > (*env)->GetArrayLength(env, eventTypeArray) ||
+      count > (*env)->GetArrayLength(env, eventProcs) ||
+      count > (*env)->GetArrayLength(env, clientDatas))
+    {
+        throwArrayIndexOutOfBoundsException(env, "count exceeds array length");
+        return;
+    }
+    slotIds = (*env)->GetIntArrayElements(env, slotIdArray, NULL);
+    eventTypes = (*env)->GetIntArrayElements(env, eventTypeArray, NULL);
+    if (slotIds == NULL || eventTypes == NULL) {
+        if (slotIds != NULL) { (*env)->ReleaseIntArrayElements(env, slotIdArray, slotIds, JNI_ABORT); }
+        return;  /* OutOfMemoryError pending */
+    }
+    lockMutex(&clientDataMutex);
+    for (i = 0; i < count; i++) {
+        ccd = lookupClientData(slotIds[i]);
+        if (ccd == NULL) {
+            continue;
+        }
+        /* the arrays now hold strong references, so the global references can be
+         * deleted once the job has completed */
+        (*env)->SetObjectArrayElement(env, eventProcs, i, ccd->eventProc);
+        (*env)->SetObjectArrayElement(env, clientDatas, i, ccd->clientData);
+        if (eventTypes[i] == VIX_EVENTTYPE_JOB_COMPLETED) {
+            deleteClientDataReferences(env, ccd);
+            releaseClientDataReference(ccd);
+        }
+    }
+    unlockMutex(&clientDataMutex);
+    (*env)->ReleaseIntArrayElements(env, slotIdArray, slotIds, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, eventTypeArray, eventTypes, JNI_ABORT);
+}
+
+/*
+ * Class:     net_sf_jvix_VixWrapper
+ * Method:    Jvix_ReleaseEventHandles
+ * Signature: ([II)V
+ */
+JNIEXPORT void JNICALL Java_net_sf_jvix_VixWrapper_Jvix_1ReleaseEventHandles
+  (JNIEnv *env, jclass clazz, jintArray handleArray, jint count)
+{
+    jint *handles;
+    int i;
+    if (count < 0 || count > (*env)->GetArrayLength(env, handleArray)) {
+        throwArrayIndexOutOfBoundsException(env, "count exceeds array length");
+        return;
+    }
+    handles = (*env)->GetIntArrayElements(env, handleArray, NULL);
+    if (handles == NULL) {
+        return;  /* OutOfMemoryError pending */
+    }
+    /* these are the references added by enqueueEvent(), so aren't passed to releaseClientData() */
+    for (i = 0; i < count; i++) {
+        Vix_ReleaseHandle((VixHandle) handles[i]);
+    }
+    (*env)->ReleaseIntArrayElements(env, handleArray, handles, JNI_ABORT);
+}
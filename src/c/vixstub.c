@@ -0,0 +1,995 @@
+/** A stub implementation of the VIX API, used to test the JNI wrapper without
+ * VMware installed.
+ *
+ * This library implements each of the vix.h functions called by VixWrapper.c, and
+ * is linked in place of the VIX libraries (see the buildVixStubLinux64 target in
+ * build.xml). Jobs complete on a separate thread, as they do in the real library, and
+ * invoke their callbackProc if one was supplied. Every property is generated from
+ * the handle and result index it is requested for, so that jobs can return very large
+ * numbers of results without using any memory:
+ *
+ * <ul>
+ * <li>VixVM_ListDirectoryInGuest returns one result per file; if the path name ends in a
+ *   number (e.g. "/stub/100000") that many files are returned, otherwise
+ *   STUB_DEFAULT_ROWS. File i is named "file[i]", and is a directory if i is odd.
+ * <li>VixVM_ListProcessesInGuest returns STUB_DEFAULT_ROWS processes; process i is named
+ *   "process[i]", with a process ID of 1000 + i.
+ * <li>VixHost_FindItems returns STUB_DEFAULT_ROWS items, named "/stub/vm[i].vmx".
+ * <li>VixVM_CaptureScreenImage returns a VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA blob of
+ *   STUB_SCREEN_IMAGE_SIZE bytes, in which byte i has the value (i & 0xFF).
+ * <li>A job completes with VIX_E_FAIL if the call which created it was passed a string
+ *   argument of "fail", and completes after a delay of n milliseconds if it was passed
+ *   "sleep:n"; a delayed job raises STUB_PROGRESS_STEPS VIX_EVENTTYPE_JOB_PROGRESS
+ *   events before it completes.
+ * <li>While any host is connected with VIX_HOSTOPTION_USE_EVENT_PUMP, callbacks for every
+ *   job are queued rather than invoked, and are invoked by the next thread to call
+ *   Vix_PumpEvents (whichever host handle it passes).
+ * </ul>
+ *
+ * The stub is only built on posix systems, since it uses pthreads.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdarg.h>
+#include <unistd.h>
+#include <pthread.h>
+
+#include "vix.h"
+
+/* number of results returned by list and find jobs, unless specified otherwise */
+#define STUB_DEFAULT_ROWS 5
+
+/* number of VIX_EVENTTYPE_JOB_PROGRESS events raised by a delayed job */
+#define STUB_PROGRESS_STEPS 4
+
+/* size of the blob returned by VixVM_CaptureScreenImage */
+#define STUB_SCREEN_IMAGE_SIZE 100003
+
+/* number of handle slots allocated at a time */
+#define STUB_HANDLE_INCREMENT 1024
+
+/* the kinds of results a job can return */
+#define STUB_ROWS_NONE       0
+#define STUB_ROWS_FILES      1
+#define STUB_ROWS_PROCESSES  2
+#define STUB_ROWS_ITEMS      3
+
+typedef struct {
+    VixHandleType type;
+    int           refCount;
+    int           complete;
+    VixError      error;
+    int           rowKind;          /* one of the STUB_ROWS_* constants */
+    int           rowCount;
+    int           failRow;          /* if non-zero, the first result which cannot be retrieved */
+    VixHandle     rowHandle;        /* VIX_PROPERTY_JOB_RESULT_HANDLE of each result; not referenced by the job */
+    VixHandle     resultHandle;     /* VIX_PROPERTY_JOB_RESULT_HANDLE, if set */
+    const char   *name;             /* ITEM_NAME (jobs), VMX_PATHNAME (VMs), DISPLAYNAME (snapshots) */
+    VixEventProc *callbackProc;
+    void         *clientData;
+    int           pumpMode;         /* hosts connected with VIX_HOSTOPTION_USE_EVENT_PUMP */
+    int           delayMillis;      /* time before a job completes */
+    int           blobSize;         /* size of SCREEN_IMAGE_DATA, for screen capture jobs */
+} StubHandle;
+
+/* a callback waiting to be invoked by Vix_PumpEvents */
+typedef struct StubEvent {
+    VixEventProc     *callbackProc;
+    VixHandle         jobHandle;
+    VixEventType      eventType;
+    VixHandle         moreEventInfo;
+    void             *clientData;
+    struct StubEvent *next;
+} StubEvent;
+
+/* the value of a single property; the size of a blob property is held in intValue */
+typedef struct {
+    VixPropertyType type;
+    int             intValue;
+    int64           int64Value;
+    VixHandle       handleValue;
+    char            stringValue[256];
+} StubValue;
+
+static pthread_mutex_t stubMutex = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t stubCondition = PTHREAD_COND_INITIALIZER;
+static StubHandle **stubHandles = NULL;
+static int stubHandleCapacity = 0;
+static int stubNextHandle = 1;   /* handle values are never reused */
+
+static int stubPumpHosts = 0;     /* number of hosts connected in event pump mode */
+static StubEvent *stubEventHead = NULL;
+static StubEvent *stubEventTail = NULL;
+
+
+/******************************************************************************************
+ ** HANDLES
+ **/
+
+/** Allocates a new handle, with a single reference
+ *
+ * @param type the VIX_HANDLETYPE_* type of the handle
+ *
+ * @returns the new handle, or VIX_INVALID_HANDLE if memory could not be allocated
+ */
+static VixHandle newHandle(VixHandleType type) {
+    StubHandle *h;
+    StubHandle **newHandles;
+    VixHandle handle;
+
+    h = (StubHandle *) calloc(1, sizeof(StubHandle));
+    if (h == NULL) {
+        return VIX_INVALID_HANDLE;
+    }
+    h->type = type;
+    h->refCount = 1;
+    pthread_mutex_lock(&stubMutex);
+    if (stubNextHandle >= stubHandleCapacity) {
+        newHandles = (StubHandle **) realloc(stubHandles,
+          (stubHandleCapacity + STUB_HANDLE_INCREMENT) * sizeof(StubHandle *));
+        if (newHandles == NULL) {
+            pthread_mutex_unlock(&stubMutex);
+            free(h);
+            return VIX_INVALID_HANDLE;
+        }
+        memset(newHandles + stubHandleCapacity, 0, STUB_HANDLE_INCREMENT * sizeof(StubHandle *));
+        stubHandles = newHandles;
+        stubHandleCapacity += STUB_HANDLE_INCREMENT;
+    }
+    handle = stubNextHandle++;
+    stubHandles[handle] = h;
+    pthread_mutex_unlock(&stubMutex);
+    return handle;
+}
+
+/** Returns the structure for a handle. Must be called with stubMutex held.
+ *
+ * @param handle the handle
+ *
+ * @returns the structure, or NULL if the handle is invalid or has been released
+ */
+static StubHandle *getHandle(VixHandle handle) {
+    if (handle <= 0 || handle >= stubNextHandle) {
+        return NULL;
+    }
+    return stubHandles[handle];
+}
+
+void Vix_AddRefHandle(VixHandle handle) {
+    StubHandle *h;
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(handle);
+    if (h != NULL) {
+        h->refCount++;
+    }
+    pthread_mutex_unlock(&stubMutex);
+}
+
+void Vix_ReleaseHandle(VixHandle handle) {
+    StubHandle *h;
+    VixHandle resultHandle = VIX_INVALID_HANDLE;
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(handle);
+    if (h != NULL && --h->refCount == 0) {
+        resultHandle = h->resultHandle;
+        stubHandles[handle] = NULL;
+        free(h);
+    }
+    pthread_mutex_unlock(&stubMutex);
+    if (resultHandle != VIX_INVALID_HANDLE) {
+        Vix_ReleaseHandle(resultHandle);
+    }
+}
+
+VixHandleType Vix_GetHandleType(VixHandle handle) {
+    StubHandle *h;
+    VixHandleType type;
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(handle);
+    type = (h == NULL ? VIX_HANDLETYPE_NONE : h->type);
+    pthread_mutex_unlock(&stubMutex);
+    return type;
+}
+
+void Vix_FreeBuffer(void *p) {
+    free(p);
+}
+
+const char *Vix_GetErrorText(VixError err, const char *locale) {
+    return (err == VIX_OK ? "The operation was successful" : "Stub error");
+}
+
+/** Invokes a callback, or queues it for Vix_PumpEvents if any host is in event pump mode
+ *
+ * @param callbackProc the callback
+ * @param jobHandle the job handle
+ * @param eventType the event type
+ * @param moreEventInfo the event's additional handle, which is kept until the
+ *   callback has been invoked
+ * @param clientData the clientData passed to the VIX function
+ */
+static void deliverEvent(VixEventProc *callbackProc, VixHandle jobHandle, VixEventType eventType,
+  VixHandle moreEventInfo, void *clientData)
+{
+    StubEvent *event = NULL;
+    pthread_mutex_lock(&stubMutex);
+    if (stubPumpHosts > 0) {
+        event = (StubEvent *) calloc(1, sizeof(StubEvent));
+    }
+    if (event != NULL) {
+        event->callbackProc = callbackProc;
+        event->jobHandle = jobHandle;
+        event->eventType = eventType;
+        event->moreEventInfo = moreEventInfo;
+        event->clientData = clientData;
+        if (stubEventTail == NULL) {
+            stubEventHead = event;
+        } else {
+            stubEventTail->next = event;
+        }
+        stubEventTail = event;
+    }
+    pthread_mutex_unlock(&stubMutex);
+    if (event == NULL) {
+        callbackProc(jobHandle, eventType, moreEventInfo, clientData);
+    } else {
+        Vix_AddRefHandle(jobHandle);
+        if (moreEventInfo != VIX_INVALID_HANDLE) { Vix_AddRefHandle(moreEventInfo); }
+    }
+}
+
+void Vix_PumpEvents(VixHandle hostHandle, VixPumpEventsOptions options) {
+    StubEvent *event;
+    StubEvent *next;
+    pthread_mutex_lock(&stubMutex);
+    event = stubEventHead;
+    stubEventHead = NULL;
+    stubEventTail = NULL;
+    pthread_mutex_unlock(&stubMutex);
+    for (; event != NULL; event = next) {
+        next = event->next;
+        event->callbackProc(event->jobHandle, event->eventType, event->moreEventInfo, event->clientData);
+        Vix_ReleaseHandle(event->moreEventInfo);
+        Vix_ReleaseHandle(event->jobHandle);
+        free(event);
+    }
+}
+
+
+/******************************************************************************************
+ ** PROPERTIES
+ **/
+
+/** Generates the value of a property. Must be called with stubMutex held.
+ *
+ * @param h the handle to retrieve the property from
+ * @param row the index of the result to retrieve the property from, or -1 for
+ *   a property of the handle itself
+ * @param propertyID the property to retrieve
+ * @param value receives the property value
+ *
+ * @returns VIX_OK, or VIX_E_UNRECOGNIZED_PROPERTY if the handle doesn't have this property
+ */
+static VixError getStubProperty(StubHandle *h, int row, VixPropertyID propertyID, StubValue *value) {
+    memset(value, 0, sizeof(StubValue));
+    value->type = VIX_PROPERTYTYPE_INTEGER;
+    if (row >= 0 && h->rowKind == STUB_ROWS_FILES) {
+        switch (propertyID) {
+            case VIX_PROPERTY_JOB_RESULT_ITEM_NAME:
+                value->type = VIX_PROPERTYTYPE_STRING;
+                sprintf(value->stringValue, "file%d", row);
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_FILE_FLAGS:
+                value->intValue = (row % 2 == 1 ? VIX_FILE_ATTRIBUTES_DIRECTORY : 0);
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_HANDLE:
+                value->type = VIX_PROPERTYTYPE_HANDLE;
+                value->handleValue = h->rowHandle;
+                return VIX_OK;
+        }
+    } else if (row >= 0 && h->rowKind == STUB_ROWS_PROCESSES) {
+        switch (propertyID) {
+            case VIX_PROPERTY_JOB_RESULT_ITEM_NAME:
+                value->type = VIX_PROPERTYTYPE_STRING;
+                sprintf(value->stringValue, "process%d", row);
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_PROCESS_ID:
+                value->type = VIX_PROPERTYTYPE_INT64;
+                value->int64Value = 1000 + row;
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_PROCESS_OWNER:
+                value->type = VIX_PROPERTYTYPE_STRING;
+                strcpy(value->stringValue, "stub");
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_PROCESS_COMMAND:
+                value->type = VIX_PROPERTYTYPE_STRING;
+                sprintf(value->stringValue, "process%d --stub", row);
+                return VIX_OK;
+        }
+    } else if (row < 0) {
+        switch (propertyID) {
+            case VIX_PROPERTY_JOB_RESULT_ERROR_CODE:
+                value->intValue = (int) h->error;
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_HANDLE:
+                if (h->resultHandle == VIX_INVALID_HANDLE) { break; }
+                value->type = VIX_PROPERTYTYPE_HANDLE;
+                value->handleValue = h->resultHandle;
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_ITEM_NAME:
+            case VIX_PROPERTY_VM_VMX_PATHNAME:
+            case VIX_PROPERTY_SNAPSHOT_DISPLAYNAME:
+            case VIX_PROPERTY_FOUND_ITEM_LOCATION:
+                if (h->name == NULL) { break; }
+                value->type = VIX_PROPERTYTYPE_STRING;
+                strncpy(value->stringValue, h->name, sizeof(value->stringValue) - 1);
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_COMMAND_OUTPUT:
+            case VIX_PROPERTY_SNAPSHOT_DESCRIPTION:
+                value->type = VIX_PROPERTYTYPE_STRING;
+                strcpy(value->stringValue, "stub");
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_GUEST_OBJECT_EXISTS:
+            case VIX_PROPERTY_VM_IS_RUNNING:
+                value->type = VIX_PROPERTYTYPE_BOOL;
+                value->intValue = 1;
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_PROCESS_ID:
+                value->type = VIX_PROPERTYTYPE_INT64;
+                value->int64Value = 1000;
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA:
+                if (h->blobSize == 0) { break; }
+                value->type = VIX_PROPERTYTYPE_BLOB;
+                value->intValue = h->blobSize;
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_SIZE:
+                value->intValue = h->blobSize;
+                return VIX_OK;
+            case VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME:
+            case VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE:
+            case VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_COUNT:
+            case VIX_PROPERTY_VM_POWER_STATE:
+            case VIX_PROPERTY_HOST_HOSTTYPE:
+                return VIX_OK;
+        }
+    }
+    return VIX_E_UNRECOGNIZED_PROPERTY;
+}
+
+/** Copies property values into the varargs locations supplied by the caller. The
+ * arguments are consumed even if a property is not recognised, so that the
+ * remaining properties can be retrieved.
+ *
+ * @param handle the handle to retrieve the properties from
+ * @param row the result index, or -1 for properties of the handle itself
+ * @param firstPropertyID the first property to retrieve
+ * @param ap the remaining arguments
+ *
+ * @returns VIX_OK, or the first error encountered
+ */
+static VixError getStubProperties(VixHandle handle, int row, VixPropertyID firstPropertyID, va_list ap) {
+    StubHandle *h;
+    StubValue value;
+    VixPropertyID propertyID = firstPropertyID;
+    VixError result = VIX_OK;
+    VixError error;
+    unsigned char *blobData;
+    int i;
+
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(handle);
+    if (h == NULL) {
+        pthread_mutex_unlock(&stubMutex);
+        return VIX_E_INVALID_HANDLE;
+    }
+    if (row >= h->rowCount) {
+        pthread_mutex_unlock(&stubMutex);
+        return VIX_E_INVALID_ARG;
+    }
+    if (h->failRow > 0 && row >= h->failRow) {
+        pthread_mutex_unlock(&stubMutex);
+        return VIX_E_FAIL;
+    }
+    while (propertyID != VIX_PROPERTY_NONE) {
+        error = getStubProperty(h, row, propertyID, &value);
+        if (error != VIX_OK && result == VIX_OK) {
+            result = error;
+        }
+        switch (value.type) {
+            case VIX_PROPERTYTYPE_INTEGER:
+                *va_arg(ap, int *) = value.intValue;
+                break;
+            case VIX_PROPERTYTYPE_BOOL:
+                *va_arg(ap, Bool *) = (Bool) value.intValue;
+                break;
+            case VIX_PROPERTYTYPE_INT64:
+                *va_arg(ap, int64 *) = value.int64Value;
+                break;
+            case VIX_PROPERTYTYPE_HANDLE:
+                /* the caller receives a new reference to the handle */
+                *va_arg(ap, VixHandle *) = value.handleValue;
+                if (getHandle(value.handleValue) != NULL) { getHandle(value.handleValue)->refCount++; }
+                break;
+            case VIX_PROPERTYTYPE_STRING:
+                *va_arg(ap, char **) = (error == VIX_OK ? strdup(value.stringValue) : NULL);
+                break;
+            case VIX_PROPERTYTYPE_BLOB:
+                /* the caller releases the data with Vix_FreeBuffer */
+                blobData = (unsigned char *) malloc(value.intValue);
+                for (i = 0; blobData != NULL && i < value.intValue; i++) {
+                    blobData[i] = (unsigned char) (i & 0xFF);
+                }
+                *va_arg(ap, int *) = (blobData == NULL ? 0 : value.intValue);
+                *va_arg(ap, unsigned char **) = blobData;
+                if (blobData == NULL && result == VIX_OK) { result = VIX_E_OUT_OF_MEMORY; }
+                break;
+        }
+        propertyID = va_arg(ap, VixPropertyID);
+    }
+    pthread_mutex_unlock(&stubMutex);
+    return result;
+}
+
+VixError Vix_GetProperties(VixHandle handle, VixPropertyID firstPropertyID, ...) {
+    va_list ap;
+    VixError error;
+    va_start(ap, firstPropertyID);
+    error = getStubProperties(handle, -1, firstPropertyID, ap);
+    va_end(ap);
+    return error;
+}
+
+VixError Vix_GetPropertyType(VixHandle handle, VixPropertyID propertyID, VixPropertyType *propertyType) {
+    StubHandle *h;
+    StubValue value;
+    VixError error;
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(handle);
+    if (h == NULL) {
+        error = VIX_E_INVALID_HANDLE;
+    } else {
+        /* result properties have the same type in every result, so the first one is used */
+        error = getStubProperty(h, -1, propertyID, &value);
+        if (error != VIX_OK && h->rowCount > 0) {
+            error = getStubProperty(h, 0, propertyID, &value);
+        }
+        *propertyType = value.type;
+    }
+    pthread_mutex_unlock(&stubMutex);
+    return error;
+}
+
+
+/******************************************************************************************
+ ** JOBS
+ **/
+
+/** Completes a job; this is the start routine of the thread created by runJob()
+ *
+ * @param arg the job handle
+ */
+static void *completeJob(void *arg) {
+    VixHandle jobHandle = (VixHandle) (size_t) arg;
+    VixHandle itemHandle;
+    StubHandle *h;
+    VixEventProc *callbackProc;
+    void *clientData;
+    int rowKind, rowCount, delayMillis, i;
+    char itemName[64];
+
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(jobHandle);
+    callbackProc = h->callbackProc;
+    clientData = h->clientData;
+    rowKind = h->rowKind;
+    rowCount = h->rowCount;
+    delayMillis = h->delayMillis;
+    pthread_mutex_unlock(&stubMutex);
+
+    /* delayed jobs report their progress in STUB_PROGRESS_STEPS steps */
+    for (i = 0; delayMillis > 0 && i < STUB_PROGRESS_STEPS; i++) {
+        usleep(delayMillis * 1000 / STUB_PROGRESS_STEPS);
+        if (callbackProc != NULL) {
+            deliverEvent(callbackProc, jobHandle, VIX_EVENTTYPE_JOB_PROGRESS, VIX_INVALID_HANDLE, clientData);
+        }
+    }
+    if (rowKind == STUB_ROWS_ITEMS && callbackProc != NULL) {
+        for (i = 0; i < rowCount; i++) {
+            itemHandle = newHandle(VIX_HANDLETYPE_NONE);
+            sprintf(itemName, "/stub/vm%d.vmx", i);
+            pthread_mutex_lock(&stubMutex);
+            getHandle(itemHandle)->name = strdup(itemName);
+            pthread_mutex_unlock(&stubMutex);
+            deliverEvent(callbackProc, jobHandle, VIX_EVENTTYPE_FIND_ITEM, itemHandle, clientData);
+            Vix_ReleaseHandle(itemHandle);
+        }
+    }
+
+    pthread_mutex_lock(&stubMutex);
+    h->complete = 1;
+    pthread_cond_broadcast(&stubCondition);
+    pthread_mutex_unlock(&stubMutex);
+    if (callbackProc != NULL) {
+        deliverEvent(callbackProc, jobHandle, VIX_EVENTTYPE_JOB_COMPLETED, VIX_INVALID_HANDLE, clientData);
+    }
+    /* drop the reference held by this thread */
+    Vix_ReleaseHandle(jobHandle);
+    return NULL;
+}
+
+/** Creates a new job. The job is not completed until it is passed to runJob(), so
+ * that the caller can set any other fields of the job before then.
+ *
+ * @param callbackProc the callbackProc passed to the VIX function
+ * @param clientData the clientData passed to the VIX function
+ * @param rowKind one of the STUB_ROWS_* constants
+ * @param rowCount the number of results the job returns
+ * @param argument a string argument passed to the VIX function, or NULL; if this is
+ *   "fail", the job fails, and if it is "sleep:n", the job completes after n milliseconds
+ *
+ * @returns the job handle
+ */
+static VixHandle newJob(VixEventProc *callbackProc, void *clientData, int rowKind, int rowCount, const char *argument) {
+    VixHandle jobHandle = newHandle(VIX_HANDLETYPE_JOB);
+    StubHandle *h;
+
+    if (jobHandle == VIX_INVALID_HANDLE) {
+        return VIX_INVALID_HANDLE;
+    }
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(jobHandle);
+    h->callbackProc = callbackProc;
+    h->clientData = clientData;
+    h->rowKind = rowKind;
+    h->rowCount = rowCount;
+    h->error = (argument != NULL && strcmp(argument, "fail") == 0 ? VIX_E_FAIL : VIX_OK);
+    h->delayMillis = (argument != NULL && strncmp(argument, "sleep:", 6) == 0 ? atoi(argument + 6) : 0);
+    h->refCount++;   /* held by the completing thread */
+    pthread_mutex_unlock(&stubMutex);
+    return jobHandle;
+}
+
+/** Starts the thread which will complete a job created by newJob()
+ *
+ * @param jobHandle the job handle
+ *
+ * @returns the job handle
+ */
+static VixHandle runJob(VixHandle jobHandle) {
+    pthread_t thread;
+
+    if (jobHandle == VIX_INVALID_HANDLE) {
+        return VIX_INVALID_HANDLE;
+    }
+    if (pthread_create(&thread, NULL, completeJob, (void *) (size_t) jobHandle) != 0) {
+        completeJob((void *) (size_t) jobHandle);
+    } else {
+        pthread_detach(thread);
+    }
+    return jobHandle;
+}
+
+/** Creates a new job, and starts the thread which will complete it
+ *
+ * @param callbackProc the callbackProc passed to the VIX function
+ * @param clientData the clientData passed to the VIX function
+ * @param rowKind one of the STUB_ROWS_* constants
+ * @param rowCount the number of results the job returns
+ * @param argument a string argument passed to the VIX function, or NULL
+ *
+ * @returns the job handle
+ */
+static VixHandle startJob(VixEventProc *callbackProc, void *clientData, int rowKind, int rowCount, const char *argument) {
+    return runJob(newJob(callbackProc, clientData, rowKind, rowCount, argument));
+}
+
+/** Creates a job which returns a handle of the supplied type in its
+ * VIX_PROPERTY_JOB_RESULT_HANDLE property
+ *
+ * @param callbackProc the callbackProc passed to the VIX function
+ * @param clientData the clientData passed to the VIX function
+ * @param type the type of handle to return
+ * @param name the name of that handle
+ *
+ * @returns the job handle
+ */
+static VixHandle startHandleJob(VixEventProc *callbackProc, void *clientData, VixHandleType type, const char *name) {
+    VixHandle resultHandle = newHandle(type);
+    VixHandle jobHandle;
+    pthread_mutex_lock(&stubMutex);
+    getHandle(resultHandle)->name = (name == NULL ? NULL : strdup(name));
+    pthread_mutex_unlock(&stubMutex);
+    jobHandle = newJob(callbackProc, clientData, STUB_ROWS_NONE, 0, name);
+    pthread_mutex_lock(&stubMutex);
+    getHandle(jobHandle)->resultHandle = resultHandle;
+    pthread_mutex_unlock(&stubMutex);
+    return runJob(jobHandle);
+}
+
+VixError VixJob_Wait(VixHandle jobHandle, VixPropertyID firstPropertyID, ...) {
+    StubHandle *h;
+    VixError error;
+    va_list ap;
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(jobHandle);
+    if (h == NULL) {
+        pthread_mutex_unlock(&stubMutex);
+        return VIX_E_INVALID_HANDLE;
+    }
+    while (!h->complete) {
+        pthread_cond_wait(&stubCondition, &stubMutex);
+    }
+    error = h->error;
+    pthread_mutex_unlock(&stubMutex);
+    if (error != VIX_OK) {
+        return error;
+    }
+    va_start(ap, firstPropertyID);
+    error = getStubProperties(jobHandle, -1, firstPropertyID, ap);
+    va_end(ap);
+    return error;
+}
+
+VixError VixJob_CheckCompletion(VixHandle jobHandle, Bool *complete) {
+    StubHandle *h;
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(jobHandle);
+    if (h != NULL) {
+        *complete = (Bool) h->complete;
+    }
+    pthread_mutex_unlock(&stubMutex);
+    return (h == NULL ? VIX_E_INVALID_HANDLE : VIX_OK);
+}
+
+int VixJob_GetNumProperties(VixHandle jobHandle, int resultPropertyID) {
+    StubHandle *h;
+    int rowCount;
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(jobHandle);
+    rowCount = (h == NULL ? 0 : h->rowCount);
+    pthread_mutex_unlock(&stubMutex);
+    return rowCount;
+}
+
+VixError VixJob_GetNthProperties(VixHandle jobHandle, int index, VixPropertyID firstPropertyID, ...) {
+    va_list ap;
+    VixError error;
+    if (index < 0) {
+        return VIX_E_INVALID_ARG;
+    }
+    va_start(ap, firstPropertyID);
+    error = getStubProperties(jobHandle, index, firstPropertyID, ap);
+    va_end(ap);
+    return error;
+}
+
+
+/******************************************************************************************
+ ** HOST FUNCTIONS
+ **/
+
+VixHandle VixHost_Connect(int apiVersion, VixServiceProvider hostType, const char *hostName,
+  int hostPort, const char *userName, const char *password, VixHostOptions options,
+  VixHandle propertyListHandle, VixEventProc *callbackProc, void *clientData)
+{
+    VixHandle jobHandle;
+    int pumpMode = ((options & VIX_HOSTOPTION_USE_EVENT_PUMP) != 0);
+    if (pumpMode) {
+        /* the connect job's own callback is queued as well */
+        pthread_mutex_lock(&stubMutex);
+        stubPumpHosts++;
+        pthread_mutex_unlock(&stubMutex);
+    }
+    jobHandle = startHandleJob(callbackProc, clientData, VIX_HANDLETYPE_HOST, password);
+    pthread_mutex_lock(&stubMutex);
+    getHandle(getHandle(jobHandle)->resultHandle)->pumpMode = pumpMode;
+    pthread_mutex_unlock(&stubMutex);
+    return jobHandle;
+}
+
+void VixHost_Disconnect(VixHandle hostHandle) {
+    StubHandle *h;
+    pthread_mutex_lock(&stubMutex);
+    h = getHandle(hostHandle);
+    if (h != NULL && h->pumpMode) {
+        h->pumpMode = 0;
+        stubPumpHosts--;
+    }
+    pthread_mutex_unlock(&stubMutex);
+    Vix_ReleaseHandle(hostHandle);
+}
+
+VixHandle VixHost_FindItems(VixHandle hostHandle, VixFindItemType searchType, VixHandle searchCriteria,
+  int32 timeout, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_ITEMS, STUB_DEFAULT_ROWS, NULL);
+}
+
+VixHandle VixHost_RegisterVM(VixHandle hostHandle, const char *vmxFilePath, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, vmxFilePath);
+}
+
+VixHandle VixHost_UnregisterVM(VixHandle hostHandle, const char *vmxFilePath, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, vmxFilePath);
+}
+
+
+/******************************************************************************************
+ ** VM FUNCTIONS
+ **
+ ** Most VM functions just create a job which completes successfully.
+ **/
+
+VixHandle VixVM_Open(VixHandle hostHandle, const char *vmxFilePathName, VixEventProc *callbackProc, void *clientData) {
+    return startHandleJob(callbackProc, clientData, VIX_HANDLETYPE_VM, vmxFilePathName);
+}
+
+VixHandle VixVM_PowerOn(VixHandle vmHandle, VixVMPowerOpOptions powerOnOptions, VixHandle propertyListHandle,
+  VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_PowerOff(VixHandle vmHandle, VixVMPowerOpOptions powerOffOptions, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_Reset(VixHandle vmHandle, VixVMPowerOpOptions resetOptions, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_Suspend(VixHandle vmHandle, VixVMPowerOpOptions suspendOptions, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_Delete(VixHandle vmHandle, VixVMDeleteOptions deleteOptions, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_UpgradeVirtualHardware(VixHandle vmHandle, int options, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_InstallTools(VixHandle vmHandle, int options, const char *commandLineArgs,
+  VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, commandLineArgs);
+}
+
+VixHandle VixVM_WaitForToolsInGuest(VixHandle vmHandle, int timeoutInSeconds, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_LoginInGuest(VixHandle vmHandle, const char *userName, const char *password, int options,
+  VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, password);
+}
+
+VixHandle VixVM_LogoutFromGuest(VixHandle vmHandle, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_RunProgramInGuest(VixHandle vmHandle, const char *guestProgramName, const char *commandLineArgs,
+  VixRunProgramOptions options, VixHandle propertyListHandle, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, guestProgramName);
+}
+
+VixHandle VixVM_RunScriptInGuest(VixHandle vmHandle, const char *interpreter, const char *scriptText,
+  VixRunProgramOptions options, VixHandle propertyListHandle, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, scriptText);
+}
+
+VixHandle VixVM_ListProcessesInGuest(VixHandle vmHandle, int options, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_PROCESSES, STUB_DEFAULT_ROWS, NULL);
+}
+
+VixHandle VixVM_KillProcessInGuest(VixHandle vmHandle, uint64 pid, int options, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_OpenUrlInGuest(VixHandle vmHandle, const char *url, int windowState, VixHandle propertyListHandle,
+  VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, url);
+}
+
+VixHandle VixVM_CopyFileFromHostToGuest(VixHandle vmHandle, const char *hostPathName, const char *guestPathName,
+  int options, VixHandle propertyListHandle, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, hostPathName);
+}
+
+VixHandle VixVM_CopyFileFromGuestToHost(VixHandle vmHandle, const char *guestPathName, const char *hostPathName,
+  int options, VixHandle propertyListHandle, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, guestPathName);
+}
+
+VixHandle VixVM_DeleteFileInGuest(VixHandle vmHandle, const char *guestPathName, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, guestPathName);
+}
+
+VixHandle VixVM_FileExistsInGuest(VixHandle vmHandle, const char *guestPathName, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, guestPathName);
+}
+
+VixHandle VixVM_RenameFileInGuest(VixHandle vmHandle, const char *oldName, const char *newName, int options,
+  VixHandle propertyListHandle, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, oldName);
+}
+
+VixHandle VixVM_CreateTempFileInGuest(VixHandle vmHandle, int options, VixHandle propertyListHandle,
+  VixEventProc *callbackProc, void *clientData)
+{
+    VixHandle jobHandle = newJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+    pthread_mutex_lock(&stubMutex);
+    getHandle(jobHandle)->name = "/tmp/stub";
+    pthread_mutex_unlock(&stubMutex);
+    return runJob(jobHandle);
+}
+
+/* the number of files is taken from the last part of the path; if the path contains
+ * "/fail:n/", the results from n onwards cannot be retrieved. Each file has the VM
+ * handle as its VIX_PROPERTY_JOB_RESULT_HANDLE. */
+VixHandle VixVM_ListDirectoryInGuest(VixHandle vmHandle, const char *pathName, int options,
+  VixEventProc *callbackProc, void *clientData)
+{
+    const char *lastPart = (pathName == NULL ? NULL : strrchr(pathName, '/'));
+    const char *failPart = (pathName == NULL ? NULL : strstr(pathName, "/fail:"));
+    int rowCount = (lastPart == NULL ? 0 : atoi(lastPart + 1));
+    VixHandle jobHandle = newJob(callbackProc, clientData, STUB_ROWS_FILES,
+      (rowCount > 0 ? rowCount : STUB_DEFAULT_ROWS), pathName);
+    if (jobHandle == VIX_INVALID_HANDLE) {
+        return VIX_INVALID_HANDLE;
+    }
+    pthread_mutex_lock(&stubMutex);
+    getHandle(jobHandle)->rowHandle = vmHandle;
+    getHandle(jobHandle)->failRow = (failPart == NULL ? 0 : atoi(failPart + 6));
+    pthread_mutex_unlock(&stubMutex);
+    return runJob(jobHandle);
+}
+
+VixHandle VixVM_CreateDirectoryInGuest(VixHandle vmHandle, const char *pathName, VixHandle propertyListHandle,
+  VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, pathName);
+}
+
+VixHandle VixVM_DeleteDirectoryInGuest(VixHandle vmHandle, const char *pathName, int options,
+  VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, pathName);
+}
+
+VixHandle VixVM_DirectoryExistsInGuest(VixHandle vmHandle, const char *pathName, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, pathName);
+}
+
+VixHandle VixVM_EnableSharedFolders(VixHandle vmHandle, Bool enabled, int options, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_GetNumSharedFolders(VixHandle vmHandle, VixEventProc *callbackProc, void *clientData) {
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_GetSharedFolderState(VixHandle vmHandle, int index, VixEventProc *callbackProc, void *clientData) {
+    /* there are no shared folders */
+    VixHandle jobHandle = newJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+    pthread_mutex_lock(&stubMutex);
+    getHandle(jobHandle)->error = VIX_E_INVALID_ARG;
+    pthread_mutex_unlock(&stubMutex);
+    return runJob(jobHandle);
+}
+
+VixHandle VixVM_SetSharedFolderState(VixHandle vmHandle, const char *shareName, const char *hostPathName,
+  VixMsgSharedFolderOptions flags, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, shareName);
+}
+
+VixHandle VixVM_AddSharedFolder(VixHandle vmHandle, const char *shareName, const char *hostPathName,
+  VixMsgSharedFolderOptions flags, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, shareName);
+}
+
+VixHandle VixVM_RemoveSharedFolder(VixHandle vmHandle, const char *shareName, int flags,
+  VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, shareName);
+}
+
+VixHandle VixVM_CaptureScreenImage(VixHandle vmHandle, int captureType, VixHandle additionalProperties,
+  VixEventProc *callbackProc, void *clientData)
+{
+    VixHandle jobHandle = newJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+    pthread_mutex_lock(&stubMutex);
+    getHandle(jobHandle)->blobSize = STUB_SCREEN_IMAGE_SIZE;
+    pthread_mutex_unlock(&stubMutex);
+    return runJob(jobHandle);
+}
+
+
+/******************************************************************************************
+ ** SNAPSHOT FUNCTIONS
+ **
+ ** Each VM has a single root snapshot, which is also its current snapshot.
+ **/
+
+/** Returns a new snapshot handle
+ *
+ * @param name the display name of the snapshot
+ */
+static VixHandle newSnapshot(const char *name) {
+    VixHandle snapshotHandle = newHandle(VIX_HANDLETYPE_SNAPSHOT);
+    pthread_mutex_lock(&stubMutex);
+    getHandle(snapshotHandle)->name = strdup(name == NULL ? "stub" : name);
+    pthread_mutex_unlock(&stubMutex);
+    return snapshotHandle;
+}
+
+VixError VixVM_GetNumRootSnapshots(VixHandle vmHandle, int *result) {
+    *result = 1;
+    return VIX_OK;
+}
+
+VixError VixVM_GetRootSnapshot(VixHandle vmHandle, int index, VixHandle *snapshotHandle) {
+    if (index != 0) {
+        return VIX_E_INVALID_ARG;
+    }
+    *snapshotHandle = newSnapshot("root");
+    return VIX_OK;
+}
+
+VixError VixVM_GetCurrentSnapshot(VixHandle vmHandle, VixHandle *snapshotHandle) {
+    *snapshotHandle = newSnapshot("root");
+    return VIX_OK;
+}
+
+VixError VixVM_GetNamedSnapshot(VixHandle vmHandle, const char *name, VixHandle *snapshotHandle) {
+    *snapshotHandle = newSnapshot(name);
+    return VIX_OK;
+}
+
+VixHandle VixVM_CreateSnapshot(VixHandle vmHandle, const char *name, const char *description,
+  VixCreateSnapshotOptions options, VixHandle propertyListHandle, VixEventProc *callbackProc, void *clientData)
+{
+    return startHandleJob(callbackProc, clientData, VIX_HANDLETYPE_SNAPSHOT, name);
+}
+
+VixHandle VixVM_RemoveSnapshot(VixHandle vmHandle, VixHandle snapshotHandle, int options,
+  VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixHandle VixVM_RevertToSnapshot(VixHandle vmHandle, VixHandle snapshotHandle, int options,
+  VixHandle propertyListHandle, VixEventProc *callbackProc, void *clientData)
+{
+    return startJob(callbackProc, clientData, STUB_ROWS_NONE, 0, NULL);
+}
+
+VixError VixSnapshot_GetNumChildren(VixHandle parentSnapshotHandle, int *numChildSnapshots) {
+    *numChildSnapshots = 0;
+    return VIX_OK;
+}
+
+VixError VixSnapshot_GetChild(VixHandle parentSnapshotHandle, int index, VixHandle *childSnapshotHandle) {
+    return VIX_E_INVALID_ARG;
+}
+
+VixError VixSnapshot_GetParent(VixHandle snapshotHandle, VixHandle *parentSnapshotHandle) {
+    *parentSnapshotHandle = VIX_INVALID_HANDLE;
+    return VIX_E_SNAPSHOT_NOTFOUND;
+}
@@ -0,0 +1,201 @@
+package net.sf.jvix;
+
+/** A VixEventProc which completes a {@link VixFuture} when its job completes. Used
+ * to implement the asynchronous methods in {@link VixVM} and {@link VixHost}.
+ *
+ * <p>An AsyncJob is passed as the callbackProc of a single VIX function, and the job
+ * handle that function returns is then passed to {@link #start(VixHandle)}:
+ * <pre>
+ * AsyncJob job = new AsyncJob(null);
+ * return job.start(VixWrapper.VixVM_PowerOn(vmHandle, options, VixHandle.VIX_INVALID_HANDLE, job, null));
+ * </pre>
+ *
+ * <p>When the job completes, its error code and the properties supplied to the
+ * constructor are retrieved from the job handle, and passed to
+ * {@link #getResult(VixHandle, PropertyResultBuffer)} to create the future's result;
+ * subclasses override this method to create results other than null. The job handle is released through the default
+ * {@link ReleaseBatcher} once the job has completed and start() has been called (which
+ * may happen in either order). If the current thread has a {@link VixCancellationToken},
+ * the future is attached to it when start() is called. AsyncJobs created for an
+ * operation on a {@link VixVM} report its progress to the {@link VixProgressBus}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+class AsyncJob extends VixEventProc {
+
+	/** Property IDs used to retrieve the job's error code */
+	private static final int[] ERROR_CODE_PROPERTY = new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_ERROR_CODE };
+
+	/** The future completed by this job */
+	private VixFuture future = new VixFuture();
+
+	/** The job's result properties, or null if the job has no result properties */
+	private int[] propertyIds;
+
+	/** The job handle returned by the VIX function; set by start() */
+	private VixHandle jobHandle = null;
+
+	/** True once the VIX_EVENTTYPE_JOB_COMPLETED event has been processed */
+	private boolean jobCompleted = false;
+
+	/** Sends the job's progress to the VixProgressBus; null if there are no listeners */
+	private VixProgressBus.Progress progress = null;
+
+	/** Create a new AsyncJob
+	 *
+	 * @param propertyIds the result properties to retrieve from the job when it completes,
+	 *   or null if the job has no result properties
+	 */
+	AsyncJob(int[] propertyIds) {
+		this.propertyIds = propertyIds;
+	}
+
+	/** Create a new AsyncJob for an operation on a virtual machine, whose progress is
+	 * reported to the default {@link VixProgressBus}. The job must be created immediately
+	 * before the VIX function is invoked, since this sends the operation's
+	 * TYPE_STARTED event.
+	 *
+	 * @param vm the virtual machine
+	 * @param operation the name of the operation
+	 * @param propertyIds the result properties to retrieve from the job when it completes,
+	 *   or null if the job has no result properties
+	 */
+	AsyncJob(VixVM vm, String operation, int[] propertyIds) {
+		this.propertyIds = propertyIds;
+		this.progress = VixProgressBus.getDefault().started(vm, operation);
+	}
+
+	/** Records the job handle returned by the VIX function this job was passed to
+	 *
+	 * @param jobHandle the job handle
+	 *
+	 * @return the future which will be completed by this job
+	 */
+	VixFuture start(VixHandle jobHandle) {
+		boolean release;
+		synchronized (this) {
+			this.jobHandle = jobHandle;
+			release = jobCompleted;
+		}
+		if (jobHandle == null || jobHandle.getValue() == 0) {
+			// the VIX function could not create a job, so no events will be raised
+			VixException exception = new VixException(VixException.VIX_E_FAIL);
+			if (progress != null) {
+				progress.completed(exception);
+			}
+			future.completeExceptionally(exception);
+		} else if (release) {
+			ReleaseBatcher.getDefault().release(jobHandle);
+		}
+		VixCancellationToken token = VixCancellationToken.getCurrent();
+		if (token != null) {
+			token.attach(future);
+		}
+		return future;
+	}
+
+	/** Returns the future which will be completed by this job
+	 *
+	 * @return the future
+	 */
+	VixFuture getFuture() {
+		return future;
+	}
+
+	/** Creates the result of the future from the job's result properties. Returns null
+	 * unless overridden.
+	 *
+	 * @param jobHandle the completed job, from which further properties may be retrieved
+	 * @param results the job's result properties, or null if no property IDs were
+	 *   supplied to the constructor
+	 *
+	 * @return the result of the future
+	 */
+	Object getResult(VixHandle jobHandle, PropertyResultBuffer results) throws VixException {
+		return null;
+	}
+
+	/** Releases any handles owned by the result of a future which was cancelled
+	 * before the job completed
+	 *
+	 * @param result the result created by getResult()
+	 */
+	static void discardResult(Object result) {
+		if (result instanceof VixVM) {
+			((VixVM) result).close();
+		} else if (result instanceof VixSnapshot) {
+			((VixSnapshot) result).close();
+		} else if (result instanceof VixBlob) {
+			((VixBlob) result).free();
+		}
+	}
+
+	/** Invoked for each event other than VIX_EVENTTYPE_JOB_COMPLETED (e.g.
+	 * VIX_EVENTTYPE_FIND_ITEM). Does nothing unless overridden.
+	 *
+	 * @param handle the job handle
+	 * @param eventType the VIX_EVENTTYPE_* type of the event
+	 * @param moreEventInfo the event's moreEventInfo handle, which is only valid
+	 *   until this method returns
+	 */
+	void event(VixHandle handle, int eventType, VixHandle moreEventInfo) {
+	}
+
+	/** Invoked by the native library for each event raised by the job
+	 *
+	 * @see net.sf.jvix.VixEventProc#callback(net.sf.jvix.VixHandle, int, net.sf.jvix.VixHandle, java.lang.Object)
+	 */
+	public void callback(VixHandle handle, int eventType, VixHandle moreEventInfo, Object clientData) {
+		if (eventType != VixWrapper.VIX_EVENTTYPE_JOB_COMPLETED) {
+			if (eventType == VixWrapper.VIX_EVENTTYPE_JOB_PROGRESS && progress != null) {
+				progress.progress(moreEventInfo);
+			}
+			event(handle, eventType, moreEventInfo);
+			return;
+		}
+		Object result = null;
+		VixException exception = null;
+		try {
+			PropertyResultBuffer errorCode = new PropertyResultBuffer(ERROR_CODE_PROPERTY);
+			VixWrapper.Vix_GetProperties(handle, errorCode);
+			if (errorCode.getInt(0) != VixException.VIX_OK) {
+				throw new VixException(errorCode.getInt(0));
+			}
+			PropertyResultBuffer results = null;
+			if (propertyIds != null) {
+				results = new PropertyResultBuffer(propertyIds);
+				VixWrapper.Vix_GetProperties(handle, results);
+			}
+			result = getResult(handle, results);
+		} catch (VixException ve) {
+			exception = ve;
+		} catch (RuntimeException re) {
+			exception = (VixException) new VixException(VixException.VIX_E_FAIL).initCause(re);
+		}
+		// the job handle is released before anything waiting for the future resumes
+		VixHandle releaseHandle;
+		synchronized (this) {
+			jobCompleted = true;
+			releaseHandle = jobHandle;
+		}
+		if (releaseHandle != null) {
+			ReleaseBatcher.getDefault().release(releaseHandle);
+		}
+
+		// listeners see the completion before anything waiting for the future
+		if (progress != null) {
+			progress.completed(exception);
+		}
+		if (exception != null) {
+			future.completeExceptionally(exception);
+		} else if (!future.complete(result)) {
+			// the future was cancelled while the job was running
+			discardResult(result);
+		}
+		if (future.isCancelled()) {
+			VixWrapper.recordAbandonedJob();
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package net.sf.jvix;
+
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+/** A {@link VixFlow.Publisher} of the items found by VixHost_FindItems. Returned by
+ * {@link VixHost#findItemsPublisher(int, long)}.
+ *
+ * <p>Each subscriber starts a new search. Each item's location is sent to onNext()
+ * as a String as soon as it has been found and requested, rather than once the search
+ * has completed. VIX cannot pause a search, so items found before they are requested
+ * are held by the subscription until they are.
+ *
+ * <p>Signals are sent either by the thread delivering VIX events for the search, or by
+ * a thread calling {@link VixFlow.Subscription#request(long)}. Cancelling the
+ * subscription discards any items found but not yet sent, and abandons the search: its
+ * remaining events are ignored, and its job handle is released once VIX completes it.
+ * If the search has not completed within the timeout, the subscriber's onError() is sent
+ * a VixException with the error code VIX_E_CANCELLED, and the search is abandoned in the
+ * same way, as it is if the subscribing thread's current {@link VixCancellationToken} is
+ * cancelled.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+class FindItemsPublisher implements VixFlow.Publisher {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(FindItemsPublisher.class);
+
+	/** Properties retrieved for each item found */
+	private static final int[] FOUND_ITEM_PROPERTY = new int[] { VixWrapper.VIX_PROPERTY_FOUND_ITEM_LOCATION };
+
+	/** The host to search */
+	private VixHandle hostHandle;
+
+	/** The type of items to find */
+	private int searchType;
+
+	/** The search timeout, in milliseconds, or -1 if there is none */
+	private long timeoutMillis;
+
+	/** Create a new FindItemsPublisher
+	 *
+	 * @param hostHandle the host to search
+	 * @param searchType The type of items to find. Value should be a VIX_FIND_* constant.
+	 * @param timeoutMillis the search timeout, in milliseconds, or -1 if there is none
+	 */
+	FindItemsPublisher(VixHandle hostHandle, int searchType, long timeoutMillis) {
+		this.hostHandle = hostHandle;
+		this.searchType = searchType;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/** Starts a new search, whose results are sent to the subscriber
+	 *
+	 * @see net.sf.jvix.VixFlow.Publisher#subscribe(net.sf.jvix.VixFlow.Subscriber)
+	 */
+	public void subscribe(VixFlow.Subscriber subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("null subscriber");
+		}
+		FindItemsSubscription subscription = new FindItemsSubscription(subscriber);
+		try {
+			subscriber.onSubscribe(subscription);
+		} catch (RuntimeException re) {
+			logger.error("Exception in VixFlow.Subscriber", re);
+			subscription.cancel();
+		}
+		subscription.start();
+	}
+
+	/** The state of a single search */
+	private class FindItemsSubscription implements VixFlow.Subscription, VixFutureListener {
+
+		/** The subscriber */
+		private VixFlow.Subscriber subscriber;
+
+		/** Items found which have not yet been sent */
+		private LinkedList items = new LinkedList();
+
+		/** Number of items requested but not yet sent */
+		private long demand = 0;
+
+		/** True while a thread is sending signals */
+		private boolean draining = false;
+
+		/** True once the subscription has been cancelled, or a terminal signal sent */
+		private boolean finished = false;
+
+		/** True once the search has completed */
+		private boolean searchCompleted = false;
+
+		/** The reason the search (or subscription) failed, or null */
+		private Throwable failure = null;
+
+		/** The future of the search; null until it has been started */
+		private VixFuture future = null;
+
+		FindItemsSubscription(VixFlow.Subscriber subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		/** Starts the search */
+		void start() {
+			synchronized (this) {
+				if (finished) { return; }
+			}
+			AsyncJob job = new AsyncJob(null) {
+				void event(VixHandle handle, int eventType, VixHandle moreEventInfo) {
+					if (eventType == VixWrapper.VIX_EVENTTYPE_FIND_ITEM) {
+						found(moreEventInfo);
+					}
+				}
+			};
+			VixFuture searchFuture = job.start(VixWrapper.VixHost_FindItems(
+			  hostHandle,
+			  searchType,
+			  VixHandle.VIX_INVALID_HANDLE,
+			  -1, // timeout; enforced below, since VIX requires -1
+			  job, null));
+			boolean cancelled;
+			synchronized (this) {
+				future = searchFuture;
+				cancelled = finished;
+			}
+			if (cancelled) {
+				searchFuture.cancel(false);
+				return;
+			}
+			if (timeoutMillis >= 0) {
+				final VixCancellationToken timeout = new VixCancellationToken(timeoutMillis);
+				timeout.attach(searchFuture);
+				searchFuture.addListener(new VixFutureListener() {
+					public void completed(VixFuture f) {
+						timeout.close();
+					}
+				});
+			}
+			searchFuture.addListener(this);
+		}
+
+		/** Invoked for each item found
+		 *
+		 * @param moreEventInfo the event's moreEventInfo handle
+		 */
+		private void found(VixHandle moreEventInfo) {
+			synchronized (this) {
+				if (finished) { return; }
+			}
+			PropertyResultBuffer properties = new PropertyResultBuffer(FOUND_ITEM_PROPERTY);
+			try {
+				VixWrapper.Vix_GetProperties(moreEventInfo, properties);
+			} catch (VixException ve) {
+				logger.error("Could not retrieve found item location", ve);
+				return;
+			}
+			synchronized (this) {
+				items.add(properties.getString(0));
+			}
+			drain();
+		}
+
+		/** Invoked when the search completes
+		 *
+		 * @see net.sf.jvix.VixFutureListener#completed(net.sf.jvix.VixFuture)
+		 */
+		public void completed(VixFuture searchFuture) {
+			synchronized (this) {
+				searchCompleted = true;
+				if (failure != null) {
+					// the subscription has already failed
+				} else if (searchFuture.isCancelled()) {
+					failure = new VixException(VixException.VIX_E_CANCELLED);
+				} else {
+					failure = searchFuture.getException();
+				}
+			}
+			drain();
+		}
+
+		/** @see net.sf.jvix.VixFlow.Subscription#request(long) */
+		public void request(long n) {
+			synchronized (this) {
+				if (n <= 0) {
+					if (failure == null) {
+						failure = new IllegalArgumentException("request(" + n + "): n must be positive");
+					}
+				} else {
+					demand = (demand + n < demand ? Long.MAX_VALUE : demand + n);
+				}
+			}
+			drain();
+		}
+
+		/** @see net.sf.jvix.VixFlow.Subscription#cancel() */
+		public void cancel() {
+			VixFuture searchFuture;
+			synchronized (this) {
+				if (finished) { return; }
+				finished = true;
+				items.clear();
+				searchFuture = future;
+			}
+			if (searchFuture != null) {
+				searchFuture.cancel(false);
+			}
+		}
+
+		/** Sends as many signals as demand allows. Only one thread sends signals at a
+		 * time; signals which become possible while another thread is sending are sent
+		 * by that thread.
+		 */
+		private void drain() {
+			synchronized (this) {
+				if (draining) { return; }
+				draining = true;
+			}
+			while (true) {
+				Object item = null;
+				Throwable error = null;
+				VixFuture searchFuture = null;
+				synchronized (this) {
+					if (finished) {
+						draining = false;
+						return;
+					} else if (failure != null) {
+						// failures are sent without waiting for the items found before them
+						error = failure;
+						finished = true;
+						items.clear();
+						searchFuture = future;
+					} else if (!items.isEmpty() && demand > 0) {
+						item = items.removeFirst();
+						if (demand != Long.MAX_VALUE) { demand--; }
+					} else if (items.isEmpty() && searchCompleted) {
+						finished = true;
+					} else {
+						draining = false;
+						return;
+					}
+				}
+				try {
+					if (item != null) {
+						subscriber.onNext(item);
+					} else if (error != null) {
+						if (searchFuture != null) { searchFuture.cancel(false); }
+						subscriber.onError(error);
+					} else {
+						subscriber.onComplete();
+					}
+				} catch (RuntimeException re) {
+					logger.error("Exception in VixFlow.Subscriber", re);
+					cancel();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,562 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+/** Polls the completion state of outstanding VIX jobs on a single thread, and completes
+ * a {@link VixFuture} for each job as it finishes.
+ *
+ * <p>This is intended for large fan-outs of jobs created without a VixEventProc,
+ * which would otherwise need a thread per job blocked in VixJob_Wait. Jobs are
+ * registered with {@link #submit(VixHandle, int[])}, after which the poller owns the job
+ * handle:
+ * <pre>
+ * JobPoller poller = new JobPoller();
+ * VixFuture future = poller.submit(
+ *   VixWrapper.VixVM_Open(hostHandle, vmxPath, null, null),
+ *   new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE });
+ * ...
+ * VixHandle vmHandle = ((PropertyResultBuffer) future.getResult()).getHandle(0);
+ * </pre>
+ *
+ * <p>Each job is polled on a tiered backoff schedule based on its age, so that jobs
+ * which complete quickly are noticed quickly, while long-running jobs (e.g. waiting for
+ * VMware Tools) are checked only occasionally. With the default schedule, a job is
+ * polled every 5ms for its first 100ms, every 20ms until it is 1s old, every 100ms
+ * until it is 10s old, every 500ms until it is 1 minute old, and every 2s after that.
+ * Each time a job is due, every job which is due within half of the shortest poll
+ * interval is checked with it, in a single call into the native library.
+ *
+ * <p>When a job completes, its error code and the requested properties are
+ * retrieved, the job handle is released, and the future is completed with a
+ * {@link PropertyResultBuffer} containing those properties (or null if no properties
+ * were requested), or with the job's VixException. Futures are completed, and their
+ * listeners notified, on the poller thread, so listeners should return quickly.
+ * If a future is cancelled, its job handle is released the next time the job is due
+ * to be polled.
+ *
+ * <p>The poller thread, named "jvix-job-poller", is started when the first job is
+ * submitted. This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class JobPoller {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(JobPoller.class);
+
+	/** Default job ages at which the poll interval increases, in milliseconds */
+	public static final long[] DEFAULT_TIER_AGES = new long[] { 100, 1000, 10000, 60000 };
+
+	/** Default poll intervals for each tier, in milliseconds; the last interval
+	 * applies to jobs older than the last tier age */
+	public static final long[] DEFAULT_TIER_INTERVALS = new long[] { 5, 20, 100, 500, 2000 };
+
+	/** Minimum time between poll rate calculations, in milliseconds */
+	private static final long POLL_RATE_PERIOD = 1000;
+
+	/** Orders jobs by the time they are next due to be polled */
+	private static final Comparator DUE_TIME_ORDER = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			long t1 = ((PolledJob) o1).dueTime;
+			long t2 = ((PolledJob) o2).dueTime;
+			return (t1 < t2 ? -1 : (t1 == t2 ? 0 : 1));
+		}
+	};
+
+	/** The poller used by {@link VixWrapper#WAIT_MODE_POLL} */
+	private static JobPoller defaultPoller = new JobPoller();
+
+	/** Job ages at which the poll interval increases, in milliseconds */
+	private long[] tierAges;
+
+	/** Poll interval for each tier, in milliseconds */
+	private long[] tierIntervals;
+
+	/** Jobs submitted since the poller thread last looked; guarded by this object's lock */
+	private List submitted = new ArrayList();
+
+	/** Number of jobs being polled; written by the poller thread */
+	private volatile int pollingCount = 0;
+
+	/** Thread which polls jobs; null if not started */
+	private PollerThread pollerThread = null;
+
+	/** Number of native calls made to poll jobs */
+	private volatile long pollCount = 0;
+
+	/** Number of job completion checks made by those calls */
+	private volatile long checkCount = 0;
+
+	/** Job completion checks per second, over the most recent period */
+	private volatile double pollRate = 0;
+
+	/** Number of jobs completed */
+	private long completionCount = 0;
+
+	/** Total time between jobs being submitted and their futures being completed, in milliseconds */
+	private long totalLatency = 0;
+
+	/** Maximum time between a job being submitted and its future being completed, in milliseconds */
+	private long maxLatency = 0;
+
+	/** Create a new JobPoller, using the default tiered backoff schedule */
+	public JobPoller() {
+		this(DEFAULT_TIER_AGES, DEFAULT_TIER_INTERVALS);
+	}
+
+	/** Create a new JobPoller
+	 *
+	 * @param tierAges the job ages at which the poll interval increases, in milliseconds,
+	 *   in ascending order
+	 * @param tierIntervals the poll interval for each tier, in milliseconds. This must
+	 *   contain one more element than tierAges; tierIntervals[i] applies to jobs younger
+	 *   than tierAges[i], and the last element to jobs older than every tier age.
+	 */
+	public JobPoller(long[] tierAges, long[] tierIntervals) {
+		if (tierAges == null || tierIntervals == null || tierIntervals.length != tierAges.length + 1) {
+			throw new IllegalArgumentException("tierIntervals must contain one more element than tierAges");
+		}
+		for (int i = 0; i < tierIntervals.length; i++) {
+			if (tierIntervals[i] < 1) {
+				throw new IllegalArgumentException("poll intervals must be at least 1ms");
+			}
+			if (i > 0 && i < tierAges.length && tierAges[i] <= tierAges[i - 1]) {
+				throw new IllegalArgumentException("tierAges must be in ascending order");
+			}
+		}
+		this.tierAges = (long[]) tierAges.clone();
+		this.tierIntervals = (long[]) tierIntervals.clone();
+	}
+
+	/** Returns the poller used by synchronous waits in {@link VixWrapper#WAIT_MODE_POLL}
+	 *
+	 * @return the default poller
+	 */
+	public static JobPoller getDefault() {
+		return defaultPoller;
+	}
+
+	/** Registers a job to be polled. The poller takes ownership of the job handle, and
+	 * releases it once the job completes; the caller should not use or release it.
+	 *
+	 * @param jobHandle the handle of a job object, returned from any asynchronous Vix
+	 *   function (usually called without a VixEventProc)
+	 * @param propertyIds the properties to retrieve from the job when it completes, or null
+	 *
+	 * @return a VixFuture which completes with a PropertyResultBuffer containing the
+	 *   requested properties (or null, if propertyIds is null)
+	 */
+	public VixFuture submit(VixHandle jobHandle, int[] propertyIds) {
+		return submit(new PolledJob(jobHandle, propertyIds, true));
+	}
+
+	/** Registers a job to be polled, whose future will complete with null
+	 *
+	 * @param jobHandle the handle of a job object
+	 *
+	 * @return a VixFuture which completes when the job completes
+	 *
+	 * @see #submit(VixHandle, int[])
+	 */
+	public VixFuture submit(VixHandle jobHandle) {
+		return submit(jobHandle, null);
+	}
+
+	/** Polls a job without taking ownership of it. The future completes with null as
+	 * soon as the job has completed (whether or not it succeeded), without retrieving
+	 * any properties or releasing the job handle. Used by VixWrapper to wait for jobs
+	 * in WAIT_MODE_POLL.
+	 *
+	 * @param jobHandle the handle of a job object, which the caller must not release
+	 *   until the future has completed
+	 *
+	 * @return a VixFuture which completes when the job completes
+	 */
+	VixFuture watch(VixHandle jobHandle) {
+		return submit(new PolledJob(jobHandle, null, false));
+	}
+
+	/** Returns true if the current thread is the thread of any JobPoller (e.g. because
+	 * a VixFutureListener is being notified), and so cannot wait for a job to be polled
+	 *
+	 * @return true if the current thread is a poller thread
+	 */
+	static boolean isPollerThread() {
+		return Thread.currentThread() instanceof PollerThread;
+	}
+
+	/** Adds a job to the queue of submitted jobs
+	 *
+	 * @param job the job
+	 *
+	 * @return the job's future
+	 */
+	private VixFuture submit(PolledJob job) {
+		VixHandle jobHandle = job.jobHandle;
+		if (jobHandle == null || jobHandle.getValue() == 0) {
+			// the VIX function could not create a job
+			job.future.completeExceptionally(new VixException(VixException.VIX_E_FAIL));
+			return job.future;
+		}
+		synchronized (this) {
+			submitted.add(job);
+			if (pollerThread == null) {
+				pollerThread = new PollerThread();
+				pollerThread.start();
+			}
+			notifyAll();
+		}
+		return job.future;
+	}
+
+	/** Stops the poller thread. Jobs which have not yet completed are released (unless
+	 * they are being waited for by VixWrapper), and their futures are completed with
+	 * VIX_E_CANCELLED. The thread is restarted if
+	 * further jobs are submitted.
+	 */
+	public void shutdown() {
+		PollerThread thread;
+		synchronized (this) {
+			thread = pollerThread;
+			pollerThread = null;
+		}
+		if (thread != null) {
+			thread.shutdown();
+		}
+	}
+
+	/** Returns the number of jobs which have been submitted but have not yet completed
+	 *
+	 * @return the number of outstanding jobs
+	 */
+	public int getQueueLength() {
+		synchronized (this) {
+			return submitted.size() + pollingCount;
+		}
+	}
+
+	/** Returns the number of native calls made to poll jobs. Each call checks
+	 * every job which is due at that time.
+	 *
+	 * @return the number of polls
+	 */
+	public long getPollCount() {
+		return pollCount;
+	}
+
+	/** Returns the number of job completion checks made
+	 *
+	 * @return the number of checks
+	 */
+	public long getCheckCount() {
+		return checkCount;
+	}
+
+	/** Returns the number of job completion checks made per second, measured over the
+	 * most recent period of at least one second during which the poller was running
+	 *
+	 * @return the poll rate, in checks per second
+	 */
+	public double getPollRate() {
+		return pollRate;
+	}
+
+	/** Returns the number of jobs which have completed
+	 *
+	 * @return the number of jobs completed
+	 */
+	public synchronized long getCompletionCount() {
+		return completionCount;
+	}
+
+	/** Returns the average time between a job being submitted and its future being
+	 * completed. This includes the time the job itself took to run.
+	 *
+	 * @return the average completion latency, in milliseconds
+	 */
+	public synchronized double getAverageLatency() {
+		return (completionCount == 0 ? 0 : (double) totalLatency / completionCount);
+	}
+
+	/** Returns the maximum time between a job being submitted and its future being completed
+	 *
+	 * @return the maximum completion latency, in milliseconds
+	 */
+	public synchronized long getMaxLatency() {
+		return maxLatency;
+	}
+
+	/** Returns the poll interval for a job
+	 *
+	 * @param age the age of the job, in milliseconds
+	 *
+	 * @return the time until the job should next be polled, in milliseconds
+	 */
+	private long getPollInterval(long age) {
+		for (int i = 0; i < tierAges.length; i++) {
+			if (age < tierAges[i]) {
+				return tierIntervals[i];
+			}
+		}
+		return tierIntervals[tierAges.length];
+	}
+
+	/** Records the completion latency of a job
+	 *
+	 * @param latency the time between the job being submitted and completed, in milliseconds
+	 */
+	private synchronized void recordLatency(long latency) {
+		completionCount++;
+		totalLatency += latency;
+		if (latency > maxLatency) {
+			maxLatency = latency;
+		}
+	}
+
+	/** A job being polled */
+	private static class PolledJob {
+		VixHandle jobHandle;
+		int[] propertyIds;
+		boolean owned;    // false for jobs registered by watch()
+		VixFuture future = new VixFuture();
+		long submitTime = System.currentTimeMillis();
+		long dueTime = submitTime;
+
+		PolledJob(VixHandle jobHandle, int[] propertyIds, boolean owned) {
+			this.jobHandle = jobHandle;
+			this.propertyIds = propertyIds;
+			this.owned = owned;
+		}
+	}
+
+	/** Thread which polls jobs */
+	private class PollerThread extends Thread {
+
+		/** Set to false when this thread should stop */
+		private volatile boolean running = true;
+
+		/** Jobs being polled, ordered by due time */
+		private PriorityQueue polling = new PriorityQueue(64, DUE_TIME_ORDER);
+
+		/** Jobs due to be polled in the current round */
+		private List dueJobs = new ArrayList();
+
+		/** Time the poll rate was last calculated */
+		private long rateTime = System.currentTimeMillis();
+
+		/** Value of checkCount when the poll rate was last calculated */
+		private long rateCheckCount = 0;
+
+		public PollerThread() {
+			super("jvix-job-poller");
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (running) {
+				try {
+					if (waitForDueJobs()) {
+						pollDueJobs();
+					}
+				} catch (RuntimeException re) {
+					logger.error("Exception polling jobs", re);
+				}
+			}
+			// release anything still outstanding; jobs submitted after shutdown() was
+			// called are left for the thread which replaced this one
+			synchronized (JobPoller.this) {
+				if (pollerThread == null) {
+					polling.addAll(submitted);
+					submitted.clear();
+				}
+			}
+			while (!polling.isEmpty()) {
+				PolledJob job = (PolledJob) polling.poll();
+				if (job.owned) {
+					ReleaseBatcher.getDefault().release(job.jobHandle);
+				}
+				job.future.completeExceptionally(new VixException(VixException.VIX_E_CANCELLED));
+			}
+			pollingCount = 0;
+		}
+
+		/** Moves newly submitted jobs into the polling queue, and waits until the first
+		 * job in the queue is due
+		 *
+		 * @return true if any jobs are due, false if this thread should check its
+		 *   running flag first
+		 */
+		private boolean waitForDueJobs() {
+			synchronized (JobPoller.this) {
+				polling.addAll(submitted);
+				submitted.clear();
+				pollingCount = polling.size();
+				long now = System.currentTimeMillis();
+				updatePollRate(now);
+				PolledJob first = (PolledJob) polling.peek();
+				long delay = (first == null ? POLL_RATE_PERIOD : first.dueTime - now);
+				if (delay > 0) {
+					try {
+						JobPoller.this.wait(delay);
+					} catch (InterruptedException ie) {
+						// check running flag
+					}
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Checks every job which is due, and completes those which have finished */
+		private void pollDueJobs() {
+			long now = System.currentTimeMillis();
+			long dueTime = now + tierIntervals[0] / 2;
+			dueJobs.clear();
+			while (!polling.isEmpty() && ((PolledJob) polling.peek()).dueTime <= dueTime) {
+				PolledJob job = (PolledJob) polling.poll();
+				if (job.future.isCancelled()) {
+					if (job.owned) {
+						ReleaseBatcher.getDefault().release(job.jobHandle);
+					}
+					pollingCount--;
+				} else {
+					dueJobs.add(job);
+				}
+			}
+			int count = dueJobs.size();
+			if (count == 0) {
+				return;
+			}
+			VixHandle[] jobHandles = new VixHandle[count];
+			for (int i = 0; i < count; i++) {
+				jobHandles[i] = ((PolledJob) dueJobs.get(i)).jobHandle;
+			}
+			long[] completed = new long[(count + 63) / 64];
+			try {
+				VixWrapper.Jvix_WaitJobs(jobHandles, completed, 0, false);
+			} catch (VixException ve) {
+				// one of the jobs could not be checked; check them individually
+				checkIndividually(jobHandles, completed);
+			}
+			pollCount++;
+			checkCount += count;
+
+			for (int i = 0; i < count; i++) {
+				PolledJob job = (PolledJob) dueJobs.get(i);
+				if ((completed[i >> 6] & (1L << (i & 63))) != 0) {
+					completeJob(job);
+				} else {
+					job.dueTime = now + getPollInterval(now - job.submitTime);
+					polling.add(job);
+				}
+			}
+			dueJobs.clear();
+			pollingCount = polling.size();
+		}
+
+		/** Checks jobs one at a time, after a batch check failed. Jobs whose completion
+		 * state cannot be determined are treated as completed, so that the error is
+		 * reported through their future.
+		 *
+		 * @param jobHandles the jobs to check
+		 * @param completed the completion bitmap to populate
+		 */
+		private void checkIndividually(VixHandle[] jobHandles, long[] completed) {
+			long[] singleCompleted = new long[1];
+			for (int i = 0; i < jobHandles.length; i++) {
+				singleCompleted[0] = 0;
+				try {
+					if (VixWrapper.Jvix_WaitJobs(new VixHandle[] { jobHandles[i] }, singleCompleted, 0, false) == 0) {
+						continue;
+					}
+				} catch (VixException ve) {
+					// fall through
+				}
+				completed[i >> 6] |= 1L << (i & 63);
+			}
+		}
+
+		/** Retrieves the results of a completed job, releases it, and completes its future
+		 *
+		 * @param job the completed job
+		 */
+		private void completeJob(PolledJob job) {
+			PropertyResultBuffer results = null;
+			VixException exception = null;
+			if (!job.owned) {
+				recordLatency(System.currentTimeMillis() - job.submitTime);
+				pollingCount--;
+				job.future.complete(null);
+				return;
+			}
+			try {
+				if (job.propertyIds == null) {
+					VixWrapper.VixJob_WaitAndRelease(job.jobHandle);
+				} else {
+					results = new PropertyResultBuffer(job.propertyIds);
+					VixWrapper.VixJob_WaitAndRelease(job.jobHandle, results);
+				}
+			} catch (VixException ve) {
+				exception = ve;
+			}
+			// recorded first, so that the statistics include this job once its future completes
+			recordLatency(System.currentTimeMillis() - job.submitTime);
+			pollingCount--;
+			if (exception != null) {
+				job.future.completeExceptionally(exception);
+			} else if (!job.future.complete(results)) {
+				// the future was cancelled after this job was last polled
+				discardResults(results);
+			}
+		}
+
+		/** Releases any handles in the results of a job whose future was cancelled
+		 *
+		 * @param results the job's results, or null
+		 */
+		private void discardResults(PropertyResultBuffer results) {
+			if (results == null) {
+				return;
+			}
+			for (int i = 0; i < results.size(); i++) {
+				if (results.getPropertyType(i) == VixWrapper.VIX_PROPERTYTYPE_HANDLE) {
+					ReleaseBatcher.getDefault().release(results.getHandle(i));
+				}
+			}
+		}
+
+		/** Recalculates the poll rate, if a full period has elapsed since it was last calculated
+		 *
+		 * @param now the current time, in milliseconds
+		 */
+		private void updatePollRate(long now) {
+			long elapsed = now - rateTime;
+			if (elapsed >= POLL_RATE_PERIOD) {
+				long checks = checkCount;
+				pollRate = (checks - rateCheckCount) * 1000.0 / elapsed;
+				rateTime = now;
+				rateCheckCount = checks;
+			}
+		}
+
+		/** Stop this thread */
+		public void shutdown() {
+			running = false;
+			synchronized (JobPoller.this) {
+				JobPoller.this.notifyAll();
+			}
+			try {
+				join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A set of outstanding VIX jobs, which can be waited on as a group.
+ *
+ * <p>This is intended for applications which start many jobs at once (e.g. powering
+ * on a large number of virtual machines), and which would otherwise need either a
+ * thread per job blocked in {@link VixWrapper#VixJob_Wait(VixHandle)}, or a
+ * {@link VixWrapper#VixJob_CheckCompletion(VixHandle)} call per job each time the
+ * jobs are polled. Each wait on a JobSet makes a single call into the native
+ * library, regardless of the number of jobs in the set.
+ *
+ * <p>A typical use would be:
+ * <pre>
+ * JobSet jobs = new JobSet();
+ * for (...) {
+ *     jobs.add(VixWrapper.VixVM_PowerOn(vmHandle, 0, VixHandle.VIX_INVALID_HANDLE, null, null));
+ * }
+ * while (!jobs.isEmpty()) {
+ *     VixHandle job = jobs.waitAny(-1);
+ *     VixWrapper.VixJob_WaitAndRelease(job);   // returns immediately; throws the job's error, if any
+ * }
+ * </pre>
+ *
+ * <p>Jobs returned by {@link #waitAny(long)} and {@link #removeCompleted()} are removed
+ * from the set, and the caller becomes responsible for releasing them. Jobs which
+ * remain in the set can be released with {@link #releaseAll()}.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class JobSet {
+
+	/** The jobs in this set */
+	private List jobs = new ArrayList();
+
+	/** Completion bitmap for the jobs in this set, in the form used by
+	 * VixWrapper.Jvix_WaitJobs(); null if it needs to be recreated */
+	private long[] completed = null;
+
+	/** Create a new, empty JobSet */
+	public JobSet() {
+	}
+
+	/** Adds a job to this set
+	 *
+	 * @param jobHandle the handle of a job object, returned from any asynchronous Vix function
+	 */
+	public void add(VixHandle jobHandle) {
+		if (jobHandle == null) {
+			throw new NullPointerException("null jobHandle");
+		}
+		jobs.add(jobHandle);
+		if (completed != null && completed.length < (jobs.size() + 63) / 64) {
+			long[] newCompleted = new long[completed.length * 2];
+			System.arraycopy(completed, 0, newCompleted, 0, completed.length);
+			completed = newCompleted;
+		}
+	}
+
+	/** Removes a job from this set, without releasing it
+	 *
+	 * @param jobHandle the job to remove
+	 *
+	 * @return true if the job was in this set
+	 */
+	public boolean remove(VixHandle jobHandle) {
+		if (jobs.remove(jobHandle)) {
+			completed = null;
+			return true;
+		}
+		return false;
+	}
+
+	/** Returns the number of jobs in this set
+	 *
+	 * @return the number of jobs in this set
+	 */
+	public int size() {
+		return jobs.size();
+	}
+
+	/** Returns true if this set contains no jobs
+	 *
+	 * @return true if this set contains no jobs
+	 */
+	public boolean isEmpty() {
+		return jobs.isEmpty();
+	}
+
+	/** Returns the jobs in this set. The list returned is a copy, and
+	 * is not affected by later changes to this set.
+	 *
+	 * @return a List of VixHandle objects
+	 */
+	public List getJobs() {
+		return new ArrayList(jobs);
+	}
+
+	/** Waits until at least one job in this set has completed, or the timeout expires,
+	 * and removes that job from this set. The job has completed, so
+	 * {@link VixWrapper#VixJob_WaitAndRelease(VixHandle, PropertyResultBuffer)} can be used
+	 * to retrieve its results without blocking.
+	 *
+	 * <p>If several jobs complete at once, they are all recorded in a single native call,
+	 * and subsequent calls return them without calling into the native library again.
+	 *
+	 * @param timeoutMillis the maximum time to wait, in milliseconds. If 0, the jobs
+	 *   are checked without waiting; if negative, this method waits indefinitely.
+	 *
+	 * @return a completed job, or null if the timeout expired, or this set is empty
+	 *
+	 * @throws VixException if the completion state of a job could not be determined
+	 */
+	public VixHandle waitAny(long timeoutMillis) throws VixException {
+		if (jobs.isEmpty()) {
+			return null;
+		}
+		int index = VixWrapper.nextCompletedJob(getCompletedBitmap(), 0);
+		if (index == -1) {
+			VixWrapper.Jvix_WaitJobs(getJobArray(), completed, timeoutMillis, false);
+			index = VixWrapper.nextCompletedJob(completed, 0);
+			if (index == -1) {
+				return null;
+			}
+		}
+		return removeJob(index);
+	}
+
+	/** Waits until every job in this set has completed, or the timeout expires. Jobs
+	 * are not removed from this set.
+	 *
+	 * @param timeoutMillis the maximum time to wait, in milliseconds. If 0, the jobs
+	 *   are checked without waiting; if negative, this method waits indefinitely.
+	 *
+	 * @return true if all jobs have completed, false if the timeout expired first
+	 *
+	 * @throws VixException if the completion state of a job could not be determined
+	 */
+	public boolean waitAll(long timeoutMillis) throws VixException {
+		if (jobs.isEmpty()) {
+			return true;
+		}
+		return VixWrapper.Jvix_WaitJobs(getJobArray(), getCompletedBitmap(), timeoutMillis, true) == jobs.size();
+	}
+
+	/** Removes every job which has completed from this set, without waiting.
+	 *
+	 * @return a List of the completed VixHandle jobs, in the order they were added
+	 *   to this set; the caller is responsible for releasing them
+	 *
+	 * @throws VixException if the completion state of a job could not be determined
+	 */
+	public List removeCompleted() throws VixException {
+		List result = new ArrayList();
+		if (jobs.isEmpty()) {
+			return result;
+		}
+		long[] bitmap = getCompletedBitmap();
+		VixWrapper.Jvix_WaitJobs(getJobArray(), bitmap, 0, false);
+		List remaining = new ArrayList();
+		for (int i = 0; i < jobs.size(); i++) {
+			if ((bitmap[i >> 6] & (1L << (i & 63))) != 0) {
+				result.add(jobs.get(i));
+			} else {
+				remaining.add(jobs.get(i));
+			}
+		}
+		jobs = remaining;
+		completed = null;
+		return result;
+	}
+
+	/** Releases every job remaining in this set, and removes them from this set. The
+	 * jobs are released with a single call into the native library.
+	 */
+	public void releaseAll() {
+		VixWrapper.Vix_ReleaseHandles(getJobArray());
+		jobs.clear();
+		completed = null;
+	}
+
+	/** Returns the completion bitmap for the jobs in this set, creating it if necessary
+	 *
+	 * @return the completion bitmap
+	 */
+	private long[] getCompletedBitmap() {
+		if (completed == null) {
+			completed = new long[Math.max(1, (jobs.size() + 63) / 64)];
+		}
+		return completed;
+	}
+
+	/** Returns the jobs in this set as an array
+	 *
+	 * @return the jobs in this set
+	 */
+	private VixHandle[] getJobArray() {
+		return (VixHandle[]) jobs.toArray(new VixHandle[jobs.size()]);
+	}
+
+	/** Removes a job from this set, keeping the completion bitmap consistent with
+	 * the remaining jobs
+	 *
+	 * @param index the index of the job to remove
+	 *
+	 * @return the job removed
+	 */
+	private VixHandle removeJob(int index) {
+		VixHandle job = (VixHandle) jobs.remove(index);
+		// shift the bits above index down by one
+		int word = index >> 6;
+		long lowMask = (1L << (index & 63)) - 1;
+		completed[word] = (completed[word] & lowMask) | ((completed[word] >>> 1) & ~lowMask);
+		for (int i = word + 1; i < completed.length; i++) {
+			completed[i - 1] |= (completed[i] & 1L) << 63;
+			completed[i] >>>= 1;
+		}
+		return job;
+	}
+
+}
@@ -0,0 +1,223 @@
+package net.sf.jvix;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/** A bounded pool of platform threads which wait for VIX jobs in the native library,
+ * on behalf of threads which should not block there themselves.
+ *
+ * <p>A thread which calls a native VIX wait cannot be descheduled by the JVM until
+ * the job completes; for a virtual thread, this pins the carrier thread it is running
+ * on for the whole of the VIX operation. In {@link VixWrapper#WAIT_MODE_POOL}, the
+ * synchronous wait methods of VixWrapper (and therefore every synchronous method
+ * of VixVM and VixHost) hand the wait to this pool, and park the calling thread on a
+ * {@link VixFuture} until a pool thread has seen the job complete. The job's results
+ * are then retrieved by the calling thread, which no longer blocks.
+ *
+ * <p>Each pool thread waits for one job at a time, so at most maxThreads jobs are
+ * waited for concurrently; further waits are queued until a thread becomes free.
+ * Where a very large number of long-running jobs are waited for at once,
+ * {@link VixWrapper#WAIT_MODE_POLL} (which waits for every job on a single
+ * {@link JobPoller} thread) may be more appropriate.
+ *
+ * <p>Threads are started as required, up to maxThreads, and are named
+ * "jvix-native-wait-<i>n</i>". This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class NativeWaitPool {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(NativeWaitPool.class);
+
+	/** Default maximum number of pool threads */
+	public static final int DEFAULT_MAX_THREADS = 32;
+
+	/** The pool used by {@link VixWrapper#WAIT_MODE_POOL} */
+	private static NativeWaitPool defaultPool = new NativeWaitPool(DEFAULT_MAX_THREADS);
+
+	/** Marks the end of the queue when the pool is shut down */
+	private static final Wait SHUTDOWN_WAIT = new Wait(null);
+
+	/** Maximum number of pool threads */
+	private int maxThreads;
+
+	/** Waits which have not yet been taken by a pool thread */
+	private LinkedBlockingQueue queue = new LinkedBlockingQueue();
+
+	/** Number of pool threads started */
+	private int threadCount = 0;
+
+	/** Number of pool threads which are not waiting for a job */
+	private AtomicInteger idleCount = new AtomicInteger();
+
+	/** Number of waits completed */
+	private AtomicLong waitCount = new AtomicLong();
+
+	/** Set once the pool has been shut down */
+	private boolean shutdown = false;
+
+	/** Create a new NativeWaitPool
+	 *
+	 * @param maxThreads the maximum number of jobs waited for at once
+	 */
+	public NativeWaitPool(int maxThreads) {
+		if (maxThreads < 1) {
+			throw new IllegalArgumentException("maxThreads must be at least 1");
+		}
+		this.maxThreads = maxThreads;
+	}
+
+	/** Returns the pool used by synchronous waits in {@link VixWrapper#WAIT_MODE_POOL}
+	 *
+	 * @return the default pool
+	 */
+	public static NativeWaitPool getDefault() {
+		return defaultPool;
+	}
+
+	/** Waits for a job on a pool thread. The future completes with null once the job has
+	 * completed (whether or not it succeeded); the job's results are not retrieved, and
+	 * the job handle is not released.
+	 *
+	 * @param jobHandle the handle of a job object, which the caller must not release
+	 *   until the future has completed
+	 *
+	 * @return a VixFuture which completes when the job completes
+	 */
+	public VixFuture watch(VixHandle jobHandle) {
+		Wait wait = new Wait(jobHandle);
+		synchronized (this) {
+			if (shutdown) {
+				wait.future.completeExceptionally(new VixException(VixException.VIX_E_CANCELLED));
+				return wait.future;
+			}
+			queue.add(wait);
+			if (idleCount.get() < queue.size() && threadCount < maxThreads) {
+				idleCount.incrementAndGet();
+				new WaitThread(threadCount++).start();
+			}
+		}
+		return wait.future;
+	}
+
+	/** Returns true if the current thread is a thread of any NativeWaitPool (e.g. because
+	 * a VixFutureListener is being notified)
+	 *
+	 * @return true if the current thread is a pool thread
+	 */
+	static boolean isPoolThread() {
+		return Thread.currentThread() instanceof WaitThread;
+	}
+
+	/** Stops the pool threads once they have finished their current waits. Queued
+	 * waits are completed with VIX_E_CANCELLED, as are any later calls to
+	 * {@link #watch(VixHandle)}.
+	 */
+	public void shutdown() {
+		int count;
+		synchronized (this) {
+			shutdown = true;
+			count = threadCount;
+		}
+		Wait wait;
+		while ((wait = (Wait) queue.poll()) != null) {
+			wait.future.completeExceptionally(new VixException(VixException.VIX_E_CANCELLED));
+		}
+		for (int i = 0; i < count; i++) {
+			queue.add(SHUTDOWN_WAIT);
+		}
+	}
+
+	/** Returns the number of pool threads which have been started
+	 *
+	 * @return the number of pool threads
+	 */
+	public synchronized int getThreadCount() {
+		return threadCount;
+	}
+
+	/** Returns the number of pool threads currently waiting for a job
+	 *
+	 * @return the number of active threads
+	 */
+	public synchronized int getActiveCount() {
+		return threadCount - idleCount.get();
+	}
+
+	/** Returns the number of waits which are queued for a free pool thread
+	 *
+	 * @return the number of queued waits
+	 */
+	public int getQueueLength() {
+		return queue.size();
+	}
+
+	/** Returns the number of waits completed by this pool
+	 *
+	 * @return the number of waits completed
+	 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/** A job to wait for */
+	private static class Wait {
+		VixHandle jobHandle;
+		VixFuture future = new VixFuture();
+
+		Wait(VixHandle jobHandle) {
+			this.jobHandle = jobHandle;
+		}
+	}
+
+	/** Thread which waits for jobs */
+	private class WaitThread extends Thread {
+
+		/** The job handle, as the single-element array expected by Jvix_WaitJobs */
+		private VixHandle[] jobHandles = new VixHandle[1];
+
+		/** Completion bitmap for Jvix_WaitJobs */
+		private long[] completed = new long[1];
+
+		public WaitThread(int index) {
+			super("jvix-native-wait-" + index);
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				Wait wait;
+				try {
+					wait = (Wait) queue.take();
+				} catch (InterruptedException ie) {
+					continue;
+				}
+				if (wait == SHUTDOWN_WAIT) {
+					break;
+				}
+				idleCount.decrementAndGet();
+				try {
+					jobHandles[0] = wait.jobHandle;
+					completed[0] = 0;
+					VixWrapper.Jvix_WaitJobs(jobHandles, completed, -1, true);
+					wait.future.complete(null);
+				} catch (VixException ve) {
+					wait.future.completeExceptionally(ve);
+				} catch (RuntimeException re) {
+					logger.error("Exception waiting for job", re);
+					wait.future.completeExceptionally((VixException) new VixException(VixException.VIX_E_FAIL).initCause(re));
+				} finally {
+					jobHandles[0] = null;
+					waitCount.incrementAndGet();
+					idleCount.incrementAndGet();
+				}
+			}
+		}
+	}
+
+}
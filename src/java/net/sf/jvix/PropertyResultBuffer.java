@@ -0,0 +1,291 @@
+package net.sf.jvix;
+
+import net.sf.jvix.util.Util;
+
+/** A reusable buffer which receives property values from
+ * {@link VixWrapper#VixJob_Wait(VixHandle, PropertyResultBuffer)},
+ * {@link VixWrapper#Vix_GetProperties(VixHandle, PropertyResultBuffer)} and
+ * {@link VixWrapper#VixJob_GetNthProperties(VixHandle, int, PropertyResultBuffer)}.
+ *
+ * <p>The property IDs to retrieve are supplied in the constructor, or by calling
+ * {@link #setPropertyIds(int[])}. Once the buffer has been populated, the type and value
+ * of each property can be read by index (the index of the property ID in the
+ * array supplied).
+ *
+ * <p>Integer, boolean and int64 properties are stored in a primitive
+ * long array, so populating and reading them does not create any objects; string
+ * properties, and the canonical VixHandle object for handle properties (see
+ * {@link VixHandleTable}), are stored in an Object array. A buffer can be reused for any
+ * number of calls; the arrays are only reallocated if more property IDs are
+ * requested than will fit in them.
+ *
+ * <p>If {@link #setRawStrings(boolean)} is set, string properties are stored as
+ * the UTF-8 bytes returned by the VIX API, rather than being converted to
+ * Strings by the native library. The bytes can be retrieved with {@link #getBytes(int)}
+ * (e.g. to write large command output directly to a stream); {@link #getString(int)}
+ * decodes them each time it is called.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class PropertyResultBuffer {
+
+	// the fields below are read and written by VixWrapper.c; if they are renamed,
+	// the native library must be changed as well
+
+	/** The property IDs to retrieve */
+	private int[] propertyIds;
+
+	/** The number of property IDs in use in the propertyIds array */
+	private int size;
+
+	/** The VIX_PROPERTYTYPE_* type of each property, set by the native library */
+	private int[] propertyTypes;
+
+	/** The value of each non-string property, set by the native library. Boolean
+	 * properties are stored as 0 or 1, and handles as the raw handle value */
+	private long[] values;
+
+	/** The value of each string and handle property, set by the native library.
+	 * String properties are stored as byte arrays if rawStrings is set */
+	private Object[] objects;
+
+	/** If true, string properties are returned as UTF-8 byte arrays */
+	private boolean rawStrings = false;
+
+	/** Create a new buffer with space for the number of properties supplied.
+	 * The property IDs must be set using {@link #setPropertyIds(int[])} before use.
+	 *
+	 * @param capacity the initial capacity of this buffer
+	 */
+	public PropertyResultBuffer(int capacity) {
+		propertyIds = new int[capacity];
+		propertyTypes = new int[capacity];
+		values = new long[capacity];
+		objects = new Object[capacity];
+		size = 0;
+	}
+
+	/** Create a new buffer which will retrieve the properties supplied
+	 *
+	 * @param propertyIds the property IDs to retrieve
+	 */
+	public PropertyResultBuffer(int[] propertyIds) {
+		this(propertyIds.length);
+		setPropertyIds(propertyIds);
+	}
+
+	/** Sets the property IDs to be retrieved into this buffer. Any values
+	 * currently held by this buffer are cleared.
+	 *
+	 * @param newPropertyIds the property IDs to retrieve
+	 */
+	public void setPropertyIds(int[] newPropertyIds) {
+		int length = newPropertyIds.length;
+		if (length > propertyIds.length) {
+			propertyIds = new int[length];
+			propertyTypes = new int[length];
+			values = new long[length];
+			objects = new Object[length];
+		} else {
+			clear();
+		}
+		System.arraycopy(newPropertyIds, 0, propertyIds, 0, length);
+		size = length;
+	}
+
+	/** Clears the values held by this buffer, so that any String objects can be
+	 * garbage collected. The property IDs are unchanged.
+	 */
+	public void clear() {
+		for (int i=0; i<size; i++) {
+			propertyTypes[i] = VixWrapper.VIX_PROPERTYTYPE_ANY;
+			values[i] = 0;
+			objects[i] = null;
+		}
+	}
+
+	/** Sets whether string properties are retrieved as the raw UTF-8 bytes
+	 * returned by the VIX API, rather than as Strings. This takes effect the next
+	 * time this buffer is populated.
+	 *
+	 * @param rawStrings if true, string properties are retrieved as bytes
+	 */
+	public void setRawStrings(boolean rawStrings) {
+		this.rawStrings = rawStrings;
+	}
+
+	/** Returns true if string properties are retrieved as raw UTF-8 bytes
+	 *
+	 * @return true if string properties are retrieved as raw UTF-8 bytes
+	 */
+	public boolean isRawStrings() {
+		return rawStrings;
+	}
+
+	/** Returns the number of properties retrieved by this buffer
+	 *
+	 * @return the number of properties retrieved by this buffer
+	 */
+	public int size() {
+		return size;
+	}
+
+	/** Returns the property ID at the supplied index
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return the property ID at this index
+	 */
+	public int getPropertyId(int index) {
+		checkIndex(index);
+		return propertyIds[index];
+	}
+
+	/** Returns the index of the supplied property ID, or -1 if this buffer
+	 * does not retrieve that property
+	 *
+	 * @param propertyId the property ID to search for
+	 *
+	 * @return the index of that property, or -1
+	 */
+	public int indexOf(int propertyId) {
+		for (int i=0; i<size; i++) {
+			if (propertyIds[i]==propertyId) { return i; }
+		}
+		return -1;
+	}
+
+	/** Returns the type of the property at the supplied index
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return one of the VIX_PROPERTYTYPE_* constants, or VIX_PROPERTYTYPE_ANY
+	 *   if this buffer has not been populated
+	 */
+	public int getPropertyType(int index) {
+		checkIndex(index);
+		return propertyTypes[index];
+	}
+
+	/** Returns the value of an integer property
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return the value of that property
+	 */
+	public int getInt(int index) {
+		checkType(index, VixWrapper.VIX_PROPERTYTYPE_INTEGER);
+		return (int) values[index];
+	}
+
+	/** Returns the value of an int64 property. Integer properties
+	 * may also be retrieved using this method.
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return the value of that property
+	 */
+	public long getLong(int index) {
+		checkIndex(index);
+		if (propertyTypes[index]!=VixWrapper.VIX_PROPERTYTYPE_INT64) {
+			checkType(index, VixWrapper.VIX_PROPERTYTYPE_INTEGER);
+		}
+		return values[index];
+	}
+
+	/** Returns the value of a boolean property
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return the value of that property
+	 */
+	public boolean getBoolean(int index) {
+		checkType(index, VixWrapper.VIX_PROPERTYTYPE_BOOL);
+		return values[index] != 0;
+	}
+
+	/** Returns the value of a string property
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return the value of that property
+	 */
+	public String getString(int index) {
+		checkType(index, VixWrapper.VIX_PROPERTYTYPE_STRING);
+		Object value = objects[index];
+		return (value instanceof byte[]) ? Util.decodeUtf8((byte[]) value) : (String) value;
+	}
+
+	/** Returns the value of a string property as UTF-8 bytes. If the buffer
+	 * was populated with rawStrings set, the array returned is the one
+	 * created by the native library, and should not be modified.
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return the value of that property, encoded as UTF-8
+	 */
+	public byte[] getBytes(int index) {
+		checkType(index, VixWrapper.VIX_PROPERTYTYPE_STRING);
+		Object value = objects[index];
+		return (value instanceof byte[]) ? (byte[]) value : Util.encodeUtf8((String) value);
+	}
+
+	/** Returns the value of a handle property. The caller is responsible
+	 * for releasing this handle.
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return the value of that property
+	 */
+	public VixHandle getHandle(int index) {
+		checkType(index, VixWrapper.VIX_PROPERTYTYPE_HANDLE);
+		return (VixHandle) objects[index];
+	}
+
+	/** Returns the value of a property as an object, in the same form as
+	 * the List-based methods in VixWrapper would return it (i.e. an Integer,
+	 * Long, Boolean, String or VixHandle).
+	 *
+	 * @param index the index of the property
+	 *
+	 * @return the value of that property
+	 */
+	public Object getObject(int index) {
+		checkIndex(index);
+		switch (propertyTypes[index]) {
+			case VixWrapper.VIX_PROPERTYTYPE_INTEGER: return new Integer((int) values[index]);
+			case VixWrapper.VIX_PROPERTYTYPE_INT64: return new Long(values[index]);
+			case VixWrapper.VIX_PROPERTYTYPE_BOOL: return Boolean.valueOf(values[index] != 0);
+			case VixWrapper.VIX_PROPERTYTYPE_STRING: return getString(index);
+			default: return objects[index];
+		}
+	}
+
+	/** Throws an IndexOutOfBoundsException if the index supplied is out of range
+	 *
+	 * @param index index to check
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " out of range; size=" + size);
+		}
+	}
+
+	/** Throws an IllegalStateException if the property at the supplied index
+	 * is not of the expected type
+	 *
+	 * @param index index to check
+	 * @param propertyType the expected VIX_PROPERTYTYPE_* type
+	 */
+	private void checkType(int index, int propertyType) {
+		checkIndex(index);
+		if (propertyTypes[index]!=propertyType) {
+			throw new IllegalStateException("Property " + propertyIds[index] + " at index " +
+			  index + " has type " + propertyTypes[index] + "; expected " + propertyType);
+		}
+	}
+
+}
@@ -0,0 +1,293 @@
+package net.sf.jvix;
+
+import net.sf.jvix.util.Util;
+
+/** The results of a {@link VixWrapper#VixJob_GetAllNthProperties(VixHandle, int[])}
+ * call, which retrieves the same set of properties for every result of a job
+ * (e.g. every file returned by VixVM_ListDirectoryInGuest) in a single call
+ * into the native library.
+ *
+ * <p>The results are held in columns, one per property ID requested, with
+ * one entry in each column for each result (row). The type of each column
+ * depends on the VIX_PROPERTYTYPE_* type of the property:
+ *
+ * <table border="1">
+ * <tr><th>Property type</th><th>Column type</th></tr>
+ * <tr><td>VIX_PROPERTYTYPE_INTEGER</td><td>int[]</td></tr>
+ * <tr><td>VIX_PROPERTYTYPE_BOOL</td><td>int[] (containing 0 or 1)</td></tr>
+ * <tr><td>VIX_PROPERTYTYPE_HANDLE</td><td>int[] (containing raw handle values)</td></tr>
+ * <tr><td>VIX_PROPERTYTYPE_INT64</td><td>long[]</td></tr>
+ * <tr><td>VIX_PROPERTYTYPE_STRING</td><td>String[], or byte[][] (containing UTF-8 bytes)
+ *   if the table was retrieved with rawStrings set</td></tr>
+ * </table>
+ *
+ * <p>When rawStrings is set, string values are not converted to Strings by the native
+ * library; {@link #getBytes(int, int)} returns the bytes, and {@link #getString(int, int)}
+ * and {@link #getStringColumn(int)} decode them each time they are called.
+ *
+ * <p>If the job did not return any results, the type of each property can't be
+ * determined; each column is then empty, and can be retrieved as any of the above types.
+ *
+ * <p>Instances of this class are created by the native library, and are not modified
+ * after they are returned.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class PropertyTable {
+
+	/** The property IDs retrieved */
+	private int[] propertyIds;
+
+	/** The VIX_PROPERTYTYPE_* type of each property */
+	private int[] propertyTypes;
+
+	/** The values of each property; one array per property ID */
+	private Object[] columns;
+
+	/** The number of results retrieved */
+	private int rowCount;
+
+	/** Empty columns, returned if the job did not return any results */
+	private static final int[] EMPTY_INT_COLUMN = new int[0];
+	private static final long[] EMPTY_LONG_COLUMN = new long[0];
+	private static final String[] EMPTY_STRING_COLUMN = new String[0];
+
+	/** Create a new PropertyTable. This constructor is invoked by the native
+	 * library (see VixWrapper.c); if its signature is changed, the native
+	 * library must be changed as well.
+	 *
+	 * @param propertyIds the property IDs retrieved
+	 * @param propertyTypes the type of each property
+	 * @param columns the values of each property
+	 * @param rowCount the number of results retrieved
+	 */
+	PropertyTable(int[] propertyIds, int[] propertyTypes, Object[] columns, int rowCount) {
+		this.propertyIds = propertyIds;
+		this.propertyTypes = propertyTypes;
+		this.columns = columns;
+		this.rowCount = rowCount;
+	}
+
+	/** Returns the number of results (rows) retrieved
+	 *
+	 * @return the number of results retrieved
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/** Returns the number of properties (columns) retrieved
+	 *
+	 * @return the number of properties retrieved
+	 */
+	public int getColumnCount() {
+		return propertyIds.length;
+	}
+
+	/** Returns the property ID of the supplied column
+	 *
+	 * @param column the index of the column
+	 *
+	 * @return the property ID in that column
+	 */
+	public int getPropertyId(int column) {
+		return propertyIds[column];
+	}
+
+	/** Returns the index of the column containing the supplied property ID, or -1
+	 * if this property was not retrieved
+	 *
+	 * @param propertyId the property ID to search for
+	 *
+	 * @return the index of that column, or -1
+	 */
+	public int indexOf(int propertyId) {
+		for (int i=0; i<propertyIds.length; i++) {
+			if (propertyIds[i]==propertyId) { return i; }
+		}
+		return -1;
+	}
+
+	/** Returns the type of the property in the supplied column
+	 *
+	 * @param column the index of the column
+	 *
+	 * @return one of the VIX_PROPERTYTYPE_* constants, or VIX_PROPERTYTYPE_ANY
+	 *   if no rows were retrieved
+	 */
+	public int getPropertyType(int column) {
+		return propertyTypes[column];
+	}
+
+	/** Returns all values of an integer, boolean or handle property. The array
+	 * returned is not copied, and should not be modified.
+	 *
+	 * @param column the index of the column
+	 *
+	 * @return the values of that property
+	 */
+	public int[] getIntColumn(int column) {
+		if (rowCount==0) { return EMPTY_INT_COLUMN; }
+		int type = propertyTypes[column];
+		if (type!=VixWrapper.VIX_PROPERTYTYPE_BOOL && type!=VixWrapper.VIX_PROPERTYTYPE_HANDLE) {
+			checkType(column, VixWrapper.VIX_PROPERTYTYPE_INTEGER);
+		}
+		return (int[]) columns[column];
+	}
+
+	/** Returns all values of an int64 property. The array returned is not copied,
+	 * and should not be modified.
+	 *
+	 * @param column the index of the column
+	 *
+	 * @return the values of that property
+	 */
+	public long[] getLongColumn(int column) {
+		if (rowCount==0) { return EMPTY_LONG_COLUMN; }
+		checkType(column, VixWrapper.VIX_PROPERTYTYPE_INT64);
+		return (long[]) columns[column];
+	}
+
+	/** Returns all values of a string property. The array returned is not copied,
+	 * and should not be modified. If the table was retrieved with rawStrings set,
+	 * a new array of decoded values is returned.
+	 *
+	 * @param column the index of the column
+	 *
+	 * @return the values of that property
+	 */
+	public String[] getStringColumn(int column) {
+		if (rowCount==0) { return EMPTY_STRING_COLUMN; }
+		checkType(column, VixWrapper.VIX_PROPERTYTYPE_STRING);
+		if (columns[column] instanceof byte[][]) {
+			byte[][] rawColumn = (byte[][]) columns[column];
+			String[] result = new String[rowCount];
+			for (int i=0; i<rowCount; i++) {
+				result[i] = Util.decodeUtf8(rawColumn[i]);
+			}
+			return result;
+		}
+		return (String[]) columns[column];
+	}
+
+	/** Returns the value of an integer property
+	 *
+	 * @param row the index of the result
+	 * @param column the index of the column
+	 *
+	 * @return the value of that property
+	 */
+	public int getInt(int row, int column) {
+		checkType(column, VixWrapper.VIX_PROPERTYTYPE_INTEGER);
+		return ((int[]) columns[column])[row];
+	}
+
+	/** Returns the value of an int64 property. Integer properties
+	 * may also be retrieved using this method.
+	 *
+	 * @param row the index of the result
+	 * @param column the index of the column
+	 *
+	 * @return the value of that property
+	 */
+	public long getLong(int row, int column) {
+		if (propertyTypes[column]==VixWrapper.VIX_PROPERTYTYPE_INTEGER) {
+			return ((int[]) columns[column])[row];
+		}
+		checkType(column, VixWrapper.VIX_PROPERTYTYPE_INT64);
+		return ((long[]) columns[column])[row];
+	}
+
+	/** Returns the value of a boolean property
+	 *
+	 * @param row the index of the result
+	 * @param column the index of the column
+	 *
+	 * @return the value of that property
+	 */
+	public boolean getBoolean(int row, int column) {
+		checkType(column, VixWrapper.VIX_PROPERTYTYPE_BOOL);
+		return ((int[]) columns[column])[row] != 0;
+	}
+
+	/** Returns the value of a string property
+	 *
+	 * @param row the index of the result
+	 * @param column the index of the column
+	 *
+	 * @return the value of that property
+	 */
+	public String getString(int row, int column) {
+		checkType(column, VixWrapper.VIX_PROPERTYTYPE_STRING);
+		if (columns[column] instanceof byte[][]) {
+			return Util.decodeUtf8(((byte[][]) columns[column])[row]);
+		}
+		return ((String[]) columns[column])[row];
+	}
+
+	/** Returns the value of a string property as UTF-8 bytes. If the table was
+	 * retrieved with rawStrings set, the array returned is the one created by the
+	 * native library, and should not be modified.
+	 *
+	 * @param row the index of the result
+	 * @param column the index of the column
+	 *
+	 * @return the value of that property, encoded as UTF-8
+	 */
+	public byte[] getBytes(int row, int column) {
+		checkType(column, VixWrapper.VIX_PROPERTYTYPE_STRING);
+		if (columns[column] instanceof byte[][]) {
+			return ((byte[][]) columns[column])[row];
+		}
+		return Util.encodeUtf8(((String[]) columns[column])[row]);
+	}
+
+	/** Returns the value of a handle property. The caller is responsible
+	 * for releasing this handle.
+	 *
+	 * @param row the index of the result
+	 * @param column the index of the column
+	 *
+	 * @return the value of that property
+	 */
+	public VixHandle getHandle(int row, int column) {
+		checkType(column, VixWrapper.VIX_PROPERTYTYPE_HANDLE);
+		return VixHandleTable.get(((int[]) columns[column])[row]);
+	}
+
+	/** Returns the value of a property as an object, in the same form as
+	 * the List-based methods in VixWrapper would return it (i.e. an Integer,
+	 * Long, Boolean, String or VixHandle).
+	 *
+	 * @param row the index of the result
+	 * @param column the index of the column
+	 *
+	 * @return the value of that property
+	 */
+	public Object getObject(int row, int column) {
+		switch (propertyTypes[column]) {
+			case VixWrapper.VIX_PROPERTYTYPE_INTEGER: return new Integer(getInt(row, column));
+			case VixWrapper.VIX_PROPERTYTYPE_INT64: return new Long(getLong(row, column));
+			case VixWrapper.VIX_PROPERTYTYPE_BOOL: return Boolean.valueOf(getBoolean(row, column));
+			case VixWrapper.VIX_PROPERTYTYPE_HANDLE: return getHandle(row, column);
+			case VixWrapper.VIX_PROPERTYTYPE_STRING: return getString(row, column);
+			default:
+				throw new IndexOutOfBoundsException("Row " + row + " out of range; rowCount=" + rowCount);
+		}
+	}
+
+	/** Throws an IllegalStateException if the property in the supplied column
+	 * is not of the expected type
+	 *
+	 * @param column column to check
+	 * @param propertyType the expected VIX_PROPERTYTYPE_* type
+	 */
+	private void checkType(int column, int propertyType) {
+		if (propertyTypes[column]!=propertyType) {
+			throw new IllegalStateException("Property " + propertyIds[column] + " in column " +
+			  column + " has type " + propertyTypes[column] + "; expected " + propertyType);
+		}
+	}
+
+}
@@ -0,0 +1,267 @@
+package net.sf.jvix;
+
+import org.apache.log4j.Logger;
+
+/** Accumulates handles which are to be released, and releases them in batches
+ * with a single call into the native library.
+ *
+ * <p>Handles passed to {@link #release(VixHandle)} are removed from the
+ * {@link VixHandleTable} immediately, but are only released by the native library
+ * when this batcher is flushed, which happens when:
+ * <ul>
+ * <li>the number of pending handles reaches the batch size;
+ * <li>a handle is released more than maxDelayMillis after the oldest pending handle;
+ * <li>the reaper thread wakes, which it does every maxDelayMillis while handles are pending; or
+ * <li>{@link #flush()} is called.
+ * </ul>
+ *
+ * <p>The handles owned by {@link VixVM} and {@link VixSnapshot} objects are released
+ * through the default batcher (see {@link #getDefault()}) when those objects are closed or
+ * finalized; {@link VixHost#close()} flushes it before disconnecting from the host. Since
+ * the handles in a batch are still allocated in the native library until the batch is
+ * flushed, applications which close a large number of objects and then wait for the
+ * host to free their resources should call {@link #flush()} first.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class ReleaseBatcher {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(ReleaseBatcher.class);
+
+	/** Default number of handles released in each batch */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/** Default maximum time a handle is held before being released, in milliseconds */
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+
+	/** The batcher used by the object-oriented API */
+	private static ReleaseBatcher defaultBatcher = new ReleaseBatcher(DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+
+	/** Number of handles which causes a batch to be flushed */
+	private int batchSize;
+
+	/** Maximum time a handle is held before being released, in milliseconds */
+	private long maxDelayMillis;
+
+	/** Raw values of the handles waiting to be released */
+	private int[] pending;
+
+	/** Number of entries in pending */
+	private int pendingCount = 0;
+
+	/** Time the oldest pending handle was added, in milliseconds */
+	private long oldestPendingTime = 0;
+
+	/** Thread which flushes pending handles periodically; null if not started */
+	private ReaperThread reaperThread = null;
+
+	/** Number of handles released through this batcher */
+	private long releaseCount = 0;
+
+	/** Number of batches flushed */
+	private long flushCount = 0;
+
+	/** Create a new ReleaseBatcher. The reaper thread is started when the first
+	 * handle is released.
+	 *
+	 * @param batchSize the number of pending handles which causes a batch to be flushed
+	 * @param maxDelayMillis the maximum time a handle is held before being released, in
+	 *   milliseconds; if 0, handles are only released when the batch is full or
+	 *   {@link #flush()} is called, and no reaper thread is started
+	 */
+	public ReleaseBatcher(int batchSize, long maxDelayMillis) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		if (maxDelayMillis < 0) {
+			throw new IllegalArgumentException("maxDelayMillis must not be negative");
+		}
+		this.batchSize = batchSize;
+		this.maxDelayMillis = maxDelayMillis;
+		this.pending = new int[batchSize];
+	}
+
+	/** Returns the batcher used by the object-oriented API
+	 *
+	 * @return the default batcher
+	 */
+	public static ReleaseBatcher getDefault() {
+		return defaultBatcher;
+	}
+
+	/** Queues a handle to be released. The handle should not be used after this method
+	 * is called.
+	 *
+	 * @param handle the handle to release; null and VIX_INVALID_HANDLE are ignored
+	 */
+	public void release(VixHandle handle) {
+		if (handle == null || handle.getValue() == 0) {
+			return;
+		}
+		VixHandleTable.release(handle);
+		releaseNative(handle.getValue());
+	}
+
+	/** Queues a handle to be released in the native library, for a reference which has
+	 * already been released from the {@link VixHandleTable}
+	 *
+	 * @param value the raw handle value
+	 */
+	void releaseNative(int value) {
+		int[] batch = null;
+		int count = 0;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (pendingCount == 0) {
+				oldestPendingTime = now;
+				if (maxDelayMillis > 0 && reaperThread == null) {
+					reaperThread = new ReaperThread();
+					reaperThread.start();
+				}
+			}
+			pending[pendingCount++] = value;
+			if (pendingCount == batchSize ||
+			  (maxDelayMillis > 0 && now - oldestPendingTime >= maxDelayMillis)) {
+				batch = pending;
+				count = pendingCount;
+				takePending();
+			}
+		}
+		if (batch != null) {
+			releaseBatch(batch, count);
+		}
+	}
+
+	/** Releases every pending handle now */
+	public void flush() {
+		int[] batch;
+		int count;
+		synchronized (this) {
+			if (pendingCount == 0) {
+				return;
+			}
+			batch = pending;
+			count = pendingCount;
+			takePending();
+		}
+		releaseBatch(batch, count);
+	}
+
+	/** Flushes any pending handles, and stops the reaper thread. The reaper thread
+	 * is restarted if further handles are released through this batcher.
+	 */
+	public void shutdown() {
+		ReaperThread thread;
+		synchronized (this) {
+			thread = reaperThread;
+			reaperThread = null;
+			notifyAll();
+		}
+		if (thread != null) {
+			thread.shutdown();
+		}
+		flush();
+	}
+
+	/** Returns the number of handles waiting to be released
+	 *
+	 * @return the number of handles waiting to be released
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	/** Returns the number of handles released by this batcher
+	 *
+	 * @return the number of handles released
+	 */
+	public synchronized long getReleaseCount() {
+		return releaseCount;
+	}
+
+	/** Returns the number of batches released by this batcher. Each batch was
+	 * released with a single call into the native library.
+	 *
+	 * @return the number of batches released
+	 */
+	public synchronized long getFlushCount() {
+		return flushCount;
+	}
+
+	/** Replaces the pending array with an empty one, so that the current contents
+	 * can be released outside this object's lock. Must be called while holding that lock.
+	 */
+	private void takePending() {
+		releaseCount += pendingCount;
+		flushCount++;
+		pending = new int[batchSize];
+		pendingCount = 0;
+	}
+
+	/** Releases a batch of handles in the native library
+	 *
+	 * @param batch raw handle values
+	 * @param count the number of entries in batch
+	 */
+	private void releaseBatch(int[] batch, int count) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Releasing " + count + " handles");
+		}
+		VixWrapper.Jvix_ReleaseHandles(batch, count);
+	}
+
+	/** Thread which flushes the batch when its oldest handle has been held for
+	 * maxDelayMillis */
+	private class ReaperThread extends Thread {
+
+		/** Set to false when this thread should stop */
+		private volatile boolean running = true;
+
+		public ReaperThread() {
+			super("jvix-release-reaper");
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (running) {
+				boolean expired;
+				synchronized (ReleaseBatcher.this) {
+					long delay = (pendingCount == 0 ? maxDelayMillis :
+					  oldestPendingTime + maxDelayMillis - System.currentTimeMillis());
+					if (delay > 0) {
+						try {
+							ReleaseBatcher.this.wait(delay);
+						} catch (InterruptedException ie) {
+							// check running flag
+						}
+					}
+					expired = pendingCount > 0 &&
+					  System.currentTimeMillis() - oldestPendingTime >= maxDelayMillis;
+				}
+				if (expired && running) {
+					try {
+						flush();
+					} catch (RuntimeException re) {
+						logger.error("Exception releasing handles", re);
+					}
+				}
+			}
+		}
+
+		/** Stop this thread */
+		public void shutdown() {
+			running = false;
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,154 @@
+package net.sf.jvix;
+
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+/** The value of a VIX_PROPERTYTYPE_BLOB property (e.g. the
+ * VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA property returned by
+ * {@link VixWrapper#VixVM_CaptureScreenImage(VixHandle, int, VixHandle, VixEventProc, Object)}).
+ *
+ * <p>The blob data remains in the memory allocated by the VIX API until it is read,
+ * and is only ever read through the methods of this class: {@link #copyTo(ByteBuffer)}
+ * copies it into a buffer supplied by the caller, and {@link #getBytes()} and
+ * {@link #getBuffer()} copy it into the java heap. None of these refer to the VIX
+ * memory once they have returned, so the data they return remains valid after the
+ * blob has been freed.
+ *
+ * <p>The VIX memory is released when {@link #free()} is called, which the caller is
+ * responsible for doing once the data has been read. A VixBlob which is garbage
+ * collected without having been freed is logged as a leak.
+ *
+ * <p>Instances of this class are created by the native library. This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixBlob {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(VixBlob.class);
+
+	/** A read-only direct buffer wrapping the VIX memory, or null if the blob is empty.
+	 * This buffer is never returned to callers. */
+	private ByteBuffer buffer;
+
+	/** The address of the VIX-allocated memory, or 0 if the blob is empty */
+	private long address;
+
+	/** The size of the blob, in bytes */
+	private int size;
+
+	/** True once the blob has been freed */
+	private boolean freed = false;
+
+	/** Create a new VixBlob. This constructor is invoked by the native
+	 * library (see VixWrapper.c); if its signature is changed, the native
+	 * library must be changed as well.
+	 *
+	 * @param buffer a direct ByteBuffer wrapping the blob data, or null if the blob is empty
+	 * @param address the address of the VIX-allocated memory, which will be passed
+	 *   to Vix_FreeBuffer when this blob is freed
+	 */
+	VixBlob(ByteBuffer buffer, long address) {
+		this.buffer = (buffer == null ? null : buffer.asReadOnlyBuffer());
+		this.address = address;
+		this.size = (buffer == null ? 0 : buffer.capacity());
+	}
+
+	/** Returns the size of the blob, in bytes
+	 *
+	 * @return the size of the blob
+	 */
+	public int size() {
+		return size;
+	}
+
+	/** Returns a copy of the blob data
+	 *
+	 * @return a new array containing the blob data
+	 *
+	 * @throws IllegalStateException if this blob has been freed
+	 */
+	public synchronized byte[] getBytes() {
+		checkNotFreed();
+		byte[] bytes = new byte[size];
+		if (buffer != null) {
+			buffer.duplicate().get(bytes);
+		}
+		return bytes;
+	}
+
+	/** Returns a read-only buffer containing a copy of the blob data, positioned at
+	 * the start of the data. The buffer is allocated in the java heap, and remains
+	 * valid after the blob has been freed.
+	 *
+	 * @return a read-only buffer containing the blob data
+	 *
+	 * @throws IllegalStateException if this blob has been freed
+	 */
+	public ByteBuffer getBuffer() {
+		return ByteBuffer.wrap(getBytes()).asReadOnlyBuffer();
+	}
+
+	/** Copies the blob data into a caller-supplied buffer, starting at the
+	 * buffer's current position, and advances the buffer's position by the size
+	 * of the blob. The data is copied directly from the VIX memory, without an
+	 * intermediate copy in the java heap.
+	 *
+	 * @param dest the buffer to copy the data into
+	 *
+	 * @throws java.nio.BufferOverflowException if there is insufficient space remaining in dest
+	 * @throws IllegalStateException if this blob has been freed
+	 */
+	public synchronized void copyTo(ByteBuffer dest) {
+		checkNotFreed();
+		if (buffer != null) {
+			dest.put(buffer.duplicate());
+		}
+	}
+
+	/** Returns true if the memory for this blob has been released
+	 *
+	 * @return true if the memory for this blob has been released
+	 */
+	public synchronized boolean isFreed() {
+		return freed;
+	}
+
+	/** Releases the memory used by this blob. Subsequent calls have no effect.
+	 */
+	public synchronized void free() {
+		if (!freed) {
+			freed = true;
+			buffer = null;
+			if (address != 0) {
+				VixWrapper.Jvix_FreeBlob(address);
+				address = 0;
+			}
+		}
+	}
+
+	/** Throws an IllegalStateException if this blob has been freed. Must be called
+	 * while synchronized. */
+	private void checkNotFreed() {
+		if (freed) {
+			throw new IllegalStateException("VixBlob has been freed");
+		}
+	}
+
+	/** Logs a blob which was not freed. The memory is not released here; blobs
+	 * must be freed explicitly.
+	 */
+	protected void finalize() throws Throwable {
+		try {
+			if (!freed && address != 0) {
+				logger.warn("VixBlob of " + size + " bytes was garbage collected without being freed; " +
+				  "its memory has been leaked");
+			}
+		} finally {
+			super.finalize();
+		}
+	}
+
+}
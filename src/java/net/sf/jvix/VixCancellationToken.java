@@ -0,0 +1,321 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/** A deadline, and a means of cancelling the VIX operations performed under it.
+ *
+ * <p>VIX jobs cannot be stopped once they have started, and a job in a guest which
+ * has stopped responding (e.g. a runProgramInGuest or copyFileFromGuestToHost) may
+ * never complete. A VixCancellationToken lets an application stop waiting for such
+ * jobs. When the token is cancelled, either explicitly with {@link #cancel()} or
+ * because its deadline has passed:
+ * <ul>
+ * <li>synchronous methods of {@link VixVM} and {@link VixHost} which are waiting for
+ *   a job, on any thread which has made this the {@link #setCurrent(VixCancellationToken)
+ *   current token}, throw a VixException with the error code VIX_E_CANCELLED;
+ * <li>futures returned by asynchronous methods on those threads, and any other futures
+ *   passed to {@link #attach(VixFuture)}, are cancelled.
+ * </ul>
+ * The jobs concerned are then abandoned: they run to completion in VIX, after which
+ * their handles (and the results of their futures) are released. The number of jobs
+ * reclaimed in this way is returned by {@link VixWrapper#getAbandonedJobCount()}.
+ * Synchronous methods which are called once the token has been cancelled throw that
+ * VixException without starting a job; asynchronous methods still start their job, but
+ * their future is cancelled immediately.
+ *
+ * <p>The same token is intended to be used for every step of a multi-step workflow,
+ * so that a single timeout releases every thread and handle involved:
+ * <pre>
+ * VixCancellationToken token = new VixCancellationToken(10 * 60 * 1000);
+ * VixCancellationToken previous = VixCancellationToken.setCurrent(token);
+ * try {
+ *     vm.powerOn(VixWrapper.VIX_VMPOWEROP_NORMAL);
+ *     vm.waitForToolsInGuest(0);
+ *     vm.runProgramInGuest("c:\\setup.exe", "/quiet", 0);
+ * } finally {
+ *     VixCancellationToken.setCurrent(previous);
+ * }
+ * </pre>
+ * Steps with shorter timeouts of their own can use a {@link #newChild(long) child token},
+ * which is cancelled when its parent is.
+ *
+ * <p>Deadlines are enforced by a single daemon thread, named "jvix-deadline-timer". A
+ * token which is no longer needed should be {@link #close() closed}, which removes its
+ * deadline from that thread, and removes a child token from its parent. A token is
+ * closed automatically when it is cancelled. This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixCancellationToken {
+
+	/** Timer which cancels tokens at their deadlines */
+	private static Timer deadlineTimer = null;
+
+	/** The token of each thread, set by setCurrent() */
+	private static ThreadLocal currentToken = new ThreadLocal();
+
+	/** The deadline, as a System.currentTimeMillis() value, or Long.MAX_VALUE if there is none */
+	private long deadline;
+
+	/** The token this is a child of, or null; cleared once this token is closed */
+	private VixCancellationToken parent = null;
+
+	/** The task which cancels this token at its deadline, or null */
+	private TimerTask deadlineTask = null;
+
+	/** Futures to cancel; null once cancelled */
+	private List attached = new ArrayList();
+
+	/** Child tokens to cancel; null once cancelled */
+	private List children = new ArrayList();
+
+	/** True if this token was cancelled because its deadline passed */
+	private boolean expired = false;
+
+	/** Create a new VixCancellationToken with no deadline, which is only cancelled
+	 * by {@link #cancel()} */
+	public VixCancellationToken() {
+		this.deadline = Long.MAX_VALUE;
+	}
+
+	/** Create a new VixCancellationToken which is cancelled after a timeout
+	 *
+	 * @param timeoutMillis the time until the deadline, in milliseconds
+	 */
+	public VixCancellationToken(long timeoutMillis) {
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("timeoutMillis must not be negative");
+		}
+		this.deadline = System.currentTimeMillis() + timeoutMillis;
+		scheduleDeadline();
+	}
+
+	/** Returns a new token which is cancelled when this token is cancelled, or after a
+	 * timeout, whichever comes first
+	 *
+	 * @param timeoutMillis the time until the child's deadline, in milliseconds, or -1
+	 *   to use this token's deadline
+	 *
+	 * @return the child token
+	 */
+	public VixCancellationToken newChild(long timeoutMillis) {
+		VixCancellationToken child = new VixCancellationToken();
+		long childDeadline = (timeoutMillis < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis);
+		child.deadline = Math.min(deadline, childDeadline);
+		boolean cancelled;
+		synchronized (this) {
+			cancelled = (children == null);
+			if (!cancelled) {
+				children.add(child);
+				child.parent = this;
+			}
+		}
+		if (cancelled) {
+			child.cancel(expired);
+		} else if (child.deadline != Long.MAX_VALUE) {
+			child.scheduleDeadline();
+		}
+		return child;
+	}
+
+	/** Sets the token used by synchronous and asynchronous VIX operations started by
+	 * the current thread
+	 *
+	 * @param token the token, or null if operations should not be cancelled
+	 *
+	 * @return the previous token for this thread, which should be restored once the
+	 *   operations have completed
+	 */
+	public static VixCancellationToken setCurrent(VixCancellationToken token) {
+		VixCancellationToken previous = (VixCancellationToken) currentToken.get();
+		currentToken.set(token);
+		return previous;
+	}
+
+	/** Returns the token used by VIX operations started by the current thread
+	 *
+	 * @return the current token, or null if there is none
+	 */
+	public static VixCancellationToken getCurrent() {
+		return (VixCancellationToken) currentToken.get();
+	}
+
+	/** Throws a VixException if the current thread's token has been cancelled. Called by
+	 * synchronous methods before they start a job.
+	 *
+	 * @throws VixException with the error code VIX_E_CANCELLED if the current token has
+	 *   been cancelled
+	 */
+	static void checkCurrent() throws VixException {
+		VixCancellationToken token = getCurrent();
+		if (token != null) {
+			token.checkCancelled();
+		}
+	}
+
+	/** Cancels this token, and every child token. Futures attached to these tokens are
+	 * cancelled, and threads waiting for jobs under them stop waiting.
+	 */
+	public void cancel() {
+		cancel(false);
+	}
+
+	/** Returns true if this token has been cancelled, or its deadline has passed
+	 *
+	 * @return true if this token has been cancelled
+	 */
+	public synchronized boolean isCancelled() {
+		return attached == null;
+	}
+
+	/** Returns true if this token was cancelled because its deadline (or the deadline of
+	 * a parent token) passed
+	 *
+	 * @return true if this token has expired
+	 */
+	public synchronized boolean isExpired() {
+		return expired;
+	}
+
+	/** Returns the time remaining until this token's deadline
+	 *
+	 * @return the time remaining, in milliseconds; 0 if the deadline has passed, or
+	 *   Long.MAX_VALUE if this token has no deadline
+	 */
+	public long getRemainingMillis() {
+		if (deadline == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
+	/** Throws a VixException if this token has been cancelled. This can be used
+	 * between the steps of a workflow which do not wait for VIX jobs.
+	 *
+	 * @throws VixException with the error code VIX_E_CANCELLED if this token has been
+	 *   cancelled
+	 */
+	public void checkCancelled() throws VixException {
+		if (isCancelled()) {
+			throw new VixException(VixException.VIX_E_CANCELLED);
+		}
+	}
+
+	/** Cancels a future when this token is cancelled. If this token has already been
+	 * cancelled, the future is cancelled immediately.
+	 *
+	 * @param future the future to cancel
+	 *
+	 * @return the future
+	 */
+	public VixFuture attach(final VixFuture future) {
+		synchronized (this) {
+			if (attached != null) {
+				attached.add(future);
+			}
+		}
+		if (isCancelled()) {
+			future.cancel(false);
+		} else {
+			// don't hold on to futures which complete normally
+			future.addListener(new VixFutureListener() {
+				public void completed(VixFuture f) {
+					synchronized (VixCancellationToken.this) {
+						if (attached != null) { attached.remove(f); }
+					}
+				}
+			});
+		}
+		return future;
+	}
+
+	/** Releases the resources held by this token once the operations performed under it
+	 * have finished: its deadline is removed from the deadline timer, and if it is a
+	 * child token, it is removed from its parent. The token is not cancelled, and can
+	 * still be cancelled explicitly, but will no longer be cancelled by its deadline or
+	 * its parent. Subsequent calls have no effect.
+	 */
+	public void close() {
+		TimerTask task;
+		VixCancellationToken parentToken;
+		synchronized (this) {
+			task = deadlineTask;
+			parentToken = parent;
+			deadlineTask = null;
+			parent = null;
+		}
+		if (task != null && task.cancel()) {
+			synchronized (VixCancellationToken.class) {
+				deadlineTimer.purge();
+			}
+		}
+		if (parentToken != null) {
+			parentToken.removeChild(this);
+		}
+	}
+
+	/** Returns the number of child tokens which have been neither cancelled nor closed
+	 *
+	 * @return the number of child tokens
+	 */
+	public synchronized int getChildCount() {
+		return (children == null ? 0 : children.size());
+	}
+
+	/** Removes a child token which has been cancelled or closed
+	 *
+	 * @param child the child token
+	 */
+	private synchronized void removeChild(VixCancellationToken child) {
+		if (children != null) {
+			children.remove(child);
+		}
+	}
+
+	/** Cancels this token and its children, then closes it
+	 *
+	 * @param deadlinePassed true if the token is being cancelled because a deadline passed
+	 */
+	private void cancel(boolean deadlinePassed) {
+		List toCancel;
+		List childrenToCancel;
+		synchronized (this) {
+			if (attached == null) { return; }
+			toCancel = attached;
+			childrenToCancel = children;
+			attached = null;
+			children = null;
+			expired = deadlinePassed;
+		}
+		for (int i = 0; i < toCancel.size(); i++) {
+			((VixFuture) toCancel.get(i)).cancel(false);
+		}
+		for (int i = 0; i < childrenToCancel.size(); i++) {
+			((VixCancellationToken) childrenToCancel.get(i)).cancel(deadlinePassed);
+		}
+		close();
+	}
+
+	/** Schedules this token to be cancelled at its deadline */
+	private void scheduleDeadline() {
+		TimerTask task = new TimerTask() {
+			public void run() {
+				VixCancellationToken.this.cancel(true);
+			}
+		};
+		synchronized (this) {
+			deadlineTask = task;
+		}
+		synchronized (VixCancellationToken.class) {
+			if (deadlineTimer == null) {
+				deadlineTimer = new Timer("jvix-deadline-timer", true);
+			}
+			deadlineTimer.schedule(task, getRemainingMillis());
+		}
+	}
+
+}
@@ -0,0 +1,414 @@
+package net.sf.jvix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/** Delivers {@link VixEventProc} callbacks on a pool of java threads, rather than on
+ * the VIX library's own worker threads.
+ *
+ * <p>By default, VixEventProc callbacks are invoked synchronously by the thread
+ * VIX uses to process events, so a slow callback delays events for every other
+ * job on the same host. While a VixEventDispatcher is running, the native library
+ * instead writes a small record for each event into a ring buffer, and returns
+ * to VIX immediately. A drain thread removes these records from the ring (through
+ * the native library, which reads them with the memory barriers the VIX threads'
+ * writes require) and passes them to one of a fixed number of dispatch threads,
+ * which invoke the callbacks.
+ *
+ * <p>Events for the same job are always delivered by the same dispatch thread, so
+ * are delivered in the order VIX raised them (and VIX_EVENTTYPE_JOB_COMPLETED is always
+ * the last event delivered for a job). The job handle and moreEventInfo handle passed
+ * to the callback remain valid until the callback returns.
+ *
+ * <p>If the ring buffer fills, VIX threads wait until space is available; the number of
+ * events which had to wait is available from {@link #getProducerWaitCount()}.
+ *
+ * <p>Only one dispatcher may be running at a time. Usage:
+ * <pre>
+ * VixEventDispatcher dispatcher = new VixEventDispatcher(4, 4096);
+ * dispatcher.start();
+ * ...
+ * dispatcher.shutdown();
+ * </pre>
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixEventDispatcher {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(VixEventDispatcher.class);
+
+	// layout of the ring buffer; these must match the EVENT_QUEUE_* definitions in VixWrapper.c
+
+	/** Size of the buffer header, which contains the head, wait and tail counters */
+	static final int HEADER_SIZE = 128;
+
+	/** Offset of the head (producer) counter */
+	static final int HEAD_OFFSET = 0;
+
+	/** Offset of the count of events which found the ring full */
+	static final int WAIT_OFFSET = 4;
+
+	/** Offset of the tail (consumer) counter, on a separate cache line to the head */
+	static final int TAIL_OFFSET = 64;
+
+	/** Size of each event record (an EventRecord in VixWrapper.c) */
+	static final int RECORD_SIZE = 32;
+
+	/** Maximum number of events read from the ring in one batch (EVENT_DRAIN_BATCH_SIZE
+	 * in VixWrapper.c) */
+	private static final int BATCH_SIZE = 256;
+
+	/** The dispatcher currently running, if any */
+	private static VixEventDispatcher activeDispatcher = null;
+
+	/** Number of dispatch threads */
+	private int threadCount;
+
+	/** Number of records in the ring */
+	private int capacity;
+
+	/** The ring buffer shared with the native library */
+	private ByteBuffer buffer;
+
+	/** Thread which reads events from the ring */
+	private DrainThread drainThread;
+
+	/** Threads which invoke callbacks */
+	private DispatchThread[] dispatchThreads;
+
+	/** Number of events delivered */
+	private AtomicLong dispatchCount = new AtomicLong();
+
+	/** Total time between events being queued and delivered, in milliseconds */
+	private AtomicLong totalLatency = new AtomicLong();
+
+	/** Maximum time between an event being queued and delivered, in milliseconds */
+	private AtomicLong maxLatency = new AtomicLong();
+
+	/** Create a new dispatcher. The dispatcher does not receive events until
+	 * {@link #start()} is called.
+	 *
+	 * @param threadCount the number of threads which will invoke callbacks
+	 * @param capacity the number of events which can be queued before VIX threads
+	 *   must wait; rounded up to a power of two
+	 */
+	public VixEventDispatcher(int threadCount, int capacity) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount must be at least 1");
+		}
+		if (capacity < 2) {
+			throw new IllegalArgumentException("capacity must be at least 2");
+		}
+		this.threadCount = threadCount;
+		this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+	}
+
+	/** Start delivering events through this dispatcher
+	 *
+	 * @throws IllegalStateException if a dispatcher is already running
+	 * @throws VixException if the native library could not use the ring buffer
+	 */
+	public void start() throws VixException {
+		synchronized (VixEventDispatcher.class) {
+			if (activeDispatcher != null) {
+				throw new IllegalStateException("A VixEventDispatcher is already running");
+			}
+			buffer = ByteBuffer.allocateDirect(HEADER_SIZE + RECORD_SIZE * capacity);
+			buffer.order(ByteOrder.nativeOrder());
+			// events raised before the threads have started just wait in the buffer
+			VixWrapper.Jvix_SetEventQueue(buffer);
+			dispatchThreads = new DispatchThread[threadCount];
+			for (int i=0; i<threadCount; i++) {
+				dispatchThreads[i] = new DispatchThread(i);
+				dispatchThreads[i].start();
+			}
+			drainThread = new DrainThread();
+			drainThread.start();
+			activeDispatcher = this;
+		}
+	}
+
+	/** Stop delivering events through this dispatcher. Events raised after this method
+	 * is called are delivered synchronously by VIX threads; events which have already been
+	 * queued are delivered before this method returns.
+	 */
+	public void shutdown() {
+		synchronized (VixEventDispatcher.class) {
+			if (activeDispatcher != this) {
+				return;
+			}
+			try {
+				VixWrapper.Jvix_SetEventQueue(null);
+			} catch (VixException ve) {
+				// not thrown when the buffer is null
+			}
+			activeDispatcher = null;
+		}
+		drainThread.shutdown();
+		for (int i=0; i<threadCount; i++) {
+			dispatchThreads[i].shutdown();
+		}
+	}
+
+	/** Returns true if the current thread is a dispatch thread of a VixEventDispatcher
+	 *
+	 * @return true if the current thread is a dispatch thread
+	 */
+	static boolean isDispatchThread() {
+		return Thread.currentThread() instanceof DispatchThread;
+	}
+
+	/** Returns the number of events which have been raised by VIX but not yet delivered
+	 *
+	 * @return the number of events waiting to be delivered
+	 */
+	public int getQueueDepth() {
+		if (buffer == null) { return 0; }
+		int depth = buffer.getInt(HEAD_OFFSET) - buffer.getInt(TAIL_OFFSET);
+		for (int i=0; i<threadCount; i++) {
+			depth += dispatchThreads[i].getQueueSize();
+		}
+		return depth;
+	}
+
+	/** Returns the number of events which have been delivered by this dispatcher
+	 *
+	 * @return the number of events delivered
+	 */
+	public long getDispatchCount() {
+		return dispatchCount.get();
+	}
+
+	/** Returns the average time between events being raised by VIX and delivered to
+	 * their VixEventProc, in milliseconds
+	 *
+	 * @return the average dispatch latency
+	 */
+	public double getAverageLatency() {
+		long count = dispatchCount.get();
+		return count == 0 ? 0 : (double) totalLatency.get() / count;
+	}
+
+	/** Returns the maximum time between an event being raised by VIX and delivered to
+	 * its VixEventProc, in milliseconds
+	 *
+	 * @return the maximum dispatch latency
+	 */
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	/** Returns the number of events which found the ring buffer full, and so held up
+	 * a VIX thread until this dispatcher had made room for them. If this is
+	 * non-zero, the capacity or number of threads should be increased.
+	 *
+	 * @return the number of events which waited for space in the ring buffer
+	 */
+	public int getProducerWaitCount() {
+		return buffer == null ? 0 : buffer.getInt(WAIT_OFFSET);
+	}
+
+	/** Records the latency of an event which is about to be delivered
+	 *
+	 * @param latency the time since the event was queued, in milliseconds
+	 */
+	private void recordLatency(long latency) {
+		dispatchCount.incrementAndGet();
+		totalLatency.addAndGet(latency);
+		long max = maxLatency.get();
+		while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+			max = maxLatency.get();
+		}
+	}
+
+	/** An event read from the ring buffer */
+	private static class Event {
+		int jobHandle;
+		int eventType;
+		int moreEventInfo;
+		long timestamp;
+		VixEventProc eventProc;
+		Object clientData;
+	}
+
+	/** Marker placed on a dispatch thread's queue to stop it */
+	private static final Event SHUTDOWN_EVENT = new Event();
+
+	/** Thread which reads events from the ring buffer, retrieves the VixEventProc
+	 * and clientData objects for them, and passes them to the dispatch threads */
+	private class DrainThread extends Thread {
+
+		/** Set to false when this thread should stop, once the ring is empty */
+		private volatile boolean running = true;
+
+		private int[] jobHandles = new int[BATCH_SIZE];
+		private int[] eventTypes = new int[BATCH_SIZE];
+		private int[] moreEventInfos = new int[BATCH_SIZE];
+		private int[] slotIds = new int[BATCH_SIZE];
+		private long[] timestamps = new long[BATCH_SIZE];
+		private Object[] eventProcs = new Object[BATCH_SIZE];
+		private Object[] clientDatas = new Object[BATCH_SIZE];
+
+		public DrainThread() {
+			super("jvix-event-drain");
+			setDaemon(true);
+		}
+
+		public void run() {
+			int idleCount = 0;
+			while (true) {
+				int count = readBatch();
+				if (count > 0) {
+					idleCount = 0;
+					dispatchBatch(count);
+				} else if (!running) {
+					break;
+				} else if (++idleCount < 100) {
+					Thread.yield();
+				} else {
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException ie) {
+						// check running flag
+					}
+				}
+			}
+		}
+
+		/** Removes published records from the ring buffer. This is only called by
+		 * this thread, which is the ring's single consumer.
+		 *
+		 * @return the number of records read
+		 */
+		private int readBatch() {
+			return VixWrapper.Jvix_DrainEvents(buffer, jobHandles, eventTypes, moreEventInfos,
+			  slotIds, timestamps);
+		}
+
+		/** Passes a batch of events to the dispatch threads
+		 *
+		 * @param count the number of events in the batch
+		 */
+		private void dispatchBatch(int count) {
+			VixWrapper.Jvix_ResolveEventSlots(slotIds, eventTypes, count, eventProcs, clientDatas);
+			for (int i=0; i<count; i++) {
+				Event event = new Event();
+				event.jobHandle = jobHandles[i];
+				event.eventType = eventTypes[i];
+				event.moreEventInfo = moreEventInfos[i];
+				event.timestamp = timestamps[i];
+				event.eventProc = (VixEventProc) eventProcs[i];
+				event.clientData = clientDatas[i];
+				eventProcs[i] = null;
+				clientDatas[i] = null;
+				dispatchThreads[(event.jobHandle & 0x7fffffff) % threadCount].enqueue(event);
+			}
+		}
+
+		/** Stop this thread, once all events in the ring buffer have been read */
+		public void shutdown() {
+			running = false;
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Thread which invokes the VixEventProc for each event passed to it */
+	private class DispatchThread extends Thread {
+
+		/** Events waiting to be delivered */
+		private LinkedBlockingQueue queue = new LinkedBlockingQueue();
+
+		/** Handles to be released once their events have been delivered */
+		private int[] releaseHandles = new int[BATCH_SIZE];
+		private int releaseCount = 0;
+
+		public DispatchThread(int index) {
+			super("jvix-event-dispatch-" + index);
+			setDaemon(true);
+		}
+
+		public void enqueue(Event event) {
+			queue.add(event);
+		}
+
+		public int getQueueSize() {
+			return queue.size();
+		}
+
+		public void run() {
+			while (true) {
+				Event event;
+				try {
+					// release handles whenever there's nothing else to do
+					event = (Event) (releaseCount == 0 ? queue.take() : queue.poll());
+				} catch (InterruptedException ie) {
+					continue;
+				}
+				if (event == null) {
+					flushReleases();
+				} else if (event == SHUTDOWN_EVENT) {
+					flushReleases();
+					break;
+				} else {
+					dispatch(event);
+					// don't keep the clientData reachable while waiting for the next event
+					event = null;
+				}
+			}
+		}
+
+		/** Invoke the VixEventProc for an event
+		 *
+		 * @param event the event to deliver
+		 */
+		private void dispatch(Event event) {
+			recordLatency(System.currentTimeMillis() - event.timestamp);
+			if (event.eventProc != null) {
+				try {
+					event.eventProc.callback(VixHandleTable.get(event.jobHandle), event.eventType,
+					  VixHandleTable.get(event.moreEventInfo), event.clientData);
+				} catch (Throwable t) {
+					logger.error("Exception in VixEventProc for job handle " + event.jobHandle, t);
+				}
+			}
+			if (event.jobHandle != 0) { addRelease(event.jobHandle); }
+			if (event.moreEventInfo != 0) { addRelease(event.moreEventInfo); }
+		}
+
+		private void addRelease(int handle) {
+			if (releaseCount == releaseHandles.length) {
+				flushReleases();
+			}
+			releaseHandles[releaseCount++] = handle;
+		}
+
+		private void flushReleases() {
+			if (releaseCount > 0) {
+				VixWrapper.Jvix_ReleaseEventHandles(releaseHandles, releaseCount);
+				releaseCount = 0;
+			}
+		}
+
+		/** Stop this thread, once all events passed to it have been delivered */
+		public void shutdown() {
+			queue.add(SHUTDOWN_EVENT);
+			try {
+				join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
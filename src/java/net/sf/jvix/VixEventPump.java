@@ -0,0 +1,288 @@
+package net.sf.jvix;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/** Calls Vix_PumpEvents on a dedicated thread, for a host connected with
+ * VIX_HOSTOPTION_USE_EVENT_PUMP.
+ *
+ * <p>When a host is connected in event-pump mode, VIX does not process events on
+ * its own worker threads; instead, all completions, progress events and VixEventProc
+ * callbacks for that host are run by whichever thread calls Vix_PumpEvents. A
+ * VixEventPump is started for each {@link VixHost} created with the
+ * {@link VixHost#VixHost(int, int, String, int, String, String, int)} constructor and the
+ * VIX_HOSTOPTION_USE_EVENT_PUMP option, so that every callback for that host runs on a
+ * single java thread, named "jvix-event-pump-<i>n</i>", whose CPU usage can be measured
+ * with {@link #getCpuTime()}.
+ *
+ * <p>The pump adapts to the amount of work outstanding:
+ * <ul>
+ * <li>while events are being delivered, it pumps continuously;
+ * <li>when a pump delivers no events but jobs with callbacks are still pending, it
+ *   yields for up to spinCount pumps, then parks for progressively longer
+ *   periods, starting at {@link #MIN_PARK_NANOS} and doubling up to busyParkMillis;
+ * <li>when no jobs are pending, it waits for up to idleParkMillis between pumps,
+ *   and is woken as soon as a job with a VixEventProc is created.
+ * </ul>
+ * The pump never waits longer than idleParkMillis, since jobs created without a
+ * VixEventProc (e.g. by most synchronous methods of VixVM and VixHost) also need
+ * events to be pumped, but are not counted as pending; while a host is otherwise idle,
+ * these jobs may therefore take up to idleParkMillis longer to complete. Jobs are
+ * counted against the host they were created on, or the host their VM was opened on;
+ * jobs whose host is not known keep every host's pump busy until they complete.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixEventPump {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(VixEventPump.class);
+
+	/** Default number of empty pumps before the pump starts parking */
+	public static final int DEFAULT_SPIN_COUNT = 100;
+
+	/** Default longest park between pumps while jobs are pending, in milliseconds */
+	public static final long DEFAULT_BUSY_PARK_MILLIS = 1;
+
+	/** Default park between pumps while no jobs are pending, in milliseconds */
+	public static final long DEFAULT_IDLE_PARK_MILLIS = 10;
+
+	/** Shortest park between pumps, in nanoseconds */
+	public static final long MIN_PARK_NANOS = 10000;
+
+	/** Number used to name the next pump thread */
+	private static int threadNumber = 0;
+
+	/** Raw value of the host handle being pumped */
+	private int hostHandle;
+
+	/** Number of empty pumps before the pump starts parking */
+	private int spinCount;
+
+	/** Longest park between pumps while jobs are pending, in nanoseconds */
+	private long busyParkNanos;
+
+	/** Longest wait between pumps while no jobs are pending, in milliseconds */
+	private long idleParkMillis;
+
+	/** Thread which calls Vix_PumpEvents; null if not started */
+	private PumpThread pumpThread = null;
+
+	/** Number of calls to Vix_PumpEvents */
+	private volatile long pumpCount = 0;
+
+	/** Number of events delivered by those calls */
+	private volatile long eventCount = 0;
+
+	/** Number of times the pump thread parked or waited */
+	private volatile long parkCount = 0;
+
+	/** CPU time used by the pump thread when it stopped, in nanoseconds */
+	private long finalCpuTime = -1;
+
+	/** Create a new VixEventPump, using the default spin and park settings
+	 *
+	 * @param hostHandle a host handle connected with VIX_HOSTOPTION_USE_EVENT_PUMP
+	 */
+	public VixEventPump(VixHandle hostHandle) {
+		this(hostHandle, DEFAULT_SPIN_COUNT, DEFAULT_BUSY_PARK_MILLIS, DEFAULT_IDLE_PARK_MILLIS);
+	}
+
+	/** Create a new VixEventPump. The pump does not start until {@link #start()} is called.
+	 *
+	 * @param hostHandle a host handle connected with VIX_HOSTOPTION_USE_EVENT_PUMP
+	 * @param spinCount the number of empty pumps, while jobs are pending, before the
+	 *   pump starts parking
+	 * @param busyParkMillis the longest time to park between pumps while jobs are
+	 *   pending, in milliseconds
+	 * @param idleParkMillis the longest time to wait between pumps while no jobs are
+	 *   pending, in milliseconds; this bounds the latency of jobs created without a
+	 *   VixEventProc
+	 */
+	public VixEventPump(VixHandle hostHandle, int spinCount, long busyParkMillis, long idleParkMillis) {
+		if (hostHandle == null || hostHandle.getValue() == 0) {
+			throw new IllegalArgumentException("invalid hostHandle");
+		}
+		if (spinCount < 0) {
+			throw new IllegalArgumentException("spinCount must not be negative");
+		}
+		if (busyParkMillis < 0 || idleParkMillis < 1) {
+			throw new IllegalArgumentException("busyParkMillis must not be negative, and idleParkMillis must be at least 1");
+		}
+		this.hostHandle = hostHandle.getValue();
+		this.spinCount = spinCount;
+		this.busyParkNanos = Math.max(MIN_PARK_NANOS, TimeUnit.MILLISECONDS.toNanos(busyParkMillis));
+		this.idleParkMillis = idleParkMillis;
+	}
+
+	/** Returns true if the current thread is the pump thread of a VixEventPump
+	 *
+	 * @return true if the current thread is a pump thread
+	 */
+	static boolean isPumpThread() {
+		return Thread.currentThread() instanceof PumpThread;
+	}
+
+	/** Starts the pump thread
+	 *
+	 * @throws IllegalStateException if the pump has already been started
+	 */
+	public synchronized void start() {
+		if (pumpThread != null) {
+			throw new IllegalStateException("VixEventPump already started");
+		}
+		int n;
+		synchronized (VixEventPump.class) {
+			n = threadNumber++;
+		}
+		pumpThread = new PumpThread("jvix-event-pump-" + n);
+		pumpThread.start();
+	}
+
+	/** Stops the pump thread, once it has pumped any events which are already waiting.
+	 * This should be called before the host is disconnected. If the pump is idle, this
+	 * may take up to idleParkMillis.
+	 */
+	public void shutdown() {
+		PumpThread thread;
+		synchronized (this) {
+			thread = pumpThread;
+		}
+		if (thread != null) {
+			thread.shutdown();
+		}
+	}
+
+	/** Returns the number of calls made to Vix_PumpEvents
+	 *
+	 * @return the number of pumps
+	 */
+	public long getPumpCount() {
+		return pumpCount;
+	}
+
+	/** Returns the number of events delivered by the pump thread
+	 *
+	 * @return the number of events delivered
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/** Returns the number of times the pump thread parked or waited because there
+	 * were no events to deliver
+	 *
+	 * @return the number of parks
+	 */
+	public long getParkCount() {
+		return parkCount;
+	}
+
+	/** Returns the CPU time used by the pump thread, which includes the time spent
+	 * in VixEventProc callbacks for this host
+	 *
+	 * @return the CPU time used, in nanoseconds, or -1 if the pump has not started or
+	 *   the JVM does not support thread CPU time measurement
+	 */
+	public synchronized long getCpuTime() {
+		if (finalCpuTime != -1 || pumpThread == null) {
+			return finalCpuTime;
+		}
+		return pumpThread.getCpuTime();
+	}
+
+	/** Thread which pumps events */
+	private class PumpThread extends Thread {
+
+		/** Set to false when this thread should stop */
+		private volatile boolean running = true;
+
+		public PumpThread(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		public void run() {
+			int emptyPumps = 0;
+			long parkNanos = MIN_PARK_NANOS;
+			while (running) {
+				if (pump() > 0) {
+					emptyPumps = 0;
+					parkNanos = MIN_PARK_NANOS;
+				} else if (VixWrapper.Jvix_GetPendingJobCount(hostHandle) == 0) {
+					parkCount++;
+					VixWrapper.Jvix_WaitForPendingJob(hostHandle, idleParkMillis);
+				} else if (emptyPumps < spinCount) {
+					emptyPumps++;
+					Thread.yield();
+				} else {
+					park(parkNanos);
+					parkNanos = Math.min(parkNanos * 2, busyParkNanos);
+				}
+			}
+			// deliver anything which arrived while stopping
+			pump();
+			synchronized (VixEventPump.this) {
+				finalCpuTime = getCpuTime();
+			}
+		}
+
+		/** Calls Vix_PumpEvents once
+		 *
+		 * @return the number of events delivered
+		 */
+		private int pump() {
+			int events = 0;
+			try {
+				events = VixWrapper.Jvix_PumpEvents(hostHandle, VixWrapper.VIX_PUMPEVENTOPTION_NONE);
+			} catch (RuntimeException re) {
+				logger.error("Exception pumping events", re);
+			}
+			pumpCount++;
+			eventCount += events;
+			return events;
+		}
+
+		/** Parks this thread
+		 *
+		 * @param nanos the time to park for, in nanoseconds
+		 */
+		private void park(long nanos) {
+			parkCount++;
+			LockSupport.parkNanos(nanos);
+		}
+
+		/** Returns the CPU time used by this thread
+		 *
+		 * @return the CPU time used, in nanoseconds, or -1 if not supported
+		 */
+		public long getCpuTime() {
+			try {
+				ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+				if (!threadBean.isThreadCpuTimeSupported()) {
+					return -1;
+				}
+				return threadBean.getThreadCpuTime(getId());
+			} catch (UnsupportedOperationException uoe) {
+				return -1;
+			}
+		}
+
+		/** Stop this thread */
+		public void shutdown() {
+			running = false;
+			LockSupport.unpark(this);
+			try {
+				join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,369 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/** Runs the same operation against many virtual machines at once, with a limit on the
+ * number of operations running concurrently, both in total and on each host.
+ *
+ * <p>Each call to {@link #run(Collection, Operation)} (or
+ * {@link #run(VixHost, Collection, Operation)}, which opens each virtual machine from
+ * its .vmx path before running the operation, and closes it afterwards) returns a
+ * {@link VixFleetRun}, from which the result of each virtual machine can be taken as
+ * soon as its operation completes:
+ * <pre>
+ * VixFleet fleet = new VixFleet(32, 8);
+ * VixFleetRun run = fleet.run(vms, new VixFleet.Operation() {
+ *     public Object run(VixVM vm) throws VixException {
+ *         vm.revertToSnapshot(vm.getCurrentSnapshot(), 0);
+ *         vm.powerOn(VixWrapper.VIX_VMPOWEROP_NORMAL);
+ *         vm.waitForToolsInGuest(300);
+ *         return vm.runProgramInGuest("c:\\test\\run.bat", "", 0);
+ *     }
+ * });
+ * VixFleetResult result;
+ * while ((result = run.take()) != null) {
+ *     logger.info(result);
+ * }
+ * logger.info(run.getReport());
+ * </pre>
+ *
+ * <p>Operations are started in the order they were submitted, except that operations on
+ * a host which is already running maxPerHost operations are passed over (but not
+ * reordered amongst themselves) until one of them completes. Operations from several
+ * runs share the same limits.
+ *
+ * <p>Operations are run on threads named "jvix-fleet-<i>n</i>", which are started as
+ * required, up to maxConcurrency; an operation may therefore block in synchronous VixVM
+ * methods without holding up the operations of other virtual machines. Each thread runs
+ * its operation with the run's {@link VixCancellationToken} as its current token, so
+ * that cancelling the run (or the token which was current when the run was submitted)
+ * abandons the jobs of running operations, and skips those which have not started.
+ * This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixFleet {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(VixFleet.class);
+
+	/** An operation run against each virtual machine in a fleet */
+	public static interface Operation {
+
+		/** Runs the operation. This method is invoked concurrently for different virtual
+		 * machines, and may block until the operation completes, e.g. by calling the
+		 * synchronous methods of VixVM.
+		 *
+		 * @param vm the virtual machine
+		 *
+		 * @return the result of the operation for this virtual machine, which is returned
+		 *   by {@link VixFleetResult#getResult()}
+		 *
+		 * @throws VixException if the operation failed
+		 */
+		public Object run(VixVM vm) throws VixException;
+	}
+
+	/** Marks the end of the ready queue when the fleet is shut down */
+	private static final VixFleetResult SHUTDOWN_RESULT = new VixFleetResult(null, null, null, null);
+
+	/** Maximum number of operations running at once */
+	private int maxConcurrency;
+
+	/** Maximum number of operations running at once on each host */
+	private int maxPerHost;
+
+	/** Operations which have not yet been started, in the order they were submitted */
+	private LinkedList pending = new LinkedList();
+
+	/** Operations which have been started, but not yet taken by a fleet thread */
+	private LinkedBlockingQueue ready = new LinkedBlockingQueue();
+
+	/** Number of operations started which have not yet completed */
+	private int activeCount = 0;
+
+	/** Number of operations started which have not yet completed, for each VixHost,
+	 * as single-element int arrays */
+	private Map hostActiveCounts = new IdentityHashMap();
+
+	/** Number of fleet threads started */
+	private int threadCount = 0;
+
+	/** Set once the fleet has been shut down */
+	private boolean shutdown = false;
+
+	/** Create a new VixFleet
+	 *
+	 * @param maxConcurrency the maximum number of operations running at once
+	 * @param maxPerHost the maximum number of operations running at once on each host
+	 */
+	public VixFleet(int maxConcurrency, int maxPerHost) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be at least 1");
+		}
+		if (maxPerHost < 1) {
+			throw new IllegalArgumentException("maxPerHost must be at least 1");
+		}
+		this.maxConcurrency = maxConcurrency;
+		this.maxPerHost = maxPerHost;
+	}
+
+	/** Runs an operation against each of a collection of virtual machines. The virtual
+	 * machines are not closed once their operation completes.
+	 *
+	 * @param vms the virtual machines, as a collection of VixVM objects
+	 * @param operation the operation to run against each virtual machine
+	 *
+	 * @return a VixFleetRun, through which the results are retrieved
+	 */
+	public VixFleetRun run(Collection vms, Operation operation) {
+		if (operation == null) {
+			throw new NullPointerException("null operation");
+		}
+		VixFleetRun run = new VixFleetRun(this, operation);
+		List results = new ArrayList(vms.size());
+		for (Iterator i = vms.iterator(); i.hasNext(); ) {
+			VixVM vm = (VixVM) i.next();
+			results.add(new VixFleetResult(run, vm, vm.getHost(), null));
+		}
+		return submit(run, results);
+	}
+
+	/** Runs an operation against each of a collection of virtual machines on a host.
+	 * Each virtual machine is opened immediately before its operation is run, and
+	 * closed once it completes; the time taken to open the virtual machine is included
+	 * in the operation's latency.
+	 *
+	 * @param host the host
+	 * @param vmxPaths the path names of the virtual machine configuration files, as a
+	 *   collection of Strings
+	 * @param operation the operation to run against each virtual machine
+	 *
+	 * @return a VixFleetRun, through which the results are retrieved
+	 *
+	 * @see VixHost#open(String)
+	 */
+	public VixFleetRun run(VixHost host, Collection vmxPaths, Operation operation) {
+		if (host == null) {
+			throw new NullPointerException("null host");
+		}
+		if (operation == null) {
+			throw new NullPointerException("null operation");
+		}
+		VixFleetRun run = new VixFleetRun(this, operation);
+		List results = new ArrayList(vmxPaths.size());
+		for (Iterator i = vmxPaths.iterator(); i.hasNext(); ) {
+			results.add(new VixFleetResult(run, null, host, (String) i.next()));
+		}
+		return submit(run, results);
+	}
+
+	/** Queues the operations of a run
+	 *
+	 * @param run the run
+	 * @param results the results of the run, one for each virtual machine
+	 *
+	 * @return the run
+	 */
+	private VixFleetRun submit(VixFleetRun run, List results) {
+		run.setResults(results);
+		boolean rejected;
+		synchronized (this) {
+			rejected = shutdown;
+			if (!rejected) {
+				pending.addAll(results);
+			}
+		}
+		if (rejected) {
+			for (int i = 0; i < results.size(); i++) {
+				run.skipped((VixFleetResult) results.get(i));
+			}
+		} else {
+			dispatch();
+		}
+		return run;
+	}
+
+	/** Starts as many pending operations as the limits allow */
+	private synchronized void dispatch() {
+		for (Iterator i = pending.iterator(); i.hasNext() && activeCount < maxConcurrency; ) {
+			VixFleetResult result = (VixFleetResult) i.next();
+			int[] hostActiveCount = (int[]) hostActiveCounts.get(result.getHost());
+			if (hostActiveCount == null) {
+				hostActiveCount = new int[1];
+				hostActiveCounts.put(result.getHost(), hostActiveCount);
+			}
+			if (hostActiveCount[0] < maxPerHost) {
+				i.remove();
+				hostActiveCount[0]++;
+				activeCount++;
+				ready.add(result);
+				// each operation occupies a thread until it completes
+				if (threadCount < activeCount) {
+					new FleetThread(threadCount++).start();
+				}
+			}
+		}
+	}
+
+	/** Invoked by a fleet thread once an operation has completed
+	 *
+	 * @param result the result of the operation
+	 */
+	private void finished(VixFleetResult result) {
+		synchronized (this) {
+			activeCount--;
+			int[] hostActiveCount = (int[]) hostActiveCounts.get(result.getHost());
+			if (--hostActiveCount[0] == 0) {
+				hostActiveCounts.remove(result.getHost());
+			}
+		}
+		dispatch();
+	}
+
+	/** Removes the operations of a run which have not yet started. Invoked when the
+	 * run is cancelled.
+	 *
+	 * @param run the run
+	 */
+	void cancelPending(VixFleetRun run) {
+		List removed = new ArrayList();
+		synchronized (this) {
+			for (Iterator i = pending.iterator(); i.hasNext(); ) {
+				VixFleetResult result = (VixFleetResult) i.next();
+				if (result.getRun() == run) {
+					i.remove();
+					removed.add(result);
+				}
+			}
+		}
+		for (int i = 0; i < removed.size(); i++) {
+			run.skipped((VixFleetResult) removed.get(i));
+		}
+	}
+
+	/** Runs an operation on the current (fleet) thread
+	 *
+	 * @param result the result of the operation
+	 */
+	private void execute(VixFleetResult result) {
+		VixFleetRun run = result.getRun();
+		VixCancellationToken token = run.getToken();
+		if (token.isCancelled()) {
+			run.skipped(result);
+			return;
+		}
+		VixCancellationToken previous = VixCancellationToken.setCurrent(token);
+		try {
+			result.started();
+			Object value = null;
+			VixException exception = null;
+			VixVM vm = result.getVM();
+			boolean opened = false;
+			try {
+				if (vm == null) {
+					vm = result.getHost().open(result.getVmxPath());
+					opened = true;
+				}
+				value = run.getOperation().run(vm);
+			} catch (VixException ve) {
+				exception = ve;
+			} catch (RuntimeException re) {
+				logger.error("Exception in VixFleet.Operation", re);
+				exception = (VixException) new VixException(VixException.VIX_E_FAIL).initCause(re);
+			} finally {
+				if (opened) { vm.close(); }
+			}
+			run.completed(result, value, exception);
+		} finally {
+			VixCancellationToken.setCurrent(previous);
+		}
+	}
+
+	/** Returns the number of operations which have been submitted, but not yet started
+	 *
+	 * @return the number of pending operations
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/** Returns the number of operations which have been started, but not yet completed
+	 *
+	 * @return the number of active operations
+	 */
+	public synchronized int getActiveCount() {
+		return activeCount;
+	}
+
+	/** Returns the number of fleet threads which have been started
+	 *
+	 * @return the number of fleet threads
+	 */
+	public synchronized int getThreadCount() {
+		return threadCount;
+	}
+
+	/** Stops the fleet threads once they have finished their current operations.
+	 * Operations which have not been started are skipped, as are the operations of
+	 * any later runs.
+	 */
+	public void shutdown() {
+		List removed;
+		int count;
+		synchronized (this) {
+			shutdown = true;
+			removed = new ArrayList(pending);
+			pending.clear();
+			count = threadCount;
+		}
+		for (int i = 0; i < removed.size(); i++) {
+			VixFleetResult result = (VixFleetResult) removed.get(i);
+			result.getRun().skipped(result);
+		}
+		for (int i = 0; i < count; i++) {
+			ready.add(SHUTDOWN_RESULT);
+		}
+	}
+
+	/** Thread which runs operations */
+	private class FleetThread extends Thread {
+
+		public FleetThread(int index) {
+			super("jvix-fleet-" + index);
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				VixFleetResult result;
+				try {
+					result = (VixFleetResult) ready.take();
+				} catch (InterruptedException ie) {
+					continue;
+				}
+				if (result == SHUTDOWN_RESULT) {
+					break;
+				}
+				try {
+					execute(result);
+				} catch (RuntimeException re) {
+					logger.error("Exception running fleet operation", re);
+				} finally {
+					finished(result);
+				}
+			}
+		}
+	}
+
+}
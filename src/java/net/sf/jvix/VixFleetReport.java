@@ -0,0 +1,230 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** A summary of a {@link VixFleetRun}, as returned by {@link VixFleetRun#getReport()}.
+ *
+ * <p>The report records the makespan of the run (the time from its submission until
+ * its last operation completed), the distribution of the latencies of its operations
+ * (the time each operation spent running, excluding the time it was queued), and its
+ * stragglers: the virtual machines whose operations took, or have so far taken, much
+ * longer than the median. Operations which were skipped without starting are counted
+ * as failures, but do not contribute latencies.
+ *
+ * <p>A report is a snapshot; it does not change as the run progresses.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixFleetReport {
+
+	/** Straggler factor used by {@link #getStragglers()} */
+	public static final double DEFAULT_STRAGGLER_FACTOR = 2.0;
+
+	/** Number of virtual machines in the run */
+	private int size;
+
+	/** Number of operations completed */
+	private int completedCount = 0;
+
+	/** Number of operations completed successfully */
+	private int succeededCount = 0;
+
+	/** Number of operations which have started but not completed */
+	private int runningCount = 0;
+
+	/** The makespan, in nanoseconds */
+	private long makespanNanos;
+
+	/** Latencies of completed operations which started, in ascending order */
+	private long[] latencies;
+
+	/** Operations which have started (whether or not they have completed), in
+	 * descending order of latency */
+	private Sample[] samples;
+
+	/** Create a new VixFleetReport
+	 *
+	 * @param results the VixFleetResults of the run
+	 * @param makespanNanos the makespan, in nanoseconds
+	 */
+	VixFleetReport(List results, long makespanNanos) {
+		this.size = results.size();
+		this.makespanNanos = makespanNanos;
+		List startedSamples = new ArrayList();
+		long[] completedLatencies = new long[size];
+		int latencyCount = 0;
+		for (int i = 0; i < size; i++) {
+			VixFleetResult result = (VixFleetResult) results.get(i);
+			synchronized (result) {
+				if (result.isDone()) {
+					completedCount++;
+					if (result.isSuccessful()) { succeededCount++; }
+				} else if (result.isStarted()) {
+					runningCount++;
+				}
+				if (result.isStarted()) {
+					long latencyNanos = result.getLatencyNanos();
+					startedSamples.add(new Sample(result, latencyNanos));
+					if (result.isDone()) {
+						completedLatencies[latencyCount++] = latencyNanos;
+					}
+				}
+			}
+		}
+		latencies = new long[latencyCount];
+		System.arraycopy(completedLatencies, 0, latencies, 0, latencyCount);
+		Arrays.sort(latencies);
+		samples = (Sample[]) startedSamples.toArray(new Sample[startedSamples.size()]);
+		Arrays.sort(samples, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long l1 = ((Sample) o1).latencyNanos;
+				long l2 = ((Sample) o2).latencyNanos;
+				return l1 > l2 ? -1 : (l1 < l2 ? 1 : 0);
+			}
+		});
+	}
+
+	/** Returns the number of virtual machines in the run
+	 *
+	 * @return the number of virtual machines
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/** Returns the number of operations which had completed, successfully or not
+	 *
+	 * @return the number of completed operations
+	 */
+	public int getCompletedCount() {
+		return completedCount;
+	}
+
+	/** Returns the number of operations which had completed successfully
+	 *
+	 * @return the number of successful operations
+	 */
+	public int getSucceededCount() {
+		return succeededCount;
+	}
+
+	/** Returns the number of operations which had failed, or were skipped
+	 *
+	 * @return the number of failed operations
+	 */
+	public int getFailedCount() {
+		return completedCount - succeededCount;
+	}
+
+	/** Returns the number of operations which were running
+	 *
+	 * @return the number of running operations
+	 */
+	public int getRunningCount() {
+		return runningCount;
+	}
+
+	/** Returns the time from the submission of the run until its last operation
+	 * completed, or until this report was created if the run had not completed
+	 *
+	 * @return the makespan, in nanoseconds
+	 */
+	public long getMakespanNanos() {
+		return makespanNanos;
+	}
+
+	/** Returns a percentile of the latencies of completed operations, using the
+	 * nearest-rank method
+	 *
+	 * @param percentile the percentile, greater than 0 and at most 100 (e.g. 50 for
+	 *   the median, or 99)
+	 *
+	 * @return the latency, in nanoseconds, or -1 if no operation had completed after
+	 *   starting
+	 */
+	public long getLatencyPercentile(double percentile) {
+		if (percentile <= 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be greater than 0 and at most 100");
+		}
+		if (latencies.length == 0) {
+			return -1;
+		}
+		int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+		return latencies[Math.max(rank, 1) - 1];
+	}
+
+	/** Returns the median latency of completed operations
+	 *
+	 * @return the latency, in nanoseconds, or -1 if no operation had completed after
+	 *   starting
+	 */
+	public long getMedianLatencyNanos() {
+		return getLatencyPercentile(50);
+	}
+
+	/** Returns the operations whose latency is more than DEFAULT_STRAGGLER_FACTOR times
+	 * the median latency
+	 *
+	 * @return a list of VixFleetResult objects
+	 *
+	 * @see #getStragglers(double)
+	 */
+	public List getStragglers() {
+		return getStragglers(DEFAULT_STRAGGLER_FACTOR);
+	}
+
+	/** Returns the operations whose latency is more than a multiple of the median
+	 * latency of completed operations. Operations which were still running are included
+	 * if they had already been running for longer than this.
+	 *
+	 * @param factor the multiple of the median latency
+	 *
+	 * @return a list of VixFleetResult objects, slowest first; empty if no operation had
+	 *   completed after starting
+	 */
+	public List getStragglers(double factor) {
+		long medianNanos = getMedianLatencyNanos();
+		if (medianNanos == -1) {
+			return Collections.EMPTY_LIST;
+		}
+		List stragglers = new ArrayList();
+		for (int i = 0; i < samples.length && samples[i].latencyNanos > factor * medianNanos; i++) {
+			stragglers.add(samples[i].result);
+		}
+		return stragglers;
+	}
+
+	/** Returns a string representation of this report
+	 *
+	 * @return a string representation of this report
+	 */
+	public String toString() {
+		String s = completedCount + "/" + size + " completed (" + getFailedCount() + " failed) in " +
+		  (makespanNanos / 1000000) + "ms";
+		if (latencies.length > 0) {
+			s += "; latency p50=" + (getLatencyPercentile(50) / 1000000) + "ms" +
+			  ", p90=" + (getLatencyPercentile(90) / 1000000) + "ms" +
+			  ", p99=" + (getLatencyPercentile(99) / 1000000) + "ms" +
+			  ", max=" + (latencies[latencies.length - 1] / 1000000) + "ms" +
+			  "; " + getStragglers().size() + " stragglers";
+		}
+		return s;
+	}
+
+	/** The latency of an operation when the report was created */
+	private static class Sample {
+		VixFleetResult result;
+		long latencyNanos;
+
+		Sample(VixFleetResult result, long latencyNanos) {
+			this.result = result;
+			this.latencyNanos = latencyNanos;
+		}
+	}
+
+}
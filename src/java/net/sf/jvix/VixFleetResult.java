@@ -0,0 +1,199 @@
+package net.sf.jvix;
+
+/** The outcome of a {@link VixFleet} operation on a single virtual machine.
+ *
+ * <p>A VixFleetResult exists for every virtual machine from the time its run is
+ * submitted; it is returned by {@link VixFleetRun#take()} once its operation has
+ * completed, and until then reports how long the operation has been queued or running.
+ * An operation which was skipped because its run was cancelled (or its fleet shut
+ * down) before it could start completes with a VixException with the error code
+ * VIX_E_CANCELLED, and is never {@link #isStarted() started}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixFleetResult {
+
+	/** The run */
+	private VixFleetRun run;
+
+	/** The virtual machine, or null if it is opened by path */
+	private VixVM vm;
+
+	/** The host of the virtual machine */
+	private VixHost host;
+
+	/** The path name of the virtual machine configuration file, or null */
+	private String vmxPath;
+
+	/** System.nanoTime() when the operation was submitted */
+	private long submitNanos;
+
+	/** System.nanoTime() when the operation started */
+	private long startNanos;
+
+	/** System.nanoTime() when the operation completed */
+	private long endNanos;
+
+	/** True once the operation has started */
+	private boolean started = false;
+
+	/** True once the operation has completed */
+	private boolean done = false;
+
+	/** The result of the operation */
+	private Object result = null;
+
+	/** The exception thrown by the operation, or null */
+	private VixException exception = null;
+
+	/** Create a new VixFleetResult */
+	VixFleetResult(VixFleetRun run, VixVM vm, VixHost host, String vmxPath) {
+		this.run = run;
+		this.vm = vm;
+		this.host = host;
+		this.vmxPath = vmxPath;
+		this.submitNanos = System.nanoTime();
+	}
+
+	/** Returns the run this result belongs to */
+	VixFleetRun getRun() {
+		return run;
+	}
+
+	/** Returns the virtual machine, for runs of a collection of VixVM objects
+	 *
+	 * @return the virtual machine, or null if it was opened by path
+	 */
+	public VixVM getVM() {
+		return vm;
+	}
+
+	/** Returns the host of the virtual machine
+	 *
+	 * @return the host
+	 */
+	public VixHost getHost() {
+		return host;
+	}
+
+	/** Returns the path name of the virtual machine configuration file, for runs of a
+	 * collection of paths
+	 *
+	 * @return the path name, or null if the VixVM was supplied
+	 */
+	public String getVmxPath() {
+		return vmxPath;
+	}
+
+	/** Records the start of the operation */
+	synchronized void started() {
+		started = true;
+		startNanos = System.nanoTime();
+	}
+
+	/** Records the completion of the operation
+	 *
+	 * @param result the result of the operation
+	 * @param exception the exception thrown by the operation, or null
+	 */
+	synchronized void completed(Object result, VixException exception) {
+		this.done = true;
+		this.endNanos = System.nanoTime();
+		this.result = result;
+		this.exception = exception;
+	}
+
+	/** Returns true if the operation has started
+	 *
+	 * @return true if the operation has started
+	 */
+	public synchronized boolean isStarted() {
+		return started;
+	}
+
+	/** Returns true if the operation has completed, successfully or not
+	 *
+	 * @return true if the operation has completed
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/** Returns true if the operation has completed successfully
+	 *
+	 * @return true if the operation has completed without throwing an exception
+	 */
+	public synchronized boolean isSuccessful() {
+		return done && exception == null;
+	}
+
+	/** Returns the result of the operation, or throws the exception it threw
+	 *
+	 * @return the value returned by {@link VixFleet.Operation#run(VixVM)}
+	 *
+	 * @throws VixException if the operation failed or was skipped
+	 * @throws IllegalStateException if the operation has not completed
+	 */
+	public synchronized Object getResult() throws VixException {
+		if (!done) {
+			throw new IllegalStateException("Operation has not completed");
+		}
+		if (exception != null) {
+			throw exception;
+		}
+		return result;
+	}
+
+	/** Returns the exception thrown by the operation. RuntimeExceptions thrown by the
+	 * operation are returned as the cause of a VixException with the error code
+	 * VIX_E_FAIL.
+	 *
+	 * @return the exception, or null if the operation has not completed, or succeeded
+	 */
+	public synchronized VixException getException() {
+		return exception;
+	}
+
+	/** Returns the time between the submission of the run and the start of the
+	 * operation, or until now if it has not yet started
+	 *
+	 * @return the time queued, in nanoseconds
+	 */
+	public synchronized long getQueuedNanos() {
+		if (started) {
+			return startNanos - submitNanos;
+		}
+		return (done ? endNanos : System.nanoTime()) - submitNanos;
+	}
+
+	/** Returns the time the operation took to run, or has been running for if it has
+	 * not yet completed
+	 *
+	 * @return the running time, in nanoseconds, or 0 if the operation has not started
+	 */
+	public synchronized long getLatencyNanos() {
+		if (!started) {
+			return 0;
+		}
+		return (done ? endNanos : System.nanoTime()) - startNanos;
+	}
+
+	/** Returns a string representation of this result
+	 *
+	 * @return a string representation of this result
+	 */
+	public synchronized String toString() {
+		String target = (vmxPath != null ? vmxPath : String.valueOf(vm));
+		String state;
+		if (!done) {
+			state = (started ? "running" : "queued");
+		} else if (exception != null) {
+			state = (started ? "failed" : "skipped") + ", errorCode=" + exception.getErrorCode();
+		} else {
+			state = "succeeded";
+		}
+		return target + ": " + state + " (" + (getLatencyNanos() / 1000000) + "ms)";
+	}
+
+}
@@ -0,0 +1,219 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** The operations submitted to a {@link VixFleet} by a single call to one of its
+ * run() methods.
+ *
+ * <p>Results are streamed in the order in which their operations complete: each
+ * call to {@link #take()} returns the next completed result, and returns null once
+ * every result has been taken. {@link #getReport()} summarises the run so far, and can
+ * be called at any time, e.g. to find the virtual machines holding up a run which is
+ * taking longer than expected.
+ *
+ * <p>Operations run under a {@link VixCancellationToken} which is a child of the token
+ * that was current on the submitting thread (if any), so that a deadline set for the
+ * submitting thread also applies to the run. That token is closed once every operation
+ * has completed. This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixFleetRun {
+
+	/** The fleet */
+	private VixFleet fleet;
+
+	/** The operation run against each virtual machine */
+	private VixFleet.Operation operation;
+
+	/** The token under which operations are run */
+	private VixCancellationToken token;
+
+	/** The result of each virtual machine, in the order submitted */
+	private List results;
+
+	/** Results completed but not yet taken, in the order completed */
+	private LinkedList untaken = new LinkedList();
+
+	/** Number of results completed */
+	private int completedCount = 0;
+
+	/** Number of results taken */
+	private int takenCount = 0;
+
+	/** System.nanoTime() when the run was submitted */
+	private long startNanos;
+
+	/** System.nanoTime() when the last result completed */
+	private long endNanos;
+
+	/** Create a new VixFleetRun */
+	VixFleetRun(VixFleet fleet, VixFleet.Operation operation) {
+		this.fleet = fleet;
+		this.operation = operation;
+		VixCancellationToken current = VixCancellationToken.getCurrent();
+		this.token = (current == null ? new VixCancellationToken() : current.newChild(-1));
+		this.startNanos = System.nanoTime();
+	}
+
+	/** Sets the results of the run, before it is queued */
+	synchronized void setResults(List results) {
+		this.results = results;
+		if (results.size() == 0) {
+			endNanos = startNanos;
+			token.close();
+		}
+	}
+
+	/** Returns the operation run against each virtual machine */
+	VixFleet.Operation getOperation() {
+		return operation;
+	}
+
+	/** Returns the token under which operations are run */
+	VixCancellationToken getToken() {
+		return token;
+	}
+
+	/** Records the completion of an operation, and makes its result available to take()
+	 *
+	 * @param result the result
+	 * @param value the value returned by the operation
+	 * @param exception the exception thrown by the operation, or null
+	 */
+	void completed(VixFleetResult result, Object value, VixException exception) {
+		result.completed(value, exception);
+		synchronized (this) {
+			untaken.add(result);
+			completedCount++;
+			if (completedCount == results.size()) {
+				endNanos = System.nanoTime();
+				// detach the run's token from the submitting thread's token (the token
+				// never calls back into the run while holding its own lock)
+				token.close();
+			}
+			notifyAll();
+		}
+	}
+
+	/** Records an operation which was not started, because the run was cancelled */
+	void skipped(VixFleetResult result) {
+		completed(result, null, new VixException(VixException.VIX_E_CANCELLED));
+	}
+
+	/** Returns the next completed result, waiting for an operation to complete if
+	 * necessary
+	 *
+	 * @return the next result, or null if every result has already been taken
+	 *
+	 * @throws InterruptedException if the current thread was interrupted while waiting
+	 */
+	public synchronized VixFleetResult take() throws InterruptedException {
+		while (untaken.isEmpty()) {
+			if (takenCount == results.size()) {
+				return null;
+			}
+			wait();
+		}
+		takenCount++;
+		return (VixFleetResult) untaken.removeFirst();
+	}
+
+	/** Returns the next completed result, waiting up to a timeout for an operation to
+	 * complete if necessary
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 *
+	 * @return the next result, or null if no operation completed within the timeout,
+	 *   or every result has already been taken
+	 *
+	 * @throws InterruptedException if the current thread was interrupted while waiting
+	 */
+	public synchronized VixFleetResult poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (untaken.isEmpty()) {
+			long remainingNanos = deadline - System.nanoTime();
+			if (takenCount == results.size() || remainingNanos <= 0) {
+				return null;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+		}
+		takenCount++;
+		return (VixFleetResult) untaken.removeFirst();
+	}
+
+	/** Waits for every operation to complete. Results which have not been taken
+	 * remain available to take().
+	 *
+	 * @return a report of the completed run
+	 *
+	 * @throws InterruptedException if the current thread was interrupted while waiting
+	 */
+	public VixFleetReport awaitCompletion() throws InterruptedException {
+		synchronized (this) {
+			while (completedCount < results.size()) {
+				wait();
+			}
+		}
+		return getReport();
+	}
+
+	/** Returns true if every operation has completed
+	 *
+	 * @return true if the run has completed
+	 */
+	public synchronized boolean isDone() {
+		return completedCount == results.size();
+	}
+
+	/** Returns the number of virtual machines in this run
+	 *
+	 * @return the number of virtual machines
+	 */
+	public synchronized int getSize() {
+		return results.size();
+	}
+
+	/** Returns the number of operations which have completed
+	 *
+	 * @return the number of completed operations
+	 */
+	public synchronized int getCompletedCount() {
+		return completedCount;
+	}
+
+	/** Returns the result of every virtual machine, whether or not its operation has
+	 * completed
+	 *
+	 * @return a list of VixFleetResult objects, in the order the virtual machines
+	 *   were submitted
+	 */
+	public synchronized List getResults() {
+		return Collections.unmodifiableList(new ArrayList(results));
+	}
+
+	/** Cancels the run. Operations which have not started are skipped, and jobs of
+	 * operations which are running are abandoned, as described in
+	 * {@link VixCancellationToken}.
+	 */
+	public void cancel() {
+		token.cancel();
+		fleet.cancelPending(this);
+	}
+
+	/** Returns a report of the run so far
+	 *
+	 * @return the report
+	 */
+	public synchronized VixFleetReport getReport() {
+		long makespanNanos = (completedCount == results.size() ? endNanos : System.nanoTime()) - startNanos;
+		return new VixFleetReport(results, makespanNanos);
+	}
+
+}
@@ -0,0 +1,76 @@
+package net.sf.jvix;
+
+/** Interfaces for VIX operations which produce a stream of results, such as
+ * {@link VixHost#findItemsPublisher(int, long)}.
+ *
+ * <p>These follow the Reactive Streams interfaces (and java.util.concurrent.Flow, which
+ * is not available to this library) method for method, and obey the same rules: a
+ * {@link Subscriber} receives onSubscribe() first, then no more onNext() signals than
+ * it has requested through its {@link Subscription}, then at most one of onError() or
+ * onComplete(). Signals to a subscriber are never made concurrently, although they may
+ * be made by different threads. Results are only sent while the subscriber has
+ * outstanding demand, so a slow subscriber is never sent more than it has requested,
+ * however quickly the results are produced.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixFlow {
+
+	/** This class cannot be instantiated */
+	private VixFlow() {
+	}
+
+	/** A source of results, which are delivered to each subscriber as it requests them */
+	public static interface Publisher {
+
+		/** Adds a subscriber. Each subscriber receives the results of a new operation
+		 * (e.g. a new search), and is always sent onSubscribe(), even if the operation
+		 * could not be started.
+		 *
+		 * @param subscriber the subscriber
+		 */
+		public void subscribe(Subscriber subscriber);
+	}
+
+	/** A receiver of results */
+	public static interface Subscriber {
+
+		/** Invoked before any other signal. No results are sent until they are
+		 * requested through the subscription.
+		 *
+		 * @param subscription the subscription, through which results are requested
+		 */
+		public void onSubscribe(Subscription subscription);
+
+		/** Invoked for each result requested
+		 *
+		 * @param item the result
+		 */
+		public void onNext(Object item);
+
+		/** Invoked if the operation fails, or the subscription is used incorrectly. No
+		 * further signals are sent.
+		 *
+		 * @param throwable the reason for the failure; a VixException if the operation failed
+		 */
+		public void onError(Throwable throwable);
+
+		/** Invoked once every result has been sent. No further signals are sent. */
+		public void onComplete();
+	}
+
+	/** The link between a publisher and a subscriber */
+	public static interface Subscription {
+
+		/** Requests further results. Long.MAX_VALUE requests every result.
+		 *
+		 * @param n the number of further results to send; must be positive
+		 */
+		public void request(long n);
+
+		/** Stops sending results. Results which have not yet been sent are discarded. */
+		public void cancel();
+	}
+
+}
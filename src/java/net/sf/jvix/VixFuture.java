@@ -0,0 +1,278 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/** The result of an asynchronous VIX operation, such as {@link VixVM#powerOnAsync(int)}.
+ *
+ * <p>Futures returned by the asynchronous methods in {@link VixVM} and {@link VixHost}
+ * are completed by the VixEventProc callback which VIX invokes when the job completes,
+ * so no thread is blocked while the operation is in progress. The result can be
+ * retrieved either by blocking in {@link #get()} or {@link #getResult()}, or by
+ * registering a {@link VixFutureListener}, which is notified when the future completes:
+ * <pre>
+ * VixFuture future = vm.powerOnAsync(VixWrapper.VIX_VMPOWEROP_NORMAL);
+ * future.addListener(new VixFutureListener() {
+ *     public void completed(VixFuture f) {
+ *         if (f.getException() != null) { ... }
+ *     }
+ * });
+ * </pre>
+ *
+ * <p>The result of a future is an object of the same type that the corresponding
+ * synchronous method returns (e.g. a Boolean for fileExistsInGuestAsync()), or null
+ * for methods which return void.
+ *
+ * <p>Cancelling a future does not stop the underlying VIX job, which will still run to
+ * completion; its job handle is released once it does so.
+ *
+ * <p>Threads waiting for a future park on a {@link CountDownLatch} rather than in
+ * Object.wait(), so a waiting virtual thread does not pin its carrier thread.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixFuture implements Future {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(VixFuture.class);
+
+	/** True once this future has completed, failed or been cancelled */
+	private boolean done = false;
+
+	/** True if this future was cancelled */
+	private boolean cancelled = false;
+
+	/** The result of the operation */
+	private Object result = null;
+
+	/** The exception thrown by the operation, or null if it succeeded */
+	private VixException exception = null;
+
+	/** Listeners to notify on completion; null once they have been notified */
+	private List listeners = new ArrayList();
+
+	/** Released once this future is done */
+	private CountDownLatch doneLatch = new CountDownLatch(1);
+
+	/** Create a new, incomplete VixFuture */
+	public VixFuture() {
+	}
+
+	/** Completes this future successfully, if it has not already completed
+	 *
+	 * @param result the result of the operation
+	 *
+	 * @return true if this call completed the future
+	 */
+	public boolean complete(Object result) {
+		synchronized (this) {
+			if (done) { return false; }
+			this.result = result;
+			this.done = true;
+		}
+		doneLatch.countDown();
+		notifyListeners();
+		return true;
+	}
+
+	/** Completes this future with an exception, if it has not already completed
+	 *
+	 * @param exception the exception thrown by the operation
+	 *
+	 * @return true if this call completed the future
+	 */
+	public boolean completeExceptionally(VixException exception) {
+		if (exception == null) {
+			throw new NullPointerException("null exception");
+		}
+		synchronized (this) {
+			if (done) { return false; }
+			this.exception = exception;
+			this.done = true;
+		}
+		doneLatch.countDown();
+		notifyListeners();
+		return true;
+	}
+
+	/** Cancels this future, if it has not already completed. Threads waiting for the
+	 * result will throw a CancellationException. The underlying VIX job, if any, is
+	 * not stopped.
+	 *
+	 * @param mayInterruptIfRunning ignored; VIX jobs cannot be interrupted
+	 *
+	 * @return true if this call cancelled the future
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) { return false; }
+			this.cancelled = true;
+			this.done = true;
+		}
+		doneLatch.countDown();
+		notifyListeners();
+		return true;
+	}
+
+	/** Returns true if this future was cancelled before it completed
+	 *
+	 * @return true if this future was cancelled
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** Returns true if this future has completed, failed or been cancelled
+	 *
+	 * @return true if this future is done
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/** Waits for the operation to complete, and returns its result
+	 *
+	 * @return the result of the operation
+	 *
+	 * @throws CancellationException if this future was cancelled
+	 * @throws ExecutionException if the operation failed; the cause is a VixException
+	 * @throws InterruptedException if this thread was interrupted while waiting
+	 */
+	public Object get() throws InterruptedException, ExecutionException {
+		doneLatch.await();
+		return getCompletedResult();
+	}
+
+	/** Waits for the operation to complete, up to a timeout, and returns its result
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 *
+	 * @return the result of the operation
+	 *
+	 * @throws CancellationException if this future was cancelled
+	 * @throws ExecutionException if the operation failed; the cause is a VixException
+	 * @throws InterruptedException if this thread was interrupted while waiting
+	 * @throws TimeoutException if the timeout expired before the operation completed
+	 */
+	public Object get(long timeout, TimeUnit unit)
+		throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if (!doneLatch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getCompletedResult();
+	}
+
+	/** Waits for the operation to complete, and returns its result. This is equivalent
+	 * to {@link #get()}, but throws the VixException thrown by the operation directly,
+	 * in the same way as the synchronous methods in VixVM and VixHost.
+	 *
+	 * @return the result of the operation
+	 *
+	 * @throws VixException if the operation failed. If this future was cancelled,
+	 *   the error code is VIX_E_CANCELLED; if this thread was interrupted while
+	 *   waiting, the interrupt flag is set again and the error code is VIX_E_CANCELLED.
+	 */
+	public Object getResult() throws VixException {
+		try {
+			doneLatch.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw (VixException) new VixException(VixException.VIX_E_CANCELLED).initCause(ie);
+		}
+		return getCompletedVixResult();
+	}
+
+	/** Returns the result of a completed future, throwing the VixException thrown by
+	 * the operation directly
+	 *
+	 * @return the result of the operation
+	 */
+	private synchronized Object getCompletedVixResult() throws VixException {
+		if (cancelled) {
+			throw new VixException(VixException.VIX_E_CANCELLED);
+		}
+		if (exception != null) {
+			throw exception;
+		}
+		return result;
+	}
+
+	/** Returns the exception thrown by the operation, without waiting
+	 *
+	 * @return the exception thrown by the operation, or null if it has not
+	 *   completed, succeeded, or was cancelled
+	 */
+	public synchronized VixException getException() {
+		return exception;
+	}
+
+	/** Adds a listener which is notified when this future completes. If this future has
+	 * already completed, the listener is notified immediately, by this thread.
+	 *
+	 * @param listener the listener to add
+	 */
+	public void addListener(VixFutureListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("null listener");
+		}
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+
+	/** Returns the result of a completed future
+	 *
+	 * @return the result of the operation
+	 */
+	private synchronized Object getCompletedResult() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return result;
+	}
+
+	/** Notifies the listeners registered before this future completed */
+	private void notifyListeners() {
+		List toNotify;
+		synchronized (this) {
+			toNotify = listeners;
+			listeners = null;
+		}
+		for (int i = 0; i < toNotify.size(); i++) {
+			notifyListener((VixFutureListener) toNotify.get(i));
+		}
+	}
+
+	/** Notifies a single listener, logging any exception it throws
+	 *
+	 * @param listener the listener to notify
+	 */
+	private void notifyListener(VixFutureListener listener) {
+		try {
+			listener.completed(this);
+		} catch (RuntimeException re) {
+			logger.error("Exception in VixFutureListener", re);
+		}
+	}
+
+}
@@ -0,0 +1,19 @@
+package net.sf.jvix;
+
+/** Receives notification that a {@link VixFuture} has completed.
+ * 
+ * @author knoxg
+ * @version $Id$
+ */
+public interface VixFutureListener {
+
+	/** Invoked once the future has completed, successfully or not. This method is
+	 * invoked by the thread which completed the future, which for asynchronous VIX
+	 * operations is the thread delivering VIX events; it should return quickly,
+	 * and must not wait for other VIX jobs to complete.
+	 * 
+	 * @param future the future which has completed
+	 */
+	public void completed(VixFuture future);
+	
+}
@@ -3,6 +3,11 @@ package net.sf.jvix;
 /**
  * Wrapper for VixHandle pointer.
  *
+ * <p>Handles returned by the native library are canonicalised through
+ * {@link VixHandleTable}, so the same VixHandle object is returned each time a
+ * handle crosses from the VIX API to java, until it has been released. VixHandle objects
+ * can be used as keys in hash-based collections.
+ *
  * @version $Id$
  * @author knoxg
  */
@@ -13,6 +18,13 @@ public class VixHandle {
 	/** Opaque pointer to VixHandle value */
 	private int value;
 	
+	/** The VIX_HANDLETYPE_* type of this handle, or -1 if this has not yet been determined */
+	private int type = -1;
+	
+	/** The number of references to this handle returned by the VIX API which 
+	 * have not yet been released. Maintained by VixHandleTable. */
+	int refCount;
+	
 	/** Create a new VixHandle wrapper object 
 	 * 
 	 * @param value the raw VixHandle value
@@ -21,6 +33,37 @@ public class VixHandle {
 		this.value = value;
 	}
 	
+	/** Returns the raw VixHandle value
+	 * 
+	 * @return the raw VixHandle value
+	 */
+	int getValue() {
+		return value;
+	}
+	
+	/** Returns the type of this handle. The type is retrieved from the VIX API the 
+	 * first time this method is called.
+	 * 
+	 * @return one of the VixWrapper.VIX_HANDLETYPE_* constants
+	 */
+	public int getType() {
+		if (type == -1) {
+			type = (value == 0 ? VixWrapper.VIX_HANDLETYPE_NONE : VixWrapper.Vix_GetHandleType(this));
+		}
+		return type;
+	}
+	
+	/** Returns the number of references to this handle that have been returned by the 
+	 * VIX API and not yet released using {@link VixWrapper#Vix_ReleaseHandle(VixHandle)}.
+	 * 
+	 * @return the number of outstanding references to this handle
+	 */
+	public int getRefCount() {
+		synchronized (VixHandleTable.class) {
+			return refCount;
+		}
+	}
+	
 	/** Tests for equality 
 	 * 
 	 * @param other other object
@@ -31,4 +74,12 @@ public class VixHandle {
 		if (! (other instanceof VixHandle)) { return false; }
 		return value == ((VixHandle) other).value;
 	}
+	
+	/** Returns a hash code for this handle, consistent with {@link #equals(Object)}
+	 * 
+	 * @return a hash code for this handle
+	 */
+	public int hashCode() {
+		return value;
+	}
 }
@@ -0,0 +1,206 @@
+package net.sf.jvix;
+
+/** Maps raw VIX handle values to the VixHandle objects that represent them, so that
+ * a handle is represented by the same VixHandle object each time it is returned
+ * from the native library.
+ *
+ * <p>A handle is added to this table when the VIX API returns a new reference to
+ * it (i.e. when it is returned by a VIX function, or as the value of a handle
+ * property), and is removed once each of those references has been released through
+ * {@link VixWrapper#Vix_ReleaseHandle(VixHandle)}. Handles which are only passed to
+ * the application temporarily (e.g. the moreEventInfo handle passed to a VixEventProc)
+ * are not added to the table, although if the handle is already in the table,
+ * its existing VixHandle object is used.
+ *
+ * <p>The table is an open-addressing hash table keyed on the primitive handle value,
+ * so looking up a handle does not create any objects. It can also be used by other
+ * classes which need to find the VixHandle for a raw handle value.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixHandleTable {
+
+	/** Initial number of slots in the table; must be a power of two */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Raw handle values; 0 (VIX_INVALID_HANDLE) marks an empty slot */
+	private static int[] keys = new int[INITIAL_CAPACITY];
+
+	/** VixHandle objects, in the same slots as their keys */
+	private static VixHandle[] values = new VixHandle[INITIAL_CAPACITY];
+
+	/** Number of handles in the table */
+	private static int size = 0;
+
+	/** This class only contains static methods */
+	private VixHandleTable() {
+	}
+
+	/** Returns the VixHandle object for a raw handle value, if that handle is in this table
+	 *
+	 * @param value a raw handle value
+	 *
+	 * @return the VixHandle object for this handle, or null if the handle is not in this table
+	 */
+	public static synchronized VixHandle lookup(int value) {
+		int index = indexOf(value);
+		return index == -1 ? null : values[index];
+	}
+
+	/** Returns the number of handles in this table
+	 *
+	 * @return the number of handles in this table
+	 */
+	public static synchronized int size() {
+		return size;
+	}
+
+	/** Returns a VixHandle object for a handle which is being passed to the application
+	 * without a new reference (e.g. in a callback). If the handle is already in this
+	 * table, the existing object is returned; otherwise a new object is created, but not
+	 * added to the table. Invoked by the native library.
+	 *
+	 * @param value a raw handle value
+	 *
+	 * @return a VixHandle object for this handle
+	 */
+	static synchronized VixHandle get(int value) {
+		if (value == 0) { return VixHandle.VIX_INVALID_HANDLE; }
+		int index = indexOf(value);
+		return index == -1 ? new VixHandle(value) : values[index];
+	}
+
+	/** Returns the VixHandle object for a handle which the VIX API has returned a new
+	 * reference to, adding it to this table if necessary. Invoked by the native library.
+	 *
+	 * @param value a raw handle value
+	 *
+	 * @return the VixHandle object for this handle
+	 */
+	static synchronized VixHandle acquire(int value) {
+		if (value == 0) { return VixHandle.VIX_INVALID_HANDLE; }
+		int index = indexOf(value);
+		VixHandle handle;
+		if (index == -1) {
+			handle = new VixHandle(value);
+			insert(value, handle);
+		} else {
+			handle = values[index];
+		}
+		handle.refCount++;
+		return handle;
+	}
+
+	/** Records that a reference to a handle is being released, removing it from
+	 * this table if this was the last reference
+	 *
+	 * @param handle the handle being released
+	 */
+	static void release(VixHandle handle) {
+		release(handle.getValue());
+	}
+
+	/** Records that a reference to a handle is being released, removing it from
+	 * this table if this was the last reference. Invoked by the native library.
+	 *
+	 * @param value a raw handle value
+	 */
+	static synchronized void release(int value) {
+		int index = indexOf(value);
+		if (index == -1) {
+			return;
+		}
+		VixHandle tableHandle = values[index];
+		tableHandle.refCount--;
+		if (tableHandle.refCount <= 0) {
+			tableHandle.refCount = 0;
+			remove(index);
+		}
+	}
+
+	/** Returns the slot in the table that a handle value would be placed in, if there
+	 * were no collisions
+	 *
+	 * @param value a raw handle value
+	 *
+	 * @return the preferred slot for this value
+	 */
+	private static int slotFor(int value) {
+		// VIX handles are small sequential integers; spread them across the table
+		return (value * 0x9E3779B9) & (keys.length - 1);
+	}
+
+	/** Returns the slot containing a handle value
+	 *
+	 * @param value a raw handle value
+	 *
+	 * @return the slot containing this value, or -1 if it is not in the table
+	 */
+	private static int indexOf(int value) {
+		if (value == 0) { return -1; }
+		int mask = keys.length - 1;
+		for (int index = slotFor(value); keys[index] != 0; index = (index + 1) & mask) {
+			if (keys[index] == value) { return index; }
+		}
+		return -1;
+	}
+
+	/** Adds a handle to the table, growing the table if it is more than half full
+	 *
+	 * @param value a raw handle value, which is not already in the table
+	 * @param handle the VixHandle object for this value
+	 */
+	private static void insert(int value, VixHandle handle) {
+		if ((size + 1) * 2 > keys.length) {
+			int[] oldKeys = keys;
+			VixHandle[] oldValues = values;
+			keys = new int[oldKeys.length * 2];
+			values = new VixHandle[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) { place(oldKeys[i], oldValues[i]); }
+			}
+		}
+		place(value, handle);
+		size++;
+	}
+
+	/** Places a handle in the first free slot at or after its preferred slot
+	 *
+	 * @param value a raw handle value
+	 * @param handle the VixHandle object for this value
+	 */
+	private static void place(int value, VixHandle handle) {
+		int mask = keys.length - 1;
+		int index = slotFor(value);
+		while (keys[index] != 0) {
+			index = (index + 1) & mask;
+		}
+		keys[index] = value;
+		values[index] = handle;
+	}
+
+	/** Removes the handle in a slot. Entries after it in the same probe sequence are
+	 * moved back, so that no tombstones are required.
+	 *
+	 * @param index the slot to empty
+	 */
+	private static void remove(int index) {
+		int mask = keys.length - 1;
+		int next = (index + 1) & mask;
+		while (keys[next] != 0) {
+			int preferred = slotFor(keys[next]);
+			// move the entry back if its preferred slot is not between the gap and its current slot
+			if (((next - preferred) & mask) >= ((next - index) & mask)) {
+				keys[index] = keys[next];
+				values[index] = values[next];
+				index = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[index] = 0;
+		values[index] = null;
+		size--;
+	}
+
+}
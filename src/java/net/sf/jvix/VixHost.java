@@ -7,6 +7,11 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 /** Object-oriented wrapper for the VIX Host API
+ * 
+ * <p>The open, findItems, registerVM and unregisterVM methods have asynchronous
+ * variants, which return a {@link VixFuture} instead of waiting for the job to complete.
+ * The items found by a search can also be streamed as they are found, through
+ * {@link #findItemsPublisher(int, long)}.
  * 
  * @author knoxg
  * @version $Id$
@@ -16,6 +21,9 @@ public class VixHost {
 	/** VixHandle used to represent this host */
 	private VixHandle hostHandle;
 	
+	/** Pump which delivers this host's events, if connected with VIX_HOSTOPTION_USE_EVENT_PUMP */
+	private VixEventPump eventPump = null;
+	
 	/** Logger instance for this class */
 	public static final Logger logger = Logger.getLogger(VixHost.class);
 
@@ -30,8 +38,6 @@ public class VixHost {
 	VixHost_Connect()
 	succeeds if you connect as the same user and use the
 	same host name. Subsequent calls return the same handle value.
-	<li> When you initialize the host object, you can also control some Vix
-	operations with the options parameter. The following option is supported:
 	</ul>
      * 
      * @param apiVersion Must be VixWrapper.VIX_API_VERSION
@@ -45,7 +51,31 @@ public class VixHost {
 	public VixHost(int apiVersion, int hostType, String hostName, int hostPort, String userName, String password)
 		throws VixException
 	{
-		List result;
+		this(apiVersion, hostType, hostName, hostPort, userName, password, 0);
+	}
+	
+    /** Connects to a vmware host, with connection options.
+     * 
+     * <p>If options includes VIX_HOSTOPTION_USE_EVENT_PUMP, VIX processes this host's
+     * events only when Vix_PumpEvents is called, and a {@link VixEventPump} thread is
+     * started to call it. All VixEventProc callbacks and completions for jobs on this
+     * host (including the futures returned by the asynchronous methods) are then run by
+     * that thread; its statistics are available from {@link #getEventPump()}. The
+     * pump is stopped when the host is closed.
+     * 
+     * @param apiVersion Must be VixWrapper.VIX_API_VERSION
+     * @param hostType VIX_SERVICEPROVIDER_VMWARE_SERVER or VIX_SERVICEPROVIDER_VMWARE_WORKSTATION
+     * @param hostName DNS name or IP address of remote host. Use NULL to connect to local host
+     * @param hostPort TCP/IP port of remote host, typically 902. Use zero for local host
+     * @param userName Username to authenticate with on remote machine. Use NULL to authenticate as current user on local host
+     * @param password Password to authenticate with on remote machine. Use NULL to authenticate as current user on local host
+     * @param options VIX_HOSTOPTION_USE_EVENT_PUMP, or zero
+     * 
+     */
+	public VixHost(int apiVersion, int hostType, String hostName, int hostPort, String userName, String password,
+		int options) throws VixException
+	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixHost_Connect(
 		  apiVersion,
 		  hostType,
@@ -53,16 +83,15 @@ public class VixHost {
 		  hostPort,
 		  "presumablyIgnoredUsername", // VMs are running on local machine
 		  "presumablyIgnoredPassword",
-		  VixWrapper.VIX_VMPOWEROP_NORMAL,
+		  options,
 		  VixHandle.VIX_INVALID_HANDLE,
 		  null, null);
 			  
 		// properties to retrieve from VixJob_Wait call
-		// (maybe it would be cleaner to pass these in as an int[] )
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE));
+		PropertyResultBuffer result = new PropertyResultBuffer(
+		  new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE });
 		try {
-			result = VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties);	 
+			VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
 		} catch (VixException ve) {
 			if (ve.getErrorCode()==1000) {
 				// could be due to serial number expiry; annotate exception trace
@@ -70,10 +99,21 @@ public class VixHost {
 			} else {
 				throw ve;
 			}
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);	
 		}
-		this.hostHandle = (VixHandle) result.get(0);
+		this.hostHandle = result.getHandle(0);
+		if ((options & VixWrapper.VIX_HOSTOPTION_USE_EVENT_PUMP) != 0) {
+			eventPump = new VixEventPump(hostHandle);
+			eventPump.start();
+		}
+	}
+	
+	/** Returns the pump which delivers this host's events
+	 * 
+	 * @return the event pump, or null if this host was not connected with
+	 *   VIX_HOSTOPTION_USE_EVENT_PUMP
+	 */
+	public VixEventPump getEventPump() {
+		return eventPump;
 	}
 	
     /** This function opens a virtual machine on the host that is identified by 
@@ -97,19 +137,30 @@ public class VixHost {
      * @param vmxFilePathName The path name of the virtual machine configuration file on the local host
      */
 	public VixVM open(String vmLocation) throws VixException {
-		List result;
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_Open(
 		  hostHandle,
 		  vmLocation,
 		  null, null);
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE));
-		try {
-			result = VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties); 
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);	
-		}
-		return new VixVM(this, (VixHandle) result.get(0));
+		PropertyResultBuffer result = new PropertyResultBuffer(
+		  new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE });
+		VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
+		return new VixVM(this, result.getHandle(0));
+	}
+
+	/** Asynchronous version of {@link #open(String)}.
+	 * 
+	 * @param vmLocation The path name of the virtual machine configuration file on the local host
+	 * 
+	 * @return a VixFuture which completes with the opened {@link VixVM}
+	 */
+	public VixFuture openAsync(String vmLocation) {
+		AsyncJob job = new AsyncJob(new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE }) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) {
+				return new VixVM(VixHost.this, result.getHandle(0));
+			}
+		};
+		return job.start(VixWrapper.VixVM_Open(hostHandle, vmLocation, job, null));
 	}
 	
 
@@ -119,9 +170,16 @@ public class VixHost {
 	 * is no longer valid and you should not use it in any Vix function. Similarly, you should 
 	 * not use any objects obtained from the host while it was connected.
 	 * 
+	 * <p>Handles waiting to be released by the default {@link ReleaseBatcher} are
+	 * released before the host is disconnected, and the event pump (if any) is stopped.
+	 * 
 	 */
 	public void close() throws VixException {
 		if (hostHandle != null) {
+			ReleaseBatcher.getDefault().flush();
+			if (eventPump != null) {
+				eventPump.shutdown();
+			}
 			VixWrapper.VixHost_Disconnect(hostHandle);
 			VixWrapper.Vix_ReleaseHandle(hostHandle);
 			hostHandle = null;
@@ -133,36 +191,87 @@ public class VixHost {
 	 * virtual machines, VixHost_FindItems() returns a series of virtual machine file 
 	 * path names.
 	 * 
+	 * <p>This method cannot be called on a thread which delivers VixEventProc callbacks
+	 * (a VixEventPump or VixEventDispatcher thread, or a VIX callback thread), since the
+	 * items found are delivered through callbacks which that thread might have to deliver;
+	 * use {@link #findItemsAsync(int)} there instead.
+	 * 
 	 * @param searchType The type of items to find. Value should be a VIX_FIND_* constant.
 	 * 
 	 * @return A List of found items.
+	 * 
+	 * @throws IllegalStateException if called on a thread which delivers VixEventProc callbacks
 	 */
 	public List findItems(int searchType) throws VixException {
-		final List items = new ArrayList();
-		VixEventProc discoverProc = new VixEventProc() {
-			public void callback(VixHandle handle, int eventType, VixHandle moreEventInfo, Object clientData) {
-				logger.debug("VixHost.findItems.discoverProc invoked (eventType=" + eventType + ")");
+		VixCancellationToken.checkCurrent();
+		if (VixWrapper.isCallbackThread()) {
+			throw new IllegalStateException("findItems cannot be called on a thread which delivers VIX callbacks");
+		}
+		// wait for the completion callback rather than the job itself, since in event
+		// pump mode the job may complete before its FIND_ITEM events have been delivered
+		return (List) findItemsAsync(searchType).getResult();
+	}
+
+	/** Returns a publisher of the items found by a search. Each subscriber to the
+	 * publisher starts a new search, and receives the location of each item (as a
+	 * String) as soon as it has been found, subject to the number of items the
+	 * subscriber has requested. For example, to open each registered virtual machine as
+	 * soon as it is found:
+	 * <pre>
+	 * host.findItemsPublisher(VixWrapper.VIX_FIND_REGISTERED_VMS, 60000).subscribe(new VixFlow.Subscriber() {
+	 *     public void onSubscribe(VixFlow.Subscription subscription) { subscription.request(Long.MAX_VALUE); }
+	 *     public void onNext(Object item) { openQueue.add(item); }
+	 *     public void onError(Throwable throwable) { ... }
+	 *     public void onComplete() { ... }
+	 * });
+	 * </pre>
+	 * 
+	 * <p>Cancelling a subscription abandons its search. See {@link FindItemsPublisher}
+	 * for details.
+	 * 
+	 * @param searchType The type of items to find. Value should be a VIX_FIND_* constant.
+	 * @param timeoutMillis The time after which a search which has not completed fails
+	 *   with VIX_E_CANCELLED, in milliseconds, or -1 if there is no timeout.
+	 * 
+	 * @return a publisher of found items
+	 */
+	public VixFlow.Publisher findItemsPublisher(int searchType, long timeoutMillis) {
+		return new FindItemsPublisher(hostHandle, searchType, timeoutMillis);
+	}
+
+	/** Asynchronous version of {@link #findItems(int)}.
+	 * 
+	 * @param searchType The type of items to find. Value should be a VIX_FIND_* constant.
+	 * 
+	 * @return a VixFuture which completes with a List of found items
+	 */
+	public VixFuture findItemsAsync(int searchType) {
+		final List items = Collections.synchronizedList(new ArrayList());
+		AsyncJob job = new AsyncJob(null) {
+			void event(VixHandle handle, int eventType, VixHandle moreEventInfo) {
 				if (eventType!=VixWrapper.VIX_EVENTTYPE_FIND_ITEM) {
 					return;
 				}
-				List findItemsCallbackProperties = new ArrayList();
-				findItemsCallbackProperties.add(new Integer(VixWrapper.VIX_PROPERTY_FOUND_ITEM_LOCATION));
-				List properties = VixWrapper.Vix_GetProperties(moreEventInfo, findItemsCallbackProperties);
-				items.add(properties.get(0));				    
+				PropertyResultBuffer properties = new PropertyResultBuffer(
+				  new int[] { VixWrapper.VIX_PROPERTY_FOUND_ITEM_LOCATION });
+				try {
+					VixWrapper.Vix_GetProperties(moreEventInfo, properties);
+				} catch (VixException ve) {
+					logger.error("Could not retrieve found item location", ve);
+					return;
+				}
+				items.add(properties.getString(0));
+			}
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) {
+				return items;
 			}
 		};
-		VixHandle jobHandle = VixWrapper.VixHost_FindItems(
+		return job.start(VixWrapper.VixHost_FindItems(
 		  hostHandle,
 		  searchType,
-		  new VixHandle(VixWrapper.VIX_INVALID_HANDLE),
+		  VixHandle.VIX_INVALID_HANDLE,
 		  -1, // timeout
-		  discoverProc, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST); 
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
-		return items;
+		  job, null));
 	}
 	
 
@@ -178,15 +287,23 @@ public class VixHost {
 	 * @param vmxFilePath The path name of the .vmx file on the host.
 	 */
 	public void registerVM(String vmxFilePath) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixHost_RegisterVM(
 		  hostHandle, vmxFilePath, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST); 
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
 		return;
 	}
+
+	/** Asynchronous version of {@link #registerVM(String)}.
+	 * 
+	 * @param vmxFilePath The path name of the .vmx file on the host.
+	 * 
+	 * @return a VixFuture which completes when the virtual machine has been registered
+	 */
+	public VixFuture registerVMAsync(String vmxFilePath) {
+		AsyncJob job = new AsyncJob(null);
+		return job.start(VixWrapper.VixHost_RegisterVM(hostHandle, vmxFilePath, job, null));
+	}
 	
 	/** This function removes a virtual machine from the host's inventory.
 	 * 
@@ -201,18 +318,24 @@ public class VixHost {
 	 * @param vmxFilePath The path name of the .vmx file on the host.
 	 */
 	public void unregisterVM(String vmxFilePath) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixHost_UnregisterVM(
 		  hostHandle, vmxFilePath, null, null);
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE));
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties); 
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
 		return;
 	}
 
+	/** Asynchronous version of {@link #unregisterVM(String)}.
+	 * 
+	 * @param vmxFilePath The path name of the .vmx file on the host.
+	 * 
+	 * @return a VixFuture which completes when the virtual machine has been unregistered
+	 */
+	public VixFuture unregisterVMAsync(String vmxFilePath) {
+		AsyncJob job = new AsyncJob(null);
+		return job.start(VixWrapper.VixHost_UnregisterVM(hostHandle, vmxFilePath, job, null));
+	}
+
 	/** Returns the vix handle associated with this host 
 	 * 
 	 * @return the vix handle associated with this host
@@ -0,0 +1,244 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/** Delivers the progress of operations on virtual machines to listeners, keyed by
+ * virtual machine.
+ *
+ * <p>A {@link VixProgressListener} can be registered for a single {@link VixVM}, or for
+ * every virtual machine:
+ * <pre>
+ * VixProgressBus.getDefault().addListener(vm, new VixProgressListener() {
+ *     public void progress(VixProgressEvent event) {
+ *         logger.info(event);
+ *     }
+ * });
+ * vm.createSnapshot("before upgrade", null, 0);
+ * </pre>
+ *
+ * <p>Events are raised for the asynchronous methods of VixVM, and for the synchronous
+ * methods of long-running operations (copyFileFromGuestToHost, copyFileFromHostToGuest,
+ * createSnapshot, installTools, removeSnapshot, revertToSnapshot and
+ * upgradeVirtualHardware), which wait for the completion of their asynchronous variant.
+ * When these synchronous methods are called on a thread which delivers VixEventProc
+ * callbacks (a VixEventPump or VixEventDispatcher thread, or a VIX callback thread),
+ * they wait for the job natively instead, since the callback which completes the
+ * asynchronous variant might have to be delivered by that same thread, and so raise
+ * no events.
+ * VIX does not raise VIX_EVENTTYPE_JOB_PROGRESS events for every operation, but every
+ * operation raises TYPE_STARTED and TYPE_COMPLETED events. Operations which start
+ * while no listener is registered for their virtual machine raise no events at all, and
+ * incur no overhead.
+ *
+ * <p>Listeners for a virtual machine are keyed by VixVM object, and are removed when
+ * that object is closed. This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixProgressBus {
+
+	/** Logger instance for this class */
+	private static Logger logger = Logger.getLogger(VixProgressBus.class);
+
+	/** The bus used by VixVM */
+	private static VixProgressBus defaultBus = new VixProgressBus();
+
+	/** Listeners for each VixVM, as arrays which are replaced rather than modified */
+	private Map vmListeners = new IdentityHashMap();
+
+	/** Listeners for every virtual machine */
+	private VixProgressListener[] globalListeners = new VixProgressListener[0];
+
+	/** Total number of listeners registered */
+	private volatile int listenerCount = 0;
+
+	/** Create a new VixProgressBus */
+	public VixProgressBus() {
+	}
+
+	/** Returns the bus to which VixVM operations report their progress
+	 *
+	 * @return the default bus
+	 */
+	public static VixProgressBus getDefault() {
+		return defaultBus;
+	}
+
+	/** Registers a listener
+	 *
+	 * @param vm the virtual machine whose operations are reported to the listener, or
+	 *   null to report the operations of every virtual machine
+	 * @param listener the listener
+	 */
+	public synchronized void addListener(VixVM vm, VixProgressListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("null listener");
+		}
+		VixProgressListener[] listeners = getListeners(vm);
+		VixProgressListener[] newListeners = new VixProgressListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+		newListeners[listeners.length] = listener;
+		setListeners(vm, newListeners);
+		listenerCount++;
+	}
+
+	/** Removes a listener
+	 *
+	 * @param vm the virtual machine the listener was registered for, or null
+	 * @param listener the listener
+	 *
+	 * @return true if the listener was registered
+	 */
+	public synchronized boolean removeListener(VixVM vm, VixProgressListener listener) {
+		VixProgressListener[] listeners = getListeners(vm);
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				VixProgressListener[] newListeners = new VixProgressListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, newListeners, 0, i);
+				System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+				setListeners(vm, newListeners);
+				listenerCount--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Removes every listener registered for a virtual machine. Invoked when the VixVM is closed.
+	 *
+	 * @param vm the virtual machine
+	 */
+	public synchronized void removeListeners(VixVM vm) {
+		VixProgressListener[] listeners = (VixProgressListener[]) vmListeners.remove(vm);
+		if (listeners != null) {
+			listenerCount -= listeners.length;
+		}
+	}
+
+	/** Records the start of an operation, and sends TYPE_STARTED events for it
+	 *
+	 * @param vm the virtual machine
+	 * @param operation the name of the operation
+	 *
+	 * @return an object through which the operation's later events are sent, or null if
+	 *   no listeners are registered for the virtual machine
+	 */
+	Progress started(VixVM vm, String operation) {
+		if (listenerCount == 0) {
+			return null;
+		}
+		VixProgressListener[] listeners;
+		synchronized (this) {
+			VixProgressListener[] forVM = getListeners(vm);
+			if (forVM.length + globalListeners.length == 0) {
+				return null;
+			}
+			listeners = new VixProgressListener[forVM.length + globalListeners.length];
+			System.arraycopy(globalListeners, 0, listeners, 0, globalListeners.length);
+			System.arraycopy(forVM, 0, listeners, globalListeners.length, forVM.length);
+		}
+		Progress progress = new Progress(vm, operation, listeners);
+		progress.send(VixProgressEvent.TYPE_STARTED, null, null);
+		return progress;
+	}
+
+	/** Returns the listeners for a virtual machine. Must be called while synchronized.
+	 *
+	 * @param vm the virtual machine, or null for the global listeners
+	 *
+	 * @return the listeners
+	 */
+	private VixProgressListener[] getListeners(VixVM vm) {
+		if (vm == null) {
+			return globalListeners;
+		}
+		VixProgressListener[] listeners = (VixProgressListener[]) vmListeners.get(vm);
+		return listeners == null ? new VixProgressListener[0] : listeners;
+	}
+
+	/** Replaces the listeners for a virtual machine. Must be called while synchronized.
+	 *
+	 * @param vm the virtual machine, or null for the global listeners
+	 * @param listeners the listeners
+	 */
+	private void setListeners(VixVM vm, VixProgressListener[] listeners) {
+		if (vm == null) {
+			globalListeners = listeners;
+		} else if (listeners.length == 0) {
+			vmListeners.remove(vm);
+		} else {
+			vmListeners.put(vm, listeners);
+		}
+	}
+
+	/** The progress of a single operation. The listeners are those registered when the
+	 * operation started. */
+	static class Progress {
+
+		/** The virtual machine */
+		private VixVM vm;
+
+		/** The name of the operation */
+		private String operation;
+
+		/** The listeners to notify */
+		private VixProgressListener[] listeners;
+
+		/** System.nanoTime() when the operation started */
+		private long startNanos = System.nanoTime();
+
+		/** Number of TYPE_PROGRESS events sent */
+		private int progressCount = 0;
+
+		Progress(VixVM vm, String operation, VixProgressListener[] listeners) {
+			this.vm = vm;
+			this.operation = operation;
+			this.listeners = listeners;
+		}
+
+		/** Sends a TYPE_PROGRESS event
+		 *
+		 * @param moreEventInfo the moreEventInfo handle of the VIX event
+		 */
+		void progress(VixHandle moreEventInfo) {
+			send(VixProgressEvent.TYPE_PROGRESS, null, moreEventInfo);
+		}
+
+		/** Sends a TYPE_COMPLETED event
+		 *
+		 * @param exception the exception thrown by the operation, or null if it succeeded
+		 */
+		void completed(VixException exception) {
+			send(VixProgressEvent.TYPE_COMPLETED, exception, null);
+		}
+
+		/** Sends an event to every listener
+		 *
+		 * @param type the VixProgressEvent.TYPE_* type of the event
+		 * @param exception the exception thrown by the operation, or null
+		 * @param moreEventInfo the moreEventInfo handle of the VIX event, or null
+		 */
+		private void send(int type, VixException exception, VixHandle moreEventInfo) {
+			VixProgressEvent event;
+			synchronized (this) {
+				if (type == VixProgressEvent.TYPE_PROGRESS) { progressCount++; }
+				long elapsedNanos = (type == VixProgressEvent.TYPE_STARTED ? 0 : System.nanoTime() - startNanos);
+				event = new VixProgressEvent(type, vm, operation, elapsedNanos, progressCount, exception, moreEventInfo);
+			}
+			for (int i = 0; i < listeners.length; i++) {
+				try {
+					listeners[i].progress(event);
+				} catch (RuntimeException re) {
+					logger.error("Exception in VixProgressListener", re);
+				}
+			}
+		}
+	}
+
+}
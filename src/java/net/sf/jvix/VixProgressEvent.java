@@ -0,0 +1,146 @@
+package net.sf.jvix;
+
+/** The start, progress or completion of an operation on a virtual machine, sent to
+ * {@link VixProgressListener}s registered with the {@link VixProgressBus}.
+ *
+ * <p>Each operation sends one TYPE_STARTED event, then a TYPE_PROGRESS event for each
+ * VIX_EVENTTYPE_JOB_PROGRESS event raised by its job, then one TYPE_COMPLETED event.
+ * Every event records the time it was raised, and the time elapsed since the operation
+ * started, so that the rate at which an operation progresses (and hence its likely
+ * completion time) can be estimated from previous operations of the same kind.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixProgressEvent {
+
+	/** Event type sent when an operation's job is started */
+	public static final int TYPE_STARTED = 1;
+
+	/** Event type sent for each VIX_EVENTTYPE_JOB_PROGRESS event of an operation's job */
+	public static final int TYPE_PROGRESS = 2;
+
+	/** Event type sent when an operation's job completes, successfully or not */
+	public static final int TYPE_COMPLETED = 3;
+
+	/** The type of this event */
+	private int type;
+
+	/** The virtual machine */
+	private VixVM vm;
+
+	/** The name of the operation */
+	private String operation;
+
+	/** The time of this event, as a System.currentTimeMillis() value */
+	private long timestamp;
+
+	/** Time since the operation started, in nanoseconds */
+	private long elapsedNanos;
+
+	/** Number of TYPE_PROGRESS events sent for the operation, including this one */
+	private int progressCount;
+
+	/** The exception thrown by the operation, for TYPE_COMPLETED events */
+	private VixException exception;
+
+	/** The moreEventInfo handle of the VIX event, for TYPE_PROGRESS events */
+	private VixHandle moreEventInfo;
+
+	/** Create a new VixProgressEvent */
+	VixProgressEvent(int type, VixVM vm, String operation, long elapsedNanos, int progressCount,
+	  VixException exception, VixHandle moreEventInfo)
+	{
+		this.type = type;
+		this.vm = vm;
+		this.operation = operation;
+		this.timestamp = System.currentTimeMillis();
+		this.elapsedNanos = elapsedNanos;
+		this.progressCount = progressCount;
+		this.exception = exception;
+		this.moreEventInfo = moreEventInfo;
+	}
+
+	/** Returns the type of this event
+	 *
+	 * @return TYPE_STARTED, TYPE_PROGRESS or TYPE_COMPLETED
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/** Returns the virtual machine on which the operation is being performed
+	 *
+	 * @return the virtual machine
+	 */
+	public VixVM getVM() {
+		return vm;
+	}
+
+	/** Returns the name of the operation, which is the name of the VixVM method
+	 * which started it, without any "Async" suffix (e.g. "createSnapshot")
+	 *
+	 * @return the name of the operation
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/** Returns the time this event was raised
+	 *
+	 * @return the time, as a System.currentTimeMillis() value
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/** Returns the time elapsed between the start of the operation and this event,
+	 * measured with System.nanoTime()
+	 *
+	 * @return the elapsed time, in nanoseconds; 0 for TYPE_STARTED events
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/** Returns the number of TYPE_PROGRESS events sent for this operation so far,
+	 * including this event
+	 *
+	 * @return the number of progress events
+	 */
+	public int getProgressCount() {
+		return progressCount;
+	}
+
+	/** Returns the exception thrown by the operation
+	 *
+	 * @return the exception, or null if this is not a TYPE_COMPLETED event, or the
+	 *   operation succeeded
+	 */
+	public VixException getException() {
+		return exception;
+	}
+
+	/** Returns the moreEventInfo handle of the VIX_EVENTTYPE_JOB_PROGRESS event, from
+	 * which any further properties supplied by VIX can be retrieved. The handle is only
+	 * valid until the listener returns.
+	 *
+	 * @return the moreEventInfo handle, or VIX_INVALID_HANDLE if this is not a
+	 *   TYPE_PROGRESS event
+	 */
+	public VixHandle getMoreEventInfo() {
+		return moreEventInfo == null ? VixHandle.VIX_INVALID_HANDLE : moreEventInfo;
+	}
+
+	/** Returns a string representation of this event
+	 *
+	 * @return a string representation of this event
+	 */
+	public String toString() {
+		String[] typeNames = new String[] { null, "STARTED", "PROGRESS", "COMPLETED" };
+		return operation + " " + typeNames[type] + " at " + timestamp + " (+" + (elapsedNanos / 1000000) + "ms" +
+		  (type == TYPE_PROGRESS ? ", #" + progressCount : "") +
+		  (exception == null ? "" : ", errorCode=" + exception.getErrorCode()) + ")";
+	}
+
+}
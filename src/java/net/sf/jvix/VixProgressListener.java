@@ -0,0 +1,20 @@
+package net.sf.jvix;
+
+/** Receives the progress of operations on a virtual machine, through the
+ * {@link VixProgressBus}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public interface VixProgressListener {
+
+	/** Invoked when an operation starts, reports progress, or completes. This method is
+	 * invoked by the thread delivering VIX events (or the thread starting the operation,
+	 * for VixProgressEvent.TYPE_STARTED events); it should return quickly, and must not
+	 * wait for other VIX jobs to complete.
+	 *
+	 * @param event the progress event
+	 */
+	public void progress(VixProgressEvent event);
+
+}
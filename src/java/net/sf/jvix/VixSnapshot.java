@@ -49,12 +49,13 @@ public class VixSnapshot {
 		return new VixSnapshot(parentSnapshotHandle);
 	}
 
-	/** Releases the resources associated with this snapshot.
+	/** Releases the resources associated with this snapshot. The handle is
+	 * released through the default {@link ReleaseBatcher}.
 	 * 
 	 */
 	public void close() {
 		if (snapshotHandle != null) { 
-			VixWrapper.Vix_ReleaseHandle(snapshotHandle);
+			ReleaseBatcher.getDefault().release(snapshotHandle);
 			snapshotHandle = null; 
 		}		
 	}
@@ -1,7 +1,6 @@
 package net.sf.jvix;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import net.sf.jvix.data.VixFile;
@@ -9,6 +8,15 @@ import net.sf.jvix.data.VixProcess;
 import net.sf.jvix.data.VixSharedFolderState;
 
 /** Object-oriented wrapper for the VIX virtual machine API
+ * 
+ * <p>Each method which starts a VIX job has an asynchronous variant, with the
+ * same name followed by "Async", which returns a {@link VixFuture} instead of
+ * waiting for the job to complete. The progress of these operations can be followed
+ * through the {@link VixProgressBus}.
+ * 
+ * <p>The synchronous methods of long-running operations (e.g. {@link #copyFileFromGuestToHost(String, String)})
+ * wait for their asynchronous variant to complete, except on threads which deliver
+ * VixEventProc callbacks, where they wait for the job natively; see {@link VixProgressBus}.
  * 
  * @author knoxg
  * @version $Id$
@@ -21,6 +29,38 @@ public class VixVM {
 	/** the VixHandle representing this virtual machine */ 
 	private VixHandle vmHandle;
 
+	/** Properties retrieved from jobs which create a snapshot */
+	private static final int[] HANDLE_PROPERTY = new int[] { 
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE };
+
+	/** Properties retrieved from jobs which check for the existence of a file or directory */
+	private static final int[] EXISTS_PROPERTY = new int[] { 
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_OBJECT_EXISTS };
+
+	/** Properties retrieved from VixVM_GetSharedFolderState jobs */
+	private static final int[] SHARED_FOLDER_PROPERTIES = new int[] { 
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME, 
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_HOST,
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_FLAGS };
+
+	/** Properties retrieved for each result of VixVM_ListDirectoryInGuest jobs */
+	private static final int[] FILE_PROPERTIES = new int[] {
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_FILE_FLAGS };
+
+	/** Properties retrieved for each result of VixVM_ListProcessesInGuest jobs */
+	private static final int[] PROCESS_PROPERTIES = new int[] {
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_ID,
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_OWNER,
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_COMMAND };
+
+	/** Properties retrieved from jobs which run a program or script */
+	private static final int[] PROGRAM_PROPERTIES = new int[] {
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_ID,
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME,
+	  VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE };
+
 	/** Create a new VixVM object. This constructor is not public; to create a new
 	 * object call the {@link VixHost#open(String)} method
 	 * 
@@ -73,13 +113,24 @@ public class VixVM {
 	public void addSharedFolder(String shareName, String hostPathName, int flags) 
 		throws VixException 
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_AddSharedFolder(vmHandle, 
 		  shareName, hostPathName, flags, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #addSharedFolder(String, String, int)}.
+	 * 
+	 * @param shareName Specifies the guest path name of the new shared folder
+	 * @param hostPathName Specifies the host path of the shared folder
+	 * @param flags The folder options
+	 * 
+	 * @return a VixFuture which completes when the shared folder has been added
+	 */
+	public VixFuture addSharedFolderAsync(String shareName, String hostPathName, int flags) {
+		AsyncJob job = new AsyncJob(this, "addSharedFolder", null);
+		return job.start(VixWrapper.VixVM_AddSharedFolder(vmHandle, 
+		  shareName, hostPathName, flags, job, null));
 	}
 	
 	/** Copies a file or directory from the guest operating system to the host operating system.
@@ -110,13 +161,28 @@ public class VixVM {
 	 */
 	public void copyFileFromGuestToHost(String guestPathName, String hostPathName) throws VixException
 	{
-		VixHandle jobHandle = VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle, 
-		  guestPathName, hostPathName, 0, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixCancellationToken.checkCurrent();
+		// long-running operations wait for their asynchronous variant, which reports progress,
+		// unless this thread may be the one which would deliver its callbacks
+		if (VixWrapper.isCallbackThread()) {
+			VixWrapper.VixJob_WaitAndRelease(VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle, 
+			  guestPathName, hostPathName, 0, VixHandle.VIX_INVALID_HANDLE, null, null));
+			return;
 		}
+		copyFileFromGuestToHostAsync(guestPathName, hostPathName).getResult();
+	}
+
+	/** Asynchronous version of {@link #copyFileFromGuestToHost(String, String)}.
+	 * 
+	 * @param guestPathName The path name of a file on a file system available to the guest
+	 * @param hostPathName The path name of a file on a file system available to the host
+	 * 
+	 * @return a VixFuture which completes when the file has been copied
+	 */
+	public VixFuture copyFileFromGuestToHostAsync(String guestPathName, String hostPathName) {
+		AsyncJob job = new AsyncJob(this, "copyFileFromGuestToHost", null);
+		return job.start(VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle, 
+		  guestPathName, hostPathName, 0, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 
 	/** Copies a file or directory from the host operating system to the guest operating system.
@@ -148,13 +214,26 @@ public class VixVM {
 	 */ 
 	public void copyFileFromHostToGuest(String hostPathName, String guestPathName) throws VixException
 	{
-		VixHandle jobHandle = VixWrapper.VixVM_CopyFileFromHostToGuest(vmHandle, 
-		  hostPathName, guestPathName, 0, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixCancellationToken.checkCurrent();
+		if (VixWrapper.isCallbackThread()) {
+			VixWrapper.VixJob_WaitAndRelease(VixWrapper.VixVM_CopyFileFromHostToGuest(vmHandle, 
+			  hostPathName, guestPathName, 0, VixHandle.VIX_INVALID_HANDLE, null, null));
+			return;
 		}
+		copyFileFromHostToGuestAsync(hostPathName, guestPathName).getResult();
+	}
+
+	/** Asynchronous version of {@link #copyFileFromHostToGuest(String, String)}.
+	 * 
+	 * @param hostPathName The path name of a file on a file system available to the host
+	 * @param guestPathName The path name of a file on a file system available to the guest
+	 * 
+	 * @return a VixFuture which completes when the file has been copied
+	 */
+	public VixFuture copyFileFromHostToGuestAsync(String hostPathName, String guestPathName) {
+		AsyncJob job = new AsyncJob(this, "copyFileFromHostToGuest", null);
+		return job.start(VixWrapper.VixVM_CopyFileFromHostToGuest(vmHandle, 
+		  hostPathName, guestPathName, 0, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 
 	/** This function creates a directory in the guest operating system.
@@ -171,13 +250,22 @@ public class VixVM {
 	 * @param pathName The path to the directory to be created.
 	 */
 	public void createDirectoryInGuest(String pathName) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_CreateDirectoryInGuest(vmHandle, 
-		  pathName, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		  pathName, VixHandle.VIX_INVALID_HANDLE, null, null);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #createDirectoryInGuest(String)}.
+	 * 
+	 * @param pathName The path to the directory to be created
+	 * 
+	 * @return a VixFuture which completes when the directory has been created
+	 */
+	public VixFuture createDirectoryInGuestAsync(String pathName) {
+		AsyncJob job = new AsyncJob(this, "createDirectoryInGuest", null);
+		return job.start(VixWrapper.VixVM_CreateDirectoryInGuest(vmHandle, 
+		  pathName, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 
 	/** This function saves a copy of the virtual machine state as a snapshot object. 
@@ -212,16 +300,32 @@ public class VixVM {
 	 * @return The newly created snapshot
 	 */
 	public VixSnapshot createSnapshot(String name, String description, int options) throws VixException {
-		VixHandle jobHandle = VixWrapper.VixVM_CreateSnapshot(vmHandle, 
-		  name, description, options, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME)); 
-		try {
-			List result = VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties);
-			return new VixSnapshot((VixHandle) result.get(0));
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixCancellationToken.checkCurrent();
+		if (VixWrapper.isCallbackThread()) {
+			PropertyResultBuffer result = new PropertyResultBuffer(HANDLE_PROPERTY);
+			VixWrapper.VixJob_WaitAndRelease(VixWrapper.VixVM_CreateSnapshot(vmHandle, 
+			  name, description, options, VixHandle.VIX_INVALID_HANDLE, null, null), result);
+			return new VixSnapshot(result.getHandle(0));
 		}
+		return (VixSnapshot) createSnapshotAsync(name, description, options).getResult();
+	}
+
+	/** Asynchronous version of {@link #createSnapshot(String, String, int)}.
+	 * 
+	 * @param name A user-defined name for the snapshot
+	 * @param description A user-defined description for the snapshot
+	 * @param options Flags to specify how the snapshot should be created
+	 * 
+	 * @return a VixFuture which completes with the new {@link VixSnapshot}
+	 */
+	public VixFuture createSnapshotAsync(String name, String description, int options) {
+		AsyncJob job = new AsyncJob(this, "createSnapshot", HANDLE_PROPERTY) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return new VixSnapshot(result.getHandle(0));
+			}
+		};
+		return job.start(VixWrapper.VixVM_CreateSnapshot(vmHandle, 
+		  name, description, options, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 
 	/** This function creates a temporary file in the guest operating system.
@@ -232,18 +336,68 @@ public class VixVM {
 	 * @return the name of the temporary file
 	 */
 	public String createTempFileInGuest() throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_CreateTempFileInGuest(vmHandle, 
-		  0, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME)); 
+		  0, VixHandle.VIX_INVALID_HANDLE, null, null);
+		PropertyResultBuffer result = new PropertyResultBuffer(
+		  new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME });
+		VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
+		return result.getString(0);
+	}
+
+	/** Asynchronous version of {@link #createTempFileInGuest()}.
+	 * 
+	 * @return a VixFuture which completes with the path of the temporary file, as a String
+	 */
+	public VixFuture createTempFileInGuestAsync() {
+		AsyncJob job = new AsyncJob(this, "createTempFileInGuest", new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME }) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return result.getString(0);
+			}
+		};
+		return job.start(VixWrapper.VixVM_CreateTempFileInGuest(vmHandle, 
+		  0, VixHandle.VIX_INVALID_HANDLE, job, null));
+	}
+
+	/** This function captures the screen of the guest operating system.
+	 *
+	 * <ul><li>You must call {@link #loginInGuest(String, String)} before calling this function.
+	 * <li>The image data is not copied into the java heap until it is read from the
+	 *   VixBlob; the caller must call {@link VixBlob#free()} once it has been read.
+	 * </ul>
+	 *
+	 * @param captureType VIX_CAPTURESCREENFORMAT_PNG or VIX_CAPTURESCREENFORMAT_PNG_NOCOMPRESS
+	 *
+	 * @return the screen image, in the format requested
+	 */
+	public VixBlob captureScreenImage(int captureType) throws VixException {
+		VixCancellationToken.checkCurrent();
+		VixHandle jobHandle = VixWrapper.VixVM_CaptureScreenImage(vmHandle,
+		  captureType, VixHandle.VIX_INVALID_HANDLE, null, null);
 		try {
-			List result = VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties);
-			return (String) result.get(0);
+			VixWrapper.VixJob_Wait(jobHandle);
+			return VixWrapper.Vix_GetBlobProperty(jobHandle, VixWrapper.VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA);
 		} finally {
 			VixWrapper.Vix_ReleaseHandle(jobHandle);
 		}
 	}
 
+	/** Asynchronous version of {@link #captureScreenImage(int)}.
+	 * 
+	 * @param captureType Must be VIX_CAPTURESCREENFORMAT_PNG or VIX_CAPTURESCREENFORMAT_PNG_NOCOMPRESS
+	 * 
+	 * @return a VixFuture which completes with the image data, as a {@link VixBlob}
+	 */
+	public VixFuture captureScreenImageAsync(int captureType) {
+		AsyncJob job = new AsyncJob(this, "captureScreenImage", null) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return VixWrapper.Vix_GetBlobProperty(jobHandle, VixWrapper.VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA);
+			}
+		};
+		return job.start(VixWrapper.VixVM_CaptureScreenImage(vmHandle,
+		  captureType, VixHandle.VIX_INVALID_HANDLE, job, null));
+	}
+
 	/** This function permanently deletes a virtual machine from your host system.
 	 *
 	 * <ul><li>This function permanently deletes a virtual machine from your host system. 
@@ -257,13 +411,20 @@ public class VixVM {
     * </ul> 
 	 */
 	public void delete() throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_Delete(vmHandle, 
 		  0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #delete()}.
+	 * 
+	 * @return a VixFuture which completes when the virtual machine has been deleted
+	 */
+	public VixFuture deleteAsync() {
+		AsyncJob job = new AsyncJob(this, "delete", null);
+		return job.start(VixWrapper.VixVM_Delete(vmHandle, 
+		  0, job, null));
 	}
 	
 	/** This function deletes a directory in the guest operating system. 
@@ -277,13 +438,22 @@ public class VixVM {
 	 */
 	public void deleteDirectoryInGuest(String pathName) throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_DeleteDirectoryInGuest(vmHandle, 
 		  pathName, 0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #deleteDirectoryInGuest(String)}.
+	 * 
+	 * @param pathName The path to the directory to be deleted
+	 * 
+	 * @return a VixFuture which completes when the directory has been deleted
+	 */
+	public VixFuture deleteDirectoryInGuestAsync(String pathName) {
+		AsyncJob job = new AsyncJob(this, "deleteDirectoryInGuest", null);
+		return job.start(VixWrapper.VixVM_DeleteDirectoryInGuest(vmHandle, 
+		  pathName, 0, job, null));
 	}
 
 	/** This function deletes a file in the guest operating system.
@@ -296,13 +466,22 @@ public class VixVM {
 	 */
 	public void deleteFileInGuest(String guestPathName) throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_DeleteFileInGuest(vmHandle, 
 		  guestPathName, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #deleteFileInGuest(String)}.
+	 * 
+	 * @param guestPathName The path to the file to be deleted
+	 * 
+	 * @return a VixFuture which completes when the file has been deleted
+	 */
+	public VixFuture deleteFileInGuestAsync(String guestPathName) {
+		AsyncJob job = new AsyncJob(this, "deleteFileInGuest", null);
+		return job.start(VixWrapper.VixVM_DeleteFileInGuest(vmHandle, 
+		  guestPathName, job, null));
 	}
 
 	/** This function tests the existence of a directory in the guest operating system.
@@ -317,16 +496,28 @@ public class VixVM {
 	 */ 
 	public boolean directoryExistsInGuest(String pathName) throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_DirectoryExistsInGuest(vmHandle, 
 		  pathName, null, null);
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_OBJECT_EXISTS)); 
-		try {
-			List result = VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties);
-			return ((Boolean) result.get(0)).booleanValue();
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		PropertyResultBuffer result = new PropertyResultBuffer(EXISTS_PROPERTY);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
+		return result.getBoolean(0);
+	}
+
+	/** Asynchronous version of {@link #directoryExistsInGuest(String)}.
+	 * 
+	 * @param pathName The path to the directory in the guest to be checked
+	 * 
+	 * @return a VixFuture which completes with a Boolean which is true if the directory exists
+	 */
+	public VixFuture directoryExistsInGuestAsync(String pathName) {
+		AsyncJob job = new AsyncJob(this, "directoryExistsInGuest", EXISTS_PROPERTY) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return Boolean.valueOf(result.getBoolean(0));
+			}
+		};
+		return job.start(VixWrapper.VixVM_DirectoryExistsInGuest(vmHandle, 
+		  pathName, job, null));
 	}
 	
 	/** This function enables or disables all shared folders as a feature for a virtual machine. 
@@ -341,13 +532,22 @@ public class VixVM {
 	 */
 	public void enableSharedFolders(boolean enabled) throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_EnableSharedFolders(vmHandle, 
 		  enabled, 0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #enableSharedFolders(boolean)}.
+	 * 
+	 * @param enabled true enables shared folders, false disables shared folders
+	 * 
+	 * @return a VixFuture which completes when shared folders have been enabled or disabled
+	 */
+	public VixFuture enableSharedFoldersAsync(boolean enabled) {
+		AsyncJob job = new AsyncJob(this, "enableSharedFolders", null);
+		return job.start(VixWrapper.VixVM_EnableSharedFolders(vmHandle, 
+		  enabled, 0, job, null));
 	}
 
 	/** This function tests the existence of a file in the guest operating system.
@@ -363,16 +563,28 @@ public class VixVM {
 	 */ 
 	public boolean fileExistsInGuest(String guestPathName) throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_FileExistsInGuest(vmHandle,  
 		  guestPathName, null, null);
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_OBJECT_EXISTS)); 
-		try {
-			List result = VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties);
-			return ((Boolean) result.get(0)).booleanValue();
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		PropertyResultBuffer result = new PropertyResultBuffer(EXISTS_PROPERTY);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
+		return result.getBoolean(0);
+	}
+
+	/** Asynchronous version of {@link #fileExistsInGuest(String)}.
+	 * 
+	 * @param guestPathName The path to the file to be checked
+	 * 
+	 * @return a VixFuture which completes with a Boolean which is true if the file exists
+	 */
+	public VixFuture fileExistsInGuestAsync(String guestPathName) {
+		AsyncJob job = new AsyncJob(this, "fileExistsInGuest", EXISTS_PROPERTY) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return Boolean.valueOf(result.getBoolean(0));
+			}
+		};
+		return job.start(VixWrapper.VixVM_FileExistsInGuest(vmHandle,  
+		  guestPathName, job, null));
 	}
 	
 	/** This function returns the current active snapshot.
@@ -447,16 +659,27 @@ public class VixVM {
 	 */
 	public int getNumSharedFolders() throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_GetNumSharedFolders(vmHandle,  
 		  null, null);
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_COUNT)); 
-		try {
-			List result = VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties);
-			return ((Integer) result.get(0)).intValue();
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		PropertyResultBuffer result = new PropertyResultBuffer(
+		  new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_COUNT });
+		VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
+		return result.getInt(0);
+	}
+
+	/** Asynchronous version of {@link #getNumSharedFolders()}.
+	 * 
+	 * @return a VixFuture which completes with the number of shared folders, as an Integer
+	 */
+	public VixFuture getNumSharedFoldersAsync() {
+		AsyncJob job = new AsyncJob(this, "getNumSharedFolders", new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_COUNT }) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return new Integer(result.getInt(0));
+			}
+		};
+		return job.start(VixWrapper.VixVM_GetNumSharedFolders(vmHandle,  
+		  job, null));
 	}
 	
 	/** This function returns the handle of the specified snapshot belonging to the 
@@ -501,23 +724,28 @@ public class VixVM {
 	 */
 	public VixSharedFolderState getSharedFolderState(int index) throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_GetSharedFolderState(vmHandle,
 		  index, null, null);
-		List jobWaitProperties = new ArrayList();
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME)); 
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_HOST));
-		jobWaitProperties.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_FLAGS));
-		try {
-			List result = VixWrapper.VixJob_Wait(jobHandle, jobWaitProperties);
-			VixSharedFolderState folderState = new VixSharedFolderState(
-			  (String) result.get(0),
-			  (String) result.get(1),
-			  ((Integer) result.get(2)).intValue()
-			);
-			return folderState;
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		PropertyResultBuffer result = new PropertyResultBuffer(SHARED_FOLDER_PROPERTIES);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
+		return toSharedFolderState(result);
+	}
+
+	/** Asynchronous version of {@link #getSharedFolderState(int)}.
+	 * 
+	 * @param index Identifies the shared folder
+	 * 
+	 * @return a VixFuture which completes with the {@link VixSharedFolderState} of the shared folder
+	 */
+	public VixFuture getSharedFolderStateAsync(int index) {
+		AsyncJob job = new AsyncJob(this, "getSharedFolderState", SHARED_FOLDER_PROPERTIES) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return toSharedFolderState(result);
+			}
+		};
+		return job.start(VixWrapper.VixVM_GetSharedFolderState(vmHandle,
+		  index, job, null));
 	}
 
 	/** Installs VMware Tools on the guest operating system.
@@ -530,13 +758,22 @@ public class VixVM {
 	 */
 	public void installTools() throws VixException
 	{
-		VixHandle jobHandle = VixWrapper.VixVM_InstallTools(vmHandle,
-		  0, null, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixCancellationToken.checkCurrent();
+		if (VixWrapper.isCallbackThread()) {
+			VixWrapper.VixJob_WaitAndRelease(VixWrapper.VixVM_InstallTools(vmHandle, 0, null, null, null));
+			return;
 		}
+		installToolsAsync().getResult();
+	}
+
+	/** Asynchronous version of {@link #installTools()}.
+	 * 
+	 * @return a VixFuture which completes when the tools installation has completed
+	 */
+	public VixFuture installToolsAsync() {
+		AsyncJob job = new AsyncJob(this, "installTools", null);
+		return job.start(VixWrapper.VixVM_InstallTools(vmHandle,
+		  0, null, job, null));
 	}
 
 	/** This function terminates a process in the guest operating system. 
@@ -548,13 +785,22 @@ public class VixVM {
 	 */
 	public void killProcessInGuest(long pid) throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_KillProcessInGuest(vmHandle,
 		  pid, 0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #killProcessInGuest(long)}.
+	 * 
+	 * @param pid The ID of the process to be killed
+	 * 
+	 * @return a VixFuture which completes when the process has been killed
+	 */
+	public VixFuture killProcessInGuestAsync(long pid) {
+		AsyncJob job = new AsyncJob(this, "killProcessInGuest", null);
+		return job.start(VixWrapper.VixVM_KillProcessInGuest(vmHandle,
+		  pid, 0, job, null));
 	}
 	
 	/** This function lists a directory in the guest operating system. 
@@ -569,26 +815,26 @@ public class VixVM {
 	 */
 	public List listDirectoryInGuest(String pathName) throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_ListDirectoryInGuest(vmHandle,
 		  pathName, 0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-			int num = VixWrapper.VixJob_GetNumProperties(jobHandle, VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME);
-			List nthPropertyList = new ArrayList();
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME));
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_FILE_FLAGS));
-			List directories = new ArrayList();
-			for (int i=0; i<num; i++) {
-				List fileResult = VixWrapper.VixJob_GetNthProperties(jobHandle, i, nthPropertyList);
-				directories.add(new VixFile(
-				  (String) fileResult.get(0), 
-				  ((Integer) fileResult.get(1)).intValue()
-				));
+		return toFileList(VixWrapper.VixJob_WaitAndReleaseTable(jobHandle, FILE_PROPERTIES, false));
+	}
+
+	/** Asynchronous version of {@link #listDirectoryInGuest(String)}.
+	 * 
+	 * @param pathName The path name of a directory to be listed
+	 * 
+	 * @return a VixFuture which completes with a List of {@link net.sf.jvix.data.VixFile} objects
+	 */
+	public VixFuture listDirectoryInGuestAsync(String pathName) {
+		AsyncJob job = new AsyncJob(this, "listDirectoryInGuest", null) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return toFileList(VixWrapper.VixJob_GetAllNthProperties(jobHandle, FILE_PROPERTIES));
 			}
-			return directories;
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		};
+		return job.start(VixWrapper.VixVM_ListDirectoryInGuest(vmHandle,
+		  pathName, 0, job, null));
 	}
 
 	/** This function lists the running processes in the guest operating system. 
@@ -601,30 +847,24 @@ public class VixVM {
 	 */
 	public List listProcessesInGuest() throws VixException
 	{
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_ListProcessesInGuest(vmHandle,
 		  0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-			int num = VixWrapper.VixJob_GetNumProperties(jobHandle, VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME);
-			List nthPropertyList = new ArrayList();
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME));
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_ID));
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_OWNER));
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_COMMAND));
-			List processes = new ArrayList();
-			for (int i=0; i<num; i++) {
-				List processResult = VixWrapper.VixJob_GetNthProperties(jobHandle, i, nthPropertyList);
-				processes.add(new VixProcess(
-				  (String) processResult.get(0), 
-				  ((Long) processResult.get(1)).longValue(),
-				  (String) processResult.get(2),
-				  (String) processResult.get(3)
-				));
+		return toProcessList(VixWrapper.VixJob_WaitAndReleaseTable(jobHandle, PROCESS_PROPERTIES, false));
+	}
+
+	/** Asynchronous version of {@link #listProcessesInGuest()}.
+	 * 
+	 * @return a VixFuture which completes with a List of {@link net.sf.jvix.data.VixProcess} objects
+	 */
+	public VixFuture listProcessesInGuestAsync() {
+		AsyncJob job = new AsyncJob(this, "listProcessesInGuest", null) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return toProcessList(VixWrapper.VixJob_GetAllNthProperties(jobHandle, PROCESS_PROPERTIES));
 			}
-			return processes;
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		};
+		return job.start(VixWrapper.VixVM_ListProcessesInGuest(vmHandle,
+		  0, job, null));
 	}
 	
 	/** This function establishes a guest operating system authentication context 
@@ -692,12 +932,21 @@ public class VixVM {
 	 * @param password The password of the account identified by userName. 
 	 */
 	public void loginInGuest(String username, String password) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_LoginInGuest(vmHandle, username, password, 0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);	
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #loginInGuest(String, String)}.
+	 * 
+	 * @param username The name of a user account on the guest operating system
+	 * @param password The password of the account identified by username
+	 * 
+	 * @return a VixFuture which completes when the credentials have been validated
+	 */
+	public VixFuture loginInGuestAsync(String username, String password) {
+		AsyncJob job = new AsyncJob(this, "loginInGuest", null);
+		return job.start(VixWrapper.VixVM_LoginInGuest(vmHandle, username, password, 0, job, null));
 	}
 
 	/** This function removes any guest operating system authentication context created by 
@@ -709,12 +958,18 @@ public class VixVM {
      * </ul>
 	 */
 	public void logoutFromGuest() throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_LogoutFromGuest(vmHandle, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);	
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #logoutFromGuest()}.
+	 * 
+	 * @return a VixFuture which completes when the guest credentials have been removed
+	 */
+	public VixFuture logoutFromGuestAsync() {
+		AsyncJob job = new AsyncJob(this, "logoutFromGuest", null);
+		return job.start(VixWrapper.VixVM_LogoutFromGuest(vmHandle, job, null));
 	}
 	
 	/** This function opens a browser window on the specified URL in the guest operating system. 
@@ -729,26 +984,42 @@ public class VixVM {
 	 * @param url The URL to be opened
 	 */
 	public void openUrlInGuest(String url) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_OpenUrlInGuest(vmHandle, 
-		  url, 0, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);	
-		}
+		  url, 0, VixHandle.VIX_INVALID_HANDLE, null, null);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #openUrlInGuest(String)}.
+	 * 
+	 * @param url The URL to be opened
+	 * 
+	 * @return a VixFuture which completes when the URL has been opened
+	 */
+	public VixFuture openUrlInGuestAsync(String url) {
+		AsyncJob job = new AsyncJob(this, "openUrlInGuest", null);
+		return job.start(VixWrapper.VixVM_OpenUrlInGuest(vmHandle, 
+		  url, 0, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 
  	/** This function powers off a virtual machine. 
  	 * 
  	 */
 	public void powerOff() throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_PowerOff(vmHandle, 
 		  VixWrapper.VIX_VMPOWEROP_NORMAL, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #powerOff()}.
+	 * 
+	 * @return a VixFuture which completes when the virtual machine has powered off
+	 */
+	public VixFuture powerOffAsync() {
+		AsyncJob job = new AsyncJob(this, "powerOff", null);
+		return job.start(VixWrapper.VixVM_PowerOff(vmHandle, 
+		  VixWrapper.VIX_VMPOWEROP_NORMAL, job, null));
 	}
 
 	
@@ -770,13 +1041,22 @@ public class VixVM {
      * 
      */
 	public void powerOn(int powerOpOptions) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_PowerOn(vmHandle, 
-		  VixWrapper.VIX_VMPOWEROP_LAUNCH_GUI, VixHandle.VIX_INVALID_HANDLE, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		  powerOpOptions, VixHandle.VIX_INVALID_HANDLE, null, null);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #powerOn(int)}.
+	 * 
+	 * @param powerOpOptions VIX_VMPOWEROP_NORMAL or VIX_VMPOWEROP_LAUNCH_GUI
+	 * 
+	 * @return a VixFuture which completes when the virtual machine has powered on
+	 */
+	public VixFuture powerOnAsync(int powerOpOptions) {
+		AsyncJob job = new AsyncJob(this, "powerOn", null);
+		return job.start(VixWrapper.VixVM_PowerOn(vmHandle, 
+		  powerOpOptions, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 
 	/** This function removes a shared folder in this virtual machine.
@@ -790,13 +1070,22 @@ public class VixVM {
 	 * @param shareName Specifies the guest pathname of the shared folder to delete. 
 	 */
 	public void removeSharedFolder(String shareName) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_RemoveSharedFolder(vmHandle, 
 		  shareName, 0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #removeSharedFolder(String)}.
+	 * 
+	 * @param shareName Specifies the guest pathname of the shared folder to delete
+	 * 
+	 * @return a VixFuture which completes when the shared folder has been removed
+	 */
+	public VixFuture removeSharedFolderAsync(String shareName) {
+		AsyncJob job = new AsyncJob(this, "removeSharedFolder", null);
+		return job.start(VixWrapper.VixVM_RemoveSharedFolder(vmHandle, 
+		  shareName, 0, job, null));
 	}
 	
 	/** This function deletes all saved states for the specified snapshot
@@ -819,13 +1108,26 @@ public class VixVM {
 	 *  </ul> 
 	 */
 	public void removeSnapshot(VixSnapshot snapshot, int options) throws VixException {
-		VixHandle jobHandle = VixWrapper.VixVM_RemoveSnapshot(vmHandle, 
-		  snapshot.getVixHandle(), options, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixCancellationToken.checkCurrent();
+		if (VixWrapper.isCallbackThread()) {
+			VixWrapper.VixJob_WaitAndRelease(VixWrapper.VixVM_RemoveSnapshot(vmHandle, 
+			  snapshot.getVixHandle(), options, null, null));
+			return;
 		}
+		removeSnapshotAsync(snapshot, options).getResult();
+	}
+
+	/** Asynchronous version of {@link #removeSnapshot(VixSnapshot, int)}.
+	 * 
+	 * @param snapshot The snapshot to remove
+	 * @param options Flags to specify optional behavior
+	 * 
+	 * @return a VixFuture which completes when the snapshot has been removed
+	 */
+	public VixFuture removeSnapshotAsync(VixSnapshot snapshot, int options) {
+		AsyncJob job = new AsyncJob(this, "removeSnapshot", null);
+		return job.start(VixWrapper.VixVM_RemoveSnapshot(vmHandle, 
+		  snapshot.getVixHandle(), options, job, null));
 	}
 
 	/** This function renames a file or directory in the guest operating system.
@@ -839,13 +1141,23 @@ public class VixVM {
 	 * @param newName The path to the new file. 
 	 */
 	public void renameFileInGuest(String oldName, String newName) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_RenameFileInGuest(vmHandle, 
-		  oldName, newName, 0, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		  oldName, newName, 0, VixHandle.VIX_INVALID_HANDLE, null, null);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #renameFileInGuest(String, String)}.
+	 * 
+	 * @param oldName The path to the file to be renamed
+	 * @param newName The path to the new file
+	 * 
+	 * @return a VixFuture which completes when the file has been renamed
+	 */
+	public VixFuture renameFileInGuestAsync(String oldName, String newName) {
+		AsyncJob job = new AsyncJob(this, "renameFileInGuest", null);
+		return job.start(VixWrapper.VixVM_RenameFileInGuest(vmHandle, 
+		  oldName, newName, 0, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 
 	/** This function resets a virtual machine, which is the equivalent of pressing 
@@ -855,13 +1167,20 @@ public class VixVM {
 	 * this function, it returns an error. 
 	 */
 	public void reset() throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_Reset(vmHandle, 
 		  VixWrapper.VIX_VMPOWEROP_NORMAL, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #reset()}.
+	 * 
+	 * @return a VixFuture which completes when the virtual machine has been reset
+	 */
+	public VixFuture resetAsync() {
+		AsyncJob job = new AsyncJob(this, "reset", null);
+		return job.start(VixWrapper.VixVM_Reset(vmHandle, 
+		  VixWrapper.VIX_VMPOWEROP_NORMAL, job, null));
 	}
 	
 	/** Restores the virtual machine to the state when the specified snapshot was created.
@@ -890,13 +1209,26 @@ public class VixVM {
 	 *   mutually exclusive to all other VixVMPowerOpOptions
 	 */
 	public void revertToSnapshot(VixSnapshot snapshot, int options) throws VixException {
-		VixHandle jobHandle = VixWrapper.VixVM_RevertToSnapshot(vmHandle, 
-		  snapshot.getVixHandle(), options, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixCancellationToken.checkCurrent();
+		if (VixWrapper.isCallbackThread()) {
+			VixWrapper.VixJob_WaitAndRelease(VixWrapper.VixVM_RevertToSnapshot(vmHandle, 
+			  snapshot.getVixHandle(), options, VixHandle.VIX_INVALID_HANDLE, null, null));
+			return;
 		}
+		revertToSnapshotAsync(snapshot, options).getResult();
+	}
+
+	/** Asynchronous version of {@link #revertToSnapshot(VixSnapshot, int)}.
+	 * 
+	 * @param snapshot The snapshot to revert to
+	 * @param options Any applicable VixVMPowerOpOptions
+	 * 
+	 * @return a VixFuture which completes when the virtual machine has been reverted
+	 */
+	public VixFuture revertToSnapshotAsync(VixSnapshot snapshot, int options) {
+		AsyncJob job = new AsyncJob(this, "revertToSnapshot", null);
+		return job.start(VixWrapper.VixVM_RevertToSnapshot(vmHandle, 
+		  snapshot.getVixHandle(), options, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 	
 
@@ -942,22 +1274,30 @@ public class VixVM {
 	 * @return A VixProcess describing the program that was run or is running
 	 */
 	public VixProcess runProgramInGuest(String guestProgramName, String commandLineArgs, int options) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_RunProgramInGuest(vmHandle, 
-		  guestProgramName, commandLineArgs, options, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		try {
-			List nthPropertyList = new ArrayList();
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_ID));
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME));
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE));
-			List result = VixWrapper.VixJob_Wait(jobHandle, nthPropertyList);
-			VixProcess process = new VixProcess(guestProgramName, 
-				((Long) result.get(0)).longValue(),
-				((Integer) result.get(1)).intValue(),
-				((Integer) result.get(2)).intValue());
-			return process;
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		  guestProgramName, commandLineArgs, options, VixHandle.VIX_INVALID_HANDLE, null, null);
+		PropertyResultBuffer result = new PropertyResultBuffer(PROGRAM_PROPERTIES);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
+		return toProcess(guestProgramName, result);
+	}
+
+	/** Asynchronous version of {@link #runProgramInGuest(String, String, int)}.
+	 * 
+	 * @param guestProgramName The path name of an executable file on the guest operating system
+	 * @param commandLineArgs A string to be passed as command line arguments to the executable
+	 * @param options Run options for the program
+	 * 
+	 * @return a VixFuture which completes with a {@link VixProcess} describing the program
+	 */
+	public VixFuture runProgramInGuestAsync(final String guestProgramName, String commandLineArgs, int options) {
+		AsyncJob job = new AsyncJob(this, "runProgramInGuest", PROGRAM_PROPERTIES) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return toProcess(guestProgramName, result);
+			}
+		};
+		return job.start(VixWrapper.VixVM_RunProgramInGuest(vmHandle, 
+		  guestProgramName, commandLineArgs, options, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 
 	
@@ -988,22 +1328,30 @@ public class VixVM {
 	 * @return A VixProcess describing the script that was run or is running
     */
 	public VixProcess runScriptInGuest(String interpreter, String scriptName, int options) throws VixException {
+		VixCancellationToken.checkCurrent();
  		VixHandle jobHandle = VixWrapper.VixVM_RunScriptInGuest(vmHandle, 
-		  interpreter, scriptName, options, new VixHandle(VixWrapper.VIX_INVALID_HANDLE), null, null);
-		try {
-			List nthPropertyList = new ArrayList();
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_PROCESS_ID));
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME));
-			nthPropertyList.add(new Integer(VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE));
-			List result = VixWrapper.VixJob_Wait(jobHandle, nthPropertyList);
-			VixProcess process = new VixProcess(scriptName, 
-				((Long) result.get(0)).longValue(),
-				((Integer) result.get(1)).intValue(),
-				((Integer) result.get(2)).intValue());
-			return process;
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		  interpreter, scriptName, options, VixHandle.VIX_INVALID_HANDLE, null, null);
+		PropertyResultBuffer result = new PropertyResultBuffer(PROGRAM_PROPERTIES);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle, result);
+		return toProcess(scriptName, result);
+	}
+
+	/** Asynchronous version of {@link #runScriptInGuest(String, String, int)}.
+	 * 
+	 * @param interpreter The path to the script interpreter
+	 * @param scriptName The text of the script
+	 * @param options Run options for the program
+	 * 
+	 * @return a VixFuture which completes with a {@link VixProcess} describing the script
+	 */
+	public VixFuture runScriptInGuestAsync(String interpreter, final String scriptName, int options) {
+		AsyncJob job = new AsyncJob(this, "runScriptInGuest", PROGRAM_PROPERTIES) {
+			Object getResult(VixHandle jobHandle, PropertyResultBuffer result) throws VixException {
+				return toProcess(scriptName, result);
+			}
+		};
+		return job.start(VixWrapper.VixVM_RunScriptInGuest(vmHandle, 
+		  interpreter, scriptName, options, VixHandle.VIX_INVALID_HANDLE, job, null));
 	}
 	
 	  /** This function modifies the state of a shared folder mounted in the virtual machine.
@@ -1020,14 +1368,25 @@ public class VixVM {
 	   * @param flags The new flag settings. 
 	   */
 	public void setSharedFolderState(String shareName, String hostPathName, int flags) throws VixException {
+		VixCancellationToken.checkCurrent();
 		// @TODO jobHandle is set to error code in some cases
 		VixHandle jobHandle = VixWrapper.VixVM_SetSharedFolderState(vmHandle, 
 		  shareName, hostPathName, flags, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #setSharedFolderState(String, String, int)}.
+	 * 
+	 * @param shareName Specifies the name of the shared folder
+	 * @param hostPathName Specifies the host path of the shared folder
+	 * @param flags The new flag settings
+	 * 
+	 * @return a VixFuture which completes when the shared folder state has been set
+	 */
+	public VixFuture setSharedFolderStateAsync(String shareName, String hostPathName, int flags) {
+		AsyncJob job = new AsyncJob(this, "setSharedFolderState", null);
+		return job.start(VixWrapper.VixVM_SetSharedFolderState(vmHandle, 
+		  shareName, hostPathName, flags, job, null));
 	}
 	
    /** This function suspends a virtual machine.
@@ -1036,12 +1395,18 @@ public class VixVM {
     * call this function, the function returns an error. 
     */
 	public void suspend() throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_Suspend(vmHandle, 0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
-		}
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #suspend()}.
+	 * 
+	 * @return a VixFuture which completes when the virtual machine has been suspended
+	 */
+	public VixFuture suspendAsync() {
+		AsyncJob job = new AsyncJob(this, "suspend", null);
+		return job.start(VixWrapper.VixVM_Suspend(vmHandle, 0, job, null));
 	}
 	
    /** Upgrades the virtual hardware version of the virtual machine to match 
@@ -1054,12 +1419,12 @@ public class VixVM {
     * </ul> 
     */
 	public void upgradeVirtualHardware() throws VixException {
-		VixHandle jobHandle = VixWrapper.VixVM_Suspend(vmHandle, 0, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);		  	
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixCancellationToken.checkCurrent();
+		if (VixWrapper.isCallbackThread()) {
+			VixWrapper.VixJob_WaitAndRelease(VixWrapper.VixVM_UpgradeVirtualHardware(vmHandle, 0, null, null));
+			return;
 		}
+		upgradeVirtualHardwareAsync().getResult();
 	} 
 
    /** This function signals the job handle when VMware Tools has successfully started 
@@ -1083,21 +1448,107 @@ public class VixVM {
     * If the value of this argument is zero or negative, then there will be no timeout. 
     */
 	public void waitForToolsInGuest(int timeoutInSeconds) throws VixException {
+		VixCancellationToken.checkCurrent();
 		VixHandle jobHandle = VixWrapper.VixVM_WaitForToolsInGuest(vmHandle, timeoutInSeconds, null, null);
-		try {
-			/*List result =*/ VixWrapper.VixJob_Wait(jobHandle, Collections.EMPTY_LIST);
-		} finally {
-			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixWrapper.VixJob_WaitAndRelease(jobHandle);
+	}
+
+	/** Asynchronous version of {@link #waitForToolsInGuest(int)}.
+	 * 
+	 * @param timeoutInSeconds The timeout in seconds. If VMware Tools has not started by this time, the operation completes with an error. If the value of this argument is zero or negative, then there will be no timeout.
+	 * 
+	 * @return a VixFuture which completes when VMware Tools is running in the guest
+	 */
+	public VixFuture waitForToolsInGuestAsync(int timeoutInSeconds) {
+		AsyncJob job = new AsyncJob(this, "waitForToolsInGuest", null);
+		return job.start(VixWrapper.VixVM_WaitForToolsInGuest(vmHandle, timeoutInSeconds, job, null));
+	}
+
+	/** Asynchronous version of {@link #upgradeVirtualHardware()}.
+	 * 
+	 * @return a VixFuture which completes when the virtual hardware has been upgraded
+	 */
+	public VixFuture upgradeVirtualHardwareAsync() {
+		AsyncJob job = new AsyncJob(this, "upgradeVirtualHardware", null);
+		return job.start(VixWrapper.VixVM_UpgradeVirtualHardware(vmHandle, 0, job, null));
+	}
+
+	/** Creates a VixSharedFolderState from the results of a VixVM_GetSharedFolderState job
+	 * 
+	 * @param result the SHARED_FOLDER_PROPERTIES of the job
+	 * 
+	 * @return the state of the shared folder
+	 */
+	private static VixSharedFolderState toSharedFolderState(PropertyResultBuffer result) {
+		return new VixSharedFolderState(
+		  result.getString(0),
+		  result.getString(1),
+		  result.getInt(2)
+		);
+	}
+
+	/** Creates a List of VixFile objects from the results of a VixVM_ListDirectoryInGuest job
+	 * 
+	 * @param fileTable the FILE_PROPERTIES of each result of the job
+	 * 
+	 * @return a List of VixFile objects
+	 */
+	private static List toFileList(PropertyTable fileTable) {
+		String[] names = fileTable.getStringColumn(0);
+		int[] flags = fileTable.getIntColumn(1);
+		List directories = new ArrayList(names.length);
+		for (int i=0; i<names.length; i++) {
+			directories.add(new VixFile(names[i], flags[i]));
 		}
+		return directories;
+	}
+
+	/** Creates a List of VixProcess objects from the results of a VixVM_ListProcessesInGuest job
+	 * 
+	 * @param processTable the PROCESS_PROPERTIES of each result of the job
+	 * 
+	 * @return a List of VixProcess objects
+	 */
+	private static List toProcessList(PropertyTable processTable) {
+		String[] names = processTable.getStringColumn(0);
+		String[] owners = processTable.getStringColumn(2);
+		String[] commands = processTable.getStringColumn(3);
+		List processes = new ArrayList(names.length);
+		for (int i=0; i<names.length; i++) {
+			processes.add(new VixProcess(
+			  names[i], 
+			  processTable.getLong(i, 1),
+			  owners[i],
+			  commands[i]
+			));
+		}
+		return processes;
+	}
+
+	/** Creates a VixProcess from the results of a job which ran a program or script
+	 * 
+	 * @param name the name of the program or script
+	 * @param result the PROGRAM_PROPERTIES of the job
+	 * 
+	 * @return the process
+	 */
+	private static VixProcess toProcess(String name, PropertyResultBuffer result) {
+		return new VixProcess(name, 
+			result.getLong(0),
+			result.getInt(1),
+			result.getInt(2));
 	}
 
-	/** Releases the resources associated with this virtual machine.
+	/** Releases the resources associated with this virtual machine. The handle is
+	 * released through the default {@link ReleaseBatcher}.
 	 * 
 	 */
 	public void close() {
 		if (vmHandle != null) { 
-			VixWrapper.Vix_ReleaseHandle(vmHandle); 
+			ReleaseBatcher.getDefault().release(vmHandle);
+			vmHandle = null;
 		}		
+		VixProgressBus.getDefault().removeListeners(this);
 	}
 	
 	/** Finalizes this object
@@ -0,0 +1,423 @@
+package net.sf.jvix;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+/** Runs operations on a single virtual machine one at a time, in the order in which
+ * they were submitted.
+ *
+ * <p>VIX rejects most operations on a virtual machine which is already running
+ * another operation with VIX_E_OBJECT_IS_BUSY, so applications in which several
+ * threads share a {@link VixVM} would otherwise need to serialise their calls
+ * themselves, or retry. A VixVMQueue wraps a VixVM, and starts each operation
+ * submitted to it only once the previous operation has completed; no thread is
+ * blocked while operations are queued or running.
+ *
+ * <p>The idempotent operations {@link #powerOn(int)}, {@link #waitForToolsInGuest(int)}
+ * and {@link #getCurrentSnapshot()} are coalesced: if an identical operation (with the
+ * same arguments) is already queued or running, and every operation queued after it
+ * is also idempotent, no new operation is queued, and the caller receives the result
+ * of the existing operation instead. For example, two threads which both power on a
+ * virtual machine and wait for VMware Tools will send one power on and one wait to
+ * the host between them. Each caller still receives its own {@link VixFuture}, so
+ * cancelling one caller's future does not affect the others; an operation is only
+ * skipped if every future waiting for it has been cancelled before it starts. Futures
+ * are attached to the submitting thread's {@link VixCancellationToken}, if it has one.
+ *
+ * <p>Other operations are submitted with {@link #submit(Operation)}:
+ * <pre>
+ * VixVMQueue queue = new VixVMQueue(vm);
+ * queue.powerOn(VixWrapper.VIX_VMPOWEROP_NORMAL);
+ * queue.waitForToolsInGuest(300);
+ * VixFuture future = queue.submit(new VixVMQueue.Operation() {
+ *     public VixFuture start(VixVM vm) {
+ *         return vm.copyFileFromHostToGuestAsync("c:\\setup.exe", "c:\\temp\\setup.exe");
+ *     }
+ * });
+ * </pre>
+ *
+ * <p>Operations are started by whichever thread allows them to start, which is
+ * either the thread which submitted the operation, or the thread which completed
+ * the previous operation (usually a thread delivering VIX events). The queue only
+ * serialises operations submitted to it; operations performed on the VixVM directly
+ * are not queued.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class VixVMQueue {
+
+	/** An operation on a virtual machine, run by a {@link VixVMQueue} */
+	public static interface Operation {
+
+		/** Starts the operation. This method should return without waiting for the
+		 * operation to complete, e.g. by calling one of the asynchronous methods
+		 * of VixVM.
+		 *
+		 * @param vm the virtual machine
+		 *
+		 * @return a VixFuture which completes when the operation completes
+		 */
+		public VixFuture start(VixVM vm);
+	}
+
+	/** The virtual machine */
+	private VixVM vixVM;
+
+	/** Commands which have not yet been started */
+	private LinkedList pending = new LinkedList();
+
+	/** The command which is running, or null */
+	private Command running = null;
+
+	/** True while a thread is starting commands */
+	private boolean draining = false;
+
+	/** Set once the queue has been shut down */
+	private boolean shutdown = false;
+
+	/** Number of operations submitted, including those coalesced */
+	private long submittedCount = 0;
+
+	/** Number of operations coalesced with an operation already in the queue */
+	private long coalescedCount = 0;
+
+	/** Number of operations started */
+	private long startedCount = 0;
+
+	/** Create a new VixVMQueue
+	 *
+	 * @param vixVM the virtual machine on which operations are run
+	 */
+	public VixVMQueue(VixVM vixVM) {
+		if (vixVM == null) {
+			throw new NullPointerException("null vixVM");
+		}
+		this.vixVM = vixVM;
+	}
+
+	/** Returns the virtual machine on which operations are run
+	 *
+	 * @return the virtual machine
+	 */
+	public VixVM getVixVM() {
+		return vixVM;
+	}
+
+	/** Queues an operation
+	 *
+	 * @param operation the operation to run
+	 *
+	 * @return a VixFuture which completes with the result of the operation's future
+	 */
+	public VixFuture submit(Operation operation) {
+		if (operation == null) {
+			throw new NullPointerException("null operation");
+		}
+		return submit(null, operation);
+	}
+
+	/** Queues a power on, unless one with the same options is already queued.
+	 *
+	 * @param powerOpOptions VIX_VMPOWEROP_NORMAL or VIX_VMPOWEROP_LAUNCH_GUI
+	 *
+	 * @return a VixFuture which completes when the virtual machine has powered on
+	 *
+	 * @see VixVM#powerOnAsync(int)
+	 */
+	public VixFuture powerOn(final int powerOpOptions) {
+		return submit("powerOn:" + powerOpOptions, new Operation() {
+			public VixFuture start(VixVM vm) {
+				return vm.powerOnAsync(powerOpOptions);
+			}
+		});
+	}
+
+	/** Queues a wait for VMware Tools, unless one with the same timeout is already queued.
+	 *
+	 * @param timeoutInSeconds The timeout in seconds. If VMware Tools has not started by this time, the operation completes with an error. If the value of this argument is zero or negative, then there will be no timeout.
+	 *
+	 * @return a VixFuture which completes when VMware Tools is running in the guest
+	 *
+	 * @see VixVM#waitForToolsInGuestAsync(int)
+	 */
+	public VixFuture waitForToolsInGuest(final int timeoutInSeconds) {
+		return submit("waitForToolsInGuest:" + timeoutInSeconds, new Operation() {
+			public VixFuture start(VixVM vm) {
+				return vm.waitForToolsInGuestAsync(timeoutInSeconds);
+			}
+		});
+	}
+
+	/** Queues a request for the current snapshot, unless one is already queued.
+	 * Callers whose requests are coalesced each receive their own VixSnapshot,
+	 * which must be closed by that caller.
+	 *
+	 * @return a VixFuture which completes with the current snapshot, as a VixSnapshot
+	 *
+	 * @see VixVM#getCurrentSnapshot()
+	 */
+	public VixFuture getCurrentSnapshot() {
+		return submit("getCurrentSnapshot", new Operation() {
+			public VixFuture start(VixVM vm) {
+				VixFuture future = new VixFuture();
+				try {
+					future.complete(vm.getCurrentSnapshot());
+				} catch (VixException ve) {
+					future.completeExceptionally(ve);
+				}
+				return future;
+			}
+		});
+	}
+
+	/** Returns the number of operations queued or running on this virtual machine.
+	 * Coalesced operations are not counted separately.
+	 *
+	 * @return the queue depth
+	 */
+	public synchronized int getQueueDepth() {
+		return pending.size() + (running == null ? 0 : 1);
+	}
+
+	/** Returns the number of operations submitted to this queue, including those
+	 * which were coalesced
+	 *
+	 * @return the number of operations submitted
+	 */
+	public synchronized long getSubmittedCount() {
+		return submittedCount;
+	}
+
+	/** Returns the number of operations which were coalesced with an identical
+	 * operation, rather than being queued
+	 *
+	 * @return the number of coalesced operations
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	/** Returns the number of operations which have been started on the virtual machine
+	 *
+	 * @return the number of operations started
+	 */
+	public synchronized long getStartedCount() {
+		return startedCount;
+	}
+
+	/** Stops the queue. Operations which have not started are completed with
+	 * VIX_E_CANCELLED, as are any operations submitted later; an operation which is
+	 * already running is allowed to complete.
+	 */
+	public void shutdown() {
+		List cancelled;
+		synchronized (this) {
+			shutdown = true;
+			cancelled = new ArrayList(pending);
+			pending.clear();
+		}
+		for (int i = 0; i < cancelled.size(); i++) {
+			((Command) cancelled.get(i)).fail(new VixException(VixException.VIX_E_CANCELLED));
+		}
+	}
+
+	/** Queues an operation, or coalesces it with an identical operation
+	 *
+	 * @param key identifies identical idempotent operations, or null if the operation
+	 *   cannot be coalesced
+	 * @param operation the operation to run
+	 *
+	 * @return the caller's future
+	 */
+	private VixFuture submit(String key, Operation operation) {
+		VixFuture future = new VixFuture();
+		VixCancellationToken token = VixCancellationToken.getCurrent();
+		if (token != null) {
+			token.attach(future);
+		}
+		synchronized (this) {
+			if (shutdown) {
+				future.completeExceptionally(new VixException(VixException.VIX_E_CANCELLED));
+				return future;
+			}
+			submittedCount++;
+			Command existing = (key == null ? null : findCoalescable(key));
+			if (existing != null) {
+				existing.futures.add(future);
+				coalescedCount++;
+				return future;
+			}
+			Command command = new Command(key, operation);
+			command.futures.add(future);
+			pending.add(command);
+		}
+		drain();
+		return future;
+	}
+
+	/** Finds a queued or running command with which an operation can be coalesced.
+	 * Must be called while synchronized on this queue.
+	 *
+	 * @param key the operation's key
+	 *
+	 * @return the command, or null if the operation must be queued
+	 */
+	private Command findCoalescable(String key) {
+		// an operation cannot be moved ahead of a non-idempotent one
+		for (ListIterator i = pending.listIterator(pending.size()); i.hasPrevious(); ) {
+			Command command = (Command) i.previous();
+			if (command.key == null) {
+				return null;
+			} else if (command.key.equals(key)) {
+				return command;
+			}
+		}
+		if (running != null && key.equals(running.key)) {
+			return running;
+		}
+		return null;
+	}
+
+	/** Starts queued commands, one at a time, until a command is still running
+	 * when this method regains control. Only one thread starts commands at a time;
+	 * if the running command completes during its own start() (e.g. because it
+	 * failed immediately), the loop continues rather than recursing.
+	 */
+	private void drain() {
+		synchronized (this) {
+			if (draining) { return; }
+			draining = true;
+		}
+		while (true) {
+			Command command;
+			synchronized (this) {
+				if (running != null || pending.isEmpty()) {
+					draining = false;
+					return;
+				}
+				command = (Command) pending.removeFirst();
+				if (command.isCancelled()) {
+					continue;
+				}
+				running = command;
+				startedCount++;
+			}
+			VixFuture operationFuture;
+			// the operation may be shared by other callers, so isn't cancelled by this thread's token
+			VixCancellationToken token = VixCancellationToken.setCurrent(null);
+			try {
+				operationFuture = command.operation.start(vixVM);
+				if (operationFuture == null) {
+					throw new NullPointerException("Operation returned null future");
+				}
+			} catch (RuntimeException re) {
+				operationFuture = new VixFuture();
+				operationFuture.completeExceptionally((VixException) new VixException(VixException.VIX_E_FAIL).initCause(re));
+			} finally {
+				VixCancellationToken.setCurrent(token);
+			}
+			operationFuture.addListener(command);
+		}
+	}
+
+	/** An operation in the queue, and the futures of every caller waiting for it */
+	private class Command implements VixFutureListener {
+
+		/** Key identifying identical idempotent operations, or null */
+		String key;
+
+		/** The operation */
+		Operation operation;
+
+		/** The VixFutures of the callers waiting for this operation */
+		List futures = new ArrayList();
+
+		Command(String key, Operation operation) {
+			this.key = key;
+			this.operation = operation;
+		}
+
+		/** Returns true if every caller's future has been cancelled. Must be called while
+		 * synchronized on the queue. */
+		boolean isCancelled() {
+			for (int i = 0; i < futures.size(); i++) {
+				if (!((VixFuture) futures.get(i)).isCancelled()) { return false; }
+			}
+			return true;
+		}
+
+		/** Invoked when the operation's future completes */
+		public void completed(VixFuture operationFuture) {
+			List toComplete;
+			synchronized (VixVMQueue.this) {
+				if (running == this) { running = null; }
+				// no further callers can be coalesced with this command
+				toComplete = new ArrayList(futures);
+			}
+			VixException exception = operationFuture.getException();
+			if (operationFuture.isCancelled()) {
+				fail(new VixException(VixException.VIX_E_CANCELLED));
+			} else if (exception != null) {
+				fail(exception);
+			} else {
+				Object result;
+				try {
+					result = operationFuture.getResult();
+				} catch (VixException ve) {
+					result = null; // not possible; the future has completed successfully
+				}
+				boolean used = false;
+				for (int i = 0; i < toComplete.size(); i++) {
+					VixFuture future = (VixFuture) toComplete.get(i);
+					Object callerResult = used ? shareResult(result) : result;
+					if (future.complete(callerResult)) {
+						used = true;
+					} else if (callerResult != result) {
+						AsyncJob.discardResult(callerResult);
+					}
+				}
+				if (!used) {
+					AsyncJob.discardResult(result);
+				}
+			}
+			drain();
+		}
+
+		/** Completes every caller's future with an exception
+		 *
+		 * @param exception the exception
+		 */
+		void fail(VixException exception) {
+			List toComplete;
+			synchronized (VixVMQueue.this) {
+				toComplete = new ArrayList(futures);
+			}
+			for (int i = 0; i < toComplete.size(); i++) {
+				((VixFuture) toComplete.get(i)).completeExceptionally(exception);
+			}
+		}
+	}
+
+	/** Returns a copy of a result for another caller. Results which own a VIX handle
+	 * (i.e. VixSnapshots) are given their own reference to the handle, so that each
+	 * caller can close its result independently.
+	 *
+	 * @param result the result of an operation
+	 *
+	 * @return the result for another caller
+	 */
+	private static Object shareResult(Object result) {
+		if (result instanceof VixSnapshot) {
+			VixHandle snapshotHandle = ((VixSnapshot) result).getVixHandle();
+			VixWrapper.Vix_AddRefHandle(snapshotHandle);
+			return new VixSnapshot(snapshotHandle);
+		}
+		return result;
+	}
+
+}
@@ -1,10 +1,13 @@
 package net.sf.jvix;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -83,6 +86,8 @@ public class VixWrapper {
   public final static int VIX_PROPERTY_JOB_RESULT_GUEST_OBJECT_EXISTS        = 3011;
   public final static int VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_ELAPSED_TIME = 3017;
   public final static int VIX_PROPERTY_JOB_RESULT_GUEST_PROGRAM_EXIT_CODE    = 3018;
+  public final static int VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_SIZE          = 3020;
+  public final static int VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA          = 3021;
   public final static int VIX_PROPERTY_JOB_RESULT_ITEM_NAME                  = 3035;
   public final static int VIX_PROPERTY_JOB_RESULT_FOUND_ITEM_DESCRIPTION     = 3036;
   public final static int VIX_PROPERTY_JOB_RESULT_SHARED_FOLDER_COUNT        = 3046;
@@ -163,6 +168,10 @@ public class VixWrapper {
   public final static int VIX_RUNPROGRAM_RETURN_IMMEDIATELY   = 0x0001;
   public final static int VIX_RUNPROGRAM_ACTIVATE_WINDOW      = 0x0002;
   
+  /** VixCaptureScreenFormat constant for use in {@link #VixVM_CaptureScreenImage(VixHandle, int, VixHandle, VixEventProc, Object)} */
+  public final static int VIX_CAPTURESCREENFORMAT_PNG            = 0x01;
+  public final static int VIX_CAPTURESCREENFORMAT_PNG_NOCOMPRESS = 0x02;
+  
     /** Creates a host handle.
      * 
   <ul>
@@ -279,7 +288,71 @@ public class VixWrapper {
    *
    * @param handle Any handle returned by a Vix function 
    */
-  public static native void Vix_ReleaseHandle(VixHandle handle);
+  public static void Vix_ReleaseHandle(VixHandle handle) {
+    VixHandleTable.release(handle);
+    Jvix_ReleaseHandle(handle);
+  }
+
+  /** Releases a handle in the native library; see {@link #Vix_ReleaseHandle(VixHandle)}
+   * 
+   * @param handle Any handle returned by a Vix function 
+   */
+  private static native void Jvix_ReleaseHandle(VixHandle handle);
+
+  /** This function increments the reference count of a handle, so that two
+   * objects can share the same handle. Each reference must be released with
+   * {@link #Vix_ReleaseHandle(VixHandle)}.
+   *
+   * @param handle Any handle returned by a Vix function 
+   */
+  public static void Vix_AddRefHandle(VixHandle handle) {
+    VixHandleTable.acquire(handle.getValue());
+    Jvix_AddRefHandle(handle);
+  }
+
+  /** Adds a reference to a handle in the native library; see {@link #Vix_AddRefHandle(VixHandle)}
+   * 
+   * @param handle Any handle returned by a Vix function 
+   */
+  private static native void Jvix_AddRefHandle(VixHandle handle);
+
+  /** Releases a number of handles with a single call into the native library. This is
+   * equivalent to calling {@link #Vix_ReleaseHandle(VixHandle)} for each handle, and is
+   * intended for releasing the jobs, snapshots and VMs of a session when it is torn down.
+   * See also {@link ReleaseBatcher}, which accumulates handles to be released in this way.
+   *
+   * @param handles the handles to release; null elements and VIX_INVALID_HANDLE are ignored
+   */
+  public static void Vix_ReleaseHandles(VixHandle[] handles) {
+    int[] handleValues = new int[handles.length];
+    int count = 0;
+    for (int i = 0; i < handles.length; i++) {
+      if (handles[i] != null && handles[i].getValue() != 0) {
+        VixHandleTable.release(handles[i]);
+        handleValues[count++] = handles[i].getValue();
+      }
+    }
+    if (count > 0) {
+      Jvix_ReleaseHandles(handleValues, count);
+    }
+  }
+
+  /** Releases raw handle values in the native library; see {@link #Vix_ReleaseHandles(VixHandle[])}.
+   * The caller must already have released these handles from the {@link VixHandleTable}.
+   *
+   * @param handleValues raw handle values; 0 (VIX_INVALID_HANDLE) entries are ignored
+   * @param count the number of entries in handleValues to release
+   */
+  static native void Jvix_ReleaseHandles(int[] handleValues, int count);
+
+  /** This function returns the type of a handle.
+   * 
+   * @param handle Any handle returned by a Vix function 
+   * 
+   * @return one of the VIX_HANDLETYPE_* constants, or VIX_HANDLETYPE_NONE if the 
+   *   handle is not valid
+   */
+  public static native int Vix_GetHandleType(VixHandle handle);
 
   /** Wait for a particular job to complete. 
    * 
@@ -310,6 +383,358 @@ public class VixWrapper {
     return VixJob_Wait(jobHandle, newList);
   }
   
+  /** Wait for a particular job to complete, placing the requested properties into
+   * a caller-supplied buffer. Integer, boolean, handle and int64 property values
+   * are returned without creating any objects, so a buffer can be reused across
+   * calls.
+   * 
+   * @param jobHandle The handle of a job object, returned from any asynchronous Vix function
+   * @param results A buffer containing the requested property IDs, which will be 
+   *   populated with the property values. May be null if no properties are required.
+   * 
+   * @throws VixException if the job did not return VIX_OK
+   */ 
+  public static native void VixJob_Wait(VixHandle jobHandle, PropertyResultBuffer results) throws VixException;
+
+  /** Wait for a particular job to complete, without retrieving any properties. 
+   * 
+   * @param jobHandle The handle of a job object, returned from any asynchronous Vix function
+   * 
+   * @throws VixException if the job did not return VIX_OK
+   */ 
+  public static void VixJob_Wait(VixHandle jobHandle) throws VixException {
+    awaitCompletion(jobHandle, false);
+    VixJob_Wait(jobHandle, (PropertyResultBuffer) null);
+  }
+
+  /** Wait for a particular job to complete, place the requested properties into
+   * a caller-supplied buffer, and release the job handle. This is equivalent to 
+   * calling {@link #VixJob_Wait(VixHandle, PropertyResultBuffer)} followed by 
+   * {@link #Vix_ReleaseHandle(VixHandle)} in a finally block, but only makes a 
+   * single call into the native library.
+   * 
+   * <p>The job handle is released whether or not the job completed successfully, 
+   * and must not be used after this method returns.
+   * 
+   * @param jobHandle The handle of a job object, returned from any asynchronous Vix function
+   * @param results A buffer containing the requested property IDs, which will be 
+   *   populated with the property values. May be null if no properties are required.
+   * 
+   * @throws VixException if the job did not return VIX_OK
+   */ 
+  public static void VixJob_WaitAndRelease(VixHandle jobHandle, PropertyResultBuffer results) throws VixException {
+    VixHandleTable.release(jobHandle);
+    awaitCompletion(jobHandle, true);
+    Jvix_WaitAndRelease(jobHandle, results);
+  }
+
+  /** Wait for a particular job to complete, without retrieving any properties, 
+   * and release the job handle.
+   * 
+   * @see #VixJob_WaitAndRelease(VixHandle, PropertyResultBuffer)
+   * 
+   * @param jobHandle The handle of a job object, returned from any asynchronous Vix function
+   * 
+   * @throws VixException if the job did not return VIX_OK
+   */ 
+  public static void VixJob_WaitAndRelease(VixHandle jobHandle) throws VixException {
+    VixJob_WaitAndRelease(jobHandle, null);
+  }
+
+  /** Wait for a particular job to complete, retrieve the properties at every 
+   * index in its result list, and release the job handle. This is equivalent
+   * to calling {@link #VixJob_Wait(VixHandle)}, {@link #VixJob_GetAllNthProperties(VixHandle, int[], boolean)}
+   * and {@link #Vix_ReleaseHandle(VixHandle)}, but only makes a single call into
+   * the native library.
+   * 
+   * @param jobHandle The handle of a job object, returned from any asynchronous Vix function
+   * @param propertyIds an array of property Ids. The number of results is determined
+   *   by the first property ID in this array.
+   * @param rawStrings if true, string columns are returned as byte[][] arrays
+   *   rather than String[] arrays 
+   * 
+   * @return the requested properties, arranged as one column per property ID
+   * 
+   * @throws VixException if the job did not return VIX_OK, or the properties could not be retrieved
+   */
+  public static PropertyTable VixJob_WaitAndReleaseTable(VixHandle jobHandle, int[] propertyIds, boolean rawStrings) throws VixException {
+    VixHandleTable.release(jobHandle);
+    awaitCompletion(jobHandle, true);
+    return Jvix_WaitAndReleaseTable(jobHandle, propertyIds, rawStrings);
+  }
+
+  // blocking wait modes
+
+  /** Wait mode in which synchronous waits block the calling thread in the native library */
+  public static final int WAIT_MODE_NATIVE = 0;
+
+  /** Wait mode in which synchronous waits are handed to a {@link NativeWaitPool} thread,
+   * while the calling thread parks */
+  public static final int WAIT_MODE_POOL = 1;
+
+  /** Wait mode in which jobs are polled by a {@link JobPoller}, while the calling thread parks */
+  public static final int WAIT_MODE_POLL = 2;
+
+  /** The current wait mode */
+  private static volatile int waitMode = WAIT_MODE_NATIVE;
+
+  /** Sets how {@link #VixJob_Wait(VixHandle)}, {@link #VixJob_WaitAndRelease(VixHandle, PropertyResultBuffer)}
+   * and {@link #VixJob_WaitAndReleaseTable(VixHandle, int[], boolean)} wait for jobs to
+   * complete. These methods are used by every synchronous method of {@link VixVM} and
+   * {@link VixHost}.
+   * 
+   * <ul>
+   * <li>WAIT_MODE_NATIVE (the default): the calling thread waits in the native library.
+   * <li>WAIT_MODE_POOL: the wait is made by a thread from the default
+   *   {@link NativeWaitPool}, and the calling thread parks until it completes.
+   * <li>WAIT_MODE_POLL: the job is polled by the default {@link JobPoller}, and the
+   *   calling thread parks until it completes.
+   * </ul>
+   * 
+   * <p>In either of the last two modes, the calling thread does not enter the native
+   * library until the job has completed, so applications can call the synchronous
+   * methods from virtual threads (which would otherwise pin their carrier thread for
+   * the whole of each VIX operation). If the calling thread is interrupted while
+   * parked, the wait throws a VixException with the error code VIX_E_CANCELLED; the job
+   * itself continues, and its handle is released once it completes. The other wait
+   * methods of this class, including {@link #VixJob_WaitAny(VixHandle[], long)},
+   * always wait in the native library.
+   * 
+   * <p>While the calling thread has a {@link VixCancellationToken#setCurrent(VixCancellationToken)
+   * current VixCancellationToken}, jobs are waited for as in WAIT_MODE_POLL (or
+   * WAIT_MODE_POOL, if that is the current mode), so that the wait can be abandoned
+   * when the token is cancelled.
+   * 
+   * @param mode WAIT_MODE_NATIVE, WAIT_MODE_POOL or WAIT_MODE_POLL
+   */
+  public static void setWaitMode(int mode) {
+    if (mode != WAIT_MODE_NATIVE && mode != WAIT_MODE_POOL && mode != WAIT_MODE_POLL) {
+      throw new IllegalArgumentException("Invalid wait mode " + mode);
+    }
+    waitMode = mode;
+  }
+
+  /** Returns the current wait mode
+   * 
+   * @return WAIT_MODE_NATIVE, WAIT_MODE_POOL or WAIT_MODE_POLL
+   * 
+   * @see #setWaitMode(int)
+   */
+  public static int getWaitMode() {
+    return waitMode;
+  }
+
+  /** Parks the calling thread until a job has completed, unless the wait mode is
+   * WAIT_MODE_NATIVE and the thread has no current VixCancellationToken, in which case
+   * this method returns immediately.
+   * 
+   * @param jobHandle the job to wait for
+   * @param release true if the caller would have released the job handle after waiting
+   *   for it
+   * 
+   * @throws VixException with the error code VIX_E_CANCELLED if the calling thread was
+   *   interrupted, or its VixCancellationToken was cancelled; the job is then abandoned
+   */
+  private static void awaitCompletion(final VixHandle jobHandle, boolean release) throws VixException {
+    int mode = waitMode;
+    VixCancellationToken token = VixCancellationToken.getCurrent();
+    if ((mode == WAIT_MODE_NATIVE && token == null) || jobHandle == null || jobHandle.getValue() == 0 ||
+      JobPoller.isPollerThread() || NativeWaitPool.isPoolThread()) {
+      // threads which complete waits for other threads always wait natively
+      return;
+    }
+    VixFuture completion = (mode == WAIT_MODE_POOL ? 
+      NativeWaitPool.getDefault().watch(jobHandle) : JobPoller.getDefault().watch(jobHandle));
+    VixFuture waiter = completion;
+    if (token != null) {
+      // the token cancels the waiter, not the wait itself
+      final VixFuture tokenWaiter = token.attach(new VixFuture());
+      completion.addListener(new VixFutureListener() {
+        public void completed(VixFuture future) {
+          tokenWaiter.complete(null);
+        }
+      });
+      waiter = tokenWaiter;
+    }
+    try {
+      waiter.getResult();
+    } catch (VixException ve) {
+      if (!waiter.isDone() || waiter.isCancelled()) {
+        abandonJob(jobHandle, completion, release);
+        throw ve;
+      }
+      // otherwise the job's state could not be determined; let the native wait report it
+    }
+  }
+
+  /** Returns true if the current thread delivers VixEventProc callbacks: a
+   * {@link VixEventPump} thread, a {@link VixEventDispatcher} dispatch thread, or a VIX
+   * thread attached to the JVM by the native library. Such a thread must not wait for a
+   * callback to complete a VixFuture, since that callback might have to be delivered by
+   * the waiting thread itself; the synchronous methods of VixVM and VixHost which wait
+   * for their asynchronous variants check this first.
+   * 
+   * @return true if the current thread delivers callbacks
+   */
+  static boolean isCallbackThread() {
+    return VixEventPump.isPumpThread() || VixEventDispatcher.isDispatchThread() || 
+      Jvix_IsCallbackThread();
+  }
+
+  /** Returns true if the current thread was attached to the JVM by the native library
+   * to deliver callbacks; see {@link #isCallbackThread()}
+   * 
+   * @return true if the current thread is a VIX callback thread
+   */
+  private static native boolean Jvix_IsCallbackThread();
+
+  /** Number of jobs abandoned by their callers and released once they completed */
+  private static AtomicLong abandonedJobCount = new AtomicLong();
+
+  /** Abandons a job which the calling thread has stopped waiting for. The job handle
+   * is released through the default ReleaseBatcher once the job completes.
+   * 
+   * @param jobHandle the job handle
+   * @param completion a VixFuture which completes when the job completes
+   * @param release true if the caller has given up its reference to the job handle, and
+   *   has already released it from the VixHandleTable; otherwise another reference is
+   *   added, since the caller will release its own
+   */
+  private static void abandonJob(final VixHandle jobHandle, VixFuture completion, final boolean release) {
+    if (!release) {
+      Vix_AddRefHandle(jobHandle);
+    }
+    completion.addListener(new VixFutureListener() {
+      public void completed(VixFuture future) {
+        abandonedJobCount.incrementAndGet();
+        if (release) {
+          ReleaseBatcher.getDefault().releaseNative(jobHandle.getValue());
+        } else {
+          ReleaseBatcher.getDefault().release(jobHandle);
+        }
+      }
+    });
+  }
+
+  /** Records that an asynchronous job completed after its future was cancelled; see
+   * {@link #getAbandonedJobCount()}
+   */
+  static void recordAbandonedJob() {
+    abandonedJobCount.incrementAndGet();
+  }
+
+  /** Returns the number of jobs which were abandoned before they completed, and whose
+   * handles have since been released. A job is abandoned when a synchronous wait for it is
+   * interrupted or cancelled by a {@link VixCancellationToken}, or when the future returned
+   * by an asynchronous method is cancelled.
+   * 
+   * @return the number of abandoned jobs released
+   */
+  public static long getAbandonedJobCount() {
+    return abandonedJobCount.get();
+  }
+
+  /** Native implementation of {@link #VixJob_WaitAndRelease(VixHandle, PropertyResultBuffer)}
+   * 
+   * @param jobHandle the job handle
+   * @param results the buffer to populate, or null
+   */
+  private static native void Jvix_WaitAndRelease(VixHandle jobHandle, PropertyResultBuffer results) throws VixException;
+
+  /** Native implementation of {@link #VixJob_WaitAndReleaseTable(VixHandle, int[], boolean)}
+   * 
+   * @param jobHandle the job handle
+   * @param propertyIds the property IDs to retrieve
+   * @param rawStrings if true, string columns are returned as byte[][] arrays
+   * 
+   * @return the requested properties
+   */
+  private static native PropertyTable Jvix_WaitAndReleaseTable(VixHandle jobHandle, int[] propertyIds, boolean rawStrings) throws VixException;
+
+  /** Wait until at least one of the supplied jobs has completed, or the timeout expires. 
+   * The jobs are checked and waited for within a single call into the native library, 
+   * so a large number of jobs can be waited for without a thread per job.
+   * 
+   * <p>Jobs created with a VixEventProc wake the waiting thread as soon as they complete; 
+   * jobs created without one are checked at short intervals.
+   * 
+   * @see JobSet
+   * 
+   * @param jobHandles The handles of the jobs to wait for
+   * @param timeoutMillis The maximum time to wait, in milliseconds. If 0, the jobs are 
+   *   checked without waiting; if negative, this method waits indefinitely.
+   *   
+   * @return the index of the first completed job in jobHandles, or -1 if no job completed
+   *   before the timeout expired
+   *   
+   * @throws VixException if the completion state of a job could not be determined
+   */
+  public static int VixJob_WaitAny(VixHandle[] jobHandles, long timeoutMillis) throws VixException {
+    long[] completed = new long[(jobHandles.length + 63) / 64];
+    if (Jvix_WaitJobs(jobHandles, completed, timeoutMillis, false) == 0) {
+      return -1;
+    }
+    return nextCompletedJob(completed, 0);
+  }
+
+  /** Wait until all of the supplied jobs have completed, or the timeout expires. 
+   * The jobs are checked and waited for within a single call into the native library.
+   * 
+   * @see #VixJob_WaitAny(VixHandle[], long)
+   * 
+   * @param jobHandles The handles of the jobs to wait for
+   * @param timeoutMillis The maximum time to wait, in milliseconds. If 0, the jobs are 
+   *   checked without waiting; if negative, this method waits indefinitely.
+   *   
+   * @return true if all jobs have completed, false if the timeout expired first
+   *   
+   * @throws VixException if the completion state of a job could not be determined
+   */
+  public static boolean VixJob_WaitAll(VixHandle[] jobHandles, long timeoutMillis) throws VixException {
+    long[] completed = new long[(jobHandles.length + 63) / 64];
+    return Jvix_WaitJobs(jobHandles, completed, timeoutMillis, true) == jobHandles.length;
+  }
+
+  /** Returns the index of the next job marked as completed in a completion bitmap
+   * 
+   * @param completed the completion bitmap populated by {@link #Jvix_WaitJobs(VixHandle[], long[], long, boolean)}
+   * @param fromIndex the job index to start searching from
+   * 
+   * @return the index of the next completed job, or -1 if there are no more
+   */
+  static int nextCompletedJob(long[] completed, int fromIndex) {
+    for (int word = fromIndex >> 6; word < completed.length; word++) {
+      long bits = completed[word];
+      if (word == fromIndex >> 6) {
+        bits &= -1L << (fromIndex & 63);
+      }
+      if (bits != 0) {
+        for (int bit = 0; bit < 64; bit++) {
+          if ((bits & (1L << bit)) != 0) { return (word << 6) + bit; }
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** Native implementation of {@link #VixJob_WaitAny(VixHandle[], long)} and 
+   * {@link #VixJob_WaitAll(VixHandle[], long)}. 
+   * 
+   * <p>The completion state of each job is returned in a bitmap, in which bit 
+   * <code>(i % 64)</code> of <code>completed[i / 64]</code> is set if <code>jobHandles[i]</code> 
+   * has completed. Bits which are already set on entry are treated as completed jobs 
+   * and are not checked again, so the same bitmap can be passed to successive calls.
+   * 
+   * @param jobHandles the jobs to wait for
+   * @param completed the completion bitmap, containing at least <code>(jobHandles.length + 63) / 64</code> elements
+   * @param timeoutMillis the maximum time to wait, in milliseconds; 0 to check without 
+   *   waiting, or negative to wait indefinitely
+   * @param waitAll if true, wait for all jobs to complete; otherwise wait for any one of them
+   * 
+   * @return the number of completed jobs
+   */
+  static native int Jvix_WaitJobs(VixHandle[] jobHandles, long[] completed, long timeoutMillis, boolean waitAll) throws VixException;
+  
 
   /** This function mounts a new shared folder in the virtual machine. 
    * 
@@ -1369,6 +1794,88 @@ public class VixWrapper {
   public static native VixHandle VixVM_UpgradeVirtualHardware(VixHandle vmHandle,
     int options, VixEventProc callbackProc, Object clientData);
     
+  /** Captures the screen of the guest operating system. 
+   * 
+   * <ul><li>This function captures the current screen image and returns it in the
+   * VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA blob property of the job handle, which
+   * can be retrieved using {@link #Vix_GetBlobProperty(VixHandle, int)}. 
+   * <li>You must call VixVM_LoginInGuest() before calling this function. 
+   * </ul>
+   * 
+   * @param vmHandle Identifies a virtual machine. Call VixVM_Open() to create a virtual machine handle. 
+   * @param captureType Must be VIX_CAPTURESCREENFORMAT_PNG or VIX_CAPTURESCREENFORMAT_PNG_NOCOMPRESS.
+   * @param additionalProperties Must be VIX_INVALID_HANDLE.
+   * @param callbackProc A callback function that will be invoked when the operation is complete.
+   * @param clientData A parameter that will be passed to the callbackProc function.
+   * 
+   * @return A job handle that describes the state of this asynchronous operation.
+   */
+  public static native VixHandle VixVM_CaptureScreenImage(VixHandle vmHandle,
+    int captureType, VixHandle additionalProperties, VixEventProc callbackProc, Object clientData);
+
+  /** Retrieves a VIX_PROPERTYTYPE_BLOB property from a handle. Blob properties
+   * cannot be retrieved with the other Vix_GetProperties methods.
+   * 
+   * <p>The data is not copied; the VixBlob returned refers to memory allocated by 
+   * the VIX API, which is released when {@link VixBlob#free()} is called. The caller 
+   * must free the VixBlob once its data has been read. 
+   * 
+   * @param handle Any handle returned by a Vix function.
+   * @param propertyId The ID of a blob property.
+   * 
+   * @return the property value
+   * 
+   * @throws VixException if the property could not be retrieved, or 
+   *   VIX_E_TYPE_MISMATCH if it is not a blob property 
+   */
+  public static native VixBlob Vix_GetBlobProperty(VixHandle handle, int propertyId) throws VixException;
+
+  /** Copies a VIX_PROPERTYTYPE_BLOB property from a handle into a caller-supplied
+   * buffer, starting at the buffer's current position. The VIX memory holding 
+   * the property is released before this method returns.
+   * 
+   * @param handle Any handle returned by a Vix function.
+   * @param propertyId The ID of a blob property.
+   * @param dest The buffer to copy the property value into.
+   * 
+   * @return the number of bytes copied
+   * 
+   * @throws VixException if the property could not be retrieved, or 
+   *   VIX_E_TYPE_MISMATCH if it is not a blob property 
+   * @throws java.nio.BufferOverflowException if there is insufficient space remaining in dest
+   */
+  public static int Vix_GetBlobProperty(VixHandle handle, int propertyId, ByteBuffer dest) throws VixException {
+    VixBlob blob = Vix_GetBlobProperty(handle, propertyId);
+    try {
+      blob.copyTo(dest);
+      return blob.size();
+    } finally {
+      blob.free();
+    }
+  }
+
+  /** Retrieves a VIX_PROPERTYTYPE_BLOB property from the result at the supplied
+   * index of a job.
+   * 
+   * @see #Vix_GetBlobProperty(VixHandle, int)
+   * 
+   * @param jobHandle The handle of a job object, returned from any asynchronous Vix function.
+   * @param index The index of the result. 
+   * @param propertyId The ID of a blob property.
+   * 
+   * @return the property value
+   * 
+   * @throws VixException if the property could not be retrieved, or 
+   *   VIX_E_TYPE_MISMATCH if it is not a blob property 
+   */
+  public static native VixBlob VixJob_GetNthBlobProperty(VixHandle jobHandle, int index, int propertyId) throws VixException;
+
+  /** Releases the memory of a blob; used by {@link VixBlob#free()}
+   * 
+   * @param address the address of the VIX-allocated memory
+   */
+  static native void Jvix_FreeBlob(long address);
+
   /** This function allows you to get one or more properties from a handle. 
    * 
    * <ul><li>This function allows you to get one or more properties from a handle. You may use this function on any type of handle, but only specific properties are defined for each handle. 
@@ -1410,6 +1917,19 @@ public class VixWrapper {
     }
     return Vix_GetProperties(handle, newList);
   }
+
+  /** This function allows you to get one or more properties from a handle, placing 
+   * the property values into a caller-supplied buffer.
+   * 
+   * @see #Vix_GetProperties(VixHandle, List)
+   * 
+   * @param handle Any handle returned by a Vix function. 
+   * @param results A buffer containing the requested property IDs, which will be 
+   *   populated with the property values.
+   *   
+   * @throws VixException if the properties could not be retrieved
+   */
+  public static native void Vix_GetProperties(VixHandle handle, PropertyResultBuffer results) throws VixException;
   
   /** Given a property ID, this function returns the type of that property. 
    * 
@@ -1442,7 +1962,7 @@ public class VixWrapper {
   /** Retrieves the property at a specific index in a list. You can use 
    * this to iterate through returned property lists.
    * 
-   * @see #k_GetNthProperties(VixHandle, int, int[])
+   * @see #VixJob_GetNthProperties(VixHandle, int, int[])
    * 
    * @param handle The handle of a job object, returned from any asynchronous Vix function.
    * @param index index into the property list of the job object.
@@ -1471,6 +1991,57 @@ public class VixWrapper {
     return VixJob_GetNthProperties(handle, index, newList);
   }
 
+  /** Retrieves the property at a specific index in a list, placing the property 
+   * values into a caller-supplied buffer.
+   * 
+   * @see #VixJob_GetNthProperties(VixHandle, int, List)
+   * 
+   * @param handle The handle of a job object, returned from any asynchronous Vix function.
+   * @param index index into the property list of the job object.
+   * @param results A buffer containing the requested property IDs, which will be 
+   *   populated with the property values.
+   *   
+   * @throws VixException if the properties could not be retrieved
+   */
+  public static native void VixJob_GetNthProperties(VixHandle handle, int index, PropertyResultBuffer results) throws VixException;
+
+  /** Retrieves the properties at every index in a list. This is equivalent to
+   * calling VixJob_GetNumProperties() on the first property ID, and then
+   * VixJob_GetNthProperties() for each index, but only makes a single call into
+   * the native library regardless of the number of results.
+   *
+   * @see #VixJob_GetNthProperties(VixHandle, int, PropertyResultBuffer)
+   *
+   * @param handle The handle of a job object, returned from any asynchronous Vix function.
+   * @param propertyIds an array of property Ids. The number of results is determined
+   *   by the first property ID in this array.
+   *
+   * @return the requested properties, arranged as one column per property ID
+   *
+   * @throws VixException if the properties could not be retrieved
+   */
+  public static PropertyTable VixJob_GetAllNthProperties(VixHandle handle, int[] propertyIds) throws VixException {
+    return VixJob_GetAllNthProperties(handle, propertyIds, false);
+  }
+
+  /** Retrieves the properties at every index in a list, optionally returning 
+   * string properties as the raw UTF-8 bytes returned by the VIX API rather than
+   * as Strings. 
+   *
+   * @see #VixJob_GetAllNthProperties(VixHandle, int[])
+   *
+   * @param handle The handle of a job object, returned from any asynchronous Vix function.
+   * @param propertyIds an array of property Ids. The number of results is determined
+   *   by the first property ID in this array.
+   * @param rawStrings if true, string columns are returned as byte[][] arrays
+   *   rather than String[] arrays 
+   *
+   * @return the requested properties, arranged as one column per property ID
+   *
+   * @throws VixException if the properties could not be retrieved
+   */
+  public static native PropertyTable VixJob_GetAllNthProperties(VixHandle handle, int[] propertyIds, boolean rawStrings) throws VixException;
+
   /** Retrieves the number of instances of the specified property. 
    * Used to work with returned property lists.
    * 
@@ -1481,11 +2052,315 @@ public class VixWrapper {
    */
   public static native int VixJob_GetNumProperties(VixHandle handle, int resultPropertyId);
 
+  // native logging
+
+  /** Native debug output is disabled */
+  public final static int JVIX_LOG_NONE = 0;
+
+  /** Native debug output is sent synchronously to the log4j logger for this class */
+  public final static int JVIX_LOG_DEBUG = 1;
+
+  /** Native debug output is written to a trace buffer, which is formatted and sent 
+   * to the log4j logger for this class by a background thread */
+  public final static int JVIX_LOG_TRACE = 2;
+
+  /** System property which can be used to set the initial native log mode; 
+   * one of "none", "debug" or "trace" */
+  public final static String NATIVE_LOG_MODE_PROPERTY = "jvix.nativeLogMode";
+
+  /** Logger instance for this class */
+  private static Logger logger = Logger.getLogger(VixWrapper.class);
+
+  /** The current native log mode */
+  private static int nativeLogMode = JVIX_LOG_NONE;
+
+  /** The thread draining the native trace buffer, if in JVIX_LOG_TRACE mode */
+  private static TraceDrainer traceDrainer = null;
+
+  /** Sets the native log mode. 
+   * 
+   * <p>In JVIX_LOG_NONE mode, native logging costs a single comparison per log statement.
+   * In JVIX_LOG_DEBUG mode, each log statement makes a call back into log4j. 
+   * In JVIX_LOG_TRACE mode, log statements are recorded in a fixed-size buffer,
+   * without calling back into Java; a background thread formats and logs these
+   * records. Records are discarded if the buffer fills faster than it can be drained. 
+   * 
+   * @param logMode one of the JVIX_LOG_* constants
+   */
+  public static synchronized void setNativeLogMode(int logMode) {
+    if (logMode!=JVIX_LOG_NONE && logMode!=JVIX_LOG_DEBUG && logMode!=JVIX_LOG_TRACE) {
+      throw new IllegalArgumentException("Unknown native log mode " + logMode);
+    }
+    Jvix_SetLogMode(logMode);
+    nativeLogMode = logMode;
+    if (logMode==JVIX_LOG_TRACE && traceDrainer==null) {
+      traceDrainer = new TraceDrainer();
+      traceDrainer.start();
+    } else if (logMode!=JVIX_LOG_TRACE && traceDrainer!=null) {
+      traceDrainer.shutdown();
+      traceDrainer = null;
+    }
+  }
+  
+  /** Returns the current native log mode
+   * 
+   * @return one of the JVIX_LOG_* constants
+   */
+  public static synchronized int getNativeLogMode() {
+    return nativeLogMode;
+  }
+  
+  /** Sets the native log mode from the jvix.nativeLogMode system property, or 
+   * if that is not set, from the effective level of the log4j logger for this class. 
+   * 
+   * <p>This is called when the native library is loaded; it should be called again 
+   * if the log4j configuration is changed at runtime.
+   */
+  public static void resetNativeLogMode() {
+    String mode = System.getProperty(NATIVE_LOG_MODE_PROPERTY);
+    if ("trace".equalsIgnoreCase(mode)) {
+      setNativeLogMode(JVIX_LOG_TRACE);
+    } else if ("debug".equalsIgnoreCase(mode)) {
+      setNativeLogMode(JVIX_LOG_DEBUG);
+    } else if ("none".equalsIgnoreCase(mode)) {
+      setNativeLogMode(JVIX_LOG_NONE);
+    } else {
+      setNativeLogMode(logger.isDebugEnabled() ? JVIX_LOG_DEBUG : JVIX_LOG_NONE);
+    }
+  }
+
+  /** Returns the number of trace records that have been discarded because the 
+   * trace buffer was full, since the native library was loaded. These are also 
+   * reported as warnings by the thread draining the trace buffer.
+   * 
+   * @return the number of discarded trace records
+   */
+  public static long getTraceDropCount() {
+    return Jvix_GetTraceDropCount();
+  }
+
+  /** Sets the native log mode 
+   * 
+   * @param logMode one of the JVIX_LOG_* constants
+   */
+  private static native void Jvix_SetLogMode(int logMode);
+  
+  /** Removes records from the native trace buffer. Only one thread may call this 
+   * method at a time.
+   * 
+   * @param timestamps populated with the time each record was created, in milliseconds
+   * @param messages populated with the formatted text of each record
+   * 
+   * @return the number of records removed from the trace buffer  
+   */
+  private static native int Jvix_DrainTrace(long[] timestamps, String[] messages);
+  
+  /** Returns the number of trace records that have been discarded because the 
+   * trace buffer was full
+   * 
+   * @return the number of discarded trace records
+   */
+  private static native long Jvix_GetTraceDropCount();
+
+  /** Thread which periodically drains the native trace buffer into log4j */
+  private static class TraceDrainer extends Thread {
+    
+    /** Time to wait between draining the trace buffer, in milliseconds */ 
+    private final static long DRAIN_INTERVAL = 100;
+    
+    /** Maximum number of records to drain in one call */
+    private final static int DRAIN_SIZE = 256;
+    
+    private volatile boolean running = true;
+    private long[] timestamps = new long[DRAIN_SIZE];
+    private String[] messages = new String[DRAIN_SIZE];
+    private long lastDropCount = Jvix_GetTraceDropCount();
+    
+    public TraceDrainer() {
+      super("jvix-trace");
+      setDaemon(true);
+    }
+    
+    public void run() {
+      while (running) {
+        if (drain() < DRAIN_SIZE) {
+          try {
+            Thread.sleep(DRAIN_INTERVAL);
+          } catch (InterruptedException ie) {
+            // shutdown() has been called
+          }
+        }
+      }
+      // log anything recorded before the log mode was changed
+      while (drain() == DRAIN_SIZE) { }
+    }
+    
+    /** Drain the trace buffer and log the records retrieved 
+     * 
+     * @return the number of records retrieved
+     */
+    private int drain() {
+      int count;
+      // the native trace buffer only supports a single consumer
+      synchronized (TraceDrainer.class) {
+        count = Jvix_DrainTrace(timestamps, messages);
+      }
+      for (int i=0; i<count; i++) {
+        logger.debug("[" + timestamps[i] + "] " + messages[i]);
+        messages[i] = null;
+      }
+      long dropCount = Jvix_GetTraceDropCount();
+      if (dropCount != lastDropCount) {
+        logger.warn((dropCount - lastDropCount) + " native trace record(s) discarded");
+        lastDropCount = dropCount;
+      }
+      return count;
+    }
+    
+    /** Stop this thread, once any remaining records have been logged */
+    public void shutdown() {
+      running = false;
+      interrupt();
+      try {
+        join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // native callback state
+
+  /** Returns the number of callback structures currently held by the native library.
+   *
+   * <p>One of these is allocated for every VIX function invoked with a non-null
+   * VixEventProc. The references it holds to the VixEventProc and clientData objects are
+   * released once the VIX_EVENTTYPE_JOB_COMPLETED event has been delivered; the structure
+   * itself is released once the job has completed and the job handle has been released
+   * using {@link #Vix_ReleaseHandle(VixHandle)}. A count that grows steadily indicates that
+   * job handles are not being released.
+   *
+   * @return the number of callback structures currently allocated
+   */
+  public static int getCallbackCount() {
+    return Jvix_GetClientDataCount();
+  }
+
+  /** Returns the number of callback structures currently held by the native library
+   *
+   * @return the number of callback structures currently allocated
+   */
+  private static native int Jvix_GetClientDataCount();
+
+  /** Calls Vix_PumpEvents, and returns the number of events it delivered to VixEventProc
+   * callbacks on the calling thread. Used by {@link VixEventPump}.
+   *
+   * @param hostHandle the raw value of a host handle connected with
+   *   VIX_HOSTOPTION_USE_EVENT_PUMP
+   * @param options Must be 0.
+   *
+   * @return the number of events delivered during the call
+   */
+  static native int Jvix_PumpEvents(int hostHandle, int options);
+
+  /** Returns the number of jobs created with a VixEventProc on a host, or on a VM
+   * opened on that host, which have not yet delivered their VIX_EVENTTYPE_JOB_COMPLETED
+   * event. Jobs whose host is not known (e.g. those created on a VM handle obtained
+   * other than through VixVM_Open) are counted against every host. Used by
+   * {@link VixEventPump}.
+   *
+   * @param hostHandle the raw value of a host handle
+   *
+   * @return the number of jobs awaiting completion
+   */
+  static native int Jvix_GetPendingJobCount(int hostHandle);
+
+  /** Waits until at least one job created with a VixEventProc is awaiting completion
+   * on a host, as counted by {@link #Jvix_GetPendingJobCount(int)}. Used by
+   * {@link VixEventPump} while idle.
+   *
+   * @param hostHandle the raw value of a host handle
+   * @param timeoutMillis the maximum time to wait, in milliseconds
+   *
+   * @return true if any jobs are awaiting completion on that host
+   */
+  static native boolean Jvix_WaitForPendingJob(int hostHandle, long timeoutMillis);
+
+  /** Sets the buffer that VIX events are queued into, or stops queueing events if
+   * the buffer is null. When this method returns null, no VIX threads are still writing
+   * to any previous buffer. Used by {@link VixEventDispatcher}.
+   *
+   * @param buffer a direct ByteBuffer, laid out as described in VixEventDispatcher, or null
+   *
+   * @throws VixException if the buffer is not a valid size
+   */
+  static native void Jvix_SetEventQueue(ByteBuffer buffer) throws VixException;
+
+  /** Removes published records from an event queue buffer, and advances its tail counter
+   * past them. The records are read with the memory barriers required to see the
+   * contents written by the VIX threads which published them. Only one thread may call
+   * this method for each buffer at a time. Used by {@link VixEventDispatcher}.
+   *
+   * @param buffer the buffer passed to {@link #Jvix_SetEventQueue(ByteBuffer)}
+   * @param jobHandles populated with the raw job handle of each event
+   * @param eventTypes populated with the type of each event
+   * @param moreEventInfos populated with the raw moreEventInfo handle of each event
+   * @param slotIds populated with the client data slot of each event
+   * @param timestamps populated with the time each event was queued, in milliseconds
+   *
+   * @return the number of records removed; at most 256, and at most the length of
+   *   the shortest array
+   */
+  static native int Jvix_DrainEvents(ByteBuffer buffer, int[] jobHandles, int[] eventTypes,
+    int[] moreEventInfos, int[] slotIds, long[] timestamps);
+
+  /** Retrieves the VixEventProc and clientData objects for a number of queued events.
+   * Once a VIX_EVENTTYPE_JOB_COMPLETED event has been resolved, the native library
+   * releases its references to these objects. Used by {@link VixEventDispatcher}.
+   *
+   * @param slotIds the client data slot of each event
+   * @param eventTypes the type of each event
+   * @param count the number of events to resolve
+   * @param eventProcs populated with the VixEventProc for each event
+   * @param clientDatas populated with the clientData object for each event
+   *
+   * @throws ArrayIndexOutOfBoundsException if count exceeds the length of any array
+   */
+  static native void Jvix_ResolveEventSlots(int[] slotIds, int[] eventTypes, int count,
+    Object[] eventProcs, Object[] clientDatas);
+
+  /** Releases the handle references added when events were queued. Used
+   * by {@link VixEventDispatcher}.
+   *
+   * @param handles the raw handle values to release
+   * @param count the number of handles to release
+   *
+   * @throws ArrayIndexOutOfBoundsException if count exceeds the length of handles
+   */
+  static native void Jvix_ReleaseEventHandles(int[] handles, int count);
+
+  /** Loads the native library. By default this is the 'jvix' library on the 
+   * java.library.path; a different build of the library (e.g. one linked against 
+   * libvixAllProducts.so, or against a stub VIX library for testing) can be selected 
+   * by setting the <code>jvix.library</code> system property to either a library 
+   * name or the absolute path of the library file.
+   */
+  private static void loadNativeLibrary() {
+    String library = System.getProperty("jvix.library", "jvix");
+    if (new File(library).isAbsolute()) {
+      logger.debug("Loading native library '" + library + "'");
+      System.load(library);
+    } else {
+      logger.debug("Loading native library '" + library + "' from java.library.path='" + 
+        System.getProperty("java.library.path") + "'");
+      System.loadLibrary(library);
+    }
+  }
+
   /* static intitialiser */
   static {
-    Logger logger = Logger.getLogger(VixWrapper.class);
-    logger.debug("java.library.path='" + System.getProperty("java.library.path") + "'");
-    System.loadLibrary("jvix");
+    loadNativeLibrary();
+    resetNativeLogMode();
     String buildId = "(custom build)";
     ClassLoader classLoader = VixWrapper.class.getClassLoader();
     InputStream is = classLoader.getResourceAsStream("./jvixBuild.properties");
@@ -0,0 +1,75 @@
+package net.sf.jvix.test;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHandleTable;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Base class for tests which are run against the stub VIX library in src/c/vixstub.c,
+ * which implements the VIX API without a VMware host; see the junitStub target in
+ * build.xml, which runs these tests with -Xcheck:jni. Tests do nothing unless the
+ * "jvix.stub" system property is set to "true".
+ *
+ * <p>Every test is checked to have released each handle it created.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public abstract class StubTestCase extends TestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** True if the stub VIX library is being used */
+	protected boolean usingStub;
+
+	/** Number of handles in the handle table before the test was run */
+	private int initialHandleCount;
+
+	/** Create a new StubTestCase class */
+	public StubTestCase(String name) {
+		super(name);
+	}
+
+	/** Perform test setup actions */
+	protected void setUp() {
+		usingStub = "true".equals(System.getProperty("jvix.stub"));
+		initialHandleCount = VixHandleTable.size();
+	}
+
+	/** Checks that every handle created by the test has been released */
+	protected void tearDown() {
+		if (usingStub) {
+			assertEquals("handles remaining in handle table", initialHandleCount, VixHandleTable.size());
+		}
+	}
+
+	/** Return a new VixHost object connected to the stub library */
+	protected VixHost getVixHost() throws VixException {
+		return new VixHost(VixWrapper.VIX_API_VERSION,
+		  VixWrapper.VIX_SERVICEPROVIDER_VMWARE_WORKSTATION, "stub", 0, "stub", "stub");
+	}
+
+	/** Opens the stub VM
+	 *
+	 * @param vixHost the host to open the VM on
+	 *
+	 * @return the VM handle; the caller is responsible for releasing it
+	 */
+	protected VixHandle openVM(VixHost vixHost) throws VixException {
+		VixHandle jobHandle = VixWrapper.VixVM_Open(vixHost.getVixHandle(), "/stub/test.vmx", null, null);
+		try {
+			List results = VixWrapper.VixJob_Wait(jobHandle, new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE });
+			return (VixHandle) results.get(0);
+		} finally {
+			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		}
+	}
+
+}
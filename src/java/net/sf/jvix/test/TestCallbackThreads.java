@@ -0,0 +1,143 @@
+package net.sf.jvix.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jvix.VixEventDispatcher;
+import net.sf.jvix.VixEventProc;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixSnapshot;
+import net.sf.jvix.VixVM;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of the synchronous VixVM and VixHost methods which wait for their
+ * asynchronous variants, when called from VixEventProc callbacks, run against the
+ * stub VIX library; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestCallbackThreads extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Create a new TestCallbackThreads class */
+	public TestCallbackThreads(String name) {
+		super(name);
+	}
+
+	/** A callback which calls synchronous VixVM and VixHost methods when its job completes */
+	private static class SyncCallback extends VixEventProc {
+		VixHost vixHost;
+		VixVM vixVM;
+		CountDownLatch completed = new CountDownLatch(1);
+		String threadName;
+		List errors = new ArrayList();
+
+		SyncCallback(VixHost vixHost, VixVM vixVM) {
+			this.vixHost = vixHost;
+			this.vixVM = vixVM;
+		}
+
+		public void callback(VixHandle handle, int eventType, VixHandle moreEventInfo, Object clientData) {
+			if (eventType != VixWrapper.VIX_EVENTTYPE_JOB_COMPLETED) {
+				return;
+			}
+			threadName = Thread.currentThread().getName();
+			try {
+				vixVM.copyFileFromGuestToHost("/stub/file", "/tmp/stub");
+				vixVM.copyFileFromHostToGuest("/tmp/stub", "/stub/file");
+				VixSnapshot snapshot = vixVM.createSnapshot("snapshot", "stub", 0);
+				vixVM.revertToSnapshot(snapshot, 0);
+				vixVM.removeSnapshot(snapshot, 0);
+				snapshot.close();
+				vixVM.installTools();
+				vixVM.upgradeVirtualHardware();
+				try {
+					vixHost.findItems(VixWrapper.VIX_FIND_RUNNING_VMS);
+					errors.add("findItems succeeded on " + threadName);
+				} catch (IllegalStateException ise) {
+					// expected
+				}
+			} catch (Throwable t) {
+				errors.add(t);
+			} finally {
+				completed.countDown();
+			}
+		}
+	}
+
+	/** Starts a job whose callback calls the synchronous methods, and waits for it
+	 *
+	 * @return the callback, once it has completed
+	 */
+	private SyncCallback runCallback(VixHost vixHost, VixVM vixVM) throws Exception {
+		SyncCallback callback = new SyncCallback(vixHost, vixVM);
+		VixHandle vmHandle = openVM(vixHost);
+		VixHandle jobHandle = VixWrapper.VixVM_PowerOn(vmHandle, 0,
+		  VixHandle.VIX_INVALID_HANDLE, callback, null);
+		try {
+			assertTrue("callback completed", callback.completed.await(30, TimeUnit.SECONDS));
+			assertEquals(callback.errors.toString(), 0, callback.errors.size());
+		} finally {
+			VixWrapper.Vix_ReleaseHandle(jobHandle);
+			VixWrapper.Vix_ReleaseHandle(vmHandle);
+		}
+		return callback;
+	}
+
+	/** Calls the synchronous methods on the pump thread of a host in event pump mode,
+	 * which delivers the callbacks of the jobs they start */
+	public void testEventPumpThread() throws Exception {
+		if (!usingStub) { return; }
+		VixHost vixHost = new VixHost(VixWrapper.VIX_API_VERSION,
+		  VixWrapper.VIX_SERVICEPROVIDER_VMWARE_WORKSTATION, "stub", 0, "stub", "stub",
+		  VixWrapper.VIX_HOSTOPTION_USE_EVENT_PUMP);
+		VixVM vixVM = vixHost.open("/stub/vm.vmx");
+		try {
+			SyncCallback callback = runCallback(vixHost, vixVM);
+			assertTrue(callback.threadName.startsWith("jvix-event-pump-"));
+		} finally {
+			vixVM.close();
+			vixHost.close();
+		}
+	}
+
+	/** Calls the synchronous methods on the only thread of a VixEventDispatcher, which
+	 * delivers the callbacks of the jobs they start */
+	public void testDispatchThread() throws Exception {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixVM vixVM = vixHost.open("/stub/vm.vmx");
+		VixEventDispatcher dispatcher = new VixEventDispatcher(1, 64);
+		dispatcher.start();
+		try {
+			SyncCallback callback = runCallback(vixHost, vixVM);
+			assertEquals("jvix-event-dispatch-0", callback.threadName);
+		} finally {
+			dispatcher.shutdown();
+			vixVM.close();
+			vixHost.close();
+		}
+	}
+
+	/** Calls the synchronous methods on a VIX callback thread */
+	public void testVixCallbackThread() throws Exception {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixVM vixVM = vixHost.open("/stub/vm.vmx");
+		try {
+			SyncCallback callback = runCallback(vixHost, vixVM);
+			assertEquals("jvix-callback", callback.threadName);
+		} finally {
+			vixVM.close();
+			vixHost.close();
+		}
+	}
+
+}
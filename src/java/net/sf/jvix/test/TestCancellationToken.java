@@ -0,0 +1,157 @@
+package net.sf.jvix.test;
+
+import net.sf.jvix.ReleaseBatcher;
+import net.sf.jvix.VixCancellationToken;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixFuture;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHandleTable;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixVM;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of VixCancellationToken, run against the stub VIX library; see
+ * {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestCancellationToken extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Create a new TestCancellationToken class */
+	public TestCancellationToken(String name) {
+		super(name);
+	}
+
+	/** Abandons synchronous and asynchronous jobs which outlive a VixCancellationToken,
+	 * and checks that their handles are released once they complete */
+	public void testDeadlines() throws VixException, InterruptedException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixVM vixVM = vixHost.open("/stub/vm.vmx");
+		VixHandle vmHandle = openVM(vixHost);
+		long abandonedJobCount = VixWrapper.getAbandonedJobCount();
+		VixCancellationToken token = new VixCancellationToken(100);
+		VixCancellationToken previous = VixCancellationToken.setCurrent(token);
+		try {
+			try {
+				vixVM.fileExistsInGuest("sleep:1000");
+				fail("VixException expected");
+			} catch (VixException ve) {
+				assertEquals(VixException.VIX_E_CANCELLED, ve.getErrorCode());
+			}
+			// the wait was abandoned before the job completed
+			assertEquals(abandonedJobCount, VixWrapper.getAbandonedJobCount());
+			assertTrue(token.isExpired());
+
+			// synchronous methods called after the deadline don't start a job
+			int handleCount = VixHandleTable.size();
+			try {
+				vixVM.deleteFileInGuest("sleep:200");
+				fail("VixException expected");
+			} catch (VixException ve) {
+				assertEquals(VixException.VIX_E_CANCELLED, ve.getErrorCode());
+			}
+			assertEquals(handleCount, VixHandleTable.size());
+
+			// asynchronous jobs started after the deadline are abandoned immediately
+			VixFuture future = vixVM.deleteFileInGuestAsync("sleep:200");
+			assertTrue(future.isCancelled());
+			VixHandle jobHandle = VixWrapper.VixVM_DeleteFileInGuest(vmHandle, "sleep:200", null, null);
+			try {
+				VixWrapper.VixJob_Wait(jobHandle);
+				fail("VixException expected");
+			} catch (VixException ve) {
+				assertEquals(VixException.VIX_E_CANCELLED, ve.getErrorCode());
+			} finally {
+				VixWrapper.Vix_ReleaseHandle(jobHandle);
+			}
+		} finally {
+			VixCancellationToken.setCurrent(previous);
+		}
+
+		VixCancellationToken parent = new VixCancellationToken();
+		VixCancellationToken child = parent.newChild(-1);
+		VixFuture future = child.attach(new VixFuture());
+		parent.cancel();
+		assertTrue(child.isCancelled() && !child.isExpired());
+		assertTrue(future.isCancelled());
+
+		for (int i = 0; i < 100 && VixWrapper.getAbandonedJobCount() < abandonedJobCount + 3; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(abandonedJobCount + 3, VixWrapper.getAbandonedJobCount());
+		ReleaseBatcher.getDefault().flush();
+		VixWrapper.Vix_ReleaseHandle(vmHandle);
+		vixVM.close();
+		vixHost.close();
+	}
+
+	/** Abandons a VixJob_WaitAndRelease() call on a job handle which has another reference,
+	 * and checks that only the reference given up by the call is released */
+	public void testAbandonedRelease() throws VixException, InterruptedException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = openVM(vixHost);
+		long abandonedJobCount = VixWrapper.getAbandonedJobCount();
+		VixHandle jobHandle = VixWrapper.VixVM_DeleteFileInGuest(vmHandle, "sleep:300", null, null);
+		VixWrapper.Vix_AddRefHandle(jobHandle);
+		assertEquals(2, jobHandle.getRefCount());
+		VixCancellationToken previous = VixCancellationToken.setCurrent(new VixCancellationToken(50));
+		try {
+			VixWrapper.VixJob_WaitAndRelease(jobHandle);
+			fail("VixException expected");
+		} catch (VixException ve) {
+			assertEquals(VixException.VIX_E_CANCELLED, ve.getErrorCode());
+		} finally {
+			VixCancellationToken.setCurrent(previous);
+		}
+		for (int i = 0; i < 100 && VixWrapper.getAbandonedJobCount() < abandonedJobCount + 1; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(abandonedJobCount + 1, VixWrapper.getAbandonedJobCount());
+		ReleaseBatcher.getDefault().flush();
+		assertEquals(1, jobHandle.getRefCount());
+		assertEquals(VixWrapper.VIX_HANDLETYPE_JOB, VixWrapper.Vix_GetHandleType(jobHandle));
+		VixWrapper.Vix_ReleaseHandle(jobHandle);
+		VixWrapper.Vix_ReleaseHandle(vmHandle);
+		vixHost.close();
+	}
+
+	/** Checks that child tokens are removed from their parent once they have been
+	 * cancelled or closed, and that a closed token is no longer cancelled by its
+	 * deadline */
+	public void testClose() throws InterruptedException {
+		if (!usingStub) { return; }
+		VixCancellationToken parent = new VixCancellationToken();
+		VixCancellationToken expiring = parent.newChild(50);
+		VixCancellationToken cancelled = parent.newChild(-1);
+		VixCancellationToken closed = parent.newChild(50);
+		VixCancellationToken open = parent.newChild(-1);
+		assertEquals(4, parent.getChildCount());
+		cancelled.cancel();
+		closed.close();
+		closed.close();  // has no effect
+		assertEquals(2, parent.getChildCount());
+		for (int i = 0; i < 100 && !expiring.isCancelled(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(expiring.isExpired());
+		assertEquals(1, parent.getChildCount());
+
+		// the closed token's deadline has passed, but it was removed from the timer
+		Thread.sleep(100);
+		assertFalse(closed.isCancelled());
+		parent.cancel();
+		assertTrue(open.isCancelled());
+		assertFalse(closed.isCancelled());
+		assertEquals(0, parent.getChildCount());
+		closed.cancel();
+		assertTrue(closed.isCancelled() && !closed.isExpired());
+	}
+
+}
@@ -0,0 +1,164 @@
+package net.sf.jvix.test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jvix.VixEventDispatcher;
+import net.sf.jvix.VixEventProc;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of VixEventDispatcher, run against the stub VIX library; see
+ * {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestEventDispatcher extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Number of jobs started in each test */
+	private static final int JOB_COUNT = 200;
+
+	/** Create a new TestEventDispatcher class */
+	public TestEventDispatcher(String name) {
+		super(name);
+	}
+
+	/** Starts JOB_COUNT delayed jobs through a dispatcher with a small ring, and checks
+	 * that each job's events are delivered in order on a single dispatch thread, and that
+	 * the clientData of each job is released once its VIX_EVENTTYPE_JOB_COMPLETED event
+	 * has been delivered */
+	public void testDeliveryOrder() throws Exception {
+		if (!usingStub) { return; }
+		int initialCallbackCount = VixWrapper.getCallbackCount();
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = openVM(vixHost);
+		VixEventDispatcher dispatcher = new VixEventDispatcher(4, 16);
+		final List[] events = new List[JOB_COUNT];
+		final String[] threadNames = new String[JOB_COUNT];
+		final List errors = new ArrayList();
+		final CountDownLatch completed = new CountDownLatch(JOB_COUNT);
+		VixEventProc callback = new VixEventProc() {
+			public void callback(VixHandle handle, int eventType, VixHandle moreEventInfo, Object clientData) {
+				int index = ((Integer) clientData).intValue();
+				String threadName = Thread.currentThread().getName();
+				synchronized (events) {
+					if (threadNames[index] != null && !threadNames[index].equals(threadName)) {
+						errors.add("job " + index + " delivered on " + threadNames[index] + " and " + threadName);
+					}
+					threadNames[index] = threadName;
+					events[index].add(new Integer(eventType));
+				}
+				if (eventType == VixWrapper.VIX_EVENTTYPE_JOB_COMPLETED) {
+					completed.countDown();
+				}
+			}
+		};
+		VixHandle[] jobHandles = new VixHandle[JOB_COUNT];
+		WeakReference[] clientDataRefs = new WeakReference[JOB_COUNT];
+		dispatcher.start();
+		try {
+			for (int i = 0; i < JOB_COUNT; i++) {
+				events[i] = new ArrayList();
+				Integer clientData = new Integer(i);
+				clientDataRefs[i] = new WeakReference(clientData);
+				jobHandles[i] = VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle, "sleep:20", "/tmp/stub", 0,
+				  VixHandle.VIX_INVALID_HANDLE, callback, clientData);
+			}
+			assertTrue("jobs completed", completed.await(30, TimeUnit.SECONDS));
+			synchronized (events) {
+				assertEquals(errors.toString(), 0, errors.size());
+				for (int i = 0; i < JOB_COUNT; i++) {
+					assertTrue(threadNames[i].startsWith("jvix-event-dispatch-"));
+					assertEquals("events for job " + i, 5, events[i].size());
+					for (int j = 0; j < 5; j++) {
+						assertEquals(j == 4 ? VixWrapper.VIX_EVENTTYPE_JOB_COMPLETED : VixWrapper.VIX_EVENTTYPE_JOB_PROGRESS,
+						  ((Integer) events[i].get(j)).intValue());
+					}
+				}
+			}
+
+			// the dispatcher has released the clientData objects, although the jobs have not
+			// been released; the last callbacks may still be returning
+			int uncollected = JOB_COUNT;
+			for (int attempt = 0; attempt < 100 && uncollected > 0; attempt++) {
+				System.gc();
+				Thread.sleep(10);
+				uncollected = 0;
+				for (int i = 0; i < JOB_COUNT; i++) {
+					if (clientDataRefs[i].get() != null) { uncollected++; }
+				}
+			}
+			assertEquals("clientData objects still reachable", 0, uncollected);
+			assertTrue(dispatcher.getDispatchCount() >= JOB_COUNT * 5);
+		} finally {
+			dispatcher.shutdown();
+			VixWrapper.Vix_ReleaseHandles(jobHandles);
+			VixWrapper.Vix_ReleaseHandle(vmHandle);
+			vixHost.close();
+		}
+		assertEquals(initialCallbackCount, VixWrapper.getCallbackCount());
+	}
+
+	/** Holds the only dispatch thread in the first callback until every other event has
+	 * been queued, and checks that shutdown() delivers the queued events before it returns */
+	public void testShutdownDrain() throws Exception {
+		if (!usingStub) { return; }
+		int initialCallbackCount = VixWrapper.getCallbackCount();
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = openVM(vixHost);
+		VixEventDispatcher dispatcher = new VixEventDispatcher(1, 64);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final int[] deliveredCount = new int[1];
+		VixEventProc callback = new VixEventProc() {
+			public void callback(VixHandle handle, int eventType, VixHandle moreEventInfo, Object clientData) {
+				try {
+					gate.await();
+					Thread.sleep(2);
+				} catch (InterruptedException ie) {
+					throw new IllegalStateException("interrupted");
+				}
+				synchronized (deliveredCount) {
+					deliveredCount[0]++;
+				}
+			}
+		};
+		VixHandle[] jobHandles = new VixHandle[JOB_COUNT];
+		dispatcher.start();
+		try {
+			for (int i = 0; i < JOB_COUNT; i++) {
+				jobHandles[i] = VixWrapper.VixVM_PowerOn(vmHandle, 0, VixHandle.VIX_INVALID_HANDLE, callback, null);
+			}
+			// one event is held by the dispatch thread; the rest are queued
+			for (int attempt = 0; attempt < 1000 && dispatcher.getQueueDepth() < JOB_COUNT - 1; attempt++) {
+				Thread.sleep(10);
+			}
+			assertEquals(JOB_COUNT - 1, dispatcher.getQueueDepth());
+			synchronized (deliveredCount) {
+				assertEquals(0, deliveredCount[0]);
+			}
+		} finally {
+			gate.countDown();
+			dispatcher.shutdown();
+		}
+		synchronized (deliveredCount) {
+			assertEquals(JOB_COUNT, deliveredCount[0]);
+		}
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertEquals(JOB_COUNT, dispatcher.getDispatchCount());
+		VixWrapper.Vix_ReleaseHandles(jobHandles);
+		VixWrapper.Vix_ReleaseHandle(vmHandle);
+		vixHost.close();
+		assertEquals(initialCallbackCount, VixWrapper.getCallbackCount());
+	}
+
+}
@@ -0,0 +1,139 @@
+package net.sf.jvix.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jvix.VixEventProc;
+import net.sf.jvix.VixEventPump;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of VixHost's event pump mode, run against the stub VIX library; see
+ * {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestEventPump extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Number of jobs started with a callback */
+	public static final int CALLBACK_JOB_COUNT = 2000;
+
+	/** Create a new TestEventPump class */
+	public TestEventPump(String name) {
+		super(name);
+	}
+
+	/** Starts CALLBACK_JOB_COUNT jobs with a VixEventProc on a host connected in event
+	 * pump mode, and checks that every callback is invoked by the host's pump thread */
+	public void testEventPump() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = new VixHost(VixWrapper.VIX_API_VERSION,
+		  VixWrapper.VIX_SERVICEPROVIDER_VMWARE_WORKSTATION, "stub", 0, "stub", "stub",
+		  VixWrapper.VIX_HOSTOPTION_USE_EVENT_PUMP);
+		VixEventPump eventPump = vixHost.getEventPump();
+		VixHandle vmHandle = null;
+		final int[] completedCount = new int[1];
+		final List callbackThreads = new ArrayList();
+		VixEventProc callback = new VixEventProc() {
+			public void callback(VixHandle handle, int eventType, VixHandle moreEventInfo, Object clientData) {
+				if (eventType == VixWrapper.VIX_EVENTTYPE_JOB_COMPLETED) {
+					synchronized (completedCount) {
+						completedCount[0]++;
+						if (!callbackThreads.contains(Thread.currentThread())) {
+							callbackThreads.add(Thread.currentThread());
+						}
+					}
+				}
+			}
+		};
+		try {
+			assertNotNull(eventPump);
+			vmHandle = openVM(vixHost);
+			VixHandle[] jobHandles = new VixHandle[CALLBACK_JOB_COUNT];
+			for (int i = 0; i < CALLBACK_JOB_COUNT; i++) {
+				jobHandles[i] = VixWrapper.VixVM_PowerOn(vmHandle, 0, VixHandle.VIX_INVALID_HANDLE,
+				  callback, null);
+			}
+			long start = System.currentTimeMillis();
+			while (System.currentTimeMillis() - start < 10000) {
+				synchronized (completedCount) { if (completedCount[0] == CALLBACK_JOB_COUNT) { break; } }
+				Thread.yield();
+			}
+			VixWrapper.Vix_ReleaseHandles(jobHandles);
+			synchronized (completedCount) {
+				assertEquals(CALLBACK_JOB_COUNT, completedCount[0]);
+				assertEquals(1, callbackThreads.size());
+				assertTrue(((Thread) callbackThreads.get(0)).getName().startsWith("jvix-event-pump-"));
+			}
+			assertTrue(eventPump.getEventCount() >= CALLBACK_JOB_COUNT);
+		} finally {
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+	/** Runs a slow job with a VixEventProc on one of two hosts connected in event pump
+	 * mode, and checks that only that host's pump stays busy while the job is pending,
+	 * and that each event is counted by the pump which delivered it */
+	public void testIdleHost() throws Exception {
+		if (!usingStub) { return; }
+		VixHost busyHost = new VixHost(VixWrapper.VIX_API_VERSION,
+		  VixWrapper.VIX_SERVICEPROVIDER_VMWARE_WORKSTATION, "stub", 0, "stub", "stub",
+		  VixWrapper.VIX_HOSTOPTION_USE_EVENT_PUMP);
+		VixHost idleHost = new VixHost(VixWrapper.VIX_API_VERSION,
+		  VixWrapper.VIX_SERVICEPROVIDER_VMWARE_WORKSTATION, "stub", 0, "stub", "stub",
+		  VixWrapper.VIX_HOSTOPTION_USE_EVENT_PUMP);
+		VixEventPump busyPump = busyHost.getEventPump();
+		VixEventPump idlePump = idleHost.getEventPump();
+		VixHandle vmHandle = null;
+		VixHandle jobHandle = null;
+		final CountDownLatch completed = new CountDownLatch(1);
+		VixEventProc callback = new VixEventProc() {
+			public void callback(VixHandle handle, int eventType, VixHandle moreEventInfo, Object clientData) {
+				if (eventType == VixWrapper.VIX_EVENTTYPE_JOB_COMPLETED) {
+					completed.countDown();
+				}
+			}
+		};
+		try {
+			vmHandle = openVM(busyHost);
+			long initialEvents = busyPump.getEventCount() + idlePump.getEventCount();
+			long initialBusyPumps = busyPump.getPumpCount();
+			long initialIdlePumps = idlePump.getPumpCount();
+			jobHandle = VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle, "sleep:1000", "/tmp/stub", 0,
+			  VixHandle.VIX_INVALID_HANDLE, callback, null);
+			Thread.sleep(500);
+			long busyPumps = busyPump.getPumpCount() - initialBusyPumps;
+			long idlePumps = idlePump.getPumpCount() - initialIdlePumps;
+			// the idle pump waits DEFAULT_IDLE_PARK_MILLIS between pumps
+			assertTrue("idle host pumped " + idlePumps + " times", idlePumps < 150);
+			assertTrue("busy host pumped " + busyPumps + " times", busyPumps > idlePumps);
+
+			assertTrue("job completed", completed.await(10, TimeUnit.SECONDS));
+			// the pump which delivered the completion event counts it once its pump returns
+			long start = System.currentTimeMillis();
+			while (busyPump.getEventCount() + idlePump.getEventCount() - initialEvents < 5 &&
+			  System.currentTimeMillis() - start < 1000) {
+				Thread.sleep(10);
+			}
+			Thread.sleep(100);
+			// STUB_PROGRESS_STEPS progress events, and the completion event
+			assertEquals(5, busyPump.getEventCount() + idlePump.getEventCount() - initialEvents);
+		} finally {
+			if (jobHandle != null) { VixWrapper.Vix_ReleaseHandle(jobHandle); }
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			idleHost.close();
+			busyHost.close();
+		}
+	}
+
+}
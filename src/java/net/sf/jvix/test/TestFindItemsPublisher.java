@@ -0,0 +1,94 @@
+package net.sf.jvix.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jvix.ReleaseBatcher;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixFlow;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of the publisher returned by VixHost.findItemsPublisher(), run against the
+ * stub VIX library; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestFindItemsPublisher extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Create a new TestFindItemsPublisher class */
+	public TestFindItemsPublisher(String name) {
+		super(name);
+	}
+
+	/** Subscribes to the items found by a search, one item at a time, and cancels a
+	 * second search part way through */
+	public void testFindItemsPublisher() throws VixException, InterruptedException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		try {
+			VixFlow.Publisher publisher = vixHost.findItemsPublisher(VixWrapper.VIX_FIND_REGISTERED_VMS, 10000);
+			ItemSubscriber subscriber = new ItemSubscriber(-1);
+			publisher.subscribe(subscriber);
+			assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+			assertEquals(Boolean.TRUE, subscriber.result);
+			assertEquals(5, subscriber.items.size());
+			assertEquals("/stub/vm0.vmx", subscriber.items.get(0));
+
+			long abandonedJobCount = VixWrapper.getAbandonedJobCount();
+			subscriber = new ItemSubscriber(2);
+			publisher.subscribe(subscriber);
+			for (int i = 0; i < 100 && VixWrapper.getAbandonedJobCount() == abandonedJobCount; i++) {
+				Thread.sleep(50);
+			}
+			assertEquals(abandonedJobCount + 1, VixWrapper.getAbandonedJobCount());
+			assertEquals(2, subscriber.items.size());
+			assertNull(subscriber.result);
+		} finally {
+			ReleaseBatcher.getDefault().flush();
+			vixHost.close();
+		}
+	}
+
+	/** Requests found items one at a time */
+	private static class ItemSubscriber implements VixFlow.Subscriber {
+		List items = Collections.synchronizedList(new ArrayList());
+		CountDownLatch done = new CountDownLatch(1);
+		Object result = null;
+		int cancelAfter;
+		VixFlow.Subscription subscription;
+
+		ItemSubscriber(int cancelAfter) {
+			this.cancelAfter = cancelAfter;
+		}
+		public void onSubscribe(VixFlow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+		public void onNext(Object item) {
+			items.add(item);
+			if (items.size() == cancelAfter) {
+				subscription.cancel();
+			} else {
+				subscription.request(1);
+			}
+		}
+		public void onError(Throwable throwable) {
+			result = throwable;
+			done.countDown();
+		}
+		public void onComplete() {
+			result = Boolean.TRUE;
+			done.countDown();
+		}
+	}
+
+}
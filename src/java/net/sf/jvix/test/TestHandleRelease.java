@@ -0,0 +1,102 @@
+package net.sf.jvix.test;
+
+import net.sf.jvix.PropertyTable;
+import net.sf.jvix.ReleaseBatcher;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of the release of handles, in batches and after failures, run against the
+ * stub VIX library; see
+ * {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestHandleRelease extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Number of handles released by each test */
+	public static final int HANDLE_COUNT = 2000;
+
+	/** Create a new TestHandleRelease class */
+	public TestHandleRelease(String name) {
+		super(name);
+	}
+
+	/** Releases a large number of snapshot handles through a ReleaseBatcher, and
+	 * job handles through Vix_ReleaseHandles() */
+	public void testBatchedRelease() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = null;
+		ReleaseBatcher batcher = new ReleaseBatcher(100, 0);
+		try {
+			vmHandle = openVM(vixHost);
+			for (int i = 0; i < HANDLE_COUNT; i++) {
+				batcher.release(VixWrapper.VixVM_GetRootSnapshot(vmHandle, 0));
+			}
+			assertEquals(HANDLE_COUNT / 100, batcher.getFlushCount());
+			assertEquals(HANDLE_COUNT, batcher.getReleaseCount());
+
+			VixHandle[] jobHandles = new VixHandle[HANDLE_COUNT];
+			for (int i = 0; i < HANDLE_COUNT; i++) {
+				jobHandles[i] = VixWrapper.VixVM_PowerOn(vmHandle, 0, VixHandle.VIX_INVALID_HANDLE, null, null);
+			}
+			VixWrapper.Vix_ReleaseHandles(jobHandles);
+		} finally {
+			batcher.shutdown();
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+	/** Retrieves a handle-typed column from a directory listing which fails part of the
+	 * way through, and checks that the handles copied from the earlier results are
+	 * released, both in the handle table and in the VIX library */
+	public void testFailedTable() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = null;
+		try {
+			vmHandle = openVM(vixHost);
+			int[] propertyIds = new int[] {
+			  VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+			  VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE };
+
+			// every file in the stub's listing refers to the VM handle
+			VixHandle jobHandle = VixWrapper.VixVM_ListDirectoryInGuest(vmHandle, "/stub/3", 0, null, null);
+			PropertyTable table = VixWrapper.VixJob_WaitAndReleaseTable(jobHandle, propertyIds, false);
+			assertSame(vmHandle, table.getHandle(2, 1));
+			assertEquals(4, vmHandle.getRefCount());
+			for (int i = 0; i < table.getRowCount(); i++) {
+				VixWrapper.Vix_ReleaseHandle(table.getHandle(i, 1));
+			}
+			assertEquals(1, vmHandle.getRefCount());
+
+			for (int failRow = 1; failRow <= 3; failRow++) {
+				jobHandle = VixWrapper.VixVM_ListDirectoryInGuest(vmHandle, "/stub/fail:" + failRow + "/5", 0, null, null);
+				try {
+					VixWrapper.VixJob_WaitAndReleaseTable(jobHandle, propertyIds, false);
+					fail("expected VixException");
+				} catch (VixException ve) {
+					assertEquals(VixException.VIX_E_FAIL, ve.getErrorCode());
+				}
+				assertEquals(1, vmHandle.getRefCount());
+			}
+
+			// the last reference to the VM handle is released in the VIX library
+			VixWrapper.Vix_ReleaseHandle(vmHandle);
+			assertEquals(VixWrapper.VIX_HANDLETYPE_NONE, VixWrapper.Vix_GetHandleType(vmHandle));
+			vmHandle = null;
+		} finally {
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+}
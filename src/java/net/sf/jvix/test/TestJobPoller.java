@@ -0,0 +1,62 @@
+package net.sf.jvix.test;
+
+import net.sf.jvix.JobPoller;
+import net.sf.jvix.PropertyResultBuffer;
+import net.sf.jvix.VixEventProc;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixFuture;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of the JobPoller, run against the stub VIX library; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestJobPoller extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Number of jobs polled */
+	public static final int POLLED_JOB_COUNT = 2000;
+
+	/** Create a new TestJobPoller class */
+	public TestJobPoller(String name) {
+		super(name);
+	}
+
+	/** Polls POLLED_JOB_COUNT jobs created without a VixEventProc through a JobPoller */
+	public void testJobPoller() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = null;
+		JobPoller poller = new JobPoller();
+		try {
+			vmHandle = openVM(vixHost);
+			VixFuture[] futures = new VixFuture[POLLED_JOB_COUNT];
+			for (int i = 0; i < POLLED_JOB_COUNT; i++) {
+				futures[i] = poller.submit(VixWrapper.VixVM_FileExistsInGuest(vmHandle, "/stub/file" + i, null, null),
+				  new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_GUEST_OBJECT_EXISTS });
+			}
+			for (int i = 0; i < POLLED_JOB_COUNT; i++) {
+				assertTrue(((PropertyResultBuffer) futures[i].getResult()).getBoolean(0));
+			}
+			try {
+				poller.submit(VixWrapper.VixVM_DeleteFileInGuest(vmHandle, "fail", null, null)).getResult();
+				fail("VixException expected");
+			} catch (VixException ve) {
+				assertEquals(VixException.VIX_E_FAIL, ve.getErrorCode());
+			}
+			assertEquals(POLLED_JOB_COUNT + 1, poller.getCompletionCount());
+			assertEquals(0, poller.getQueueLength());
+		} finally {
+			poller.shutdown();
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+package net.sf.jvix.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.jvix.JobSet;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of JobSet, VixJob_WaitAny and VixJob_WaitAll, run against the stub VIX
+ * library; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestJobSet extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Number of jobs started; more than two words of the completion bitmap */
+	private static final int JOB_COUNT = 150;
+
+	/** Argument which delays the completion of every third job until well after the
+	 * others have been checked */
+	private static final String SLOW_JOB_ARGUMENT = "sleep:3000";
+
+	/** Create a new TestJobSet class */
+	public TestJobSet(String name) {
+		super(name);
+	}
+
+	/** Returns true if the job at the supplied index is a slow one */
+	private static boolean isSlow(int index) {
+		return index % 3 == 0;
+	}
+
+	/** Starts JOB_COUNT jobs, every third one of which is slow */
+	private VixHandle[] startJobs(VixHandle vmHandle) {
+		VixHandle[] jobs = new VixHandle[JOB_COUNT];
+		for (int i = 0; i < JOB_COUNT; i++) {
+			jobs[i] = VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle,
+			  isSlow(i) ? SLOW_JOB_ARGUMENT : "/stub/file" + i, "/tmp/stub", 0,
+			  VixHandle.VIX_INVALID_HANDLE, null, null);
+		}
+		return jobs;
+	}
+
+	/** Returns the jobs whose indexes are (or are not) slow */
+	private static VixHandle[] selectJobs(VixHandle[] jobs, boolean slow) {
+		List selected = new ArrayList();
+		for (int i = 0; i < jobs.length; i++) {
+			if (isSlow(i) == slow) { selected.add(jobs[i]); }
+		}
+		return (VixHandle[]) selected.toArray(new VixHandle[selected.size()]);
+	}
+
+	/** Checks VixJob_WaitAny and VixJob_WaitAll */
+	public void testWaitAnyAll() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = openVM(vixHost);
+		VixHandle[] jobs = startJobs(vmHandle);
+		VixHandle[] fastJobs = selectJobs(jobs, false);
+		VixHandle[] slowJobs = selectJobs(jobs, true);
+
+		assertEquals(-1, VixWrapper.VixJob_WaitAny(new VixHandle[0], 0));
+		assertTrue(VixWrapper.VixJob_WaitAll(new VixHandle[0], 0));
+		assertTrue(VixWrapper.VixJob_WaitAll(fastJobs, -1));
+		assertEquals(-1, VixWrapper.VixJob_WaitAny(slowJobs, 0));
+		assertEquals(-1, VixWrapper.VixJob_WaitAny(slowJobs, 50));
+		assertFalse(VixWrapper.VixJob_WaitAll(jobs, 0));
+		// the first completed job is the first fast one
+		assertEquals(1, VixWrapper.VixJob_WaitAny(jobs, 0));
+		assertEquals(0, VixWrapper.VixJob_WaitAny(fastJobs, -1));
+
+		assertTrue(VixWrapper.VixJob_WaitAll(jobs, -1));
+		assertEquals(0, VixWrapper.VixJob_WaitAny(slowJobs, 0));
+		for (int i = 0; i < jobs.length; i++) {
+			assertTrue(VixWrapper.VixJob_CheckCompletion(jobs[i]));
+			VixWrapper.VixJob_WaitAndRelease(jobs[i]);
+		}
+		VixWrapper.Vix_ReleaseHandle(vmHandle);
+		vixHost.close();
+	}
+
+	/** Checks that jobs are removed from a JobSet in the order they were added, when
+	 * several jobs are recorded as completed in a single call. Each removal shifts the
+	 * completion bitmap down by one bit, carrying bits across words. */
+	public void testJobSet() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = openVM(vixHost);
+		VixHandle[] jobs = startJobs(vmHandle);
+		VixHandle[] fastJobs = selectJobs(jobs, false);
+		VixHandle[] slowJobs = selectJobs(jobs, true);
+		JobSet jobSet = new JobSet();
+		for (int i = 0; i < jobs.length; i++) {
+			jobSet.add(jobs[i]);
+		}
+		assertEquals(JOB_COUNT, jobSet.size());
+		assertTrue(VixWrapper.VixJob_WaitAll(fastJobs, -1));
+
+		// the first waitAny() records every fast job as complete; the rest are
+		// returned from the bitmap
+		for (int i = 0; i < fastJobs.length; i++) {
+			VixHandle job = jobSet.waitAny(0);
+			assertSame("fast job " + i, fastJobs[i], job);
+			VixWrapper.VixJob_WaitAndRelease(job);
+		}
+		assertEquals(slowJobs.length, jobSet.size());
+		assertNull(jobSet.waitAny(0));
+		assertEquals(0, jobSet.removeCompleted().size());
+		assertFalse(jobSet.waitAll(0));
+
+		assertTrue(jobSet.waitAll(-1));
+		assertEquals(slowJobs.length, jobSet.size());
+		VixHandle job = jobSet.waitAny(0);
+		assertSame(slowJobs[0], job);
+		VixWrapper.VixJob_WaitAndRelease(job);
+		jobSet.add(VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle, "/stub/file", "/tmp/stub", 0,
+		  VixHandle.VIX_INVALID_HANDLE, null, null));
+		assertTrue(jobSet.waitAll(-1));
+
+		List completed = jobSet.removeCompleted();
+		assertEquals(slowJobs.length, completed.size());
+		for (int i = 1; i < slowJobs.length; i++) {
+			assertSame("slow job " + i, slowJobs[i], completed.get(i - 1));
+		}
+		assertTrue(jobSet.isEmpty());
+		assertNull(jobSet.waitAny(-1));
+		for (int i = 0; i < completed.size(); i++) {
+			VixWrapper.VixJob_WaitAndRelease((VixHandle) completed.get(i));
+		}
+
+		// jobs remaining in a set are released by releaseAll()
+		jobSet.add(VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle, "/stub/file", "/tmp/stub", 0,
+		  VixHandle.VIX_INVALID_HANDLE, null, null));
+		jobSet.add(VixWrapper.VixVM_CopyFileFromGuestToHost(vmHandle, "fail", "/tmp/stub", 0,
+		  VixHandle.VIX_INVALID_HANDLE, null, null));
+		assertTrue(jobSet.waitAll(-1));
+		jobSet.releaseAll();
+		assertTrue(jobSet.isEmpty());
+
+		VixWrapper.Vix_ReleaseHandle(vmHandle);
+		vixHost.close();
+	}
+
+}
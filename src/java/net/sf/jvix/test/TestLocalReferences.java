@@ -0,0 +1,224 @@
+package net.sf.jvix.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import net.sf.jvix.PropertyTable;
+import net.sf.jvix.VixEventProc;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixVM;
+import net.sf.jvix.VixWrapper;
+import net.sf.jvix.data.VixFile;
+
+/**
+ * JNI local reference stress test. This class retrieves very large numbers of
+ * results through each of the native result paths, to ensure that the JNI wrapper
+ * doesn't overflow the JVM's local reference table, or leave exceptions pending.
+ *
+ * <p>This test must be run against the stub VIX library in src/c/vixstub.c, which
+ * can generate any number of results without a VMware host; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestLocalReferences extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Number of files returned by the large directory listing */
+	public static final int LARGE_LISTING_SIZE = 100000;
+
+	/** Number of property IDs passed to the List-based property methods */
+	public static final int LARGE_PROPERTY_LIST_SIZE = 5000;
+
+	/** Number of jobs started with a callback */
+	public static final int CALLBACK_JOB_COUNT = 2000;
+
+	/** Create a new TestLocalReferences class */
+	public TestLocalReferences(String name) {
+		super(name);
+	}
+
+	/** Define a test suite to ensure the order of the tests */
+	public static Test suite() {
+		TestSuite testsToRun = new TestSuite();
+		testsToRun.addTest(new TestLocalReferences("testLargeDirectoryListing"));
+		testsToRun.addTest(new TestLocalReferences("testLargeRawTable"));
+		testsToRun.addTest(new TestLocalReferences("testLargePropertyList"));
+		testsToRun.addTest(new TestLocalReferences("testNthPropertyLists"));
+		testsToRun.addTest(new TestLocalReferences("testCallbacks"));
+		testsToRun.addTest(new TestLocalReferences("testFailedJobs"));
+		return testsToRun;
+	}
+
+	/** Lists a directory containing LARGE_LISTING_SIZE files, which is retrieved
+	 * through the PropertyTable fast path */
+	public void testLargeDirectoryListing() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixVM vixVM = null;
+		try {
+			vixVM = vixHost.open("/stub/test.vmx");
+			List files = vixVM.listDirectoryInGuest("/stub/" + LARGE_LISTING_SIZE);
+			assertEquals(LARGE_LISTING_SIZE, files.size());
+			for (int i = 0; i < LARGE_LISTING_SIZE; i += 9973) {
+				VixFile file = (VixFile) files.get(i);
+				assertEquals("file" + i, file.getName());
+				assertEquals(i % 2, file.getFileFlags());
+			}
+		} finally {
+			if (vixVM != null) { vixVM.close(); }
+			vixHost.close();
+		}
+	}
+
+	/** Retrieves LARGE_LISTING_SIZE results as UTF-8 byte arrays */
+	public void testLargeRawTable() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = null;
+		try {
+			vmHandle = openVM(vixHost);
+			VixHandle jobHandle = VixWrapper.VixVM_ListDirectoryInGuest(vmHandle,
+			  "/stub/" + LARGE_LISTING_SIZE, 0, null, null);
+			PropertyTable table = VixWrapper.VixJob_WaitAndReleaseTable(jobHandle, new int[] {
+			  VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+			  VixWrapper.VIX_PROPERTY_JOB_RESULT_FILE_FLAGS }, true);
+			assertEquals(LARGE_LISTING_SIZE, table.getRowCount());
+			assertEquals("file" + (LARGE_LISTING_SIZE - 1), table.getString(LARGE_LISTING_SIZE - 1, 0));
+		} finally {
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+	/** Retrieves LARGE_PROPERTY_LIST_SIZE properties from a job through the List-based
+	 * methods, each of which creates a boxed value or String per property */
+	public void testLargePropertyList() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = null;
+		try {
+			vmHandle = openVM(vixHost);
+			List propertyIds = new ArrayList();
+			for (int i = 0; i < LARGE_PROPERTY_LIST_SIZE; i++) {
+				propertyIds.add(new Integer(i % 2 == 0 ?
+				  VixWrapper.VIX_PROPERTY_JOB_RESULT_COMMAND_OUTPUT :
+				  VixWrapper.VIX_PROPERTY_JOB_RESULT_ERROR_CODE));
+			}
+			VixHandle jobHandle = VixWrapper.VixVM_RunScriptInGuest(vmHandle, "/bin/sh", "true", 0,
+			  VixHandle.VIX_INVALID_HANDLE, null, null);
+			try {
+				List results = VixWrapper.VixJob_Wait(jobHandle, propertyIds);
+				assertEquals(LARGE_PROPERTY_LIST_SIZE, results.size());
+				assertEquals("stub", results.get(0));
+				assertEquals(new Integer(0), results.get(1));
+
+				results = VixWrapper.Vix_GetProperties(jobHandle, propertyIds);
+				assertEquals(LARGE_PROPERTY_LIST_SIZE, results.size());
+				assertEquals("stub", results.get(LARGE_PROPERTY_LIST_SIZE - 2));
+			} finally {
+				VixWrapper.Vix_ReleaseHandle(jobHandle);
+			}
+		} finally {
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+	/** Retrieves every result of a large listing through VixJob_GetNthProperties() */
+	public void testNthPropertyLists() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = null;
+		try {
+			vmHandle = openVM(vixHost);
+			VixHandle jobHandle = VixWrapper.VixVM_ListDirectoryInGuest(vmHandle,
+			  "/stub/" + (LARGE_LISTING_SIZE / 10), 0, null, null);
+			try {
+				VixWrapper.VixJob_Wait(jobHandle);
+				int count = VixWrapper.VixJob_GetNumProperties(jobHandle, VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME);
+				assertEquals(LARGE_LISTING_SIZE / 10, count);
+				int[] propertyIds = new int[] {
+				  VixWrapper.VIX_PROPERTY_JOB_RESULT_ITEM_NAME,
+				  VixWrapper.VIX_PROPERTY_JOB_RESULT_FILE_FLAGS };
+				for (int i = 0; i < count; i++) {
+					List results = VixWrapper.VixJob_GetNthProperties(jobHandle, i, propertyIds);
+					assertEquals("file" + i, results.get(0));
+				}
+			} finally {
+				VixWrapper.Vix_ReleaseHandle(jobHandle);
+			}
+		} finally {
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+	/** Starts CALLBACK_JOB_COUNT jobs with a VixEventProc, each of which is invoked
+	 * from a native thread */
+	public void testCallbacks() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = null;
+		final int[] completedCount = new int[1];
+		VixEventProc callback = new VixEventProc() {
+			public void callback(VixHandle handle, int eventType, VixHandle moreEventInfo, Object clientData) {
+				if (eventType == VixWrapper.VIX_EVENTTYPE_JOB_COMPLETED) {
+					synchronized (completedCount) { completedCount[0]++; }
+				}
+			}
+		};
+		try {
+			vmHandle = openVM(vixHost);
+			VixHandle[] jobHandles = new VixHandle[CALLBACK_JOB_COUNT];
+			for (int i = 0; i < CALLBACK_JOB_COUNT; i++) {
+				jobHandles[i] = VixWrapper.VixVM_PowerOn(vmHandle, 0, VixHandle.VIX_INVALID_HANDLE,
+				  callback, new Integer(i));
+			}
+			for (int i = 0; i < CALLBACK_JOB_COUNT; i++) {
+				VixWrapper.VixJob_WaitAndRelease(jobHandles[i]);
+			}
+			// callbacks for the last jobs may still be running
+			long start = System.currentTimeMillis();
+			while (System.currentTimeMillis() - start < 10000) {
+				synchronized (completedCount) { if (completedCount[0] == CALLBACK_JOB_COUNT) { break; } }
+				Thread.yield();
+			}
+			synchronized (completedCount) { assertEquals(CALLBACK_JOB_COUNT, completedCount[0]); }
+		} finally {
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+	/** Checks that failed jobs throw VixExceptions, and leave no exceptions pending for
+	 * subsequent calls */
+	public void testFailedJobs() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = null;
+		try {
+			vmHandle = openVM(vixHost);
+			for (int i = 0; i < 1000; i++) {
+				VixHandle jobHandle = VixWrapper.VixVM_DeleteFileInGuest(vmHandle, "fail", null, null);
+				try {
+					VixWrapper.VixJob_WaitAndRelease(jobHandle);
+					fail("expected VixException");
+				} catch (VixException ve) {
+					assertEquals(VixException.VIX_E_FAIL, ve.getErrorCode());
+				}
+			}
+		} finally {
+			if (vmHandle != null) { VixWrapper.Vix_ReleaseHandle(vmHandle); }
+			vixHost.close();
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+package net.sf.jvix.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of the native log modes, the trace buffer and its drop counter, run against
+ * the stub VIX library; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestNativeTrace extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** A VMX path longer than the text stored in a trace record (TRACE_TEXT_LENGTH in VixWrapper.c) */
+	private static final String LONG_PATH;
+	static {
+		StringBuffer sb = new StringBuffer("/stub");
+		for (int i = 0; sb.length() < 200; i++) {
+			sb.append("/directory" + i);
+		}
+		LONG_PATH = sb.append("/vm.vmx").toString();
+	}
+
+	/** The logger that native log messages are sent to */
+	private Logger logger = Logger.getLogger(VixWrapper.class);
+
+	/** The level of that logger before the test was run */
+	private Level initialLevel;
+
+	/** The appender capturing the messages sent to that logger */
+	private CapturingAppender appender;
+
+	/** Create a new TestNativeTrace class */
+	public TestNativeTrace(String name) {
+		super(name);
+	}
+
+	/** Captures log messages, optionally holding the first one until a gate is opened */
+	private static class CapturingAppender extends AppenderSkeleton {
+		List messages = new ArrayList();
+		List warnings = new ArrayList();
+		CountDownLatch gate = null;
+		CountDownLatch held = new CountDownLatch(1);
+
+		protected void append(LoggingEvent event) {
+			if (gate != null && held.getCount() > 0) {
+				held.countDown();
+				try {
+					gate.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (this) {
+				(event.getLevel() == Level.WARN ? warnings : messages).add(event.getRenderedMessage());
+			}
+		}
+		synchronized boolean contains(String text) {
+			for (int i = 0; i < messages.size(); i++) {
+				if (((String) messages.get(i)).indexOf(text) != -1) { return true; }
+			}
+			return false;
+		}
+		public boolean requiresLayout() { return false; }
+		public void close() { }
+	}
+
+	/** Perform test setup actions */
+	protected void setUp() {
+		super.setUp();
+		VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_NONE);
+		initialLevel = logger.getLevel();
+		logger.setLevel(Level.DEBUG);
+		appender = new CapturingAppender();
+		logger.addAppender(appender);
+	}
+
+	/** Restores the log mode and logger */
+	protected void tearDown() {
+		VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_NONE);
+		logger.removeAppender(appender);
+		logger.setLevel(initialLevel);
+		VixWrapper.resetNativeLogMode();
+		super.tearDown();
+	}
+
+	/** Opens a VM with a long path, and reads that path back */
+	private void readLongPath(VixHost vixHost) throws VixException {
+		VixHandle jobHandle = VixWrapper.VixVM_Open(vixHost.getVixHandle(), LONG_PATH, null, null);
+		try {
+			VixHandle vmHandle = (VixHandle) VixWrapper.VixJob_Wait(jobHandle,
+			  new int[] { VixWrapper.VIX_PROPERTY_JOB_RESULT_HANDLE }).get(0);
+			try {
+				assertEquals(LONG_PATH, VixWrapper.Vix_GetProperties(vmHandle,
+				  new int[] { VixWrapper.VIX_PROPERTY_VM_VMX_PATHNAME }).get(0));
+			} finally {
+				VixWrapper.Vix_ReleaseHandle(vmHandle);
+			}
+		} finally {
+			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		}
+	}
+
+	/** Checks setNativeLogMode() and getNativeLogMode() */
+	public void testSetNativeLogMode() {
+		if (!usingStub) { return; }
+		VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_DEBUG);
+		assertEquals(VixWrapper.JVIX_LOG_DEBUG, VixWrapper.getNativeLogMode());
+		VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_TRACE);
+		assertEquals(VixWrapper.JVIX_LOG_TRACE, VixWrapper.getNativeLogMode());
+		try {
+			VixWrapper.setNativeLogMode(3);
+			fail("setNativeLogMode accepted an unknown mode");
+		} catch (IllegalArgumentException iae) {
+			// expected
+		}
+		assertEquals(VixWrapper.JVIX_LOG_TRACE, VixWrapper.getNativeLogMode());
+		VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_NONE);
+		assertEquals(VixWrapper.JVIX_LOG_NONE, VixWrapper.getNativeLogMode());
+	}
+
+	/** Checks that messages logged in JVIX_LOG_DEBUG mode are delivered synchronously,
+	 * with string arguments and int64 values formatted in full */
+	public void testDebugMode() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		try {
+			VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_DEBUG);
+			readLongPath(vixHost);
+			assertTrue(appender.contains("Vix_GetProperties: Returning string property '" + LONG_PATH + "'"));
+			assertTrue(appender.contains("VixJob_Wait invoked returnCode=0"));
+			VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_NONE);
+			int count = appender.messages.size();
+			readLongPath(vixHost);
+			assertEquals(count, appender.messages.size());
+		} finally {
+			vixHost.close();
+		}
+	}
+
+	/** Holds the trace drain thread while the trace buffer overflows, and checks that
+	 * the discarded records are counted and reported, and that the records which were
+	 * kept are logged in order once the thread is released */
+	public void testTraceMode() throws Exception {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		try {
+			long initialDropCount = VixWrapper.getTraceDropCount();
+			appender.gate = new CountDownLatch(1);
+			VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_TRACE);
+			readLongPath(vixHost);
+			assertTrue("drain thread held", appender.held.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 10000 && VixWrapper.getTraceDropCount() == initialDropCount; i++) {
+				readLongPath(vixHost);
+			}
+			long dropCount = VixWrapper.getTraceDropCount() - initialDropCount;
+			assertTrue("records discarded", dropCount > 0);
+			appender.gate.countDown();
+
+			// changing the log mode stops the drain thread once the buffer is empty
+			VixWrapper.setNativeLogMode(VixWrapper.JVIX_LOG_NONE);
+			synchronized (appender) {
+				assertTrue(appender.messages.size() >= 1024);
+				assertEquals(1, appender.warnings.size());
+				assertTrue((String) appender.warnings.get(0),
+				  ((String) appender.warnings.get(0)).startsWith(dropCount + " native trace record(s) discarded"));
+				long lastTimestamp = 0;
+				for (int i = 0; i < appender.messages.size(); i++) {
+					String message = (String) appender.messages.get(i);
+					assertTrue(message, message.startsWith("["));
+					long timestamp = Long.parseLong(message.substring(1, message.indexOf(']')));
+					assertTrue("records logged in order", timestamp >= lastTimestamp);
+					lastTimestamp = timestamp;
+				}
+			}
+			// string arguments are truncated in trace records
+			assertTrue(appender.contains("Vix_GetProperties: Returning string property '" + LONG_PATH.substring(0, 20)));
+			assertFalse(appender.contains(LONG_PATH));
+		} finally {
+			if (appender.gate != null) { appender.gate.countDown(); }
+			vixHost.close();
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package net.sf.jvix.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixProgressBus;
+import net.sf.jvix.VixProgressEvent;
+import net.sf.jvix.VixProgressListener;
+import net.sf.jvix.VixVM;
+
+/**
+ * Tests of the VixProgressBus, run against the stub VIX library; see
+ * {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestProgressBus extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Create a new TestProgressBus class */
+	public TestProgressBus(String name) {
+		super(name);
+	}
+
+	/** Checks the progress events raised by a delayed synchronous copy, and that
+	 * operations on other virtual machines are not reported */
+	public void testProgressEvents() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixVM vixVM = vixHost.open("/stub/vm.vmx");
+		VixVM otherVM = vixHost.open("/stub/other.vmx");
+		final List events = Collections.synchronizedList(new ArrayList());
+		VixProgressListener listener = new VixProgressListener() {
+			public void progress(VixProgressEvent event) {
+				events.add(event);
+			}
+		};
+		VixProgressBus.getDefault().addListener(vixVM, listener);
+		try {
+			otherVM.copyFileFromGuestToHost("sleep:40", "/tmp/stub");
+			assertEquals(0, events.size());
+			vixVM.copyFileFromGuestToHost("sleep:200", "/tmp/stub");
+			assertEquals(6, events.size());
+			long lastElapsed = -1;
+			for (int i = 0; i < events.size(); i++) {
+				VixProgressEvent event = (VixProgressEvent) events.get(i);
+				int expectedType = (i == 0 ? VixProgressEvent.TYPE_STARTED : 
+				  (i == 5 ? VixProgressEvent.TYPE_COMPLETED : VixProgressEvent.TYPE_PROGRESS));
+				assertEquals(expectedType, event.getType());
+				assertEquals("copyFileFromGuestToHost", event.getOperation());
+				assertSame(vixVM, event.getVM());
+				assertTrue(event.getElapsedNanos() >= lastElapsed);
+				lastElapsed = event.getElapsedNanos();
+			}
+			assertEquals(4, ((VixProgressEvent) events.get(5)).getProgressCount());
+			assertTrue(lastElapsed >= 150 * 1000000L);
+
+			events.clear();
+			try {
+				vixVM.deleteFileInGuestAsync("fail").getResult();
+				fail("VixException expected");
+			} catch (VixException ve) {
+				assertEquals(VixException.VIX_E_FAIL, ve.getErrorCode());
+			}
+			assertEquals(2, events.size());
+			assertEquals(VixException.VIX_E_FAIL, ((VixProgressEvent) events.get(1)).getException().getErrorCode());
+		} finally {
+			vixVM.close();
+			otherVM.close();
+			vixHost.close();
+		}
+		assertFalse(VixProgressBus.getDefault().removeListener(vixVM, listener));
+	}
+
+}
@@ -0,0 +1,128 @@
+package net.sf.jvix.test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import net.sf.jvix.VixBlob;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHandle;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixVM;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of blob properties, using the screen images returned by the stub VIX
+ * library; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestVixBlob extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Size of the screen image returned by the stub (STUB_SCREEN_IMAGE_SIZE in vixstub.c) */
+	private static final int SCREEN_IMAGE_SIZE = 100003;
+
+	/** Create a new TestVixBlob class */
+	public TestVixBlob(String name) {
+		super(name);
+	}
+
+	/** Checks that a buffer contains the stub's screen image, from its current position */
+	private void assertScreenImage(ByteBuffer buffer) {
+		assertEquals(SCREEN_IMAGE_SIZE, buffer.remaining());
+		for (int i = 0; i < SCREEN_IMAGE_SIZE; i++) {
+			assertEquals("byte " + i, (byte) i, buffer.get());
+		}
+	}
+
+	/** Checks the data returned by the synchronous and asynchronous captureScreenImage
+	 * methods, and that the data read from a blob remains valid after it is freed */
+	public void testCaptureScreenImage() throws Exception {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixVM vixVM = vixHost.open("/stub/vm.vmx");
+
+		VixBlob blob = vixVM.captureScreenImage(VixWrapper.VIX_CAPTURESCREENFORMAT_PNG);
+		assertEquals(SCREEN_IMAGE_SIZE, blob.size());
+		assertFalse(blob.isFreed());
+		ByteBuffer buffer = blob.getBuffer();
+		assertTrue(buffer.isReadOnly());
+		assertFalse(buffer.isDirect());
+		byte[] bytes = blob.getBytes();
+		blob.free();
+		assertTrue(blob.isFreed());
+		blob.free();  // has no effect
+
+		// the copies remain readable once the VIX memory has been released
+		assertScreenImage(buffer);
+		assertScreenImage(ByteBuffer.wrap(bytes));
+		try {
+			blob.getBuffer();
+			fail("getBuffer() succeeded after free()");
+		} catch (IllegalStateException ise) {
+			// expected
+		}
+		try {
+			blob.copyTo(ByteBuffer.allocate(SCREEN_IMAGE_SIZE));
+			fail("copyTo() succeeded after free()");
+		} catch (IllegalStateException ise) {
+			// expected
+		}
+
+		blob = (VixBlob) vixVM.captureScreenImageAsync(VixWrapper.VIX_CAPTURESCREENFORMAT_PNG).getResult();
+		try {
+			ByteBuffer dest = ByteBuffer.allocateDirect(SCREEN_IMAGE_SIZE + 10);
+			dest.position(10);
+			blob.copyTo(dest);
+			assertEquals(SCREEN_IMAGE_SIZE + 10, dest.position());
+			dest.position(10);
+			assertScreenImage(dest);
+		} finally {
+			blob.free();
+		}
+
+		vixVM.close();
+		vixHost.close();
+	}
+
+	/** Checks the Vix_GetBlobProperty methods */
+	public void testGetBlobProperty() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHandle vmHandle = openVM(vixHost);
+		VixHandle jobHandle = VixWrapper.VixVM_CaptureScreenImage(vmHandle,
+		  VixWrapper.VIX_CAPTURESCREENFORMAT_PNG, VixHandle.VIX_INVALID_HANDLE, null, null);
+		try {
+			VixWrapper.VixJob_Wait(jobHandle);
+
+			// the blob is freed whether or not it could be copied
+			ByteBuffer dest = ByteBuffer.allocate(SCREEN_IMAGE_SIZE);
+			assertEquals(SCREEN_IMAGE_SIZE, VixWrapper.Vix_GetBlobProperty(jobHandle,
+			  VixWrapper.VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA, dest));
+			dest.flip();
+			assertScreenImage(dest);
+			try {
+				VixWrapper.Vix_GetBlobProperty(jobHandle, VixWrapper.VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_DATA,
+				  ByteBuffer.allocate(SCREEN_IMAGE_SIZE - 1));
+				fail("Vix_GetBlobProperty succeeded with a short buffer");
+			} catch (BufferOverflowException boe) {
+				// expected
+			}
+
+			try {
+				VixWrapper.Vix_GetBlobProperty(jobHandle, VixWrapper.VIX_PROPERTY_JOB_RESULT_SCREEN_IMAGE_SIZE);
+				fail("Vix_GetBlobProperty succeeded for an integer property");
+			} catch (VixException ve) {
+				assertEquals(VixException.VIX_E_TYPE_MISMATCH, ve.getErrorCode());
+			}
+		} finally {
+			VixWrapper.Vix_ReleaseHandle(jobHandle);
+		}
+		VixWrapper.Vix_ReleaseHandle(vmHandle);
+		vixHost.close();
+	}
+
+}
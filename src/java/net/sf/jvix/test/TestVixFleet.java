@@ -0,0 +1,195 @@
+package net.sf.jvix.test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jvix.ReleaseBatcher;
+import net.sf.jvix.VixCancellationToken;
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixFleet;
+import net.sf.jvix.VixFleetReport;
+import net.sf.jvix.VixFleetResult;
+import net.sf.jvix.VixFleetRun;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixVM;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of VixFleet, run against the stub VIX library; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestVixFleet extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Create a new TestVixFleet class */
+	public TestVixFleet(String name) {
+		super(name);
+	}
+
+	/** Runs operations against VMs on two hosts through a VixFleet, and checks the
+	 * concurrency limits, the streamed results, the report, and cancellation */
+	public void testFleet() throws VixException, InterruptedException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixHost otherHost = getVixHost();
+		final List vms = new ArrayList();
+		for (int i = 0; i < 12; i++) {
+			vms.add((i < 8 ? vixHost : otherHost).open("/stub/vm" + i + ".vmx"));
+		}
+		VixFleet fleet = new VixFleet(4, 2);
+		try {
+			final Map activeCounts = new IdentityHashMap();
+			final int[] maxCounts = new int[2]; // total, per host
+			final CountDownLatch allRunning = new CountDownLatch(4);
+			final CountDownLatch othersTaken = new CountDownLatch(1);
+			VixFleetRun run = fleet.run(vms, new VixFleet.Operation() {
+				public Object run(VixVM vm) throws VixException {
+					synchronized (maxCounts) {
+						int[] count = (int[]) activeCounts.get(vm.getHost());
+						if (count == null) {
+							count = new int[1];
+							activeCounts.put(vm.getHost(), count);
+						}
+						count[0]++;
+						maxCounts[1] = Math.max(maxCounts[1], count[0]);
+						int total = 0;
+						for (Iterator i = activeCounts.values().iterator(); i.hasNext(); ) {
+							total += ((int[]) i.next())[0];
+						}
+						maxCounts[0] = Math.max(maxCounts[0], total);
+					}
+					try {
+						// the first four operations wait until they are all running
+						allRunning.countDown();
+						if (!allRunning.await(10, TimeUnit.SECONDS)) {
+							throw new IllegalStateException("concurrency limits not reached");
+						}
+						// the first operation is held until every other result has been taken
+						if (vm == vms.get(0) && !othersTaken.await(10, TimeUnit.SECONDS)) {
+							throw new IllegalStateException("results not taken");
+						}
+						return Boolean.valueOf(vm.fileExistsInGuest("/stub/file"));
+					} catch (InterruptedException ie) {
+						throw new IllegalStateException("interrupted");
+					} finally {
+						synchronized (maxCounts) {
+							((int[]) activeCounts.get(vm.getHost()))[0]--;
+						}
+					}
+				}
+			});
+			VixFleetResult result;
+			for (int i = 0; i < 11; i++) {
+				result = run.take();
+				assertTrue(result.isSuccessful());
+				assertNotSame(vms.get(0), result.getVM());
+			}
+			assertEquals(4, maxCounts[0]);
+			assertEquals(2, maxCounts[1]);
+
+			// the held operation becomes the slowest straggler once it has been running for
+			// more than twice the median latency
+			VixFleetReport report = run.getReport();
+			assertEquals(1, report.getRunningCount());
+			for (int i = 0; i < 1000 && !isSlowestStraggler(report, vms.get(0)); i++) {
+				Thread.sleep(10);
+				report = run.getReport();
+			}
+			assertTrue(isSlowestStraggler(report, vms.get(0)));
+			othersTaken.countDown();
+			result = run.take();
+			assertSame(vms.get(0), result.getVM());
+			assertNull(run.take());
+
+			report = run.getReport();
+			assertEquals(12, report.getSucceededCount());
+			assertEquals(result.getLatencyNanos(), report.getLatencyPercentile(100));
+			assertTrue(report.getMedianLatencyNanos() < result.getLatencyNanos());
+			assertTrue(report.getMakespanNanos() >= result.getLatencyNanos());
+
+			// VMs opened by path, whose operations fail
+			List paths = new ArrayList();
+			for (int i = 0; i < 3; i++) {
+				paths.add("/stub/path" + i + ".vmx");
+			}
+			// (run under a token, whose child token is removed once the run completes)
+			VixCancellationToken token = new VixCancellationToken(60000);
+			VixCancellationToken previous = VixCancellationToken.setCurrent(token);
+			try {
+				run = fleet.run(vixHost, paths, new VixFleet.Operation() {
+					public Object run(VixVM vm) throws VixException {
+						vm.deleteFileInGuest("fail");
+						return null;
+					}
+				});
+			} finally {
+				VixCancellationToken.setCurrent(previous);
+			}
+			report = run.awaitCompletion();
+			assertEquals(0, token.getChildCount());
+			token.close();
+			assertEquals(3, report.getFailedCount());
+			for (int i = 0; i < 3; i++) {
+				result = (VixFleetResult) run.getResults().get(i);
+				assertEquals(paths.get(i), result.getVmxPath());
+				assertEquals(VixException.VIX_E_FAIL, result.getException().getErrorCode());
+			}
+
+			// cancelling abandons the running operations, and skips the rest
+			long abandonedJobCount = VixWrapper.getAbandonedJobCount();
+			run = fleet.run(vms, new VixFleet.Operation() {
+				public Object run(VixVM vm) throws VixException {
+					return Boolean.valueOf(vm.fileExistsInGuest("sleep:2000"));
+				}
+			});
+			while (run.getReport().getRunningCount() < 4) {
+				Thread.sleep(10);
+			}
+			run.cancel();
+			report = run.awaitCompletion();
+			assertEquals(12, report.getFailedCount());
+			assertEquals(8, countSkipped(run));
+			for (int i = 0; i < 200 && VixWrapper.getAbandonedJobCount() < abandonedJobCount + 4; i++) {
+				Thread.sleep(50);
+			}
+			assertEquals(abandonedJobCount + 4, VixWrapper.getAbandonedJobCount());
+		} finally {
+			fleet.shutdown();
+			for (int i = 0; i < vms.size(); i++) {
+				((VixVM) vms.get(i)).close();
+			}
+			ReleaseBatcher.getDefault().flush();
+			vixHost.close();
+			otherHost.close();
+		}
+	}
+
+	/** Returns true if a VM's operation is the slowest straggler in a report */
+	private boolean isSlowestStraggler(VixFleetReport report, Object vm) {
+		List stragglers = report.getStragglers();
+		return !stragglers.isEmpty() && ((VixFleetResult) stragglers.get(0)).getVM() == vm;
+	}
+
+	/** Returns the number of operations in a fleet run which were skipped */
+	private int countSkipped(VixFleetRun run) {
+		int count = 0;
+		for (int i = 0; i < run.getSize(); i++) {
+			VixFleetResult result = (VixFleetResult) run.getResults().get(i);
+			if (!result.isStarted()) {
+				assertEquals(VixException.VIX_E_CANCELLED, result.getException().getErrorCode());
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,66 @@
+package net.sf.jvix.test;
+
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixFuture;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixSnapshot;
+import net.sf.jvix.VixVM;
+import net.sf.jvix.VixVMQueue;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of VixVMQueue, run against the stub VIX library; see {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestVixVMQueue extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Create a new TestVixVMQueue class */
+	public TestVixVMQueue(String name) {
+		super(name);
+	}
+
+	/** Queues operations on a VixVMQueue, and checks that idempotent operations are
+	 * coalesced, and that each coalesced snapshot can be closed separately */
+	public void testVMQueue() throws VixException {
+		if (!usingStub) { return; }
+		VixHost vixHost = getVixHost();
+		VixVM vixVM = vixHost.open("/stub/vm.vmx");
+		VixVMQueue queue = new VixVMQueue(vixVM);
+		try {
+			VixFuture[] powerOns = new VixFuture[100];
+			VixFuture[] snapshots = new VixFuture[100];
+			for (int i = 0; i < powerOns.length; i++) {
+				powerOns[i] = queue.powerOn(VixWrapper.VIX_VMPOWEROP_NORMAL);
+				queue.waitForToolsInGuest(300);
+				snapshots[i] = queue.getCurrentSnapshot();
+			}
+			VixFuture exists = queue.submit(new VixVMQueue.Operation() {
+				public VixFuture start(VixVM vm) {
+					return vm.fileExistsInGuestAsync("/stub/file");
+				}
+			});
+			VixFuture powerOnAfter = queue.powerOn(VixWrapper.VIX_VMPOWEROP_NORMAL);
+			assertEquals(Boolean.TRUE, exists.getResult());
+			powerOnAfter.getResult();
+			for (int i = 0; i < powerOns.length; i++) {
+				powerOns[i].getResult();
+				((VixSnapshot) snapshots[i].getResult()).close();
+			}
+			assertEquals(0, queue.getQueueDepth());
+			assertEquals(302, queue.getSubmittedCount());
+			// the power on after the submitted operation cannot be coalesced with earlier ones
+			assertTrue(queue.getStartedCount() >= 5);
+			assertEquals(queue.getSubmittedCount() - queue.getCoalescedCount(), queue.getStartedCount());
+		} finally {
+			queue.shutdown();
+			vixVM.close();
+			vixHost.close();
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package net.sf.jvix.test;
+
+import net.sf.jvix.VixException;
+import net.sf.jvix.VixHost;
+import net.sf.jvix.VixVM;
+import net.sf.jvix.VixWrapper;
+
+/**
+ * Tests of the VixWrapper wait modes, run against the stub VIX library; see
+ * {@link StubTestCase}.
+ *
+ * @author knoxg
+ * @version $Id$
+ */
+public class TestWaitModes extends StubTestCase {
+
+	/** Revision to use in stack traces */
+	public static String _revision = "$Id$";
+
+	/** Number of files returned by the directory listing */
+	public static final int LISTING_SIZE = 100000;
+
+	/** Create a new TestWaitModes class */
+	public TestWaitModes(String name) {
+		super(name);
+	}
+
+	/** Runs synchronous VixVM methods in each of the VixWrapper wait modes */
+	public void testWaitModes() throws VixException {
+		if (!usingStub) { return; }
+		int[] waitModes = new int[] { VixWrapper.WAIT_MODE_POOL, VixWrapper.WAIT_MODE_POLL };
+		VixHost vixHost = getVixHost();
+		try {
+			for (int i = 0; i < waitModes.length; i++) {
+				VixWrapper.setWaitMode(waitModes[i]);
+				VixVM vixVM = vixHost.open("/stub/vm.vmx");
+				try {
+					for (int j = 0; j < 100; j++) {
+						vixVM.powerOn(VixWrapper.VIX_VMPOWEROP_NORMAL);
+						assertTrue(vixVM.fileExistsInGuest("/stub/file" + j));
+					}
+					assertEquals(LISTING_SIZE, vixVM.listDirectoryInGuest("/stub/" + LISTING_SIZE).size());
+					try {
+						vixVM.deleteFileInGuest("fail");
+						fail("VixException expected");
+					} catch (VixException ve) {
+						assertEquals(VixException.VIX_E_FAIL, ve.getErrorCode());
+					}
+				} finally {
+					vixVM.close();
+				}
+			}
+		} finally {
+			VixWrapper.setWaitMode(VixWrapper.WAIT_MODE_NATIVE);
+			vixHost.close();
+		}
+	}
+
+}
@@ -1,5 +1,6 @@
 package net.sf.jvix.util;
 
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.HashMap;
@@ -56,4 +57,41 @@ public class Util {
 		}
 		return (Map) constantMap;
 	}
+
+	/** Decodes a UTF-8 encoded byte array (e.g. a string property retrieved in
+	 * raw mode) into a String.
+	 *
+	 * @param bytes the UTF-8 encoded bytes
+	 *
+	 * @return the decoded string, or null if bytes is null
+	 */
+	public static String decodeUtf8(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			// every JVM is required to support UTF-8
+			throw new IllegalStateException("UTF-8 encoding not supported");
+		}
+	}
+
+	/** Encodes a String as a UTF-8 byte array
+	 *
+	 * @param string the string to encode
+	 *
+	 * @return the UTF-8 encoded bytes, or null if string is null
+	 */
+	public static byte[] encodeUtf8(String string) {
+		if (string == null) {
+			return null;
+		}
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			// every JVM is required to support UTF-8
+			throw new IllegalStateException("UTF-8 encoding not supported");
+		}
+	}
 }